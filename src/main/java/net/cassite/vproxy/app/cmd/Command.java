@@ -655,6 +655,8 @@ public class Command {
                                 TcpLBHandle.checkUpdateTcpLB(cmd);
                             } else if (cmd.resource.type == ResourceType.socks5) {
                                 Socks5ServerHandle.checkUpdateSocks5Server(cmd);
+                            } else if (cmd.resource.type == ResourceType.sgs) {
+                                ServerGroupsHandle.checkUpdateServerGroups(cmd);
                             } else
                                 throw new Exception("unsupported action " + cmd.action.fullname + " for " + cmd.resource.type.fullname);
                         }
@@ -834,6 +836,9 @@ public class Command {
                     case R:
                         ServerGroupsHandle.forceRemove(this);
                         return new CmdResult();
+                    case u:
+                        ServerGroupsHandle.update(this);
+                        return new CmdResult();
                 }
             case elg: // top level
                 switch (action) {
@@ -972,7 +977,8 @@ public class Command {
                         List<Object> cacheStrList = caches.stream().map(c -> Arrays.asList(
                             c.host,
                             c.ipv4.stream().map(i -> Utils.ipStr(i.getAddress())).collect(Collectors.toList()),
-                            c.ipv6.stream().map(i -> Utils.ipStr(i.getAddress())).collect(Collectors.toList())
+                            c.ipv6.stream().map(i -> Utils.ipStr(i.getAddress())).collect(Collectors.toList()),
+                            (c.isStale() ? "stale " : "") + c.stats
                         )).collect(Collectors.toList());
                         return new CmdResult(caches, cacheStrList, utilJoinList(caches));
                     case R:
@@ -987,7 +993,8 @@ public class Command {
                     case L:
                         List<AutoLB> autoLBs = AutoLBHandle.detail();
                         List<String> autoLBStrList = autoLBs.stream().map(l ->
-                            l.alias + " -> service " + l.service + " zone " + l.zone + " port " + l.lb.bindAddress.getPort())
+                            l.alias + " -> service " + l.service + " zone " + l.zone + " port " + l.lb.bindAddress.getPort()
+                                + (l.lb.persistTimeout > 0 ? " persist " + l.lb.persistTimeout : ""))
                             .collect(Collectors.toList());
                         return new CmdResult(autoLBs, autoLBStrList, utilJoinList(autoLBStrList));
                     case R:
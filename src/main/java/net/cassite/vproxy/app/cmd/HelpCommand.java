@@ -390,6 +390,29 @@ public class HelpCommand {
         inbuffersize("in-buffer-size", null, "in buffer size"),
         outbuffersize("out-buffer-size", null, "out buffer size"),
         persist("persist", null, "connector persist timeout"),
+        maxconn("max-conn", null, "max concurrent connections"),
+        waitqueue("wait-queue", null, "wait queue size"),
+        waittimeout("wait-timeout", null, "wait timeout"),
+        connectretry("connect-retry", null, "connect retry times"),
+        connectretrytimeout("connect-retry-timeout", null, "connect retry timeout"),
+        consecutiveerrors("consecutive-errors", null, "outlier detection consecutive errors"),
+        ejectiontime("ejection-time", null, "outlier ejection time"),
+        maxejectionpercent("max-ejection-percent", null, "max percentage of ejected servers"),
+        checkprotocol("check-protocol", null, "health check protocol"),
+        httpmethod("http-method", null, "http health check method"),
+        httpuri("http-uri", null, "http health check uri"),
+        httpstatus("http-status", null, "expected http health check status"),
+        stableperiod("stable-period", null, "health check period for stable servers"),
+        stableafter("stable-after", null, "count of successful checks to become stable"),
+        downperiodmax("down-period-max", null, "max health check period for down servers"),
+        iprate("ip-rate", null, "new connection rate of one client ip"),
+        ipmaxconn("ip-max-conn", null, "max concurrent connections of one client ip"),
+        cidrrate("cidr-rate", null, "new connection rate of one client network"),
+        cidrmaxconn("cidr-max-conn", null, "max concurrent connections of one client network"),
+        cidrv4mask("cidr-v4-mask", null, "mask length of ipv4 client networks"),
+        cidrv6mask("cidr-v6-mask", null, "mask length of ipv6 client networks"),
+        bandwidth("bandwidth", null, "bytes per second"),
+        ipbandwidth("ip-bandwidth", null, "bytes per second of one client ip"),
         securitygroup("security-group", "secg", "security group"),
         timeout("timeout", null, "health check timeout"),
         period("period", null, "health check period"),
@@ -445,6 +468,18 @@ public class HelpCommand {
                     , new ResActParamMan(ParamMan.inbuffersize, "input buffer size", "16384 (bytes)")
                     , new ResActParamMan(ParamMan.outbuffersize, "output buffer size", "16384 (bytes)")
                     , new ResActParamMan(ParamMan.persist, "an integer representing the timeout (ms) of how long to persist a connector for a client ip", "0, means do not persist")
+                    , new ResActParamMan(ParamMan.waitqueue, "how many connections can wait for backends when all healthy servers reached max-conn", "0, means do not wait")
+                    , new ResActParamMan(ParamMan.waittimeout, "an integer representing the timeout (ms) of how long a connection can wait for backends", "1000")
+                    , new ResActParamMan(ParamMan.connectretry, "how many times to retry another backend when connecting to a backend failed", "0, means do not retry")
+                    , new ResActParamMan(ParamMan.connectretrytimeout, "an integer representing the timeout (ms) since the first connect, no retry after this timeout", "3000")
+                    , new ResActParamMan(ParamMan.iprate, "how many new connections one client ip can make per second", "0, means no limit")
+                    , new ResActParamMan(ParamMan.ipmaxconn, "how many concurrent connections one client ip can have", "0, means no limit")
+                    , new ResActParamMan(ParamMan.cidrrate, "how many new connections all clients in one network can make per second", "0, means no limit")
+                    , new ResActParamMan(ParamMan.cidrmaxconn, "how many concurrent connections all clients in one network can have", "0, means no limit")
+                    , new ResActParamMan(ParamMan.cidrv4mask, "the mask length of the network of an ipv4 client", "24")
+                    , new ResActParamMan(ParamMan.cidrv6mask, "the mask length of the network of an ipv6 client", "64")
+                    , new ResActParamMan(ParamMan.bandwidth, "max bytes per second read from all sessions of the lb, counting both directions", "0, means no limit")
+                    , new ResActParamMan(ParamMan.ipbandwidth, "max bytes per second read from sessions of one client ip, counting both directions", "0, means no limit")
                     , new ResActParamMan(ParamMan.securitygroup, "specify a security group for the lb", "allow any")
                 ),
                 Collections.singletonList(
@@ -466,14 +501,26 @@ public class HelpCommand {
                 Collections.singletonList(
                     new Tuple<>(
                         "list-detail tcp-lb",
-                        "1) \"lb0 -> acceptor elg0 worker elg0 bind 127.0.0.1:18080 backends sgs0 in buffer size 16384 out buffer size 16384 persist 0 security-group secg0\""
+                        "1) \"lb0 -> acceptor elg0 worker elg0 bind 127.0.0.1:18080 backends sgs0 in buffer size 16384 out buffer size 16384 persist 0 wait-queue 0 wait-timeout 1000 waiting 0 connect-retry 0 connect-retry-timeout 3000 security-group secg0\""
                     )
                 ))
-            , new ResActMan(ActMan.update, "update persist, in-buffer-size or out-buffer-size of an lb",
+            , new ResActMan(ActMan.update, "update persist, in-buffer-size, out-buffer-size, wait-queue, wait-timeout, connect-retry, connect-retry-timeout, connection limits or bandwidth of an lb",
                 Arrays.asList(
                     new ResActParamMan(ParamMan.inbuffersize, "input buffer size", "not changed")
                     , new ResActParamMan(ParamMan.outbuffersize, "output buffer size", "not changed")
                     , new ResActParamMan(ParamMan.persist, "an integer representing the timeout (ms) of how long to persist a connector for a client ip", "not changed")
+                    , new ResActParamMan(ParamMan.waitqueue, "how many connections can wait for backends", "not changed")
+                    , new ResActParamMan(ParamMan.waittimeout, "how long (ms) a connection can wait for backends", "not changed")
+                    , new ResActParamMan(ParamMan.connectretry, "how many times to retry another backend", "not changed")
+                    , new ResActParamMan(ParamMan.connectretrytimeout, "the timeout (ms) of retrying", "not changed")
+                    , new ResActParamMan(ParamMan.iprate, "new connection rate of one client ip", "not changed")
+                    , new ResActParamMan(ParamMan.ipmaxconn, "max concurrent connections of one client ip", "not changed")
+                    , new ResActParamMan(ParamMan.cidrrate, "new connection rate of one client network", "not changed")
+                    , new ResActParamMan(ParamMan.cidrmaxconn, "max concurrent connections of one client network", "not changed")
+                    , new ResActParamMan(ParamMan.cidrv4mask, "mask length of ipv4 client networks", "not changed")
+                    , new ResActParamMan(ParamMan.cidrv6mask, "mask length of ipv6 client networks", "not changed")
+                    , new ResActParamMan(ParamMan.bandwidth, "max bytes per second of the lb", "not changed")
+                    , new ResActParamMan(ParamMan.ipbandwidth, "max bytes per second of one client ip", "not changed")
                 ),
                 Collections.singletonList(
                     new Tuple<>(
@@ -585,10 +632,22 @@ public class HelpCommand {
         servergroups("server-groups", "sgs", "a resource containing multiple `server-group` resources",
             Arrays.asList(
                 new ResActMan(ActMan.add, "specify a name and create a server-groups resource",
-                    Collections.emptyList(),
+                    Collections.singletonList(
+                        new ResActParamMan(ParamMan.zone, "the local zone, groups in this zone are preferred, and groups in other zones are only used when local groups are down", "not set, means no preference")
+                    ),
                     Collections.singletonList(
                         new Tuple<>(
-                            "add server-groups sgs0",
+                            "add server-groups sgs0 zone z0",
+                            "\"OK\""
+                        )
+                    )),
+                new ResActMan(ActMan.update, "change the local zone of a server-groups resource",
+                    Collections.singletonList(
+                        new ResActParamMan(ParamMan.zone, "the local zone")
+                    ),
+                    Collections.singletonList(
+                        new Tuple<>(
+                            "update server-groups sgs0 zone z1",
                             "\"OK\""
                         )
                     )),
@@ -621,18 +680,38 @@ public class HelpCommand {
                         new ResActParamMan(ParamMan.period, "do check every `${period}` milliseconds"),
                         new ResActParamMan(ParamMan.up, "set server status to UP after succeeded for `${up}` times"),
                         new ResActParamMan(ParamMan.down, "set server status to DOWN after failed for `${down}` times"),
+                        new ResActParamMan(ParamMan.checkprotocol, "`tcp`, `tcpDelay`, `http` or `redis`. `http` sends a request and checks the status code, `redis` sends PING and expects PONG", "tcp"),
+                        new ResActParamMan(ParamMan.httpmethod, "method of the http check request", "HEAD"),
+                        new ResActParamMan(ParamMan.httpuri, "uri of the http check request", "/"),
+                        new ResActParamMan(ParamMan.httpstatus, "expected status code of the http check, `x` matches any digit", "2xx"),
+                        new ResActParamMan(ParamMan.stableperiod, "check every `${stable-period}` milliseconds after the server passed `${stable-after}` checks in a row. the check is accelerated when real traffic fails to connect", "0, means always use `${period}`"),
+                        new ResActParamMan(ParamMan.stableafter, "count of successful checks in a row before using `${stable-period}`", "10"),
+                        new ResActParamMan(ParamMan.downperiodmax, "the period doubles for down servers until reaching `${down-period-max}` milliseconds", "0, means always use `${period}`"),
                         new ResActParamMan(ParamMan.method, "loadbalancing algorithm, `wrr` or `wlc`", "wrr"),
-                        new ResActParamMan(ParamMan.eventloopgroup, "choose a event-loop-group for the server group. health check operations will be performed on the event loop group")
+                        new ResActParamMan(ParamMan.eventloopgroup, "choose a event-loop-group for the server group. health check operations will be performed on the event loop group"),
+                        new ResActParamMan(ParamMan.consecutiveerrors, "eject a server after `${consecutive-errors}` consecutive connect failures, early resets or timeouts of real sessions", "0, means never eject"),
+                        new ResActParamMan(ParamMan.ejectiontime, "how long (ms) a server is ejected", "30000"),
+                        new ResActParamMan(ParamMan.maxejectionpercent, "at most `${max-ejection-percent}`% servers of the group can be ejected at the same time", "50"),
+                        new ResActParamMan(ParamMan.bandwidth, "max bytes per second read from sessions to the servers of the group, counting both directions", "0, means no limit")
                     ),
-                    Collections.singletonList(
+                    Arrays.asList(
                         new Tuple<>(
                             "add server-group sg0 timeout 500 period 800 up 4 down 5 method wrr elg elg0",
                             "\"OK\""
+                        ),
+                        new Tuple<>(
+                            "add server-group sg1 timeout 500 period 800 up 4 down 5 check-protocol http http-uri /health http-status 200 elg elg0",
+                            "\"OK\""
+                        ),
+                        new Tuple<>(
+                            "add server-group sg2 timeout 500 period 800 up 4 down 5 stable-period 5000 down-period-max 10000 elg elg0",
+                            "\"OK\""
                         )
                     )),
                 new ResActMan(ActMan.addto, "attach an existing server group into a `server-groups` resource",
-                    Collections.singletonList(
-                        new ResActParamMan(ParamMan.weight, "the weight of group in this server-groups resource")
+                    Arrays.asList(
+                        new ResActParamMan(ParamMan.weight, "the weight of group in this server-groups resource"),
+                        new ResActParamMan(ParamMan.zone, "the zone of group in this server-groups resource", "not set")
                     ),
                     Collections.singletonList(
                         new Tuple<>(
@@ -657,25 +736,37 @@ public class HelpCommand {
                     Arrays.asList(
                         new Tuple<>(
                             "list-detail server-group",
-                            "1) \"sg0 -> timeout 500 period 800 up 4 down 5 method wrr event-loop-group elg0\""
+                            "1) \"sg0 -> timeout 500 period 800 up 4 down 5 check-protocol tcp method wrr consecutive-errors 0 ejection-time 30000 max-ejection-percent 50 event-loop-group elg0\""
                         ),
                         new Tuple<>(
                             "list-detail server-group in server-groups sgs0",
-                            "1) \"sg0 -> timeout 500 period 800 up 4 down 5 method wrr event-loop-group elg0 weight 10\""
+                            "1) \"sg0 -> timeout 500 period 800 up 4 down 5 check-protocol tcp method wrr consecutive-errors 0 ejection-time 30000 max-ejection-percent 50 event-loop-group elg0 weight 10\""
                         )
                     )),
-                new ResActMan(ActMan.update, "change health check config or load balancing algorithm.\n" +
+                new ResActMan(ActMan.update, "change health check config, outlier detection config, bandwidth or load balancing algorithm.\n" +
                     "\n" +
                     "Param list is the same as add, but not all required.\n" +
                     "\n" +
-                    "Also you can change the weight of a group in a server-groups resource",
+                    "Also you can change the weight or zone of a group in a server-groups resource",
                     Arrays.asList(
                         new ResActParamMan(ParamMan.timeout, "health check connect timeout (ms)", "not changed"),
                         new ResActParamMan(ParamMan.period, "do check every `${period}` milliseconds", "not changed"),
                         new ResActParamMan(ParamMan.up, "set server status to UP after succeeded for `${up}` times", "not changed"),
                         new ResActParamMan(ParamMan.down, "set server status to DOWN after failed for `${down}` times", "not changed"),
+                        new ResActParamMan(ParamMan.checkprotocol, "`tcp`, `tcpDelay`, `http` or `redis`", "tcp"),
+                        new ResActParamMan(ParamMan.httpmethod, "method of the http check request", "HEAD"),
+                        new ResActParamMan(ParamMan.httpuri, "uri of the http check request", "/"),
+                        new ResActParamMan(ParamMan.httpstatus, "expected status code of the http check", "2xx"),
+                        new ResActParamMan(ParamMan.stableperiod, "check period for stable servers", "0"),
+                        new ResActParamMan(ParamMan.stableafter, "count of successful checks in a row before using `${stable-period}`", "10"),
+                        new ResActParamMan(ParamMan.downperiodmax, "max check period for down servers", "0"),
                         new ResActParamMan(ParamMan.method, "loadbalancing algorithm, `wrr` or `wlc`", "not changed"),
-                        new ResActParamMan(ParamMan.weight, "the weight of group in this server-groups resource", "not changed")
+                        new ResActParamMan(ParamMan.consecutiveerrors, "eject a server after `${consecutive-errors}` consecutive errors", "not changed"),
+                        new ResActParamMan(ParamMan.ejectiontime, "how long (ms) a server is ejected", "not changed"),
+                        new ResActParamMan(ParamMan.maxejectionpercent, "at most `${max-ejection-percent}`% servers can be ejected", "not changed"),
+                        new ResActParamMan(ParamMan.bandwidth, "max bytes per second of the group", "not changed"),
+                        new ResActParamMan(ParamMan.weight, "the weight of group in this server-groups resource", "not changed"),
+                        new ResActParamMan(ParamMan.zone, "the zone of group in this server-groups resource", "not changed")
                     ),
                     Arrays.asList(
                         new Tuple<>(
@@ -686,11 +777,15 @@ public class HelpCommand {
                             "update server-group sg0 method wlc",
                             "\"OK\""
                         ),
+                        new Tuple<>(
+                            "update server-group sg0 timeout 500 period 600 up 3 down 2 check-protocol redis",
+                            "\"OK\""
+                        ),
                         new Tuple<>(
                             "update server-group sg0 in server-groups sgs0 weight 5",
                             "\"OK\""
                         )
-                    ), "all fields in health check config should be all specified if any one of them exists"),
+                    ), "timeout, period, up and down should be all specified if any field of health check config exists"),
                 new ResActMan(ActMan.remove, "remove a server group",
                     Collections.emptyList(),
                     Collections.singletonList(
@@ -746,6 +841,7 @@ public class HelpCommand {
                         new ResActParamMan(ParamMan.address, "remote address, ip:port"),
                         new ResActParamMan(ParamMan.ip, "local request ip address"),
                         new ResActParamMan(ParamMan.weight, "weight of the server, which will be used by wrr and wlc algorithm")
+                        , new ResActParamMan(ParamMan.maxconn, "max concurrent connections to the server, the server will not be picked when reached", "0, means no limit")
                     ),
                     Collections.singletonList(
                         new Tuple<>(
@@ -769,8 +865,11 @@ public class HelpCommand {
                             "1) \"svr0 -> connect to 127.0.0.1:6379 via 127.0.0.1 weight 10 currently DOWN\""
                         )
                     )),
-                new ResActMan(ActMan.update, "change weight of the server",
-                    Collections.emptyList(),
+                new ResActMan(ActMan.update, "change weight or max-conn of the server",
+                    Arrays.asList(
+                        new ResActParamMan(ParamMan.weight, "weight of the server", "not changed")
+                        , new ResActParamMan(ParamMan.maxconn, "max concurrent connections to the server", "not changed")
+                    ),
                     Collections.singletonList(
                         new Tuple<>(
                             "update server svr0 in server-group sg0 weight 11",
@@ -912,14 +1011,17 @@ public class HelpCommand {
                     "\n" +
                     "host.\n" +
                     "ipv4 ip list.\n" +
-                    "ipv6 ip list",
+                    "ipv6 ip list.\n" +
+                    "stats: whether the record is expired and served stale, " +
+                    "hits, stale-hits, misses, refreshes and refresh-failures of the host",
                     Collections.emptyList(),
                     Collections.singletonList(
                         new Tuple<>(
                             "list-detail dns-cache in resolver (default)",
                             "1) 1) \"localhost\"\n" +
                                 "   2) 1) \"127.0.0.1\"\n" +
-                                "   3) 1) \"[0000:0000:0000:0000:0000:0000:0000:0001]\""
+                                "   3) 1) \"[0000:0000:0000:0000:0000:0000:0000:0001]\"\n" +
+                                "   4) \"hits 12 stale-hits 0 misses 1 refreshes 2 refresh-failures 0\""
                         )
                     )),
                 new ResActMan(ActMan.forceremove, "specify the host and remove the dns cache",
@@ -1127,7 +1229,8 @@ public class HelpCommand {
                     Arrays.asList(
                         new ResActParamMan(ParamMan.service, "the service watched by the auto lb"),
                         new ResActParamMan(ParamMan.zone, "the zone watched by the auto lb"),
-                        new ResActParamMan(ParamMan.port, "the auto lb listening port")
+                        new ResActParamMan(ParamMan.port, "the auto lb listening port"),
+                        new ResActParamMan(ParamMan.persist, "an integer representing the timeout (ms) of how long to persist a connector for a client ip. the persisted connectors are replicated to the auto-lb with the same alias on other nodes", "0, means do not persist")
                     ),
                     Collections.singletonList(
                         new Tuple<>(
@@ -20,6 +20,29 @@ public enum Param {
     protocol("protocol"),
     portrange("port-range"),
     persist("persist"),
+    maxconn("max-conn"),
+    waitqueue("wait-queue"),
+    waittimeout("wait-timeout"),
+    connectretry("connect-retry"),
+    connectretrytimeout("connect-retry-timeout"),
+    consecutiveerrors("consecutive-errors"),
+    ejectiontime("ejection-time"),
+    maxejectionpercent("max-ejection-percent"),
+    checkprotocol("check-protocol"),
+    httpmethod("http-method"),
+    httpuri("http-uri"),
+    httpstatus("http-status"),
+    stableperiod("stable-period"),
+    stableafter("stable-after"),
+    downperiodmax("down-period-max"),
+    iprate("ip-rate"),
+    ipmaxconn("ip-max-conn"),
+    cidrrate("cidr-rate"),
+    cidrmaxconn("cidr-max-conn"),
+    cidrv4mask("cidr-v4-mask"),
+    cidrv6mask("cidr-v6-mask"),
+    bandwidth("bandwidth"),
+    ipbandwidth("ip-bandwidth"),
 
     service("service"),
     zone("zone"),
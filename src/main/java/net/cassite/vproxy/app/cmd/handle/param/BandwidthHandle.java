@@ -0,0 +1,24 @@
+package net.cassite.vproxy.app.cmd.handle.param;
+
+import net.cassite.vproxy.app.cmd.Command;
+import net.cassite.vproxy.app.cmd.Param;
+
+public class BandwidthHandle {
+    private BandwidthHandle() {
+    }
+
+    public static void check(Command cmd) throws Exception {
+        long l;
+        try {
+            l = get(cmd);
+        } catch (Exception e) {
+            throw new Exception("invalid " + Param.bandwidth.fullname);
+        }
+        if (l < 0)
+            throw new Exception("invalid " + Param.bandwidth.fullname);
+    }
+
+    public static long get(Command cmd) {
+        return Long.parseLong(cmd.args.get(Param.bandwidth));
+    }
+}
@@ -0,0 +1,61 @@
+package net.cassite.vproxy.app.cmd.handle.param;
+
+import net.cassite.vproxy.app.cmd.Command;
+import net.cassite.vproxy.app.cmd.Param;
+import net.cassite.vproxy.component.secure.ConnectionLimitConfig;
+
+public class ConnectionLimitHandle {
+    private ConnectionLimitHandle() {
+    }
+
+    public static boolean present(Command cmd) {
+        return cmd.args.containsKey(Param.iprate)
+            || cmd.args.containsKey(Param.ipmaxconn)
+            || cmd.args.containsKey(Param.cidrrate)
+            || cmd.args.containsKey(Param.cidrmaxconn)
+            || cmd.args.containsKey(Param.cidrv4mask)
+            || cmd.args.containsKey(Param.cidrv6mask);
+    }
+
+    // the missing fields are retrieved from the `base` config
+    public static ConnectionLimitConfig getConnectionLimitConfig(Command cmd, ConnectionLimitConfig base) throws Exception {
+        int ipRate = base.ipRate;
+        int ipMaxConn = base.ipMaxConn;
+        int cidrRate = base.cidrRate;
+        int cidrMaxConn = base.cidrMaxConn;
+        int cidrV4Mask = base.cidrV4Mask;
+        int cidrV6Mask = base.cidrV6Mask;
+        try {
+            if (cmd.args.containsKey(Param.iprate))
+                ipRate = Integer.parseInt(cmd.args.get(Param.iprate));
+            if (cmd.args.containsKey(Param.ipmaxconn))
+                ipMaxConn = Integer.parseInt(cmd.args.get(Param.ipmaxconn));
+            if (cmd.args.containsKey(Param.cidrrate))
+                cidrRate = Integer.parseInt(cmd.args.get(Param.cidrrate));
+            if (cmd.args.containsKey(Param.cidrmaxconn))
+                cidrMaxConn = Integer.parseInt(cmd.args.get(Param.cidrmaxconn));
+            if (cmd.args.containsKey(Param.cidrv4mask))
+                cidrV4Mask = Integer.parseInt(cmd.args.get(Param.cidrv4mask));
+            if (cmd.args.containsKey(Param.cidrv6mask))
+                cidrV6Mask = Integer.parseInt(cmd.args.get(Param.cidrv6mask));
+        } catch (NumberFormatException e) {
+            throw new Exception("invalid connection limit config");
+        }
+
+        if (ipRate < 0 || ipMaxConn < 0 || cidrRate < 0 || cidrMaxConn < 0
+            || cidrV4Mask < 1 || cidrV4Mask > 32 || cidrV6Mask < 1 || cidrV6Mask > 128)
+            throw new Exception("invalid connection limit config");
+        return new ConnectionLimitConfig(ipRate, ipMaxConn, cidrRate, cidrMaxConn, cidrV4Mask, cidrV6Mask);
+    }
+
+    // only the enabled limits are shown
+    public static String format(ConnectionLimitConfig c) {
+        return (c.ipRate > 0 ? " ip-rate " + c.ipRate : "") +
+            (c.ipMaxConn > 0 ? " ip-max-conn " + c.ipMaxConn : "") +
+            (c.cidrLimited()
+                ? (c.cidrRate > 0 ? " cidr-rate " + c.cidrRate : "") +
+                (c.cidrMaxConn > 0 ? " cidr-max-conn " + c.cidrMaxConn : "") +
+                " cidr-v4-mask " + c.cidrV4Mask + " cidr-v6-mask " + c.cidrV6Mask
+                : "");
+    }
+}
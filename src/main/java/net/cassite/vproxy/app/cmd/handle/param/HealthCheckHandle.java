@@ -2,12 +2,27 @@ package net.cassite.vproxy.app.cmd.handle.param;
 
 import net.cassite.vproxy.app.cmd.Command;
 import net.cassite.vproxy.app.cmd.Param;
+import net.cassite.vproxy.component.check.CheckProtocol;
 import net.cassite.vproxy.component.check.HealthCheckConfig;
 
 public class HealthCheckHandle {
     private HealthCheckHandle() {
     }
 
+    public static boolean present(Command cmd) {
+        return cmd.args.containsKey(Param.timeout)
+            || cmd.args.containsKey(Param.period)
+            || cmd.args.containsKey(Param.up)
+            || cmd.args.containsKey(Param.down)
+            || cmd.args.containsKey(Param.checkprotocol)
+            || cmd.args.containsKey(Param.httpmethod)
+            || cmd.args.containsKey(Param.httpuri)
+            || cmd.args.containsKey(Param.httpstatus)
+            || cmd.args.containsKey(Param.stableperiod)
+            || cmd.args.containsKey(Param.stableafter)
+            || cmd.args.containsKey(Param.downperiodmax);
+    }
+
     public static HealthCheckConfig getHealthCheckConfig(Command cmd) throws Exception {
         int timeout = Integer.parseInt(cmd.args.get(Param.timeout));
         int period = Integer.parseInt(cmd.args.get(Param.period));
@@ -16,6 +31,49 @@ public class HealthCheckHandle {
 
         if (timeout < 0 || period < 0 || up < 0 || down < 0)
             throw new Exception("invalid health check config");
-        return new HealthCheckConfig(timeout, period, up, down);
+
+        HealthCheckConfig dft = new HealthCheckConfig(timeout, period, up, down);
+        CheckProtocol protocol = dft.checkProtocol;
+        if (cmd.args.containsKey(Param.checkprotocol))
+            protocol = CheckProtocol.valueOf(cmd.args.get(Param.checkprotocol));
+        String method = dft.httpMethod;
+        if (cmd.args.containsKey(Param.httpmethod))
+            method = cmd.args.get(Param.httpmethod).toUpperCase();
+        String uri = dft.httpUri;
+        if (cmd.args.containsKey(Param.httpuri))
+            uri = cmd.args.get(Param.httpuri);
+        String status = dft.httpStatus;
+        if (cmd.args.containsKey(Param.httpstatus))
+            status = cmd.args.get(Param.httpstatus);
+
+        int stablePeriod = dft.stablePeriod;
+        if (cmd.args.containsKey(Param.stableperiod))
+            stablePeriod = Integer.parseInt(cmd.args.get(Param.stableperiod));
+        int stableAfter = dft.stableAfter;
+        if (cmd.args.containsKey(Param.stableafter))
+            stableAfter = Integer.parseInt(cmd.args.get(Param.stableafter));
+        int downPeriodMax = dft.downPeriodMax;
+        if (cmd.args.containsKey(Param.downperiodmax))
+            downPeriodMax = Integer.parseInt(cmd.args.get(Param.downperiodmax));
+
+        if (stablePeriod < 0 || stableAfter < 0 || downPeriodMax < 0)
+            throw new Exception("invalid health check config");
+        if (!uri.startsWith("/"))
+            throw new Exception("invalid http uri");
+        if (!status.matches("[1-5][0-9xX]{2}"))
+            throw new Exception("invalid http status");
+        return new HealthCheckConfig(timeout, period, up, down, protocol, method, uri, status,
+            stablePeriod, stableAfter, downPeriodMax);
+    }
+
+    // the health check config in command format
+    public static String format(HealthCheckConfig c) {
+        return "timeout " + c.timeout + " period " + c.period + " up " + c.up + " down " + c.down +
+            " check-protocol " + c.checkProtocol +
+            (c.checkProtocol == CheckProtocol.http
+                ? " http-method " + c.httpMethod + " http-uri " + c.httpUri + " http-status " + c.httpStatus
+                : "") +
+            (c.stablePeriod > 0 ? " stable-period " + c.stablePeriod + " stable-after " + c.stableAfter : "") +
+            (c.downPeriodMax > 0 ? " down-period-max " + c.downPeriodMax : "");
     }
 }
@@ -0,0 +1,24 @@
+package net.cassite.vproxy.app.cmd.handle.param;
+
+import net.cassite.vproxy.app.cmd.Command;
+import net.cassite.vproxy.app.cmd.Param;
+
+public class MaxConnHandle {
+    private MaxConnHandle() {
+    }
+
+    public static void check(Command cmd) throws Exception {
+        int i;
+        try {
+            i = get(cmd);
+        } catch (Exception e) {
+            throw new Exception("invalid " + Param.maxconn.fullname);
+        }
+        if (i < 0)
+            throw new Exception("invalid " + Param.maxconn.fullname);
+    }
+
+    public static int get(Command cmd) {
+        return Integer.parseInt(cmd.args.get(Param.maxconn));
+    }
+}
@@ -0,0 +1,33 @@
+package net.cassite.vproxy.app.cmd.handle.param;
+
+import net.cassite.vproxy.app.cmd.Command;
+import net.cassite.vproxy.app.cmd.Param;
+import net.cassite.vproxy.component.svrgroup.OutlierDetectionConfig;
+
+public class OutlierDetectionHandle {
+    private OutlierDetectionHandle() {
+    }
+
+    public static boolean present(Command cmd) {
+        return cmd.args.containsKey(Param.consecutiveerrors)
+            || cmd.args.containsKey(Param.ejectiontime)
+            || cmd.args.containsKey(Param.maxejectionpercent);
+    }
+
+    // the missing fields are retrieved from the `base` config
+    public static OutlierDetectionConfig getOutlierDetectionConfig(Command cmd, OutlierDetectionConfig base) throws Exception {
+        int consecutiveErrors = base.consecutiveErrors;
+        int ejectionTime = base.ejectionTime;
+        int maxEjectionPercent = base.maxEjectionPercent;
+        if (cmd.args.containsKey(Param.consecutiveerrors))
+            consecutiveErrors = Integer.parseInt(cmd.args.get(Param.consecutiveerrors));
+        if (cmd.args.containsKey(Param.ejectiontime))
+            ejectionTime = Integer.parseInt(cmd.args.get(Param.ejectiontime));
+        if (cmd.args.containsKey(Param.maxejectionpercent))
+            maxEjectionPercent = Integer.parseInt(cmd.args.get(Param.maxejectionpercent));
+
+        if (consecutiveErrors < 0 || ejectionTime < 0 || maxEjectionPercent < 0 || maxEjectionPercent > 100)
+            throw new Exception("invalid outlier detection config");
+        return new OutlierDetectionConfig(consecutiveErrors, ejectionTime, maxEjectionPercent);
+    }
+}
@@ -5,6 +5,7 @@ import net.cassite.vproxy.app.cmd.Command;
 import net.cassite.vproxy.app.cmd.Param;
 import net.cassite.vproxy.app.cmd.Resource;
 import net.cassite.vproxy.app.cmd.ResourceType;
+import net.cassite.vproxy.app.cmd.handle.param.PersistHandle;
 import net.cassite.vproxy.app.cmd.handle.param.PortHandle;
 import net.cassite.vproxy.app.cmd.handle.param.ServiceHandle;
 import net.cassite.vproxy.app.cmd.handle.param.ZoneHandle;
@@ -34,6 +35,13 @@ public class AutoLBHandle {
             throw new XException("missing argument " + Param.port.fullname);
 
         PortHandle.check(cmd);
+        if (cmd.args.containsKey(Param.persist)) {
+            try {
+                PersistHandle.check(cmd);
+            } catch (Exception e) {
+                throw new XException(e.getMessage());
+            }
+        }
     }
 
     public static List<String> names() {
@@ -64,7 +72,10 @@ public class AutoLBHandle {
         String service = ServiceHandle.get(cmd);
         String zone = ZoneHandle.get(cmd);
         int port = PortHandle.get(cmd);
+        int persist = 0;
+        if (cmd.args.containsKey(Param.persist))
+            persist = PersistHandle.get(cmd);
 
-        Application.get().autoLBHolder.add(alias, service, zone, port);
+        Application.get().autoLBHolder.add(alias, service, zone, port, persist);
     }
 }
@@ -23,13 +23,11 @@ public class PersistResourceHandle {
     }
 
     public static int count(Resource parent) throws NotFoundException {
-        return TcpLBHandle.get(parent).persistMap.size();
+        return TcpLBHandle.get(parent).persistCount();
     }
 
     public static List<PersistRef> detail(Resource parent) throws NotFoundException {
-        List<TcpLB.Persist> list = new ArrayList<>(
-            TcpLBHandle.get(parent).persistMap.values()
-        );
+        List<TcpLB.Persist> list = TcpLBHandle.get(parent).persistList();
         List<PersistRef> refs = new ArrayList<>(list.size());
         for (TcpLB.Persist p : list) {
             refs.add(new PersistRef(p));
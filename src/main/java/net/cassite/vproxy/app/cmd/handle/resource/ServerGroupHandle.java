@@ -6,12 +6,16 @@ import net.cassite.vproxy.app.cmd.Command;
 import net.cassite.vproxy.app.cmd.Param;
 import net.cassite.vproxy.app.cmd.Resource;
 import net.cassite.vproxy.app.cmd.ResourceType;
+import net.cassite.vproxy.app.cmd.handle.param.BandwidthHandle;
 import net.cassite.vproxy.app.cmd.handle.param.HealthCheckHandle;
 import net.cassite.vproxy.app.cmd.handle.param.MethHandle;
+import net.cassite.vproxy.app.cmd.handle.param.OutlierDetectionHandle;
 import net.cassite.vproxy.app.cmd.handle.param.WeightHandle;
+import net.cassite.vproxy.app.cmd.handle.param.ZoneHandle;
 import net.cassite.vproxy.component.check.HealthCheckConfig;
 import net.cassite.vproxy.component.elgroup.EventLoopGroup;
 import net.cassite.vproxy.component.exception.NotFoundException;
+import net.cassite.vproxy.component.svrgroup.OutlierDetectionConfig;
 import net.cassite.vproxy.component.svrgroup.ServerGroup;
 import net.cassite.vproxy.component.svrgroup.ServerGroups;
 
@@ -76,6 +80,14 @@ public class ServerGroupHandle {
         } else {
             cmd.args.put(Param.meth, "wrr");
         }
+        try {
+            OutlierDetectionHandle.getOutlierDetectionConfig(cmd, new OutlierDetectionConfig());
+        } catch (Exception e) {
+            throw new Exception("invalid outlier detection config");
+        }
+        if (cmd.args.containsKey(Param.bandwidth)) {
+            BandwidthHandle.check(cmd);
+        }
     }
 
     public static void checkUpdateServerGroup(Command cmd) throws Exception {
@@ -84,10 +96,7 @@ public class ServerGroupHandle {
             // i'm not saying that you cannot modify the one in serverGroups
             // but you don't have to go into serverGroups to modify,
             // the one on top level is the same one in any serverGroup
-            if (cmd.args.containsKey(Param.timeout)
-                || cmd.args.containsKey(Param.period)
-                || cmd.args.containsKey(Param.up)
-                || cmd.args.containsKey(Param.down)) {
+            if (HealthCheckHandle.present(cmd)) {
                 try {
                     HealthCheckHandle.getHealthCheckConfig(cmd);
                 } catch (Exception e) {
@@ -101,6 +110,14 @@ public class ServerGroupHandle {
                     throw new Exception("invalid method");
                 }
             }
+            try {
+                OutlierDetectionHandle.getOutlierDetectionConfig(cmd, new OutlierDetectionConfig());
+            } catch (Exception e) {
+                throw new Exception("invalid outlier detection config");
+            }
+            if (cmd.args.containsKey(Param.bandwidth)) {
+                BandwidthHandle.check(cmd);
+            }
         } else {
             // can modify the weight in a ServerGroups
             if (cmd.resource.parentResource.type != ResourceType.sgs)
@@ -148,11 +165,24 @@ public class ServerGroupHandle {
             EventLoopGroup elg = EventLoopGroupHandle.get(eventLoopGroupName);
             HealthCheckConfig c = HealthCheckHandle.getHealthCheckConfig(cmd);
             Application.get().serverGroupHolder.add(alias, elg, c, MethHandle.get(cmd));
+            ServerGroup g = Application.get().serverGroupHolder.get(alias);
+            g.setOutlierDetectionConfig(OutlierDetectionHandle.getOutlierDetectionConfig(cmd, new OutlierDetectionConfig()));
+            if (cmd.args.containsKey(Param.bandwidth)) {
+                g.setBandwidth(BandwidthHandle.get(cmd));
+            }
         } else {
             // add into serverGroups
             int weight = WeightHandle.get(cmd);
-            Application.get().serverGroupsHolder.get(cmd.prepositionResource.alias)
-                .add(Application.get().serverGroupHolder.get(cmd.resource.alias), weight);
+            ServerGroups groups = Application.get().serverGroupsHolder.get(cmd.prepositionResource.alias);
+            ServerGroup g = Application.get().serverGroupHolder.get(cmd.resource.alias);
+            groups.add(g, weight);
+            if (cmd.args.containsKey(Param.zone)) {
+                for (ServerGroups.ServerGroupHandle h : groups.getServerGroups()) {
+                    if (h.group.equals(g)) {
+                        h.setZone(ZoneHandle.get(cmd));
+                    }
+                }
+            }
         }
     }
 
@@ -185,17 +215,26 @@ public class ServerGroupHandle {
     public static void update(Command cmd) throws Exception {
         if (cmd.resource.parentResource == null) {
             ServerGroup g = Application.get().serverGroupHolder.get(cmd.resource.alias);
-            if (cmd.args.containsKey(Param.timeout)) {
+            if (HealthCheckHandle.present(cmd)) {
                 g.setHealthCheckConfig(HealthCheckHandle.getHealthCheckConfig(cmd));
             }
             if (cmd.args.containsKey(Param.meth)) {
                 g.setMethod(MethHandle.get(cmd));
             }
+            if (OutlierDetectionHandle.present(cmd)) {
+                g.setOutlierDetectionConfig(OutlierDetectionHandle.getOutlierDetectionConfig(cmd, g.getOutlierDetectionConfig()));
+            }
+            if (cmd.args.containsKey(Param.bandwidth)) {
+                g.setBandwidth(BandwidthHandle.get(cmd));
+            }
         } else {
             ServerGroups.ServerGroupHandle h = getHandle(cmd.resource);
             if (cmd.args.containsKey(Param.w)) {
                 h.setWeight(WeightHandle.get(cmd));
             }
+            if (cmd.args.containsKey(Param.zone)) {
+                h.setZone(ZoneHandle.get(cmd));
+            }
         }
     }
 
@@ -219,10 +258,14 @@ public class ServerGroupHandle {
         @Override
         public String toString() {
             HealthCheckConfig c = g.getHealthCheckConfig();
-            return alias + " -> timeout " + c.timeout + " period " + c.period +
-                " up " + c.up + " down " + c.down + " method " + g.getMethod() +
+            OutlierDetectionConfig o = g.getOutlierDetectionConfig();
+            return alias + " -> " + HealthCheckHandle.format(c) + " method " + g.getMethod() +
+                " consecutive-errors " + o.consecutiveErrors + " ejection-time " + o.ejectionTime +
+                " max-ejection-percent " + o.maxEjectionPercent +
                 " event-loop-group " + g.eventLoopGroup.alias +
-                (h == null ? "" : " weight " + h.getWeight());
+                (g.getBandwidth() > 0 ? " bandwidth " + g.getBandwidth() : "") +
+                (h == null ? "" : " weight " + h.getWeight()) +
+                (h == null || h.getZone() == null ? "" : " zone " + h.getZone());
         }
     }
 }
@@ -2,8 +2,10 @@ package net.cassite.vproxy.app.cmd.handle.resource;
 
 import net.cassite.vproxy.app.Application;
 import net.cassite.vproxy.app.cmd.Command;
+import net.cassite.vproxy.app.cmd.Param;
 import net.cassite.vproxy.app.cmd.Resource;
 import net.cassite.vproxy.app.cmd.ResourceType;
+import net.cassite.vproxy.app.cmd.handle.param.ZoneHandle;
 import net.cassite.vproxy.component.app.TcpLB;
 import net.cassite.vproxy.component.svrgroup.ServerGroups;
 
@@ -28,6 +30,20 @@ public class ServerGroupsHandle {
 
     public static void add(Command cmd) throws Exception {
         Application.get().serverGroupsHolder.add(cmd.resource.alias);
+        if (cmd.args.containsKey(Param.zone)) {
+            get(cmd.resource).setLocalZone(ZoneHandle.get(cmd));
+        }
+    }
+
+    public static void checkUpdateServerGroups(Command cmd) throws Exception {
+        if (!cmd.args.containsKey(Param.zone))
+            throw new Exception("missing argument " + Param.zone.fullname);
+    }
+
+    public static void update(Command cmd) throws Exception {
+        if (cmd.args.containsKey(Param.zone)) {
+            get(cmd.resource).setLocalZone(ZoneHandle.get(cmd));
+        }
     }
 
     public static void preCheck(Command cmd) throws Exception {
@@ -6,6 +6,7 @@ import net.cassite.vproxy.app.cmd.Resource;
 import net.cassite.vproxy.app.cmd.ResourceType;
 import net.cassite.vproxy.app.cmd.handle.param.AddrHandle;
 import net.cassite.vproxy.app.cmd.handle.param.IpHandle;
+import net.cassite.vproxy.app.cmd.handle.param.MaxConnHandle;
 import net.cassite.vproxy.app.cmd.handle.param.WeightHandle;
 import net.cassite.vproxy.component.exception.NotFoundException;
 import net.cassite.vproxy.component.svrgroup.ServerGroup;
@@ -31,10 +32,17 @@ public class ServerHandle {
         AddrHandle.check(cmd);
         IpHandle.check(cmd);
         WeightHandle.check(cmd);
+        if (cmd.args.containsKey(Param.maxconn))
+            MaxConnHandle.check(cmd);
     }
 
     public static void checkUpdateServer(Command cmd) throws Exception {
-        WeightHandle.check(cmd);
+        if (!cmd.args.containsKey(Param.w) && !cmd.args.containsKey(Param.maxconn))
+            throw new Exception("missing argument " + Param.w.fullname + " or " + Param.maxconn.fullname);
+        if (cmd.args.containsKey(Param.w))
+            WeightHandle.check(cmd);
+        if (cmd.args.containsKey(Param.maxconn))
+            MaxConnHandle.check(cmd);
     }
 
     public static ServerGroup.ServerHandle get(Resource server) throws Exception {
@@ -66,8 +74,11 @@ public class ServerHandle {
         // no need to check whether host is an ip
         // will be check in `group.add()`
 
-        ServerGroupHandle.get(cmd.prepositionResource)
+        ServerGroup.ServerHandle h = ServerGroupHandle.get(cmd.prepositionResource)
             .add(name, host, AddrHandle.get(cmd), IpHandle.get(cmd), WeightHandle.get(cmd));
+        if (cmd.args.containsKey(Param.maxconn)) {
+            h.setMaxConn(MaxConnHandle.get(cmd));
+        }
     }
 
     public static void forceRemove(Command cmd) throws Exception {
@@ -78,7 +89,12 @@ public class ServerHandle {
     public static void update(Command cmd) throws Exception {
         for (ServerGroup.ServerHandle h : ServerGroupHandle.get(cmd.resource.parentResource).getServerHandles()) {
             if (h.alias.equals(cmd.resource.alias)) {
-                h.setWeight(WeightHandle.get(cmd));
+                if (cmd.args.containsKey(Param.w)) {
+                    h.setWeight(WeightHandle.get(cmd));
+                }
+                if (cmd.args.containsKey(Param.maxconn)) {
+                    h.setMaxConn(MaxConnHandle.get(cmd));
+                }
                 return;
             }
         }
@@ -99,6 +115,8 @@ public class ServerHandle {
              * google -> google.com now connect to 216.58.197.238:443 via 10.240.200.151 weight 10 currently UP
              * or without host
              * google -> connect to 216.58.197.238:443 via 10.240.200.151 weight 10 currently UP
+             * or with max-conn
+             * google -> connect to 216.58.197.238:443 via 10.240.200.151 weight 10 max-conn 100 currently UP
              * or for logic deleted: add * before alias
              * *google -> google.com now connect to 216.58.197.238:443 via 10.240.200.151 weight 10 currently UP
              */
@@ -106,7 +124,9 @@ public class ServerHandle {
                 + (h.hostName == null ? "" : " host " + h.hostName + " now" /* now connected to */)
                 + " connect to " + Utils.ipStr(h.server.getAddress().getAddress()) + ":" + h.server.getPort()
                 + " via " + Utils.ipStr(h.local.getAddress()) + " weight " + h.getWeight()
-                + " currently " + (h.healthy ? "UP" : "DOWN");
+                + (h.getMaxConn() == 0 ? "" : " max-conn " + h.getMaxConn())
+                + " currently " + (h.healthy ? "UP" : "DOWN")
+                + (h.isEjected() ? " ejected" : "");
         }
     }
 }
@@ -5,12 +5,20 @@ import net.cassite.vproxy.app.cmd.Command;
 import net.cassite.vproxy.app.cmd.Param;
 import net.cassite.vproxy.app.cmd.Resource;
 import net.cassite.vproxy.app.cmd.handle.param.AddrHandle;
+import net.cassite.vproxy.app.cmd.handle.param.BandwidthHandle;
+import net.cassite.vproxy.app.cmd.handle.param.ConnectionLimitHandle;
 import net.cassite.vproxy.app.cmd.handle.param.InBufferSizeHandle;
+import net.cassite.vproxy.app.cmd.handle.param.IpBandwidthHandle;
 import net.cassite.vproxy.app.cmd.handle.param.OutBufferSizeHandle;
 import net.cassite.vproxy.app.cmd.handle.param.PersistHandle;
+import net.cassite.vproxy.app.cmd.handle.param.ConnectRetryHandle;
+import net.cassite.vproxy.app.cmd.handle.param.ConnectRetryTimeoutHandle;
+import net.cassite.vproxy.app.cmd.handle.param.WaitQueueHandle;
+import net.cassite.vproxy.app.cmd.handle.param.WaitTimeoutHandle;
 import net.cassite.vproxy.component.app.TcpLB;
 import net.cassite.vproxy.component.elgroup.EventLoopGroup;
 import net.cassite.vproxy.component.exception.NotFoundException;
+import net.cassite.vproxy.component.secure.ConnectionLimitConfig;
 import net.cassite.vproxy.component.secure.SecurityGroup;
 import net.cassite.vproxy.component.svrgroup.ServerGroups;
 import net.cassite.vproxy.util.Utils;
@@ -54,6 +62,35 @@ public class TcpLBHandle {
             PersistHandle.check(cmd);
         else
             cmd.args.put(Param.persist, "0");
+
+        if (cmd.args.containsKey(Param.waitqueue))
+            WaitQueueHandle.check(cmd);
+        else
+            cmd.args.put(Param.waitqueue, "0");
+
+        if (cmd.args.containsKey(Param.waittimeout))
+            WaitTimeoutHandle.check(cmd);
+        else
+            cmd.args.put(Param.waittimeout, "1000");
+
+        if (cmd.args.containsKey(Param.connectretry))
+            ConnectRetryHandle.check(cmd);
+        else
+            cmd.args.put(Param.connectretry, "0");
+
+        if (cmd.args.containsKey(Param.connectretrytimeout))
+            ConnectRetryTimeoutHandle.check(cmd);
+        else
+            cmd.args.put(Param.connectretrytimeout, "3000");
+
+        if (ConnectionLimitHandle.present(cmd))
+            ConnectionLimitHandle.getConnectionLimitConfig(cmd, new ConnectionLimitConfig());
+
+        if (cmd.args.containsKey(Param.bandwidth))
+            BandwidthHandle.check(cmd);
+
+        if (cmd.args.containsKey(Param.ipbandwidth))
+            IpBandwidthHandle.check(cmd);
     }
 
     public static void checkUpdateTcpLB(Command cmd) throws Exception {
@@ -65,6 +102,27 @@ public class TcpLBHandle {
 
         if (cmd.args.containsKey(Param.persist))
             PersistHandle.check(cmd);
+
+        if (cmd.args.containsKey(Param.waitqueue))
+            WaitQueueHandle.check(cmd);
+
+        if (cmd.args.containsKey(Param.waittimeout))
+            WaitTimeoutHandle.check(cmd);
+
+        if (cmd.args.containsKey(Param.connectretry))
+            ConnectRetryHandle.check(cmd);
+
+        if (cmd.args.containsKey(Param.connectretrytimeout))
+            ConnectRetryTimeoutHandle.check(cmd);
+
+        if (ConnectionLimitHandle.present(cmd))
+            ConnectionLimitHandle.getConnectionLimitConfig(cmd, new ConnectionLimitConfig());
+
+        if (cmd.args.containsKey(Param.bandwidth))
+            BandwidthHandle.check(cmd);
+
+        if (cmd.args.containsKey(Param.ipbandwidth))
+            IpBandwidthHandle.check(cmd);
     }
 
     public static TcpLB get(Resource tcplb) throws NotFoundException {
@@ -103,6 +161,20 @@ public class TcpLBHandle {
         Application.get().tcpLBHolder.add(
             alias, acceptor, worker, addr, backend, inBufferSize, outBufferSize, secg, persist
         );
+        TcpLB tcpLB = Application.get().tcpLBHolder.get(alias);
+        tcpLB.setWaitQueueSize(WaitQueueHandle.get(cmd));
+        tcpLB.setWaitTimeout(WaitTimeoutHandle.get(cmd));
+        tcpLB.setConnectRetry(ConnectRetryHandle.get(cmd));
+        tcpLB.setConnectRetryTimeout(ConnectRetryTimeoutHandle.get(cmd));
+        if (ConnectionLimitHandle.present(cmd)) {
+            tcpLB.connectionLimiter.setConfig(ConnectionLimitHandle.getConnectionLimitConfig(cmd, new ConnectionLimitConfig()));
+        }
+        if (cmd.args.containsKey(Param.bandwidth)) {
+            tcpLB.setBandwidth(BandwidthHandle.get(cmd));
+        }
+        if (cmd.args.containsKey(Param.ipbandwidth)) {
+            tcpLB.setIpBandwidth(IpBandwidthHandle.get(cmd));
+        }
     }
 
     public static void forceRemove(Command cmd) throws Exception {
@@ -121,6 +193,28 @@ public class TcpLBHandle {
         if (cmd.args.containsKey(Param.persist)) {
             tcpLB.persistTimeout = PersistHandle.get(cmd);
         }
+        if (cmd.args.containsKey(Param.waitqueue)) {
+            tcpLB.setWaitQueueSize(WaitQueueHandle.get(cmd));
+        }
+        if (cmd.args.containsKey(Param.waittimeout)) {
+            tcpLB.setWaitTimeout(WaitTimeoutHandle.get(cmd));
+        }
+        if (cmd.args.containsKey(Param.connectretry)) {
+            tcpLB.setConnectRetry(ConnectRetryHandle.get(cmd));
+        }
+        if (cmd.args.containsKey(Param.connectretrytimeout)) {
+            tcpLB.setConnectRetryTimeout(ConnectRetryTimeoutHandle.get(cmd));
+        }
+        if (ConnectionLimitHandle.present(cmd)) {
+            tcpLB.connectionLimiter.setConfig(
+                ConnectionLimitHandle.getConnectionLimitConfig(cmd, tcpLB.connectionLimiter.getConfig()));
+        }
+        if (cmd.args.containsKey(Param.bandwidth)) {
+            tcpLB.setBandwidth(BandwidthHandle.get(cmd));
+        }
+        if (cmd.args.containsKey(Param.ipbandwidth)) {
+            tcpLB.setIpBandwidth(IpBandwidthHandle.get(cmd));
+        }
     }
 
     public static class TcpLBRef {
@@ -137,6 +231,15 @@ public class TcpLBHandle {
                 + " backends " + tcpLB.backends.alias
                 + " in buffer size " + tcpLB.getInBufferSize() + " out buffer size " + tcpLB.getOutBufferSize()
                 + " persist " + tcpLB.persistTimeout
+                + " wait-queue " + tcpLB.getWaitQueueSize() + " wait-timeout " + tcpLB.getWaitTimeout()
+                + " waiting " + tcpLB.waitingCount()
+                + " connect-retry " + tcpLB.getConnectRetry() + " connect-retry-timeout " + tcpLB.getConnectRetryTimeout()
+                + (tcpLB.connectionLimiter.isEnabled()
+                ? ConnectionLimitHandle.format(tcpLB.connectionLimiter.getConfig())
+                + " limit-rejected " + (tcpLB.connectionLimiter.rateRejectedCount() + tcpLB.connectionLimiter.connRejectedCount())
+                : "")
+                + (tcpLB.getBandwidth() > 0 ? " bandwidth " + tcpLB.getBandwidth() : "")
+                + (tcpLB.getIpBandwidth() > 0 ? " ip-bandwidth " + tcpLB.getIpBandwidth() : "")
                 + " security-group " + tcpLB.securityGroup.alias;
         }
     }
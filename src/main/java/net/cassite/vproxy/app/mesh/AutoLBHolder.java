@@ -17,9 +17,13 @@ public class AutoLBHolder {
     }
 
     public void add(String alias, String service, String zone, int port) throws Exception {
+        add(alias, service, zone, port, 0);
+    }
+
+    public void add(String alias, String service, String zone, int port, int persist) throws Exception {
         if (map.containsKey(alias))
             throw new AlreadyExistException();
-        AutoLB autoLB = new AutoLB(alias, service, zone, port, ServiceMeshMain.getInstance().getAutoConfig());
+        AutoLB autoLB = new AutoLB(alias, service, zone, port, persist, ServiceMeshMain.getInstance().getAutoConfig());
         map.put(alias, autoLB);
     }
 
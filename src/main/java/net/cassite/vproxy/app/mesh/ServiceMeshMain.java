@@ -2,14 +2,19 @@ package net.cassite.vproxy.app.mesh;
 
 import net.cassite.vproxy.app.Application;
 import net.cassite.vproxy.component.auto.AutoConfig;
+import net.cassite.vproxy.component.auto.AutoDNS;
 import net.cassite.vproxy.component.elgroup.EventLoopGroup;
 import net.cassite.vproxy.component.exception.XException;
 import net.cassite.vproxy.component.khala.Khala;
 import net.cassite.vproxy.component.khala.KhalaConfig;
+import net.cassite.vproxy.component.khala.KhalaSnapshot;
 import net.cassite.vproxy.component.svrgroup.Method;
 import net.cassite.vproxy.discovery.DiscoveryConfig;
+import net.cassite.vproxy.discovery.GossipConfig;
 import net.cassite.vproxy.discovery.TimeoutConfig;
 import net.cassite.vproxy.util.IPType;
+import net.cassite.vproxy.util.LogType;
+import net.cassite.vproxy.util.Logger;
 import net.cassite.vproxy.util.Tuple;
 import net.cassite.vproxy.util.Utils;
 
@@ -17,10 +22,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.net.*;
-import java.util.Enumeration;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Properties;
+import java.util.*;
 
 public class ServiceMeshMain {
     class Sidecar {
@@ -45,6 +47,7 @@ public class ServiceMeshMain {
         private String service;
         private String zone;
         private int port;
+        private int persist; // optional
 
         @Override
         public String toString() {
@@ -53,6 +56,35 @@ public class ServiceMeshMain {
                 ", service='" + service + '\'' +
                 ", zone='" + zone + '\'' +
                 ", port=" + port +
+                ", persist=" + persist +
+                '}';
+        }
+    }
+
+    class DNS {
+        private int port;
+        private String domain = "vproxy.local"; // optional
+        private int ttl = 5; // optional
+
+        @Override
+        public String toString() {
+            return "DNS{" +
+                "port=" + port +
+                ", domain='" + domain + '\'' +
+                ", ttl=" + ttl +
+                '}';
+        }
+    }
+
+    class Snapshot {
+        private String path;
+        private int period = 10_000; // optional
+
+        @Override
+        public String toString() {
+            return "Snapshot{" +
+                "path='" + path + '\'' +
+                ", period=" + period +
                 '}';
         }
     }
@@ -80,6 +112,7 @@ public class ServiceMeshMain {
         int udpPort;
         int tcpPort;
         Search search;
+        List<InetSocketAddress> seeds; // optional, use gossip instead of search if specified
 
         @Override
         public String toString() {
@@ -91,11 +124,14 @@ public class ServiceMeshMain {
                 ", udpPort=" + udpPort +
                 ", tcpPort=" + tcpPort +
                 ", search=" + search +
+                ", seeds=" + seeds +
                 '}';
         }
     }
 
     private static final ServiceMeshMain instance = new ServiceMeshMain();
+    // the discovery nodes should be UP in this time, otherwise the restored khala nodes are removed
+    private static final int SNAPSHOT_RESTORE_TIMEOUT = 60_000;
 
     public static ServiceMeshMain getInstance() {
         return instance;
@@ -108,8 +144,12 @@ public class ServiceMeshMain {
     private Sidecar sidecar;
     private Map<String, AutoLB> autoLBs;
     private Discovery discovery;
+    private DNS dns; // optional
+    private Snapshot snapshot; // optional
 
     private AutoConfig autoConfig;
+    private AutoDNS autoDNS;
+    private KhalaSnapshot khalaSnapshot;
 
     private ServiceMeshMain() {
     }
@@ -118,6 +158,16 @@ public class ServiceMeshMain {
         return autoConfig;
     }
 
+    // null if dns is not configured
+    public AutoDNS getAutoDNS() {
+        return autoDNS;
+    }
+
+    // null if snapshot is not configured
+    public KhalaSnapshot getKhalaSnapshot() {
+        return khalaSnapshot;
+    }
+
     @Override
     public String toString() {
         return "ServiceMeshMain{" +
@@ -128,6 +178,8 @@ public class ServiceMeshMain {
             ", sidecar=" + sidecar +
             ", autoLBs=" + autoLBs +
             ", discovery=" + discovery +
+            ", dns=" + dns +
+            ", snapshot=" + snapshot +
             '}';
     }
 
@@ -177,14 +229,35 @@ public class ServiceMeshMain {
             for (int i = 0; i < workers; ++i) {
                 workerGroup.add("worker" + i);
             }
-            net.cassite.vproxy.discovery.Discovery dis = new net.cassite.vproxy.discovery.Discovery(
-                discovery.name,
-                new DiscoveryConfig(
+            DiscoveryConfig discoveryConfig;
+            if (discovery.seeds == null) {
+                discoveryConfig = new DiscoveryConfig(
                     discovery.nic, discovery.ipType, discovery.udpSockPort, discovery.udpPort, discovery.tcpPort,
                     discovery.search.mask, discovery.search.minUDPPort, discovery.search.maxUDPPort,
                     TimeoutConfig.getDefault(), TimeoutConfig.getDefaultHc()
-                ));
+                );
+            } else {
+                discoveryConfig = new DiscoveryConfig(
+                    discovery.nic, discovery.ipType, discovery.udpSockPort, discovery.udpPort, discovery.tcpPort,
+                    discovery.seeds,
+                    TimeoutConfig.getDefault(), TimeoutConfig.getDefaultHc(), GossipConfig.getDefault()
+                );
+            }
+            net.cassite.vproxy.discovery.Discovery dis = new net.cassite.vproxy.discovery.Discovery(
+                discovery.name, discoveryConfig);
             Khala khala = new Khala(dis, KhalaConfig.getDefault());
+            if (snapshot != null) {
+                khalaSnapshot = new KhalaSnapshot(khala, snapshot.path, snapshot.period, SNAPSHOT_RESTORE_TIMEOUT);
+                try {
+                    if (!khalaSnapshot.load()) {
+                        Logger.alert("snapshot " + khalaSnapshot.filepath + " not exists");
+                    }
+                } catch (IOException | XException e) {
+                    // the nodes will be found by discovery anyway
+                    Logger.error(LogType.KHALA_EVENT, "loading snapshot failed, ignored", e);
+                }
+                khalaSnapshot.start();
+            }
 
             this.autoConfig = new AutoConfig(aelg, workerGroup, khala,
                 nic, ipType, TimeoutConfig.getDefaultHc(), Method.wrr);
@@ -203,6 +276,9 @@ public class ServiceMeshMain {
                 assert mode.equals("auto_lb");
                 launchAutoLB();
             }
+            if (dns != null) {
+                launchDNS();
+            }
         } catch (Exception e) {
             return exit("got exception when launching. " + e.getClass().getSimpleName() + " " + e.getMessage());
         }
@@ -219,11 +295,15 @@ public class ServiceMeshMain {
         for (String alias : autoLBs.keySet()) {
             AutoLB autoLB = autoLBs.get(alias);
             Application.get().autoLBHolder.add(
-                autoLB.alias, autoLB.service, autoLB.zone, autoLB.port
+                autoLB.alias, autoLB.service, autoLB.zone, autoLB.port, autoLB.persist
             );
         }
     }
 
+    private void launchDNS() throws Exception {
+        autoDNS = new AutoDNS("dns", dns.port, dns.domain, dns.ttl, getAutoConfig());
+    }
+
     private void checkWithException() throws XException {
         checkNull("mode", mode);
         checkNull("workers", workers);
@@ -241,10 +321,12 @@ public class ServiceMeshMain {
             throw new XException("discovery nic address not found");
         discovery.name = addr.getHostName();
 
-        checkNull("discovery.search", discovery.search);
-        checkNull("discovery.search.mask", discovery.search.mask);
-        checkNull("discovery.search.min_udp_port", discovery.search.minUDPPort);
-        checkNull("discovery.search.max_udp_port", discovery.search.maxUDPPort);
+        if (discovery.seeds == null) {
+            checkNull("discovery.search", discovery.search);
+            checkNull("discovery.search.mask", discovery.search.mask);
+            checkNull("discovery.search.min_udp_port", discovery.search.minUDPPort);
+            checkNull("discovery.search.max_udp_port", discovery.search.maxUDPPort);
+        }
 
         if (mode.equals("sidecar")) {
             checkNull("sidecar", sidecar);
@@ -264,6 +346,14 @@ public class ServiceMeshMain {
                 checkNull(prefix + "port", autoLB.port);
             }
         }
+
+        if (dns != null) {
+            checkPort("dns.port", dns.port);
+        }
+
+        if (snapshot != null) {
+            checkNull("snapshot.path", snapshot.path);
+        }
     }
 
     private void checkNull(String key, Object value) throws XException {
@@ -276,6 +366,11 @@ public class ServiceMeshMain {
             throw new XException(key + " not specified");
     }
 
+    private void checkPort(String key, int value) throws XException {
+        if (value <= 0 || value >= 65536)
+            throw new XException(key + " not specified or not a valid port");
+    }
+
     private int tryLoad(String key, String value) {
         try {
             load(key, value);
@@ -330,6 +425,44 @@ public class ServiceMeshMain {
                 case "port":
                     autoLB.port = loadPort(value);
                     break;
+                case "persist":
+                    autoLB.persist = loadPositiveInt(value);
+                    break;
+                default:
+                    throw new XException("unknown config");
+            }
+        } else if (key.startsWith("dns.")) {
+            DNS dns = constructDNS();
+            String[] arr = key.split("\\.");
+            if (arr.length != 2)
+                throw new XException("invalid key");
+            String k = arr[1];
+            switch (k) {
+                case "port":
+                    dns.port = loadPort(value);
+                    break;
+                case "domain":
+                    dns.domain = loadString(value);
+                    break;
+                case "ttl":
+                    dns.ttl = loadPositiveInt(value);
+                    break;
+                default:
+                    throw new XException("unknown config");
+            }
+        } else if (key.startsWith("snapshot.")) {
+            Snapshot snapshot = constructSnapshot();
+            String[] arr = key.split("\\.");
+            if (arr.length != 2)
+                throw new XException("invalid key");
+            String k = arr[1];
+            switch (k) {
+                case "path":
+                    snapshot.path = loadString(value);
+                    break;
+                case "period":
+                    snapshot.period = loadPositiveInt(value);
+                    break;
                 default:
                     throw new XException("unknown config");
             }
@@ -374,6 +507,9 @@ public class ServiceMeshMain {
                 case "tcp_port":
                     discovery.tcpPort = loadPort(value);
                     break;
+                case "seeds":
+                    discovery.seeds = loadSeeds(value);
+                    break;
                 default:
                     throw new XException("unknown config");
             }
@@ -413,6 +549,20 @@ public class ServiceMeshMain {
         return autoLBs.get(alias);
     }
 
+    private DNS constructDNS() {
+        if (dns == null) {
+            dns = new DNS();
+        }
+        return dns;
+    }
+
+    private Snapshot constructSnapshot() {
+        if (snapshot == null) {
+            snapshot = new Snapshot();
+        }
+        return snapshot;
+    }
+
     private Discovery constructDiscovery() {
         if (discovery == null) {
             discovery = new Discovery();
@@ -451,6 +601,35 @@ public class ServiceMeshMain {
         return i;
     }
 
+    // ip:port,ip:port,...
+    private List<InetSocketAddress> loadSeeds(String value) throws XException {
+        List<InetSocketAddress> seeds = new ArrayList<>();
+        for (String s : value.split(",")) {
+            s = s.trim();
+            if (s.isEmpty())
+                continue;
+            int idx = s.lastIndexOf(":");
+            if (idx == -1)
+                throw new XException("invalid seed " + s + ", should be ip:port");
+            String ip = s.substring(0, idx);
+            if (ip.startsWith("[") && ip.endsWith("]")) {
+                ip = ip.substring(1, ip.length() - 1);
+            }
+            byte[] ipBytes = Utils.parseIpString(ip);
+            if (ipBytes == null)
+                throw new XException("invalid seed " + s + ", not valid ip");
+            int port = loadPort(s.substring(idx + 1));
+            try {
+                seeds.add(new InetSocketAddress(InetAddress.getByAddress(ipBytes), port));
+            } catch (UnknownHostException e) {
+                throw new XException("invalid seed " + s + ", not valid ip");
+            }
+        }
+        if (seeds.isEmpty())
+            throw new XException("no seeds");
+        return seeds;
+    }
+
     private int loadMask(String value) throws XException {
         int i;
         try {
@@ -0,0 +1,153 @@
+package net.cassite.vproxy.component.app;
+
+import net.cassite.vproxy.connection.BandwidthLimiter;
+import net.cassite.vproxy.connection.TokenBucket;
+import net.cassite.vproxy.util.AddressTable;
+import net.cassite.vproxy.util.ThreadSafe;
+
+import java.net.InetAddress;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+// token buckets of bytes for each client ip
+// the buckets are stored in bounded tables split into stripes,
+// see ConnectionLimiter, and are refilled as a TokenBucket does
+class ClientBandwidthLimiter {
+    private static final int TABLE_CAPACITY = 65536;
+    private static final int STRIPES = 16; // power of 2
+    private static final int F_TOKENS = 0; // 1/1000 bytes
+    private static final int F_REFILL = 1;
+    // how often to remove the entries with full buckets
+    private static final int SWEEP_INTERVAL = 1000;
+
+    private class BucketTable extends AddressTable {
+        private final Stripe stripe;
+
+        BucketTable(Stripe stripe) {
+            super(TABLE_CAPACITY / STRIPES * 4 / 3, 2);
+            this.stripe = stripe;
+        }
+
+        @Override
+        protected boolean evictable(int slot) {
+            long rate = ClientBandwidthLimiter.this.rate;
+            if (rate == 0) // being disabled
+                return true;
+            // the bucket is full, so the entry carries no info
+            return TokenBucket.refill(get(slot, F_TOKENS), stripe.now - get(slot, F_REFILL), rate) == rate * 1000;
+        }
+    }
+
+    // the fields are protected by the stripe lock
+    private static class Stripe {
+        BucketTable table;
+        long now;
+    }
+
+    private volatile long rate; // bytes per second for each client, 0 means no limit
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final long stripeSeed = ThreadLocalRandom.current().nextLong();
+    private final AtomicLong lastSweep = new AtomicLong();
+
+    ClientBandwidthLimiter() {
+        for (int i = 0; i < STRIPES; ++i) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    long getRate() {
+        return rate;
+    }
+
+    @ThreadSafe
+    synchronized void setRate(long rate) {
+        this.rate = rate;
+        if (rate == 0) {
+            for (Stripe stripe : stripes) {
+                synchronized (stripe) {
+                    stripe.table = null;
+                }
+            }
+        }
+    }
+
+    // the limiter of one client
+    BandwidthLimiter forClient(InetAddress address) {
+        byte[] bytes = address.getAddress();
+        long hi = AddressTable.keyHi(bytes);
+        long lo = AddressTable.keyLo(bytes);
+        Stripe stripe = stripes[stripeIndex(hi, lo)];
+        return new BandwidthLimiter() {
+            @Override
+            public long consume(int bytes, long now) {
+                return ClientBandwidthLimiter.this.consume(stripe, hi, lo, bytes, now);
+            }
+
+            @Override
+            public long waitTime(long now) {
+                return ClientBandwidthLimiter.this.consume(stripe, hi, lo, 0, now);
+            }
+        };
+    }
+
+    private int stripeIndex(long hi, long lo) {
+        return (int) AddressTable.hash(hi, lo, stripeSeed) & (STRIPES - 1);
+    }
+
+    @ThreadSafe
+    private long consume(Stripe stripe, long hi, long lo, int bytes, long now) {
+        long rate = this.rate;
+        if (rate == 0)
+            return 0;
+        now = Math.max(now, 1); // 0 is used as `empty` in the table
+        sweep(now);
+        synchronized (stripe) {
+            stripe.now = now;
+            if (stripe.table == null) {
+                stripe.table = new BucketTable(stripe);
+            }
+            BucketTable table = stripe.table;
+
+            long tokens;
+            int slot = table.find(hi, lo);
+            if (slot == -1) {
+                slot = table.add(hi, lo, now);
+                tokens = rate * 1000;
+            } else {
+                tokens = TokenBucket.refill(table.get(slot, F_TOKENS), now - table.get(slot, F_REFILL), rate);
+                table.touch(slot, now);
+            }
+            tokens -= bytes * 1000L;
+            table.set(slot, F_TOKENS, tokens);
+            table.set(slot, F_REFILL, now);
+            return TokenBucket.debtTime(tokens, rate);
+        }
+    }
+
+    // remove the entries with full buckets from time to time
+    // only one thread sweeps, and the stripes are locked one by one
+    private void sweep(long now) {
+        long last = lastSweep.get();
+        if (now - last < SWEEP_INTERVAL || !lastSweep.compareAndSet(last, now))
+            return;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                if (stripe.table != null) {
+                    stripe.now = now;
+                    stripe.table.removeIf(stripe.table::evictable);
+                }
+            }
+        }
+    }
+
+    @ThreadSafe
+    int clientCount() {
+        int n = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                n += stripe.table == null ? 0 : stripe.table.size();
+            }
+        }
+        return n;
+    }
+}
@@ -0,0 +1,290 @@
+package net.cassite.vproxy.component.app;
+
+import net.cassite.vproxy.app.Config;
+import net.cassite.vproxy.component.exception.XException;
+import net.cassite.vproxy.component.svrgroup.ServerGroup;
+import net.cassite.vproxy.component.svrgroup.ServerGroups;
+import net.cassite.vproxy.component.svrgroup.SvrHandleConnector;
+import net.cassite.vproxy.connection.Connector;
+import net.cassite.vproxy.discovery.Discovery;
+import net.cassite.vproxy.discovery.Node;
+import net.cassite.vproxy.discovery.NodeDataHandler;
+import net.cassite.vproxy.discovery.NodeListener;
+import net.cassite.vproxy.redis.application.RESPApplicationContext;
+import net.cassite.vproxy.selector.PeriodicEvent;
+import net.cassite.vproxy.util.Callback;
+import net.cassite.vproxy.util.LogType;
+import net.cassite.vproxy.util.Logger;
+import net.cassite.vproxy.util.Utils;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * replicate the persist entries of a tcp lb to the lbs with the same alias
+ * on other discovery nodes.
+ * <p>
+ * message:
+ * [
+ * --version
+ * --type: persist:{lb alias}
+ * --list:
+ * --[
+ * ----[
+ * ------server group alias
+ * ------server alias
+ * ------list: [client ip, remaining ttl, client ip, remaining ttl, ...]
+ * ----]
+ * --]
+ * ]
+ * the response is the count of entries in the request.
+ * <p>
+ * for every period, the new, modified and long refreshed entries are sent
+ * to all healthy nodes, and when a node is UP, all entries are sent to it.
+ * an entry is only sent when its server can be found on both sides, and
+ * the one accessed later wins when both sides have the entry.
+ * <p>
+ * the entries are sent in batches with a limited count for each period,
+ * and a new entry is not sent again until it's refreshed for half of the timeout,
+ * so the cost is bounded whatever the clients do.
+ * <p>
+ * the changed entries are broadcast instead of gossiped to a few random peers.
+ * every node needs every entry, because the next connection of a client might
+ * go to any node, so with broadcasting each node receives each entry exactly once,
+ * which is the least possible traffic for every receiver. gossiping would only lower
+ * the fan-out of the sender, at the cost of duplicated entries, slower convergence,
+ * and the anti-entropy rounds needed to repair the missed ones.
+ * the fan-out is O(nodes) messages for each batch, which is fine for the lb clusters
+ * discovery is designed for (a handful to tens of nodes), and a slow or dead node
+ * costs nothing more than a failed request, since it's excluded when unhealthy.
+ */
+public class PersistReplicator {
+    private static final int SYNC_PERIOD = 1000;
+    private static final int BATCH_SIZE = 512; // entries in one message
+    private static final int MAX_BATCHES = 16; // messages sent to one node in one period
+    private static final int REQUEST_TIMEOUT = 3000;
+
+    public final TcpLB lb;
+    public final Discovery discovery;
+    private final String type;
+
+    // the following fields are only accessed on discovery event loop
+    private final Map<Node, Integer> fullSyncCursors = new HashMap<>();
+    private PeriodicEvent periodicEvent;
+    private boolean stopped = false;
+
+    private final NodeDataHandler handler = new NodeDataHandler() {
+        @Override
+        public boolean canHandle(String type) {
+            return type.equals(PersistReplicator.this.type);
+        }
+
+        @Override
+        public void handle(Object o, RESPApplicationContext ctx, Callback<Object, Throwable> cb) {
+            int count;
+            try {
+                count = merge(o);
+            } catch (XException e) {
+                Logger.warn(LogType.INVALID_EXTERNAL_DATA, "invalid persist message: " + e.getMessage());
+                cb.failed(e);
+                return;
+            }
+            cb.succeeded(count);
+        }
+    };
+
+    private final NodeListener nodeListener = new NodeListener() {
+        @Override
+        public void up(Node node) {
+            fullSyncCursors.put(node, 0);
+        }
+
+        @Override
+        public void down(Node node) {
+            fullSyncCursors.remove(node);
+        }
+
+        @Override
+        public void leave(Node node) {
+            down(node);
+        }
+    };
+
+    public PersistReplicator(TcpLB lb, Discovery discovery) {
+        this.lb = lb;
+        this.discovery = discovery;
+        this.type = "persist:" + lb.alias;
+    }
+
+    public void start() {
+        discovery.addExternalHandler(handler);
+        discovery.addNodeListener(nodeListener);
+        discovery.loop.getSelectorEventLoop().runOnLoop(() -> {
+            if (stopped || periodicEvent != null)
+                return;
+            periodicEvent = discovery.loop.getSelectorEventLoop().period(SYNC_PERIOD, this::sync);
+        });
+    }
+
+    public void stop() {
+        discovery.removeExternalHandler(handler);
+        discovery.removeNodeListener(nodeListener);
+        discovery.loop.getSelectorEventLoop().runOnLoop(() -> {
+            stopped = true;
+            if (periodicEvent != null) {
+                periodicEvent.cancel();
+                periodicEvent = null;
+            }
+            fullSyncCursors.clear();
+        });
+    }
+
+    private void sync() {
+        int timeout = lb.persistTimeout;
+        if (timeout == 0) {
+            fullSyncCursors.clear(); // nothing to sync
+            return;
+        }
+        long now = Config.currentTimestamp;
+        List<Node> nodes = discovery.getNodes().stream()
+            .filter(n -> n.healthy && !n.equals(discovery.localNode))
+            .collect(Collectors.toList());
+
+        // send changed entries to all nodes
+        // they are collected even if no nodes to send to,
+        // because new nodes will get all entries when UP
+        for (int i = 0; i < MAX_BATCHES; ++i) {
+            List<PersistTable.Entry> entries = new ArrayList<>(BATCH_SIZE);
+            lb.persistTable.collectChanged(now, timeout, BATCH_SIZE, entries);
+            if (entries.isEmpty())
+                break;
+            Object msg = buildMessage(entries, now, timeout);
+            for (Node n : nodes) {
+                send(n, msg);
+            }
+            if (entries.size() < BATCH_SIZE)
+                break;
+        }
+
+        // send all entries to new nodes
+        for (Node n : new ArrayList<>(fullSyncCursors.keySet())) {
+            int cursor = fullSyncCursors.get(n);
+            for (int i = 0; i < MAX_BATCHES && cursor != -1; ++i) {
+                List<PersistTable.Entry> entries = new ArrayList<>(BATCH_SIZE);
+                cursor = lb.persistTable.scan(cursor, now, timeout, BATCH_SIZE, entries);
+                if (!entries.isEmpty()) {
+                    send(n, buildMessage(entries, now, timeout));
+                }
+            }
+            if (cursor == -1) {
+                fullSyncCursors.remove(n);
+            } else {
+                fullSyncCursors.put(n, cursor);
+            }
+        }
+    }
+
+    // the entries are grouped by servers
+    private Object buildMessage(List<PersistTable.Entry> entries, long now, int timeout) {
+        Map<String, List<Object>> clientsOfServers = new HashMap<>();
+        Map<String, Object[]> serverRecords = new LinkedHashMap<>();
+        for (PersistTable.Entry e : entries) {
+            if (!(e.connector instanceof SvrHandleConnector))
+                continue; // cannot be located on other nodes
+            SvrHandleConnector c = (SvrHandleConnector) e.connector;
+            String key = c.getGroupAlias() + "/" + c.getServerAlias();
+            List<Object> clients = clientsOfServers.get(key);
+            if (clients == null) {
+                clients = new ArrayList<>();
+                clientsOfServers.put(key, clients);
+                serverRecords.put(key, new Object[]{c.getGroupAlias(), c.getServerAlias(), clients});
+            }
+            clients.add(Utils.ipStr(e.address));
+            clients.add((int) Math.max(0, e.lastAccess + timeout - now));
+        }
+        return new Object[]{
+            1 /*version*/,
+            type,
+            new ArrayList<>(serverRecords.values()),
+        };
+    }
+
+    private void send(Node node, Object msg) {
+        discovery.channels.request(
+            new InetSocketAddress(node.inetAddress, node.tcpPort),
+            msg,
+            REQUEST_TIMEOUT,
+            new Callback<Object, IOException>() {
+                @Override
+                protected void onSucceeded(Object value) {
+                    // ignore
+                }
+
+                @Override
+                protected void onFailed(IOException err) {
+                    // the entries will be sent again when refreshed
+                    // and all entries will be sent when the node is UP again
+                    assert Logger.lowLevelDebug("sending persist entries to " + node + " failed " + err);
+                }
+            });
+    }
+
+    // return count of entries in the message
+    private int merge(Object o) throws XException {
+        if (!(o instanceof List))
+            throw new XException("not list");
+        List msg = (List) o;
+        if (msg.size() < 3 || !(msg.get(2) instanceof List))
+            throw new XException("list data type wrong");
+        int timeout = lb.persistTimeout;
+        long now = Config.currentTimestamp;
+        int count = 0;
+        for (Object s : (List) msg.get(2)) {
+            if (!(s instanceof List) || ((List) s).size() < 3)
+                throw new XException("server record not list or too short");
+            List server = (List) s;
+            if (!(server.get(0) instanceof String)
+                || !(server.get(1) instanceof String)
+                || !(server.get(2) instanceof List))
+                throw new XException("server record data type wrong");
+            List clients = (List) server.get(2);
+            if (clients.size() % 2 != 0)
+                throw new XException("client list size is not even");
+            count += clients.size() / 2;
+            if (timeout == 0)
+                continue; // persistence is disabled on this node
+            Connector connector = findConnector((String) server.get(0), (String) server.get(1));
+            if (connector == null)
+                continue; // the server is not known by this node
+            for (int i = 0; i < clients.size(); i += 2) {
+                if (!(clients.get(i) instanceof String) || !(clients.get(i + 1) instanceof Integer))
+                    throw new XException("client data type wrong");
+                byte[] address = Utils.parseIpString((String) clients.get(i));
+                if (address == null)
+                    throw new XException("invalid client address " + clients.get(i));
+                int ttl = Math.min((int) clients.get(i + 1), timeout);
+                lb.persistTable.merge(address, connector, now - timeout + ttl, now, timeout);
+            }
+        }
+        return count;
+    }
+
+    private Connector findConnector(String groupAlias, String serverAlias) {
+        for (ServerGroups.ServerGroupHandle g : lb.backends.getServerGroups()) {
+            if (!g.alias.equals(groupAlias))
+                continue;
+            for (ServerGroup.ServerHandle h : g.group.getServerHandles()) {
+                if (h.alias.equals(serverAlias)) {
+                    return h.makeConnector();
+                }
+            }
+        }
+        return null;
+    }
+}
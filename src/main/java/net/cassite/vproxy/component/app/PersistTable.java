@@ -0,0 +1,432 @@
+package net.cassite.vproxy.component.app;
+
+import net.cassite.vproxy.connection.Connector;
+import net.cassite.vproxy.util.AddressTable;
+import net.cassite.vproxy.util.ThreadSafe;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Predicate;
+
+// the persisted connectors of clients
+//
+// the entries are stored in an address table with their last access time,
+// the connector of an entry is stored as an id, and the connectors are
+// shared by all entries pointing to the same backend.
+// the entries are checked when accessed, and the expired ones are removed
+// in batches, so there are no timers for each entry
+//
+// the table starts small, and grows until reaching the max capacity,
+// after that, the least recently used entries are evicted
+//
+// the entries can be replicated to other instances, see PersistReplicator
+// the changed entries are queued by their addresses, so collecting them
+// does not scan the table. when the queue overflows, the table is scanned
+// in bounded steps instead
+public class PersistTable {
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final int MAX_CAPACITY = 1024 * 1024;
+    private static final int F_CONNECTOR = 0;
+    private static final int F_SYNCED = 1; // the access time when replicated, 0 means not replicated
+    private static final int F_QUEUED = 2; // 1 if the entry is in the dirty queue
+    // how often to remove the expired entries
+    private static final int SWEEP_INTERVAL = 1000;
+    // max count of changed entries waiting for replication
+    private static final int DIRTY_CAPACITY = 16384;
+    // max count of slots to scan in one collectChanged() call when the dirty queue overflowed
+    private static final int DIRTY_SCAN_LIMIT = 16384;
+
+    private class Table extends AddressTable {
+        Table(int capacity) {
+            super(capacity * 4 / 3, 3);
+        }
+
+        @Override
+        protected boolean evictable(int slot) {
+            return expired(slot);
+        }
+
+        // all removals go through this method, including evictions
+        @Override
+        public void remove(int slot) {
+            int id = (int) get(slot, F_CONNECTOR);
+            super.remove(slot);
+            release(id);
+        }
+
+        boolean expired(int slot) {
+            return now - access(slot) >= timeout;
+        }
+
+        // the entry is new or modified, or refreshed for more than half of the timeout
+        // so the replicas would not expire before the local one
+        boolean changed(int slot) {
+            return access(slot) - get(slot, F_SYNCED) >= timeout / 2;
+        }
+    }
+
+    // the backend identity, see TcpLB.isFailed()
+    private static class ConnectorKey {
+        final InetSocketAddress remote;
+        final InetAddress local;
+
+        ConnectorKey(Connector connector) {
+            this.remote = connector.remote;
+            this.local = connector.local.getAddress();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            ConnectorKey that = (ConnectorKey) o;
+            return remote.equals(that.remote) && local.equals(that.local);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(remote, local);
+        }
+    }
+
+    public static class Entry {
+        public final byte[] address;
+        public final Connector connector;
+        public final long lastAccess;
+
+        Entry(byte[] address, Connector connector, long lastAccess) {
+            this.address = address;
+            this.connector = connector;
+            this.lastAccess = lastAccess;
+        }
+    }
+
+    // the following fields are protected by the table lock
+    private Table table;
+    private long now;
+    private int timeout;
+    private long lastSweep;
+    private int changeCursor = 0;
+    // the addresses of the changed entries, a ring of DIRTY_CAPACITY
+    private long[] dirtyHi;
+    private long[] dirtyLo;
+    private int dirtyHead = 0;
+    private int dirtyCount = 0;
+    // count of slots still to scan because the dirty queue overflowed
+    private int dirtyScan = 0;
+
+    // connector id => connector and reference count
+    private Connector[] connectors = new Connector[16];
+    private int[] refs = new int[16];
+    private final Map<ConnectorKey, Integer> connectorIds = new HashMap<>();
+    private int[] freeIds = new int[16];
+    private int freeIdCount = 0;
+    private int nextId = 0;
+
+    // set the time and timeout for the current operation, and sweep if needed
+    private void prepare(long now, int timeout) {
+        this.now = Math.max(now, 1); // 0 is used as `empty` in the table
+        this.timeout = timeout;
+        if (table != null && this.now - lastSweep >= SWEEP_INTERVAL) {
+            lastSweep = this.now;
+            table.removeIf(table::expired);
+        }
+    }
+
+    private int retain(Connector connector) {
+        ConnectorKey key = new ConnectorKey(connector);
+        Integer id = connectorIds.get(key);
+        if (id == null) {
+            if (freeIdCount > 0) {
+                id = freeIds[--freeIdCount];
+            } else {
+                id = nextId++;
+                if (id == connectors.length) {
+                    connectors = Arrays.copyOf(connectors, id * 2);
+                    refs = Arrays.copyOf(refs, id * 2);
+                }
+            }
+            connectorIds.put(key, id);
+        }
+        // the latest connector object is kept
+        // because the old one might point to a removed server
+        connectors[id] = connector;
+        ++refs[id];
+        return id;
+    }
+
+    private void release(int id) {
+        if (--refs[id] > 0)
+            return;
+        connectorIds.remove(new ConnectorKey(connectors[id]));
+        connectors[id] = null;
+        if (freeIdCount == freeIds.length) {
+            freeIds = Arrays.copyOf(freeIds, freeIdCount * 2);
+        }
+        freeIds[freeIdCount++] = id;
+    }
+
+    // get the connector and refresh the access time
+    // return null if not found or expired
+    @ThreadSafe
+    public synchronized Connector get(byte[] address, long now, int timeout) {
+        prepare(now, timeout);
+        if (table == null)
+            return null;
+        int slot = table.find(address);
+        if (slot == -1)
+            return null;
+        if (table.expired(slot)) {
+            table.remove(slot);
+            return null;
+        }
+        table.touch(slot, this.now);
+        markChanged(slot);
+        return connectors[(int) table.get(slot, F_CONNECTOR)];
+    }
+
+    @ThreadSafe
+    public synchronized void put(byte[] address, Connector connector, long now, int timeout) {
+        replace(address, connector, now, timeout, old -> true);
+    }
+
+    // put the connector if no entry exists or `shouldReplace` returns true for the old connector
+    @ThreadSafe
+    public synchronized void replace(byte[] address, Connector connector, long now, int timeout, Predicate<Connector> shouldReplace) {
+        prepare(now, timeout);
+        if (table == null) {
+            table = new Table(INITIAL_CAPACITY);
+        }
+        long hi = AddressTable.keyHi(address);
+        long lo = AddressTable.keyLo(address);
+        int slot = table.find(hi, lo);
+        if (slot != -1 && !table.expired(slot)
+            && !shouldReplace.test(connectors[(int) table.get(slot, F_CONNECTOR)]))
+            return;
+        // retain before releasing the old one, in case they are the same backend
+        int id = retain(connector);
+        if (slot == -1) {
+            grow();
+            slot = table.add(hi, lo, this.now);
+        } else {
+            int old = (int) table.get(slot, F_CONNECTOR);
+            release(old);
+            table.touch(slot, this.now);
+            if (old == id) {
+                // same backend, no need to replicate immediately
+                markChanged(slot);
+                return;
+            }
+        }
+        table.set(slot, F_CONNECTOR, id);
+        table.set(slot, F_SYNCED, 0);
+        markChanged(slot);
+    }
+
+    // queue the entry if it should be replicated
+    private void markChanged(int slot) {
+        if (table.get(slot, F_QUEUED) != 0 || !table.changed(slot))
+            return;
+        if (dirtyHi == null) {
+            dirtyHi = new long[DIRTY_CAPACITY];
+            dirtyLo = new long[DIRTY_CAPACITY];
+        }
+        if (dirtyCount == DIRTY_CAPACITY) {
+            // the entry stays unqueued, so scan the whole table again to find it
+            dirtyScan = table.slots();
+            return;
+        }
+        int tail = (dirtyHead + dirtyCount) % DIRTY_CAPACITY;
+        dirtyHi[tail] = table.keyHi(slot);
+        dirtyLo[tail] = table.keyLo(slot);
+        ++dirtyCount;
+        table.set(slot, F_QUEUED, 1);
+    }
+
+    // merge an entry from another instance
+    // the entry is ignored if the local one is accessed later
+    @ThreadSafe
+    public synchronized void merge(byte[] address, Connector connector, long lastAccess, long now, int timeout) {
+        prepare(now, timeout);
+        if (lastAccess <= 0 || this.now - lastAccess >= timeout)
+            return; // already expired
+        if (table == null) {
+            table = new Table(INITIAL_CAPACITY);
+        }
+        long hi = AddressTable.keyHi(address);
+        long lo = AddressTable.keyLo(address);
+        int slot = table.find(hi, lo);
+        if (slot != -1 && !table.expired(slot) && table.access(slot) >= lastAccess)
+            return;
+        int id = retain(connector);
+        if (slot == -1) {
+            grow();
+            slot = table.add(hi, lo, lastAccess);
+        } else {
+            release((int) table.get(slot, F_CONNECTOR));
+            table.touch(slot, lastAccess);
+        }
+        table.set(slot, F_CONNECTOR, id);
+        // the entry is already known by other instances, so do not send it back
+        table.set(slot, F_SYNCED, lastAccess);
+    }
+
+    // collect at most `max` changed entries and mark them replicated
+    // the queued entries are collected first, then at most DIRTY_SCAN_LIMIT slots
+    // are scanned if the queue overflowed, the scan continues from where it stopped last time
+    @ThreadSafe
+    public synchronized void collectChanged(long now, int timeout, int max, List<Entry> out) {
+        prepare(now, timeout);
+        if (table == null)
+            return;
+        while (dirtyCount > 0 && out.size() < max) {
+            long hi = dirtyHi[dirtyHead];
+            long lo = dirtyLo[dirtyHead];
+            dirtyHead = (dirtyHead + 1) % DIRTY_CAPACITY;
+            --dirtyCount;
+            // the entry might be moved or removed after queued
+            int slot = table.find(hi, lo);
+            if (slot == -1)
+                continue;
+            table.set(slot, F_QUEUED, 0);
+            collect(slot, out);
+        }
+        int slots = table.slots();
+        if (changeCursor >= slots) {
+            changeCursor = 0; // the table might be replaced
+        }
+        for (int n = 0; dirtyScan > 0 && n < DIRTY_SCAN_LIMIT && out.size() < max; ++n) {
+            int i = changeCursor;
+            changeCursor = (changeCursor + 1) % slots;
+            --dirtyScan;
+            if (table.occupied(i)) {
+                collect(i, out);
+            }
+        }
+    }
+
+    private void collect(int slot, List<Entry> out) {
+        if (table.expired(slot) || !table.changed(slot))
+            return;
+        table.set(slot, F_SYNCED, table.access(slot));
+        out.add(entry(slot));
+    }
+
+    // collect at most `max` entries from the slot `cursor`
+    // return the cursor for the next call, or -1 if all slots are scanned
+    // the entries might be moved when the table is modified,
+    // so some of them might be missed or collected twice
+    @ThreadSafe
+    public synchronized int scan(int cursor, long now, int timeout, int max, List<Entry> out) {
+        prepare(now, timeout);
+        if (table == null)
+            return -1;
+        int i = cursor;
+        for (; i < table.slots() && out.size() < max; ++i) {
+            if (table.occupied(i) && !table.expired(i)) {
+                out.add(entry(i));
+            }
+        }
+        return i < table.slots() ? i : -1;
+    }
+
+    private Entry entry(int slot) {
+        return new Entry(
+            AddressTable.address(table.keyHi(slot), table.keyLo(slot)),
+            connectors[(int) table.get(slot, F_CONNECTOR)],
+            table.access(slot));
+    }
+
+    // double the table if it's full
+    private void grow() {
+        if (table.size() < table.capacity() || table.capacity() >= MAX_CAPACITY)
+            return;
+        Table old = table;
+        table = new Table(Math.min(old.capacity() * 2, MAX_CAPACITY));
+        for (int i = 0; i < old.slots(); ++i) {
+            if (!old.occupied(i))
+                continue;
+            // the references are moved into the new table
+            int slot = table.add(old.keyHi(i), old.keyLo(i), old.access(i));
+            table.set(slot, F_CONNECTOR, old.get(i, F_CONNECTOR));
+            table.set(slot, F_SYNCED, old.get(i, F_SYNCED));
+            table.set(slot, F_QUEUED, old.get(i, F_QUEUED));
+        }
+        if (dirtyScan > 0) {
+            // the slots are moved, so scan the new table from the beginning
+            dirtyScan = table.slots();
+        }
+    }
+
+    @ThreadSafe
+    public synchronized void remove(byte[] address) {
+        if (table == null)
+            return;
+        int slot = table.find(address);
+        if (slot != -1) {
+            table.remove(slot);
+        }
+    }
+
+    // remove all entries and release the memory
+    @ThreadSafe
+    public synchronized void clear() {
+        if (table == null)
+            return;
+        table.removeIf(slot -> true);
+        table = null;
+        dirtyHi = null;
+        dirtyLo = null;
+        dirtyHead = 0;
+        dirtyCount = 0;
+        dirtyScan = 0;
+    }
+
+    @ThreadSafe
+    public synchronized int size(long now, int timeout) {
+        prepare(now, timeout);
+        if (table == null)
+            return 0;
+        table.removeIf(table::expired);
+        return table.size();
+    }
+
+    @ThreadSafe
+    public synchronized List<Entry> entries(long now, int timeout) {
+        prepare(now, timeout);
+        if (table == null)
+            return new ArrayList<>(0);
+        table.removeIf(table::expired);
+        List<Entry> list = new ArrayList<>(table.size());
+        for (int i = 0; i < table.slots(); ++i) {
+            if (!table.occupied(i))
+                continue;
+            list.add(entry(i));
+        }
+        return list;
+    }
+
+    // count of different backends referenced by the entries
+    @ThreadSafe
+    public synchronized int connectorCount() {
+        return connectorIds.size();
+    }
+
+    // count of connector ids ever allocated, the released ids are reused
+    @ThreadSafe
+    public synchronized int connectorIdCount() {
+        return nextId;
+    }
+
+    // the max count of entries before growing or evicting
+    @ThreadSafe
+    public synchronized int capacity() {
+        return table == null ? 0 : table.capacity();
+    }
+}
@@ -3,6 +3,8 @@ package net.cassite.vproxy.component.app;
 import net.cassite.vproxy.app.*;
 import net.cassite.vproxy.app.cmd.CmdResult;
 import net.cassite.vproxy.app.cmd.Command;
+import net.cassite.vproxy.app.cmd.handle.param.ConnectionLimitHandle;
+import net.cassite.vproxy.app.cmd.handle.param.HealthCheckHandle;
 import net.cassite.vproxy.app.mesh.ServiceMeshMain;
 import net.cassite.vproxy.component.auto.AutoConfig;
 import net.cassite.vproxy.component.check.HealthCheckConfig;
@@ -12,6 +14,7 @@ import net.cassite.vproxy.component.exception.NoException;
 import net.cassite.vproxy.component.exception.NotFoundException;
 import net.cassite.vproxy.component.secure.SecurityGroup;
 import net.cassite.vproxy.component.secure.SecurityGroupRule;
+import net.cassite.vproxy.component.svrgroup.OutlierDetectionConfig;
 import net.cassite.vproxy.component.svrgroup.ServerGroup;
 import net.cassite.vproxy.component.svrgroup.ServerGroups;
 import net.cassite.vproxy.util.*;
@@ -228,10 +231,14 @@ public class Shutdown {
                     continue;
                 }
                 HealthCheckConfig c = sg.getHealthCheckConfig();
+                OutlierDetectionConfig o = sg.getOutlierDetectionConfig();
 
                 String cmd = "add server-group " + sg.alias +
-                    " timeout " + c.timeout + " period " + c.period + " up " + c.up + " down " + c.down +
-                    " method " + sg.getMethod() + " event-loop-group " + sg.eventLoopGroup.alias;
+                    " " + HealthCheckHandle.format(c) +
+                    " method " + sg.getMethod() + " event-loop-group " + sg.eventLoopGroup.alias +
+                    " consecutive-errors " + o.consecutiveErrors + " ejection-time " + o.ejectionTime +
+                    " max-ejection-percent " + o.maxEjectionPercent +
+                    (sg.getBandwidth() > 0 ? " bandwidth " + sg.getBandwidth() : "");
                 commands.add(cmd);
                 serverGroups.add(sg);
                 serverGroupsNames.add(name);
@@ -250,6 +257,9 @@ public class Shutdown {
                         : sh.hostName)
                         + ":" + sh.server.getPort() +
                         " via " + Utils.ipStr(sh.local.getAddress()) + " weight " + sh.getWeight();
+                    if (sh.getMaxConn() != 0) {
+                        cmd += " max-conn " + sh.getMaxConn();
+                    }
                     commands.add(cmd);
                 }
             }
@@ -269,6 +279,9 @@ public class Shutdown {
                 }
 
                 String cmd = "add server-groups " + sgs.alias;
+                if (sgs.getLocalZone() != null) {
+                    cmd += " zone " + sgs.getLocalZone();
+                }
                 commands.add(cmd);
                 serverGroupss.add(sgs);
                 serverGroupsNames.add(name);
@@ -283,6 +296,9 @@ public class Shutdown {
                         continue;
                     }
                     String cmd = "add server-group " + sg.alias + " to server-groups " + sgs.alias + " weight " + sg.getWeight();
+                    if (sg.getZone() != null) {
+                        cmd += " zone " + sg.getZone();
+                    }
                     commands.add(cmd);
                 }
             }
@@ -350,7 +366,12 @@ public class Shutdown {
                     " event-loop-group " + tl.workerGroup.alias +
                     " address " + tl.server.id() + " server-groups " + tl.backends.alias +
                     " in-buffer-size " + tl.getInBufferSize() + " out-buffer-size " + tl.getOutBufferSize() +
-                    " persist " + tl.persistTimeout;
+                    " persist " + tl.persistTimeout +
+                    " wait-queue " + tl.getWaitQueueSize() + " wait-timeout " + tl.getWaitTimeout() +
+                    " connect-retry " + tl.getConnectRetry() + " connect-retry-timeout " + tl.getConnectRetryTimeout() +
+                    ConnectionLimitHandle.format(tl.connectionLimiter.getConfig()) +
+                    (tl.getBandwidth() > 0 ? " bandwidth " + tl.getBandwidth() : "") +
+                    (tl.getIpBandwidth() > 0 ? " ip-bandwidth " + tl.getIpBandwidth() : "");
                 if (!tl.securityGroup.alias.equals(SecurityGroup.defaultName)) {
                     cmd += " security-group " + tl.securityGroup.alias;
                 }
@@ -1,5 +1,6 @@
 package net.cassite.vproxy.component.app;
 
+import net.cassite.vproxy.app.Config;
 import net.cassite.vproxy.component.elgroup.EventLoopGroup;
 import net.cassite.vproxy.component.elgroup.EventLoopGroupAttach;
 import net.cassite.vproxy.component.elgroup.EventLoopWrapper;
@@ -7,14 +8,15 @@ import net.cassite.vproxy.component.exception.AlreadyExistException;
 import net.cassite.vproxy.component.exception.ClosedException;
 import net.cassite.vproxy.component.exception.NotFoundException;
 import net.cassite.vproxy.component.proxy.*;
+import net.cassite.vproxy.component.secure.ConnectionLimiter;
 import net.cassite.vproxy.component.secure.SecurityGroup;
 import net.cassite.vproxy.component.svrgroup.ServerGroups;
+import net.cassite.vproxy.component.svrgroup.SvrHandleConnector;
 import net.cassite.vproxy.connection.BindServer;
 import net.cassite.vproxy.connection.Connection;
 import net.cassite.vproxy.connection.Connector;
 import net.cassite.vproxy.connection.Protocol;
-import net.cassite.vproxy.selector.SelectorEventLoop;
-import net.cassite.vproxy.selector.TimerEvent;
+import net.cassite.vproxy.connection.TokenBucket;
 import net.cassite.vproxy.util.LogType;
 import net.cassite.vproxy.util.Logger;
 import net.cassite.vproxy.util.ThreadSafe;
@@ -22,9 +24,10 @@ import net.cassite.vproxy.util.ThreadSafe;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
+import java.util.List;
 import java.util.function.Supplier;
 
 public class TcpLB {
@@ -73,45 +76,21 @@ public class TcpLB {
         }
     }
 
-    @ThreadSafe(false)
+    // a snapshot of one persist entry
     public class Persist {
         public final InetAddress clientAddress;
         public final Connector connector;
-        TimerEvent timeoutEvent;
+        public final long lastAccess;
 
-        Persist(InetAddress clientAddress, Connector connector) {
+        Persist(InetAddress clientAddress, Connector connector, long lastAccess) {
             this.clientAddress = clientAddress;
             this.connector = connector;
-
-            refresh();
-        }
-
-        void refresh() {
-            // stop the old timer first
-            if (timeoutEvent != null) {
-                timeoutEvent.cancel();
-                timeoutEvent = null;
-            }
-            // always handle the timeout on accept event loop
-            // then there will be no concurrency
-            SelectorEventLoop loop = proxyNetConfig.getAcceptLoop().getSelectorEventLoop();
-            if (loop == null) {
-                // cannot handle the persist timeout
-                // so let's just remove the persist entry from map
-                persistMap.remove(clientAddress);
-                return;
-            }
-            timeoutEvent = loop.delay(persistTimeout, () ->
-                /* persistence expired */ persistMap.remove(clientAddress));
+            this.lastAccess = lastAccess;
         }
 
+        @ThreadSafe
         public void remove() {
-            if (timeoutEvent != null) {
-                timeoutEvent.cancel();
-                timeoutEvent = null;
-            }
-            // remove from map
-            persistMap.remove(clientAddress);
+            persistTable.remove(clientAddress.getAddress());
         }
     }
 
@@ -125,13 +104,13 @@ public class TcpLB {
     public final SecurityGroup securityGroup;
     public int persistTimeout; // modifiable
     // the modifiable fields only have effect when new connection arrives
+    public final ConnectionLimiter connectionLimiter = new ConnectionLimiter();
+    private final TokenBucket bandwidthLimiter = new TokenBucket(0);
+    private final ClientBandwidthLimiter clientBandwidthLimiter = new ClientBandwidthLimiter();
 
-    // the persisted connector map
-    // it will only be modified from one thread
-    // in data panel, no need to handle concurrency
-    // though it might be retrieved from control panel
-    // so we use concurrent hash map instead
-    public final ConcurrentMap<InetAddress, Persist> persistMap = new ConcurrentHashMap<>();
+    // the persisted connectors
+    // the entries expire `persistTimeout` milliseconds after the last access
+    final PersistTable persistTable = new PersistTable();
 
     // true means the lb is stopped, but it can still re-start.
     // false means we WANT the lb to start,
@@ -202,10 +181,53 @@ public class TcpLB {
 
     // this method can override
     protected Supplier<ConnectorGen> provideConnectorGen() {
-        ConnectorGen cg = this::connectorProvider;
+        ConnectorGen cg = new ConnectorGen<Void>() {
+            @Override
+            public boolean admit(Connection accepted) {
+                return admitConnection(accepted);
+            }
+
+            @Override
+            public Connector genConnector(Connection accepted) {
+                return connectorProvider(accepted);
+            }
+
+            @Override
+            public boolean shouldWait(Connection accepted) {
+                // only wait when the client is allowed
+                // and all healthy backends reached their max-conn
+                return securityGroup.allow(Protocol.TCP, accepted.remote.getAddress(), bindAddress.getPort())
+                    && backends.saturated();
+            }
+
+            @Override
+            public Connector genConnectorForRetry(Connection accepted, Collection<Connector> failed) {
+                return retryConnectorProvider(accepted, failed);
+            }
+        };
         return () -> cg;
     }
 
+    // check the limits of the client
+    // NOTE: this method is called on the accept event loop
+    private boolean admitConnection(Connection clientConn) {
+        InetAddress remoteAddress = clientConn.remote.getAddress();
+        if (connectionLimiter.isEnabled()) {
+            if (!connectionLimiter.tryAcquire(remoteAddress)) {
+                assert Logger.lowLevelDebug("connection " + clientConn + " is rejected by the connection limiter");
+                return false;
+            }
+            clientConn.addConnCloseHandler(conn -> connectionLimiter.release(remoteAddress));
+        }
+        // the lb limiter is always attached, so that changing the bandwidth
+        // also takes effect on the established sessions
+        clientConn.addBandwidthLimiter(bandwidthLimiter);
+        if (clientBandwidthLimiter.getRate() > 0) {
+            clientConn.addBandwidthLimiter(clientBandwidthLimiter.forClient(remoteAddress));
+        }
+        return true;
+    }
+
     // provide a connector
     private Connector connectorProvider(Connection clientConn) {
         // check whitelist
@@ -213,20 +235,19 @@ public class TcpLB {
         if (!securityGroup.allow(Protocol.TCP, remoteAddress, bindAddress.getPort()))
             return null; // terminated by securityGroup
         // check persist
-        Persist persist = persistMap.get(remoteAddress);
-        if (persist != null) {
-            if (persistTimeout == 0) {
-                persist.remove();
-            } else {
-                if (persist.connector.isValid()) {
-                    if (persistTimeout != 0)
-                        persist.refresh();
-                    return persist.connector;
-                } else {
-                    // the backend is not valid now
-                    // remove the persist record
-                    persist.remove();
+        int persistTimeout = this.persistTimeout;
+        byte[] remoteBytes = remoteAddress.getAddress();
+        if (persistTimeout == 0) {
+            persistTable.clear(); // persistence is disabled
+        } else {
+            Connector persisted = persistTable.get(remoteBytes, Config.currentTimestamp, persistTimeout);
+            if (persisted != null) {
+                if (persisted.isValid()) {
+                    return persisted;
                 }
+                // the backend is not valid now
+                // remove the persist record
+                persistTable.remove(remoteBytes);
             }
         }
         // then we get a new connector
@@ -238,12 +259,51 @@ public class TcpLB {
         assert Logger.lowLevelDebug("got a backend: " + connector);
         // record the connector
         if (persistTimeout > 0) {
-            Persist p = new Persist(remoteAddress, connector);
-            persistMap.put(remoteAddress, p);
+            persistTable.put(remoteBytes, connector, Config.currentTimestamp, persistTimeout);
         }
         return connector;
     }
 
+    // the max times to call backends.next() when looking for a server not failed
+    private static final int MAX_PICKS_FOR_RETRY = 16;
+
+    // provide a connector different from the failed ones
+    // NOTE: this method is called on worker event loops
+    private Connector retryConnectorProvider(Connection clientConn, Collection<Connector> failed) {
+        Connector connector = null;
+        for (int i = 0; i < MAX_PICKS_FOR_RETRY; ++i) {
+            Connector c = backends.next();
+            if (c == null)
+                return null; // cannot get any
+            if (!isFailed(c, failed)) {
+                connector = c;
+                break;
+            }
+            if (c instanceof SvrHandleConnector) {
+                ((SvrHandleConnector) c).cancel(); // not used
+            }
+        }
+        if (connector == null)
+            return null;
+        assert Logger.lowLevelDebug("got a backend for retry: " + connector);
+
+        int persistTimeout = this.persistTimeout;
+        if (persistTimeout > 0) {
+            // keep the entry if it's already replaced by other connections
+            persistTable.replace(clientConn.remote.getAddress().getAddress(), connector,
+                Config.currentTimestamp, persistTimeout, old -> isFailed(old, failed));
+        }
+        return connector;
+    }
+
+    private static boolean isFailed(Connector c, Collection<Connector> failed) {
+        for (Connector f : failed) {
+            if (f.remote.equals(c.remote) && f.local.getAddress().equals(c.local.getAddress()))
+                return true;
+        }
+        return false;
+    }
+
     // the proxy still exist
     // but we should dispatch server to another event loop
     private void redispatch() throws IOException {
@@ -259,13 +319,6 @@ public class TcpLB {
         assert Logger.lowLevelDebug("got a event loop, do re-dispatch");
         proxyNetConfig.setAcceptLoop(w);
 
-        // also, we should re-dispatch the persist records
-        // before start accepting connections
-        // to ensure no race condition
-        for (Persist p : persistMap.values()) {
-            p.refresh(); // NOTE: the timeout is reset
-        }
-
         // start accepting connections
         // before re-dispatch servers
         proxy.handle();
@@ -365,6 +418,111 @@ public class TcpLB {
         proxyNetConfig.setOutBufferSize(outBufferSize);
     }
 
+    public void setWaitQueueSize(int waitQueueSize) {
+        proxyNetConfig.setWaitQueueSize(waitQueueSize);
+    }
+
+    public void setWaitTimeout(int waitTimeout) {
+        proxyNetConfig.setWaitTimeout(waitTimeout);
+    }
+
+    public void setConnectRetry(int connectRetry) {
+        proxyNetConfig.setConnectRetry(connectRetry);
+    }
+
+    public void setConnectRetryTimeout(int connectRetryTimeout) {
+        proxyNetConfig.setConnectRetryTimeout(connectRetryTimeout);
+    }
+
+    // bytes per second of all sessions, 0 means no limit
+    public void setBandwidth(long bandwidth) {
+        bandwidthLimiter.setRate(bandwidth);
+    }
+
+    // bytes per second of sessions from one client ip, 0 means no limit
+    // the sessions created when it's 0 are not limited
+    public void setIpBandwidth(long ipBandwidth) {
+        clientBandwidthLimiter.setRate(ipBandwidth);
+    }
+
+    public long getBandwidth() {
+        return bandwidthLimiter.getRate();
+    }
+
+    public long getIpBandwidth() {
+        return clientBandwidthLimiter.getRate();
+    }
+
+    public int getWaitQueueSize() {
+        return proxyNetConfig.getWaitQueueSize();
+    }
+
+    public int getWaitTimeout() {
+        return proxyNetConfig.getWaitTimeout();
+    }
+
+    public int getConnectRetry() {
+        return proxyNetConfig.getConnectRetry();
+    }
+
+    public int getConnectRetryTimeout() {
+        return proxyNetConfig.getConnectRetryTimeout();
+    }
+
+    public int waitingCount() {
+        Proxy p = proxy;
+        if (p == null) {
+            return 0;
+        }
+        return p.waitingCount();
+    }
+
+    public long waitTimeoutCount() {
+        Proxy p = proxy;
+        if (p == null) {
+            return 0;
+        }
+        return p.waitTimeoutCount();
+    }
+
+    public long waitRejectedCount() {
+        Proxy p = proxy;
+        if (p == null) {
+            return 0;
+        }
+        return p.waitRejectedCount();
+    }
+
+    public long connectRetryCount() {
+        Proxy p = proxy;
+        if (p == null) {
+            return 0;
+        }
+        return p.connectRetryCount();
+    }
+
+    @ThreadSafe
+    public int persistCount() {
+        return persistTable.size(Config.currentTimestamp, persistTimeout);
+    }
+
+    @ThreadSafe
+    public List<Persist> persistList() {
+        List<PersistTable.Entry> entries = persistTable.entries(Config.currentTimestamp, persistTimeout);
+        List<Persist> list = new ArrayList<>(entries.size());
+        for (PersistTable.Entry e : entries) {
+            InetAddress address;
+            try {
+                address = InetAddress.getByAddress(e.address);
+            } catch (UnknownHostException ex) {
+                Logger.shouldNotHappen("the address bytes should be valid " + ex);
+                continue;
+            }
+            list.add(new Persist(address, e.connector, e.lastAccess));
+        }
+        return list;
+    }
+
     public int getInBufferSize() {
         return inBufferSize;
     }
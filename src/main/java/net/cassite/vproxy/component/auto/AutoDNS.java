@@ -0,0 +1,94 @@
+package net.cassite.vproxy.component.auto;
+
+import net.cassite.vproxy.component.exception.XException;
+import net.cassite.vproxy.component.khala.KhalaNode;
+import net.cassite.vproxy.component.khala.KhalaNodeListener;
+import net.cassite.vproxy.component.khala.KhalaNodeType;
+import net.cassite.vproxy.discovery.Node;
+import net.cassite.vproxy.dns.AuthoritativeDNSServer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * serve the nexus nodes of khala as dns records:
+ * `$service.$zone.$domain` for A/AAAA and `_$service._tcp.$zone.$domain` for SRV.
+ * the service name is the part before the port, e.g. myservice.com:80 => myservice.com
+ */
+public class AutoDNS {
+    class AutoDNSKhalaNodeListener implements KhalaNodeListener {
+        @Override
+        public void add(Node n, KhalaNode node) {
+            if (node.type != KhalaNodeType.nexus)
+                return; // only nexus nodes are exported
+            nexusNodes.merge(node, 1, Integer::sum);
+            scheduleUpdate();
+        }
+
+        @Override
+        public void remove(Node n, KhalaNode node) {
+            if (node.type != KhalaNodeType.nexus)
+                return; // only nexus nodes are exported
+            Integer cnt = nexusNodes.get(node);
+            if (cnt == null)
+                return;
+            if (cnt == 1) {
+                nexusNodes.remove(node);
+            } else {
+                nexusNodes.put(node, cnt - 1);
+            }
+            scheduleUpdate();
+        }
+    }
+
+    private final AutoDNSKhalaNodeListener autoDNSKhalaNodeListener = new AutoDNSKhalaNodeListener();
+
+    public final String alias;
+    public final AutoConfig config;
+    public final AuthoritativeDNSServer server;
+
+    // the same khala node might be reported by more than one discovery node
+    // only accessed on discovery loop
+    private final Map<KhalaNode, Integer> nexusNodes = new HashMap<>();
+    private boolean updateScheduled = false;
+
+    public AutoDNS(String alias, int port, String domain, int ttl, AutoConfig config) throws XException, IOException {
+        this.alias = alias;
+        this.config = config;
+        this.server = new AuthoritativeDNSServer(alias,
+            new InetSocketAddress(config.bindInetAddress, port),
+            config.workerGroup.next(), domain, ttl);
+        server.start();
+        config.khala.addKhalaNodeListener(autoDNSKhalaNodeListener);
+    }
+
+    // a batch of events is merged into one zone update
+    private void scheduleUpdate() {
+        if (updateScheduled)
+            return;
+        updateScheduled = true;
+        config.khala.discovery.loop.getSelectorEventLoop().nextTick(() -> {
+            updateScheduled = false;
+            Map<String, List<InetSocketAddress>> services = new HashMap<>();
+            for (KhalaNode kn : nexusNodes.keySet()) {
+                String svc = kn.service;
+                int idx = svc.lastIndexOf(':');
+                if (idx != -1) {
+                    svc = svc.substring(0, idx);
+                }
+                services.computeIfAbsent(svc + "." + kn.zone, k -> new ArrayList<>())
+                    .add(new InetSocketAddress(kn.address, kn.port));
+            }
+            server.setZone(services);
+        });
+    }
+
+    public void destroy() {
+        config.khala.removeKhalaNodeListener(autoDNSKhalaNodeListener);
+        server.stop();
+    }
+}
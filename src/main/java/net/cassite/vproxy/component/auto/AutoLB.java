@@ -1,10 +1,11 @@
 package net.cassite.vproxy.component.auto;
 
+import net.cassite.vproxy.component.app.PersistReplicator;
 import net.cassite.vproxy.component.app.TcpLB;
 import net.cassite.vproxy.component.exception.AlreadyExistException;
 import net.cassite.vproxy.component.exception.ClosedException;
-import net.cassite.vproxy.component.exception.NotFoundException;
 import net.cassite.vproxy.component.khala.KhalaNode;
+import net.cassite.vproxy.component.khala.KhalaNodeBatch;
 import net.cassite.vproxy.component.khala.KhalaNodeListener;
 import net.cassite.vproxy.component.khala.KhalaNodeType;
 import net.cassite.vproxy.component.secure.SecurityGroup;
@@ -13,6 +14,7 @@ import net.cassite.vproxy.component.svrgroup.ServerGroups;
 import net.cassite.vproxy.discovery.Node;
 import net.cassite.vproxy.util.ConcurrentHashSet;
 import net.cassite.vproxy.util.Logger;
+import net.cassite.vproxy.util.Tuple;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
@@ -22,34 +24,42 @@ public class AutoLB {
     class AutoLBKhalaNodeListener implements KhalaNodeListener {
         @Override
         public void add(Node n, KhalaNode node) {
-            if (!node.zone.equals(zone) || node.type == KhalaNodeType.nexus || !node.service.equals(service)) {
-                return; // ignore the node event if don't care
-            }
-
-            String svrName = AutoUtil.utilServerNameFromNode(node);
-
-            ServerGroup grp = lb.backends.getServerGroups().get(0).group;
-            try {
-                grp.add(svrName, new InetSocketAddress(node.address, node.port), config.bindInetAddress, 10);
-            } catch (AlreadyExistException e) {
-                Logger.shouldNotHappen("add server into group failed", e);
-            }
+            batch(KhalaNodeBatch.ofAdd(n, node));
         }
 
         @Override
         public void remove(Node n, KhalaNode node) {
-            if (!node.zone.equals(zone) || node.type == KhalaNodeType.nexus || !node.service.equals(service)) {
-                return; // ignore the node event if don't care
+            batch(KhalaNodeBatch.ofRemove(n, node));
+        }
+
+        @Override
+        public void batch(KhalaNodeBatch batch) {
+            // all changes are applied to the group at once
+            ServerGroup.Batch b = new ServerGroup.Batch();
+            for (Tuple<Node, KhalaNode> t : batch.removed) {
+                KhalaNode node = t.right;
+                if (!careAbout(node)) {
+                    continue; // ignore the node event if don't care
+                }
+                b.remove(AutoUtil.utilServerNameFromNode(node));
             }
+            for (Tuple<Node, KhalaNode> t : batch.added) {
+                KhalaNode node = t.right;
+                if (!careAbout(node)) {
+                    continue; // ignore the node event if don't care
+                }
+                b.add(AutoUtil.utilServerNameFromNode(node),
+                    new InetSocketAddress(node.address, node.port), config.bindInetAddress, 10);
+            }
+            if (b.isEmpty())
+                return;
 
-            String svrName = AutoUtil.utilServerNameFromNode(node);
+            ServerGroup grp = lb.backends.getServerGroups().get(0).group;
+            grp.apply(b);
+        }
 
-            ServerGroup group = lb.backends.getServerGroups().get(0).group;
-            try {
-                group.remove(svrName);
-            } catch (NotFoundException e) {
-                // ignore when not found
-            }
+        private boolean careAbout(KhalaNode node) {
+            return node.zone.equals(zone) && node.type != KhalaNodeType.nexus && node.service.equals(service);
         }
     }
 
@@ -61,10 +71,16 @@ public class AutoLB {
     public final AutoConfig config;
 
     public final TcpLB lb;
+    private final PersistReplicator persistReplicator; // null if not persisting
 
     private final Set<KhalaNode> khalaNodes = new ConcurrentHashSet<>();
 
     public AutoLB(String alias, String service, String zone, int port, AutoConfig config) throws Exception {
+        this(alias, service, zone, port, 0, config);
+    }
+
+    // the persist entries are replicated to the auto lbs with the same alias on other nodes
+    public AutoLB(String alias, String service, String zone, int port, int persistTimeout, AutoConfig config) throws Exception {
         this.alias = alias;
         this.service = service;
         this.zone = zone;
@@ -93,7 +109,7 @@ public class AutoLB {
             tl = new TcpLB(lbName,
                 config.acceptorGroup, config.workerGroup,
                 new InetSocketAddress(config.bindInetAddress, port),
-                sgs, 16384, 16384, SecurityGroup.allowAll(), 0);
+                sgs, 16384, 16384, SecurityGroup.allowAll(), persistTimeout);
         } catch (IOException | ClosedException | AlreadyExistException e) {
             Logger.shouldNotHappen("got exception when creating tcp lb", e);
             throw e;
@@ -105,6 +121,12 @@ public class AutoLB {
             throw e;
         }
         this.lb = tl;
+        if (persistTimeout > 0) {
+            persistReplicator = new PersistReplicator(tl, config.khala.discovery);
+            persistReplicator.start();
+        } else {
+            persistReplicator = null;
+        }
 
         config.khala.addKhalaNodeListener(autoLBKhalaNodeListener);
         KhalaNode kn = new KhalaNode(KhalaNodeType.nexus, service, zone, config.bindAddress, port);
@@ -113,6 +135,9 @@ public class AutoLB {
     }
 
     public void destroy() {
+        if (persistReplicator != null) {
+            persistReplicator.stop();
+        }
         config.khala.removeKhalaNodeListener(autoLBKhalaNodeListener);
         for (KhalaNode n : khalaNodes) {
             config.khala.removeLocal(n);
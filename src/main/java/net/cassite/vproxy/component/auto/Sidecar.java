@@ -4,6 +4,7 @@ import net.cassite.vproxy.component.app.Socks5Server;
 import net.cassite.vproxy.component.app.TcpLB;
 import net.cassite.vproxy.component.exception.*;
 import net.cassite.vproxy.component.khala.KhalaNode;
+import net.cassite.vproxy.component.khala.KhalaNodeBatch;
 import net.cassite.vproxy.component.khala.KhalaNodeListener;
 import net.cassite.vproxy.component.khala.KhalaNodeType;
 import net.cassite.vproxy.component.secure.SecurityGroup;
@@ -12,94 +13,106 @@ import net.cassite.vproxy.component.svrgroup.ServerGroups;
 import net.cassite.vproxy.discovery.Node;
 import net.cassite.vproxy.util.ConcurrentHashSet;
 import net.cassite.vproxy.util.Logger;
+import net.cassite.vproxy.util.Tuple;
 
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
-import java.util.HashSet;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.Set;
+import java.util.*;
 
 public class Sidecar {
     class SidecarKhalaNodeListener implements KhalaNodeListener {
         @Override
         public void add(Node n, KhalaNode node) {
-            if (!node.zone.equals(zone) || node.type == KhalaNodeType.pylon) {
-                return; // ignore the node event if don't care
-            }
+            batch(KhalaNodeBatch.ofAdd(n, node));
+        }
 
-            String grpName = AutoUtil.utilServerGroupNameFromServiceName(node.service);
-            String svrName = AutoUtil.utilServerNameFromNode(node);
+        @Override
+        public void remove(Node n, KhalaNode node) {
+            batch(KhalaNodeBatch.ofRemove(n, node));
+        }
 
-            List<ServerGroups.ServerGroupHandle> groups = socks5Server.backends.getServerGroups();
-            ServerGroup group = null;
-            for (ServerGroups.ServerGroupHandle h : groups) {
-                if (h.group.alias.equals(grpName)) {
-                    group = h.group;
-                    break;
+        @Override
+        public void batch(KhalaNodeBatch batch) {
+            // group the changes by server group, and apply them once for each group
+            Map<String, ServerGroup.Batch> batches = new HashMap<>();
+            Set<String> groupsToCreate = new HashSet<>();
+            for (Tuple<Node, KhalaNode> t : batch.removed) {
+                KhalaNode node = t.right;
+                if (!careAbout(node)) {
+                    continue; // ignore the node event if don't care
                 }
+                String grpName = AutoUtil.utilServerGroupNameFromServiceName(node.service);
+                batches.computeIfAbsent(grpName, k -> new ServerGroup.Batch())
+                    .remove(AutoUtil.utilServerNameFromNode(node));
             }
-            if (group == null) {
-                // should create a new group
-                ServerGroup grp;
-                try {
-                    grp = new ServerGroup(grpName, config.workerGroup, config.hcConfig, config.selectMethod);
-                } catch (AlreadyExistException | ClosedException e) {
-                    Logger.shouldNotHappen("create server group failed", e);
-                    return;
+            for (Tuple<Node, KhalaNode> t : batch.added) {
+                KhalaNode node = t.right;
+                if (!careAbout(node)) {
+                    continue; // ignore the node event if don't care
                 }
-                try {
-                    socks5Server.backends.add(grp, 10);
-                } catch (AlreadyExistException e) {
-                    Logger.shouldNotHappen("add group into serverGroups failed", e);
-                    return;
-                }
-                group = grp;
+                String grpName = AutoUtil.utilServerGroupNameFromServiceName(node.service);
+                batches.computeIfAbsent(grpName, k -> new ServerGroup.Batch())
+                    .add(AutoUtil.utilServerNameFromNode(node),
+                        new InetSocketAddress(node.address, node.port), config.bindInetAddress, 10);
+                groupsToCreate.add(grpName);
             }
 
-            try {
-                group.add(svrName, new InetSocketAddress(node.address, node.port), config.bindInetAddress, 10);
-            } catch (AlreadyExistException e) {
-                Logger.shouldNotHappen("add server into group failed", e);
+            for (Map.Entry<String, ServerGroup.Batch> e : batches.entrySet()) {
+                String grpName = e.getKey();
+                ServerGroup group = findGroup(grpName);
+                if (group == null) {
+                    if (!groupsToCreate.contains(grpName)) {
+                        continue; // ignore if group not found and nothing to add
+                    }
+                    // should create a new group
+                    group = createGroup(grpName);
+                    if (group == null) {
+                        continue;
+                    }
+                }
+                group.apply(e.getValue());
+                if (group.getServerHandles().isEmpty()) {
+                    // remove the group if it's empty now
+                    try {
+                        socks5Server.backends.remove(group);
+                    } catch (NotFoundException ex) {
+                        // ignore if not found
+                    }
+                }
             }
         }
 
-        @Override
-        public void remove(Node n, KhalaNode node) {
-            if (!node.zone.equals(zone) || node.type == KhalaNodeType.pylon) {
-                return; // ignore the node event if don't care
-            }
-
-            String grpName = AutoUtil.utilServerGroupNameFromServiceName(node.service);
-            String svrName = AutoUtil.utilServerNameFromNode(node);
+        private boolean careAbout(KhalaNode node) {
+            return node.zone.equals(zone) && node.type != KhalaNodeType.pylon;
+        }
 
+        private ServerGroup findGroup(String grpName) {
             List<ServerGroups.ServerGroupHandle> groups = socks5Server.backends.getServerGroups();
-            ServerGroup group = null;
             for (ServerGroups.ServerGroupHandle h : groups) {
                 if (h.group.alias.equals(grpName)) {
-                    group = h.group;
-                    break;
+                    return h.group;
                 }
             }
-            if (group == null) {
-                return; // ignore if group not found
-            }
-            // should remove from group
+            return null;
+        }
+
+        private ServerGroup createGroup(String grpName) {
+            ServerGroup grp;
             try {
-                group.remove(svrName);
-            } catch (NotFoundException e) {
-                // ignore err if not found
+                grp = new ServerGroup(grpName, config.workerGroup, config.hcConfig, config.selectMethod);
+            } catch (AlreadyExistException | ClosedException e) {
+                Logger.shouldNotHappen("create server group failed", e);
+                return null;
             }
-            if (group.getServerHandles().isEmpty()) {
-                // remove the group if it's empty now
-                try {
-                    socks5Server.backends.remove(group);
-                } catch (NotFoundException e) {
-                    // ignore if not found
-                }
+            try {
+                socks5Server.backends.add(grp, 10);
+            } catch (AlreadyExistException e) {
+                Logger.shouldNotHappen("add group into serverGroups failed", e);
+                return null;
             }
+            return grp;
         }
     }
 
@@ -197,17 +210,14 @@ public class Sidecar {
         }
         // remove those with _MAINTAIN_FLAG_ because there is at least one alive process
         {
-            Set<String> foo = new HashSet<>();
+            ServerGroup.Batch batch = new ServerGroup.Batch();
             for (ServerGroup.ServerHandle h : sg.getServerHandles()) {
                 if (h.data == _MAINTAIN_FLAG_) {
-                    foo.add(h.alias);
+                    batch.remove(h.alias);
                 }
             }
-            for (String bar : foo) {
-                try {
-                    sg.remove(bar);
-                } catch (NotFoundException ignore) {
-                }
+            if (!batch.isEmpty()) {
+                sg.apply(batch);
             }
         }
 
@@ -3,4 +3,6 @@ package net.cassite.vproxy.component.check;
 public enum CheckProtocol {
     tcp,
     tcpDelay,
+    http, // send a request and check the status code
+    redis, // send PING and expect PONG
 }
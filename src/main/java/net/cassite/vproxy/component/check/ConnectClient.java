@@ -1,7 +1,14 @@
 package net.cassite.vproxy.component.check;
 
 import net.cassite.vproxy.connection.*;
+import net.cassite.vproxy.http.HttpHeader;
+import net.cassite.vproxy.http.HttpResp;
+import net.cassite.vproxy.http.HttpRespParser;
+import net.cassite.vproxy.redis.RESPParser;
+import net.cassite.vproxy.redis.entity.RESP;
+import net.cassite.vproxy.redis.entity.RESPString;
 import net.cassite.vproxy.selector.TimerEvent;
+import net.cassite.vproxy.util.ByteArrayChannel;
 import net.cassite.vproxy.util.Callback;
 import net.cassite.vproxy.util.Logger;
 import net.cassite.vproxy.util.RingBuffer;
@@ -10,6 +17,7 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.nio.channels.InterruptedByTimeoutException;
+import java.nio.charset.StandardCharsets;
 
 // connect to target address then close the connection
 // it's useful when running health check
@@ -102,26 +110,207 @@ public class ConnectClient {
         }
     }
 
+    // for application level checks (http and redis)
+    // the connection is kept after a successful check and reused in the next round
+    class AppCheckConnectionHandler implements ClientConnectionHandler {
+        private Callback<Void, IOException> callback;
+        private TimerEvent timeoutEvent;
+        private boolean connected = false;
+        private HttpRespParser httpParser;
+        private RESPParser respParser;
+
+        void newRound(ConnectionHandlerContext ctx, Callback<Void, IOException> callback, TimerEvent timeoutEvent) {
+            this.callback = callback;
+            this.timeoutEvent = timeoutEvent;
+            httpParser = null;
+            respParser = null;
+            if (connected) {
+                // it's a kept connection, send the request directly
+                sendRequest(ctx);
+            }
+        }
+
+        private void sendRequest(ConnectionHandlerContext ctx) {
+            if (checkProtocol == CheckProtocol.http) {
+                httpParser = new HttpRespParser(false);
+            } else {
+                assert checkProtocol == CheckProtocol.redis;
+                respParser = new RESPParser(RESP_MAX_LEN);
+            }
+            ctx.connection.getOutBuffer().storeBytesFrom(ByteArrayChannel.fromFull(request));
+        }
+
+        @Override
+        public void connected(ClientConnectionHandlerContext ctx) {
+            connected = true;
+            sendRequest(ctx);
+        }
+
+        @Override
+        public void readable(ConnectionHandlerContext ctx) {
+            if (callback == null || callback.isCalled()) {
+                // not expecting any data, the connection cannot be reused
+                fail(ctx, new IOException("unexpected data"));
+                return;
+            }
+            int res;
+            String err;
+            if (httpParser != null) {
+                res = httpParser.feed(ctx.connection.getInBuffer());
+                err = httpParser.getErrorMessage();
+            } else {
+                res = respParser.feed(ctx.connection.getInBuffer());
+                err = respParser.getErrorMessage();
+            }
+            if (res == -1) {
+                if (err == null) {
+                    return; // want more data
+                }
+                fail(ctx, new IOException("invalid response: " + err));
+                return;
+            }
+            timeoutEvent.cancel();
+            if (httpParser != null) {
+                HttpResp resp = httpParser.getResult();
+                String statusCode = resp.statusCode == null ? "" : resp.statusCode.toString().trim();
+                if (!healthCheckConfig.httpStatusMatches(statusCode)) {
+                    fail(ctx, new IOException("unexpected http status " + statusCode));
+                    return;
+                }
+                if (!httpConnectionReusable(resp)) {
+                    closeAndSucceed(ctx);
+                    return;
+                }
+            } else {
+                RESP resp = respParser.getResult();
+                if (!(resp instanceof RESPString) || !((RESPString) resp).string.toString().equalsIgnoreCase("PONG")) {
+                    fail(ctx, new IOException("unexpected redis response " + resp));
+                    return;
+                }
+            }
+            // keep the connection for the next round
+            keptConnection = ctx;
+            keptHandler = this;
+            if (!stopped) callback.succeeded(null);
+        }
+
+        @Override
+        public void writable(ConnectionHandlerContext ctx) {
+            // the request is small, no need to handle
+        }
+
+        @Override
+        public void exception(ConnectionHandlerContext ctx, IOException err) {
+            assert Logger.lowLevelDebug("exception when doing health check, conn = " + ctx.connection + ", err = " + err);
+            fail(ctx, err);
+        }
+
+        @Override
+        public void closed(ConnectionHandlerContext ctx) {
+            fail(ctx, new IOException("remote closed"));
+        }
+
+        @Override
+        public void removed(ConnectionHandlerContext ctx) {
+            release(ctx);
+        }
+
+        private void release(ConnectionHandlerContext ctx) {
+            if (timeoutEvent != null) {
+                timeoutEvent.cancel();
+            }
+            if (keptConnection == ctx) {
+                keptConnection = null;
+                keptHandler = null;
+            }
+            ctx.connection.close();
+        }
+
+        private void fail(ConnectionHandlerContext ctx, IOException err) {
+            release(ctx);
+            if (callback != null && !callback.isCalled() /*already called by timer*/ && !stopped)
+                callback.failed(err);
+        }
+
+        private void closeAndSucceed(ConnectionHandlerContext ctx) {
+            release(ctx);
+            if (!callback.isCalled() /*already called by timer*/ && !stopped) callback.succeeded(null);
+        }
+    }
+
+    private static final int RESP_MAX_LEN = 1024;
+    private static final byte[] REDIS_PING = "*1\r\n$4\r\nPING\r\n".getBytes(StandardCharsets.UTF_8);
+
     public final NetEventLoop eventLoop;
     public final InetSocketAddress remote;
     public final InetAddress local;
     public final CheckProtocol checkProtocol;
     public final int timeout;
-    private boolean stopped = false;
+    private final HealthCheckConfig healthCheckConfig;
+    private final byte[] request; // the request for application level checks
+    // only accessed on the event loop
+    private ConnectionHandlerContext keptConnection;
+    private AppCheckConnectionHandler keptHandler;
+    private volatile boolean stopped = false;
 
     public ConnectClient(NetEventLoop eventLoop,
                          InetSocketAddress remote,
                          InetAddress local,
                          CheckProtocol checkProtocol,
                          int timeout) {
+        this(eventLoop, remote, local, new HealthCheckConfig(timeout, 0, 0, 0, checkProtocol));
+    }
+
+    public ConnectClient(NetEventLoop eventLoop,
+                         InetSocketAddress remote,
+                         InetAddress local,
+                         HealthCheckConfig healthCheckConfig) {
         this.eventLoop = eventLoop;
         this.remote = remote;
         this.local = local;
-        this.checkProtocol = checkProtocol;
-        this.timeout = timeout;
+        this.checkProtocol = healthCheckConfig.checkProtocol;
+        this.timeout = healthCheckConfig.timeout;
+        this.healthCheckConfig = healthCheckConfig;
+        if (checkProtocol == CheckProtocol.http) {
+            String host = remote.getAddress().getHostAddress();
+            if (host.contains(":")) {
+                host = "[" + host + "]";
+            }
+            this.request = (healthCheckConfig.httpMethod + " " + healthCheckConfig.httpUri + " HTTP/1.1\r\n" +
+                "Host: " + host + ":" + remote.getPort() + "\r\n" +
+                "User-Agent: vproxy-health-check\r\n" +
+                "\r\n").getBytes(StandardCharsets.UTF_8);
+        } else if (checkProtocol == CheckProtocol.redis) {
+            this.request = REDIS_PING;
+        } else {
+            this.request = null;
+        }
+    }
+
+    // the connection can be reused only when the body is surely consumed
+    private boolean httpConnectionReusable(HttpResp resp) {
+        if (resp.version == null || !resp.version.toString().trim().equalsIgnoreCase("HTTP/1.1"))
+            return false;
+        boolean noBody = healthCheckConfig.httpMethod.equalsIgnoreCase("HEAD");
+        String statusCode = resp.statusCode.toString().trim();
+        if (statusCode.equals("204") || statusCode.equals("304"))
+            noBody = true;
+        for (HttpHeader h : resp.headers) {
+            String key = h.key.toString().trim();
+            String value = h.value == null ? "" : h.value.toString().trim();
+            if (key.equalsIgnoreCase("connection") && value.equalsIgnoreCase("close"))
+                return false;
+            if (key.equalsIgnoreCase("content-length") && value.equals("0"))
+                noBody = true;
+        }
+        return noBody;
     }
 
     public void handle(Callback<Void, IOException> cb) {
+        if (request != null) {
+            handleApp(cb);
+            return;
+        }
         // connect to remote
         ClientConnection conn;
         try {
@@ -148,7 +337,56 @@ public class ConnectClient {
         }
     }
 
+    // should be called on the event loop
+    private void handleApp(Callback<Void, IOException> cb) {
+        ConnectionHandlerContext kept = keptConnection;
+        AppCheckConnectionHandler keptHandler = this.keptHandler;
+        keptConnection = null; // will be set again when the check succeeds
+        this.keptHandler = null;
+        if (kept != null && !kept.connection.isClosed()) {
+            TimerEvent timer = eventLoop.getSelectorEventLoop().delay(timeout, () -> {
+                assert Logger.lowLevelDebug("timeout when doing health check on kept connection " + kept.connection);
+                kept.connection.close();
+                if (!cb.isCalled() && !stopped) cb.failed(new InterruptedByTimeoutException());
+            });
+            keptHandler.newRound(kept, cb, timer);
+            return;
+        }
+
+        ClientConnection conn;
+        try {
+            conn = ClientConnection.create(remote, local,
+                RingBuffer.allocate(1024), RingBuffer.allocate(request.length));
+        } catch (IOException e) {
+            if (!stopped) cb.failed(e);
+            return;
+        }
+        TimerEvent timer = eventLoop.getSelectorEventLoop().delay(timeout, () -> {
+            assert Logger.lowLevelDebug("timeout when doing health check " + conn);
+            conn.close();
+            if (!cb.isCalled() /*called by connection*/ && !stopped) cb.failed(new InterruptedByTimeoutException());
+        });
+        AppCheckConnectionHandler handler = new AppCheckConnectionHandler();
+        handler.newRound(null, cb, timer);
+        try {
+            eventLoop.addClientConnection(conn, null, handler);
+        } catch (IOException e) {
+            if (!stopped) cb.failed(e);
+            // exception occurred, so ignore timeout
+            timer.cancel();
+        }
+    }
+
     public void stop() {
         stopped = true;
+        // the kept connection is only accessed on the event loop
+        eventLoop.getSelectorEventLoop().runOnLoop(() -> {
+            ConnectionHandlerContext kept = keptConnection;
+            keptConnection = null;
+            keptHandler = null;
+            if (kept != null) {
+                kept.connection.close();
+            }
+        });
     }
 }
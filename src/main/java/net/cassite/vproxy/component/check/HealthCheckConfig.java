@@ -1,26 +1,104 @@
 package net.cassite.vproxy.component.check;
 
+import java.util.Objects;
+
 public class HealthCheckConfig {
     public final int timeout;
     public final int period;
     public final int up;
     public final int down;
     public final CheckProtocol checkProtocol;
+    // only used when checkProtocol is http
+    public final String httpMethod;
+    public final String httpUri;
+    public final String httpStatus; // e.g. 200 or 2xx
+    // adaptive intervals
+    public final int stablePeriod; // check period for servers passed `stableAfter` checks in a row, 0 means use `period`
+    public final int stableAfter;
+    public final int downPeriodMax; // the period doubles for down servers until reaching this value, 0 means use `period`
 
     public HealthCheckConfig(int timeout, int period, int up, int down) {
         this(timeout, period, up, down, CheckProtocol.tcp);
     }
 
     public HealthCheckConfig(int timeout, int period, int up, int down, CheckProtocol checkProtocol) {
+        this(timeout, period, up, down, checkProtocol, "HEAD", "/", "2xx");
+    }
+
+    public HealthCheckConfig(int timeout, int period, int up, int down, CheckProtocol checkProtocol,
+                             String httpMethod, String httpUri, String httpStatus) {
+        this(timeout, period, up, down, checkProtocol, httpMethod, httpUri, httpStatus, 0, 10, 0);
+    }
+
+    public HealthCheckConfig(int timeout, int period, int up, int down, CheckProtocol checkProtocol,
+                             String httpMethod, String httpUri, String httpStatus,
+                             int stablePeriod, int stableAfter, int downPeriodMax) {
         this.timeout = timeout;
         this.period = period;
         this.up = up;
         this.down = down;
         this.checkProtocol = checkProtocol;
+        this.httpMethod = httpMethod;
+        this.httpUri = httpUri;
+        this.httpStatus = httpStatus;
+        this.stablePeriod = stablePeriod;
+        this.stableAfter = stableAfter;
+        this.downPeriodMax = downPeriodMax;
     }
 
     public HealthCheckConfig(HealthCheckConfig c) {
-        this(c.timeout, c.period, c.up, c.down, c.checkProtocol);
+        this(c.timeout, c.period, c.up, c.down, c.checkProtocol, c.httpMethod, c.httpUri, c.httpStatus,
+            c.stablePeriod, c.stableAfter, c.downPeriodMax);
+    }
+
+    // the period to wait before the next check
+    // `successes` and `failures` are the count of consecutive succeeded/failed checks
+    public int nextPeriod(int successes, int failures) {
+        if (failures > down && downPeriodMax > period) {
+            // the server is surely down, back off
+            int shift = Math.min(failures - down, 30);
+            return (int) Math.min((long) period << shift, downPeriodMax);
+        }
+        if (successes >= stableAfter && stablePeriod > period) {
+            return stablePeriod;
+        }
+        return period;
+    }
+
+    // `x` in the expected status matches any digit
+    public boolean httpStatusMatches(String statusCode) {
+        if (statusCode.length() != httpStatus.length())
+            return false;
+        for (int i = 0; i < statusCode.length(); ++i) {
+            char e = httpStatus.charAt(i);
+            if (e != 'x' && e != 'X' && e != statusCode.charAt(i))
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        HealthCheckConfig that = (HealthCheckConfig) o;
+        return timeout == that.timeout &&
+            period == that.period &&
+            up == that.up &&
+            down == that.down &&
+            checkProtocol == that.checkProtocol &&
+            stablePeriod == that.stablePeriod &&
+            stableAfter == that.stableAfter &&
+            downPeriodMax == that.downPeriodMax &&
+            Objects.equals(httpMethod, that.httpMethod) &&
+            Objects.equals(httpUri, that.httpUri) &&
+            Objects.equals(httpStatus, that.httpStatus);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(timeout, period, up, down, checkProtocol, httpMethod, httpUri, httpStatus,
+            stablePeriod, stableAfter, downPeriodMax);
     }
 
     @Override
@@ -31,6 +109,14 @@ public class HealthCheckConfig {
             ", up=" + up +
             ", down=" + down +
             ", checkProtocol=\"" + checkProtocol + '\"' +
+            (checkProtocol == CheckProtocol.http
+                ? ", httpMethod=\"" + httpMethod + '\"' +
+                ", httpUri=\"" + httpUri + '\"' +
+                ", httpStatus=\"" + httpStatus + '\"'
+                : "") +
+            ", stablePeriod=" + stablePeriod +
+            ", stableAfter=" + stableAfter +
+            ", downPeriodMax=" + downPeriodMax +
             '}';
     }
 }
@@ -0,0 +1,279 @@
+package net.cassite.vproxy.component.check;
+
+import net.cassite.vproxy.app.Config;
+import net.cassite.vproxy.connection.NetEventLoop;
+import net.cassite.vproxy.selector.TimerEvent;
+import net.cassite.vproxy.util.Callback;
+import net.cassite.vproxy.util.Logger;
+import net.cassite.vproxy.util.ThreadSafe;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+// one scheduler for each event loop
+// health check clients checking the same target with the same config
+// share one probe, and the result of the probe is dispatched to all of them
+public class HealthCheckScheduler {
+    private static final ConcurrentHashMap<NetEventLoop, HealthCheckScheduler> schedulers = new ConcurrentHashMap<>();
+
+    static class Key {
+        final InetSocketAddress remote;
+        final InetAddress local;
+        final HealthCheckConfig config;
+
+        Key(InetSocketAddress remote, InetAddress local, HealthCheckConfig config) {
+            this.remote = remote;
+            this.local = local;
+            this.config = config;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key key = (Key) o;
+            return Objects.equals(remote, key.remote) &&
+                Objects.equals(local, key.local) &&
+                Objects.equals(config, key.config);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(remote, local, config);
+        }
+
+        @Override
+        public String toString() {
+            return remote + "/" + local + "/" + config;
+        }
+    }
+
+    class Probe {
+        final Key key;
+        final ConnectClient connectClient;
+        private volatile ArrayList<TCPHealthCheckClient.ConnectResultHandler> subscribers = new ArrayList<>(0);
+        private volatile TimerEvent periodTimer;
+        private volatile boolean stopped = false;
+
+        // the following fields are only accessed on the event loop
+        private int successes = 0; // consecutive succeeded checks
+        private int failures = 0; // consecutive failed checks
+        private boolean checking = false;
+        private long lastCheckTime = 0;
+        private long nextCheckTime = 0;
+
+        Probe(Key key) {
+            this.key = key;
+            this.connectClient = new ConnectClient(eventLoop, key.remote, key.local, key.config);
+        }
+
+        void start(boolean jitter) {
+            if (!jitter) {
+                // check immediately, so that new servers can be found as soon as possible
+                eventLoop.getSelectorEventLoop().runOnLoop(this::doCheck);
+                return;
+            }
+            // the first check is made at a random point of the period
+            // so that probes created together, e.g. servers added into a group at once,
+            // will not fire in lockstep
+            int delay = ThreadLocalRandom.current().nextInt(Math.max(key.config.period, 1));
+            eventLoop.getSelectorEventLoop().runOnLoop(() -> schedule(delay));
+        }
+
+        private void doCheck() {
+            if (stopped)
+                return;
+            checking = true;
+            lastCheckTime = Config.currentTimestamp;
+            connectClient.handle(new Callback<Void, IOException>() {
+                @Override
+                protected void onSucceeded(Void value) {
+                    checking = false;
+                    ++successes;
+                    failures = 0;
+                    for (TCPHealthCheckClient.ConnectResultHandler h : subscribers) {
+                        h.onSucceeded();
+                    }
+                    periodic();
+                }
+
+                @Override
+                protected void onFailed(IOException err) {
+                    checking = false;
+                    successes = 0;
+                    ++failures;
+                    for (TCPHealthCheckClient.ConnectResultHandler h : subscribers) {
+                        h.onFailed();
+                    }
+                    periodic();
+                }
+            });
+        }
+
+        private void periodic() {
+            if (stopped)
+                return;
+            // add a random delay of at most 1/4 period to every round
+            // so that probes started at the same time will not fire in lockstep
+            int period = key.config.nextPeriod(successes, failures);
+            schedule(period + ThreadLocalRandom.current().nextInt(period / 4 + 1));
+        }
+
+        private void schedule(int delay) {
+            nextCheckTime = Config.currentTimestamp + delay;
+            periodTimer = eventLoop.getSelectorEventLoop().delay(delay, this::doCheck);
+        }
+
+        // called when the real traffic finds the server not working
+        // the server is considered not stable, and checked as soon as possible
+        void accelerate() {
+            eventLoop.getSelectorEventLoop().runOnLoop(() -> {
+                successes = 0;
+                if (stopped || checking)
+                    return; // the result will come soon
+                // do not check more than 4 times in one period
+                long checkTime = Math.max(Config.currentTimestamp, lastCheckTime + key.config.period / 4);
+                if (checkTime >= nextCheckTime)
+                    return; // the next check will come soon
+                TimerEvent t = periodTimer;
+                if (t != null) {
+                    t.cancel();
+                }
+                schedule((int) (checkTime - Config.currentTimestamp));
+            });
+        }
+
+        // called when a new subscriber joins the running probe
+        // the probe might be running with a long period, e.g. the stable period,
+        // so the current state is delivered to the subscriber,
+        // and the next check is made within the base period
+        void join(TCPHealthCheckClient.ConnectResultHandler handler) {
+            eventLoop.getSelectorEventLoop().runOnLoop(() -> {
+                if (stopped)
+                    return;
+                // replay the consecutive results as if the subscriber has been there
+                for (int i = 0; i < Math.min(successes, key.config.up); ++i) {
+                    handler.onSucceeded();
+                }
+                for (int i = 0; i < Math.min(failures, key.config.down); ++i) {
+                    handler.onFailed();
+                }
+                if (checking)
+                    return; // the result will come soon
+                long checkTime = Math.max(Config.currentTimestamp, lastCheckTime + key.config.period);
+                if (checkTime >= nextCheckTime)
+                    return; // the next check will come soon
+                TimerEvent t = periodTimer;
+                if (t != null) {
+                    t.cancel();
+                }
+                schedule((int) (checkTime - Config.currentTimestamp));
+            });
+        }
+
+        void unsubscribe(TCPHealthCheckClient.ConnectResultHandler handler) {
+            HealthCheckScheduler.this.unsubscribe(this, handler);
+        }
+
+        private void stop() {
+            stopped = true;
+            TimerEvent t = periodTimer;
+            if (t != null) {
+                t.cancel();
+            }
+            connectClient.stop();
+            periodTimer = null;
+        }
+    }
+
+    public final NetEventLoop eventLoop;
+    private final Map<Key, Probe> probes = new HashMap<>();
+    private boolean retired = false; // removed from the scheduler map
+
+    private HealthCheckScheduler(NetEventLoop eventLoop) {
+        this.eventLoop = eventLoop;
+    }
+
+    @ThreadSafe
+    static Probe subscribe(NetEventLoop eventLoop, Key key, TCPHealthCheckClient.ConnectResultHandler handler, boolean jitter) {
+        while (true) {
+            Probe p = schedulers.computeIfAbsent(eventLoop, HealthCheckScheduler::new).subscribe(key, handler, jitter);
+            if (p != null)
+                return p;
+            // the scheduler is retired, retrieve a new one
+        }
+    }
+
+    private synchronized Probe subscribe(Key key, TCPHealthCheckClient.ConnectResultHandler handler, boolean jitter) {
+        if (retired)
+            return null;
+        Probe p = probes.get(key);
+        boolean isNew = false;
+        if (p == null) {
+            p = new Probe(key);
+            probes.put(key, p);
+            isNew = true;
+        }
+        ArrayList<TCPHealthCheckClient.ConnectResultHandler> ls = new ArrayList<>(p.subscribers.size() + 1);
+        ls.addAll(p.subscribers);
+        ls.add(handler);
+        p.subscribers = ls;
+        if (isNew) {
+            p.start(jitter);
+            assert Logger.lowLevelDebug("health check probe " + key + " started");
+        } else {
+            p.join(handler);
+        }
+        return p;
+    }
+
+    private synchronized void unsubscribe(Probe p, TCPHealthCheckClient.ConnectResultHandler handler) {
+        ArrayList<TCPHealthCheckClient.ConnectResultHandler> ls = new ArrayList<>(p.subscribers);
+        if (!ls.remove(handler))
+            return;
+        p.subscribers = ls;
+        if (!ls.isEmpty())
+            return;
+        // no subscribers, stop the probe
+        p.stop();
+        probes.remove(p.key);
+        assert Logger.lowLevelDebug("health check probe " + p.key + " stopped");
+        if (probes.isEmpty()) {
+            retired = true;
+            schedulers.remove(eventLoop, this);
+        }
+    }
+
+    // count of running probes on the event loop
+    @ThreadSafe
+    public static int probeCount(NetEventLoop eventLoop) {
+        HealthCheckScheduler s = schedulers.get(eventLoop);
+        if (s == null)
+            return 0;
+        synchronized (s) {
+            return s.probes.size();
+        }
+    }
+
+    // count of health check clients subscribing probes on the event loop
+    @ThreadSafe
+    public static int subscriberCount(NetEventLoop eventLoop) {
+        HealthCheckScheduler s = schedulers.get(eventLoop);
+        if (s == null)
+            return 0;
+        synchronized (s) {
+            int n = 0;
+            for (Probe p : s.probes.values()) {
+                n += p.subscribers.size();
+            }
+            return n;
+        }
+    }
+}
@@ -1,18 +1,15 @@
 package net.cassite.vproxy.component.check;
 
 import net.cassite.vproxy.connection.NetEventLoop;
-import net.cassite.vproxy.selector.TimerEvent;
-import net.cassite.vproxy.util.Callback;
 import net.cassite.vproxy.util.Logger;
 
-import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 
 public class TCPHealthCheckClient {
     class ConnectResultHandler {
         void onSucceeded() {
-            handler.upOnce(connectClient.remote);
+            handler.upOnce(remote);
             if (currentDown > 0) {
                 // decrease down count if it's not zero
                 --currentDown;
@@ -25,7 +22,7 @@ public class TCPHealthCheckClient {
                 if (currentUp == up - 1) {
                     // should trigger up event
                     nowIsUp = true;
-                    handler.up(connectClient.remote);
+                    handler.up(remote);
                     currentUp = 0;
                     return;
                 }
@@ -36,7 +33,7 @@ public class TCPHealthCheckClient {
         }
 
         void onFailed() {
-            handler.downOnce(connectClient.remote);
+            handler.downOnce(remote);
             if (currentUp > 0) {
                 // decrease up count if it's not zero
                 --currentUp;
@@ -49,7 +46,7 @@ public class TCPHealthCheckClient {
                 if (currentDown == down - 1) {
                     // should trigger down event
                     nowIsUp = false;
-                    handler.down(connectClient.remote);
+                    handler.down(remote);
                     currentDown = 0;
                     return;
                 }
@@ -60,18 +57,22 @@ public class TCPHealthCheckClient {
         }
     }
 
-    public final ConnectClient connectClient;
+    public final NetEventLoop eventLoop;
+    public final InetSocketAddress remote;
+    public final InetAddress local;
+    public final HealthCheckConfig healthCheckConfig;
     public final int period;
     public final int up;
     public final int down;
     private final HealthCheckHandler handler;
+    private final boolean jitterFirstCheck;
     private final ConnectResultHandler connectResultHandler = new ConnectResultHandler();
 
     private int currentUp = 0;
     private int currentDown = 0;
     private boolean nowIsUp;
 
-    private TimerEvent periodTimer;
+    private volatile HealthCheckScheduler.Probe probe;
 
     private boolean stopped = true;
 
@@ -81,77 +82,64 @@ public class TCPHealthCheckClient {
                                 HealthCheckConfig healthCheckConfig,
                                 boolean initialIsUp,
                                 HealthCheckHandler handler) {
-        this.connectClient = new ConnectClient(
-            eventLoop, remote, local,
-            healthCheckConfig.checkProtocol,
-            healthCheckConfig.timeout);
+        this(eventLoop, remote, local, healthCheckConfig, initialIsUp, handler, true);
+    }
+
+    // jitterFirstCheck: make the first check at a random point of the period,
+    // set to false to check immediately
+    public TCPHealthCheckClient(NetEventLoop eventLoop,
+                                InetSocketAddress remote,
+                                InetAddress local,
+                                HealthCheckConfig healthCheckConfig,
+                                boolean initialIsUp,
+                                HealthCheckHandler handler,
+                                boolean jitterFirstCheck) {
+        this.eventLoop = eventLoop;
+        this.remote = remote;
+        this.local = local;
+        this.healthCheckConfig = new HealthCheckConfig(healthCheckConfig);
 
         this.period = healthCheckConfig.period;
         this.up = healthCheckConfig.up;
         this.down = healthCheckConfig.down;
         nowIsUp = initialIsUp;
         this.handler = handler;
+        this.jitterFirstCheck = jitterFirstCheck;
     }
 
     public boolean isStopped() {
         return stopped;
     }
 
-    public void start() {
+    // the check is done by a probe shared with other clients
+    // which have the same event loop, remote, local and config
+    public synchronized void start() {
         if (!stopped)
             return;
         stopped = false;
-        doCheck(this::periodic);
+        probe = HealthCheckScheduler.subscribe(eventLoop,
+            new HealthCheckScheduler.Key(remote, local, healthCheckConfig), connectResultHandler, jitterFirstCheck);
     }
 
-    private void doCheck(Runnable cb) {
-        if (stopped) {
-            doStop();
-            return;
-        }
-
-        connectClient.handle(new Callback<Void, IOException>() {
-            @Override
-            protected void onSucceeded(Void value) {
-                connectResultHandler.onSucceeded();
-                cb.run();
-            }
-
-            @Override
-            protected void onFailed(IOException err) {
-                connectResultHandler.onFailed();
-                cb.run();
-            }
-        });
-    }
-
-    private void periodic() {
-        periodTimer = connectClient.eventLoop.getSelectorEventLoop().delay(period, () -> doCheck(this::periodic));
-    }
-
-    public void stop() {
+    public synchronized void stop() {
         if (stopped)
             return;
-        doStop();
-    }
-
-    private void doStop() {
         stopped = true;
-        if (periodTimer != null) {
-            periodTimer.cancel();
-        }
-        connectClient.stop();
-        periodTimer = null;
+        probe.unsubscribe(connectResultHandler);
+        probe = null;
     }
 
     // call this method
     // and the down count will +1
+    // the probe will be accelerated as well
     public void manuallyDownOnce() {
-        if (stopped)
+        HealthCheckScheduler.Probe p = probe;
+        if (stopped || p == null)
             return; // ignore if already stopped
+        p.accelerate();
         // should run on event loop thread
         // because the callback not thread safe
-        connectClient.eventLoop.getSelectorEventLoop().runOnLoop(
+        eventLoop.getSelectorEventLoop().runOnLoop(
             connectResultHandler::onFailed
         );
     }
@@ -197,6 +197,29 @@ public class EventLoopGroup {
         return next(ls, 0);
     }
 
+    // the same hint always gets the same event loop
+    // as long as the event loop list is not changed
+    @ThreadSafe
+    public EventLoopWrapper next(int hint) {
+        if (preClose)
+            return null;
+
+        ArrayList<EventLoopWrapper> ls = eventLoops;
+        int size = ls.size();
+        if (size == 0)
+            return null;
+        int idx = (hint & 0x7fffffff) % size;
+        for (int i = 0; i < size; ++i) {
+            EventLoopWrapper result = ls.get((idx + i) % size);
+            if (!result.getSelectorEventLoop().isClosed()) {
+                return result;
+            }
+            // maybe the list is operated in another thread
+            // try the next element
+        }
+        return null;
+    }
+
     private EventLoopWrapper next(ArrayList<EventLoopWrapper> ls, int recursion) {
         if (recursion > ls.size())
             return null;
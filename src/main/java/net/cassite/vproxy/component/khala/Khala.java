@@ -6,8 +6,8 @@ import net.cassite.vproxy.discovery.Discovery;
 import net.cassite.vproxy.discovery.Node;
 import net.cassite.vproxy.discovery.NodeDataHandler;
 import net.cassite.vproxy.discovery.NodeListener;
+import net.cassite.vproxy.discovery.protocol.BinaryMsg;
 import net.cassite.vproxy.redis.application.RESPApplicationContext;
-import net.cassite.vproxy.redis.application.RESPClientUtils;
 import net.cassite.vproxy.util.Callback;
 import net.cassite.vproxy.util.LogType;
 import net.cassite.vproxy.util.Logger;
@@ -15,6 +15,7 @@ import net.cassite.vproxy.util.Tuple;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArraySet;
@@ -44,13 +45,26 @@ import java.util.stream.Collectors;
  * ----------port
  * --------]
  * ------]
+ * ------epoch (optional)
+ * ------counter (optional)
  * ----]
  * --]
  * ]
- * type: khala-add | khala-remove | khala-local | khala
+ * type: khala-add | khala-remove | khala-local | khala | khala-digest
  * -- khala-add and khala-remove msg.list.size should -eq 1, msg.list[0].list.size should -eq 1
  * -- khala-local msg.list.size should -eq 1
  * -- khala message should contain all local cached nodes
+ * -- khala-digest message contains cached nodes with their versions, and the khala-node lists are empty
+ * <p>
+ * versions:
+ * each discovery node keeps a version (epoch, counter) of its local khala nodes.
+ * the counter increases on every local change, and the epoch is the start time of the khala in milliseconds.
+ * when another node reports a version of the local node not older than the local one,
+ * e.g. recorded before restarting with the clock gone backwards, the local epoch is raised above it.
+ * the digest exchanged after a node is discovered carries such versions, see {@link #raiseLocalEpoch(Map)}.
+ * the epoch is also persisted in the snapshot if enabled, see {@link #startAfterEpoch(long)}.
+ * the version is carried with the discovery node in all messages.
+ * changes carrying a version not newer than the recorded one are ignored.
  * <p>
  * triggers:
  * 1. when a node is discovered, record the node, and send khala-local message to the discovered node
@@ -61,12 +75,14 @@ import java.util.stream.Collectors;
  * 4. when a kNode is removed, remove the kNode, and send a khala-remove message:
  * -- 1) if kNode.type is nexus, should alert all nodes in the khala
  * -- 2) if kNode.type is pylon, should alert only nexus nodes
- * 5. for every few minutes, the node should randomly pick a nexus node and send a khala message
+ * 5. for every few minutes, the node should randomly pick a nexus node and send a khala-digest message
  * server:
  * 1. when receiving a khala-add message,
- * -- the node should record the node, then respond with a khala message
+ * -- the node should record the node, then respond with a khala-digest message
+ * -- if some versions are skipped, the node should request the sender with khala-local message
  * 2. when receiving a khala-remove message,
- * -- the node should remove the node, then respond with a khala message
+ * -- the node should remove the node, then respond with a khala-digest message
+ * -- if some versions are skipped, the node should request the sender with khala-local message
  * 3. when receiving a khala-local message,
  * -- the node should change the local cache to the message content, and respond with a khala-local message
  * 4. when receiving a khala message,
@@ -74,6 +90,10 @@ import java.util.stream.Collectors;
  * -- if the message doesn't contain any discovery node or have only one discovery node, then do not run a diff.
  * -- otherwise: the node checks each discovery node in the message and compare with local cache
  * -- when a diff is found, the node should request the differed nodes with khala-local message and store the latest config
+ * -- the nodes carrying versions not newer than local are skipped
+ * 5. when receiving a khala-digest message,
+ * -- respond with a khala-digest message containing only the nodes newer in local than the message
+ * -- and request the nodes which are newer in the message with khala-local message
  * client:
  * same handling with server, but does not respond
  */
@@ -127,6 +147,9 @@ public class Khala {
                         return;
                     }
                     wrap.state = NodeState.stable;
+                    // the remote node replies the versions newer than local,
+                    // including the version of the local node recorded before restarting
+                    notifyNetworkDigest(node);
                 }
 
                 @Override
@@ -167,6 +190,11 @@ public class Khala {
 
     class KhalaNodeRecorder {
         private final Map<Node, Set<KhalaNode>> khalaNodes = new ConcurrentHashMap<>();
+        private final Map<Node, KhalaVersion> versions = new ConcurrentHashMap<>();
+        // true for added and false for removed
+        // only accessed on discovery loop
+        private final Map<Node, Map<KhalaNode, Boolean>> pendingEvents = new HashMap<>();
+        private boolean flushScheduled = false;
 
         /**
          * specify a remote discovery node and init khala nodes with a list.
@@ -198,6 +226,7 @@ public class Khala {
             }
             if (khalaNodes.get(discovery.localNode).add(kn)) {
                 // successfully added
+                versions.put(discovery.localNode, versions.get(discovery.localNode).next());
                 // then should notify others about the added node
                 notifyNetworkAddKhalaNode(kn);
             }
@@ -259,6 +288,7 @@ public class Khala {
             }
             if (khalaNodes.get(discovery.localNode).remove(kn)) {
                 // successfully removed
+                versions.put(discovery.localNode, versions.get(discovery.localNode).next());
                 // then should notify others about the removal
                 notifyNetworkRemoveKhalaNode(kn);
             }
@@ -274,6 +304,7 @@ public class Khala {
          * @throws IllegalStateException throw if already exists
          */
         public void remove(Node node) {
+            versions.remove(node);
             Set<KhalaNode> set = khalaNodes.remove(node);
             if (set == null) {
                 // the node not recorded, ignore
@@ -292,19 +323,67 @@ public class Khala {
             return khalaNodes.get(node);
         }
 
+        /**
+         * check whether the version is newer than the recorded one of the discovery node
+         *
+         * @param node    discovery node
+         * @param version version of khala nodes on the discovery node
+         * @return true if newer or not recorded yet
+         */
+        public boolean isNewer(Node node, KhalaVersion version) {
+            KhalaVersion known = versions.get(node);
+            return known == null || version.compareTo(known) > 0;
+        }
+
         // alert listeners for node adding
         private void listenerNodeAdd(Node n, KhalaNode node) {
             Logger.info(LogType.KHALA_EVENT, "node added " + node);
-            for (KhalaNodeListener lsn : khalaNodeListeners) {
-                lsn.add(n, node);
-            }
+            recordEvent(n, node, true);
         }
 
         // alert listeners for node removing
         private void listenerNodeRemove(Node n, KhalaNode node) {
             Logger.warn(LogType.KHALA_EVENT, "node removed " + node);
+            recordEvent(n, node, false);
+        }
+
+        // the events are alerted to listeners after the batch window
+        private void recordEvent(Node n, KhalaNode node, boolean added) {
+            Map<KhalaNode, Boolean> m = pendingEvents.computeIfAbsent(n, k -> new HashMap<>());
+            Boolean last = m.get(node);
+            if (last != null && last != added) {
+                // cancels out the previous event in the same window
+                m.remove(node);
+            } else {
+                m.put(node, added);
+            }
+            if (flushScheduled)
+                return;
+            flushScheduled = true;
+            if (config.batchWindow <= 0) {
+                discovery.loop.getSelectorEventLoop().nextTick(this::flushEvents);
+            } else {
+                discovery.loop.getSelectorEventLoop().delay(config.batchWindow, this::flushEvents);
+            }
+        }
+
+        // alert listeners with all pending events
+        private void flushEvents() {
+            flushScheduled = false;
+            List<Tuple<Node, KhalaNode>> added = new LinkedList<>();
+            List<Tuple<Node, KhalaNode>> removed = new LinkedList<>();
+            for (Map.Entry<Node, Map<KhalaNode, Boolean>> e : pendingEvents.entrySet()) {
+                for (Map.Entry<KhalaNode, Boolean> ee : e.getValue().entrySet()) {
+                    (ee.getValue() ? added : removed).add(new Tuple<>(e.getKey(), ee.getKey()));
+                }
+            }
+            pendingEvents.clear();
+            if (added.isEmpty() && removed.isEmpty())
+                return;
+            KhalaNodeBatch batch = new KhalaNodeBatch(added, removed);
+            assert Logger.lowLevelDebug("alert khala node batch " + batch);
             for (KhalaNodeListener lsn : khalaNodeListeners) {
-                lsn.remove(n, node);
+                lsn.batch(batch);
             }
         }
 
@@ -339,6 +418,7 @@ public class Khala {
     private final KhalaNodeRecorder khalaNodes = new KhalaNodeRecorder();
     private final Set<KhalaNodeListener> khalaNodeListeners = new CopyOnWriteArraySet<>();
     private final Random rand = new Random();
+    private final BinaryMsg binaryMsg = new BinaryMsg(4096); // only used on the discovery loop
 
     public Khala(Discovery discovery, KhalaConfig config) {
         this.discovery = discovery;
@@ -351,6 +431,7 @@ public class Khala {
         // because they are local nodes and should not be handled as the remote nodes
         nodes.nodes.put(discovery.localNode, localNodeWrap);
         khalaNodes.khalaNodes.put(discovery.localNode, new HashSet<>());
+        khalaNodes.versions.put(discovery.localNode, new KhalaVersion(System.currentTimeMillis(), 0));
 
         // init periodic event
         discovery.loop.getSelectorEventLoop().period(config.syncPeriod, this::doSync);
@@ -359,13 +440,15 @@ public class Khala {
         discovery.addExternalHandler(new NodeDataHandler() {
             @Override
             public boolean canHandle(String type) {
-                return type.equals("khala") || type.equals("khala-add") || type.equals("khala-remove") || type.equals("khala-local");
+                return type.equals("khala") || type.equals("khala-add") || type.equals("khala-remove") || type.equals("khala-local") || type.equals("khala-digest");
             }
 
             @SuppressWarnings("OptionalGetWithoutIsPresent")
             @Override
             public void handle(Object o, RESPApplicationContext respApplicationContext, Callback<Object, Throwable> cb) {
-                Tuple<KhalaMsg, XException> tup = utilValidateResponse(o, "khala", "khala-add", "khala-remove", "khala-local");
+                // the response uses the same format as the request
+                boolean binary = BinaryMsg.typeOf(o) != null;
+                Tuple<KhalaMsg, XException> tup = utilValidateResponse(o, "khala", "khala-add", "khala-remove", "khala-local", "khala-digest");
                 if (tup.right != null) {
                     cb.failed(tup.right);
                     return;
@@ -375,8 +458,12 @@ public class Khala {
                 List<KhalaNode> nodes;
                 switch (msg.type) {
                     case "khala":
-                        cb.succeeded(buildFullKhalaMsg());
-                        handleFullKhala(msg.nodes);
+                        cb.succeeded(buildFullKhalaMsg(binary));
+                        handleFullKhala(msg);
+                        break;
+                    case "khala-digest":
+                        cb.succeeded(buildKhalaMsgByNodes("khala-digest", newerThan(msg.versions), false, binary));
+                        handleDigest(msg);
                         break;
                     case "khala-add":
                         if (msg.nodes.size() != 1 || msg.nodes.get(msg.nodes.keySet().stream().findFirst().get()).size() != 1) {
@@ -386,8 +473,8 @@ public class Khala {
                         }
                         n = msg.nodes.keySet().stream().findFirst().get();
                         nodes = msg.nodes.get(n);
-                        handleAdd(n, nodes.get(0));
-                        cb.succeeded(buildFullKhalaMsg());
+                        handleAdd(n, nodes.get(0), msg.versions.get(n));
+                        cb.succeeded(buildDigestKhalaMsg(binary));
                         break;
                     case "khala-remove":
                         if (msg.nodes.size() != 1 || msg.nodes.get(msg.nodes.keySet().stream().findFirst().get()).size() != 1) {
@@ -397,8 +484,8 @@ public class Khala {
                         }
                         n = msg.nodes.keySet().stream().findFirst().get();
                         nodes = msg.nodes.get(n);
-                        handleRemove(n, nodes.get(0));
-                        cb.succeeded(buildFullKhalaMsg());
+                        handleRemove(n, nodes.get(0), msg.versions.get(n));
+                        cb.succeeded(buildDigestKhalaMsg(binary));
                         break;
                     case "khala-local":
                         if (msg.nodes.size() != 1) {
@@ -408,8 +495,8 @@ public class Khala {
                         }
                         n = msg.nodes.keySet().stream().findFirst().get();
                         nodes = msg.nodes.get(n);
-                        handleLocal(n, nodes);
-                        cb.succeeded(buildLocalKhalaMsg());
+                        handleLocal(n, nodes, msg.versions.get(n));
+                        cb.succeeded(buildLocalKhalaMsg(binary));
                         break;
                     default:
                         Logger.shouldNotHappen("unknown type " + msg.type);
@@ -441,14 +528,14 @@ public class Khala {
     }
 
     private Tuple<KhalaMsg, XException> utilValidateResponse(Object o, String... expectedType) {
-        if (!(o instanceof List)) {
+        ByteBuffer buf = BinaryMsg.wrap(o);
+        if (buf == null && !(o instanceof List)) {
             Logger.error(LogType.KHALA_EVENT, "invalid message");
             return new Tuple<>(null, new XException("invalid message"));
         }
-        List rawMsg = (List) o;
         KhalaMsg msg;
         try {
-            msg = KhalaMsg.parse(rawMsg);
+            msg = buf != null ? KhalaMsg.parseBinary(buf) : KhalaMsg.parse((List) o);
         } catch (XException e) {
             Logger.warn(LogType.INVALID_EXTERNAL_DATA, e.getMessage());
             return new Tuple<>(null, e);
@@ -477,23 +564,60 @@ public class Khala {
     // ---------------------
 
     // handle khala-add event
-    private void handleAdd(Node n, KhalaNode node) {
+    private void handleAdd(Node n, KhalaNode node, KhalaVersion version) {
         if (discoveryNodeNotExist(n))
             return;
+        if (version == null) { // the sender does not carry versions
+            khalaNodes.add(n, node);
+            return;
+        }
+        if (skipOrRecordVersion(n, version))
+            return;
         khalaNodes.add(n, node);
     }
 
     // handle khala-remove event
-    private void handleRemove(Node n, KhalaNode node) {
+    private void handleRemove(Node n, KhalaNode node, KhalaVersion version) {
         if (discoveryNodeNotExist(n))
             return;
+        if (version == null) { // the sender does not carry versions
+            khalaNodes.remove(n, node);
+            return;
+        }
+        if (skipOrRecordVersion(n, version))
+            return;
         khalaNodes.remove(n, node);
     }
 
+    // return true if the change is out-dated and should be skipped
+    // otherwise record the version, and check the remote node if some changes are missed
+    private boolean skipOrRecordVersion(Node n, KhalaVersion version) {
+        KhalaVersion known = khalaNodes.versions.get(n);
+        if (known != null && version.compareTo(known) <= 0) {
+            assert Logger.lowLevelDebug("khala change " + version + " on " + n + " is out-dated, current " + known);
+            return true;
+        }
+        khalaNodes.versions.put(n, version);
+        if (known == null || !version.equals(known.next())) {
+            // some changes are not received
+            // the khala nodes should be fetched from the remote node
+            checkRemote(n);
+        }
+        return false;
+    }
+
     // handle khala-local response
-    private void handleLocal(Node n, List<KhalaNode> remote) {
+    private void handleLocal(Node n, List<KhalaNode> remote, KhalaVersion version) {
         if (discoveryNodeNotExist(n))
             return;
+        if (version != null) {
+            KhalaVersion known = khalaNodes.versions.get(n);
+            if (known != null && version.compareTo(known) < 0) {
+                // a newer change is already received
+                return;
+            }
+            khalaNodes.versions.put(n, version);
+        }
 
         Tuple<Set<KhalaNode>, Set<KhalaNode>> wantAddRemove = khalaNodes.runDiff(n, remote);
         // because it's directly retrieved from remote
@@ -510,7 +634,9 @@ public class Khala {
     }
 
     // handle khala response
-    private void handleFullKhala(Map<Node, List<KhalaNode>> remoteNodeMap) {
+    private void handleFullKhala(KhalaMsg msg) {
+        raiseLocalEpoch(msg.versions);
+        Map<Node, List<KhalaNode>> remoteNodeMap = msg.nodes;
         if (remoteNodeMap.isEmpty()) {
             // ignore if the remote has no node data
             return;
@@ -519,6 +645,10 @@ public class Khala {
             List<KhalaNode> remote = remoteNodeMap.get(n);
             if (discoveryNodeNotExist(n))
                 continue;
+            KhalaVersion version = msg.versions.get(n);
+            if (version != null && !khalaNodes.isNewer(n, version)) {
+                continue; // the local one is the latest
+            }
 
             Tuple<Set<KhalaNode>, Set<KhalaNode>> wantAddRemove = khalaNodes.runDiff(n, remote);
             if (wantAddRemove.left.isEmpty() && wantAddRemove.right.isEmpty()) {
@@ -531,6 +661,62 @@ public class Khala {
         }
     }
 
+    // handle khala-digest message
+    private void handleDigest(KhalaMsg msg) {
+        raiseLocalEpoch(msg.versions);
+        // the nodes newer in the digest are fetched from the source node
+        for (Node n : newerInDigest(msg.versions)) {
+            checkRemote(n);
+        }
+    }
+
+    // other nodes may record a version of the local node generated before restarting,
+    // which is not older than the current one if the clock goes backwards,
+    // then the local changes would be considered out-dated by them.
+    // so the local epoch is raised above it, and the local khala nodes are sent to the others
+    private void raiseLocalEpoch(Map<Node, KhalaVersion> versions) {
+        KhalaVersion remote = versions.get(discovery.localNode);
+        if (remote == null || remote.compareTo(getLocalVersion()) <= 0)
+            return;
+        khalaNodes.versions.put(discovery.localNode, new KhalaVersion(remote.epoch + 1, 0));
+        Logger.warn(LogType.KHALA_EVENT, "the local khala version " + remote + " is found on other nodes, " +
+            "local epoch raised to " + (remote.epoch + 1));
+        for (Node n : nodes.getNodes()) {
+            if (n.equals(discovery.localNode))
+                continue;
+            checkRemote(n); // the khala-local message carries the local khala nodes
+        }
+    }
+
+    // the discovery nodes whose khala nodes are newer in the digest than local
+    private List<Node> newerInDigest(Map<Node, KhalaVersion> digest) {
+        List<Node> ret = new LinkedList<>();
+        for (Map.Entry<Node, KhalaVersion> e : digest.entrySet()) {
+            Node n = e.getKey();
+            if (n.equals(discovery.localNode) || !nodes.containsKey(n))
+                continue;
+            if (khalaNodes.isNewer(n, e.getValue())) {
+                ret.add(n);
+            }
+        }
+        return ret;
+    }
+
+    // the discovery nodes whose khala nodes are newer in local than the digest
+    private List<Node> newerThan(Map<Node, KhalaVersion> digest) {
+        List<Node> ret = new LinkedList<>();
+        for (Node n : nodes.getNodes()) {
+            KhalaVersion local = khalaNodes.versions.get(n);
+            if (local == null)
+                continue; // the remote node does not carry versions
+            KhalaVersion remote = digest.get(n);
+            if (remote == null || local.compareTo(remote) > 0) {
+                ret.add(n);
+            }
+        }
+        return ret;
+    }
+
     // ---------------------
     // END khala event handlings
     // ---------------------
@@ -561,11 +747,10 @@ public class Khala {
             return;
         }
 
-        Object[] msg = buildLocalKhalaMsg();
-        RESPClientUtils.retry(
-            discovery.loop,
-            new InetSocketAddress(n.inetAddress, n.tcpPort),
-            discovery.config.bindInetAddress,
+        InetSocketAddress remote = new InetSocketAddress(n.inetAddress, n.tcpPort);
+        Object msg = buildLocalKhalaMsg(discovery.supportsBinaryData(remote));
+        discovery.channels.retry(
+            remote,
             msg,
             3000,
             3,
@@ -583,7 +768,7 @@ public class Khala {
                         cb.failed(new XException("invalid external data"));
                         return;
                     }
-                    handleLocal(n, resp.nodes.get(n));
+                    handleLocal(n, resp.nodes.get(n), resp.versions.get(n));
                     cb.succeeded(null);
                 }
 
@@ -605,15 +790,31 @@ public class Khala {
     // START khala msg builders
     // ---------------------
 
-    private Object[] buildFullKhalaMsg() {
-        return buildKhalaMsgByNodes("khala", nodes.getNodes());
+    private Object buildFullKhalaMsg(boolean binary) {
+        return buildKhalaMsgByNodes("khala", nodes.getNodes(), true, binary);
+    }
+
+    private Object buildLocalKhalaMsg(boolean binary) {
+        return buildKhalaMsgByNodes("khala-local", Collections.singleton(discovery.localNode), true, binary);
     }
 
-    private Object[] buildLocalKhalaMsg() {
-        return buildKhalaMsgByNodes("khala-local", Collections.singleton(discovery.localNode));
+    private Object buildDigestKhalaMsg(boolean binary) {
+        return buildKhalaMsgByNodes("khala-digest", nodes.getNodes(), false, binary);
     }
 
-    private Object[] buildKhalaMsgByNodes(String type, Collection<Node> discoveryNodes) {
+    private Object buildKhalaMsgByNodes(String type, Collection<Node> discoveryNodes, boolean withKhalaNodes, boolean binary) {
+        if (!binary)
+            return buildKhalaMsgByNodes(type, discoveryNodes, withKhalaNodes);
+        binaryMsg.start(type);
+        binaryMsg.putShort(discoveryNodes.size());
+        for (Node n : discoveryNodes) {
+            Set<KhalaNode> kNodes = withKhalaNodes ? khalaNodes.getKhalaNodes(n) : Collections.emptySet();
+            KhalaMsg.writeBinaryNode(binaryMsg, n, khalaNodes.versions.get(n), kNodes);
+        }
+        return binaryMsg.toBytes();
+    }
+
+    private Object[] buildKhalaMsgByNodes(String type, Collection<Node> discoveryNodes, boolean withKhalaNodes) {
         List<List<Object>> list = new LinkedList<>();
         Object[] msg = {
             1 /*version*/,
@@ -631,7 +832,14 @@ public class Khala {
             nodeList.add(n.udpPort);
             nodeList.add(n.tcpPort);
             nodeList.add(khalaNodeList);
+            KhalaVersion version = khalaNodes.versions.get(n);
+            if (version != null) {
+                nodeList.add(version.epoch);
+                nodeList.add(version.counter);
+            }
 
+            if (!withKhalaNodes)
+                continue;
             Set<KhalaNode> kNodes = khalaNodes.getKhalaNodes(n);
             for (KhalaNode kn : kNodes) {
                 List<Object> kNode = new ArrayList<>(4);
@@ -655,24 +863,23 @@ public class Khala {
     // START khala notification
     // ---------------------
 
-    private void notifyNetworkFullKhala(Node node) {
-        Object[] msg = buildFullKhalaMsg();
-        RESPClientUtils.retry(
-            discovery.loop,
-            new InetSocketAddress(node.inetAddress, node.tcpPort),
-            discovery.config.bindInetAddress,
+    private void notifyNetworkDigest(Node node) {
+        InetSocketAddress remote = new InetSocketAddress(node.inetAddress, node.tcpPort);
+        Object msg = buildDigestKhalaMsg(discovery.supportsBinaryData(remote));
+        discovery.channels.retry(
+            remote,
             msg,
             3000,
             3,
             new Callback<Object, IOException>() {
                 @Override
                 protected void onSucceeded(Object value) {
-                    Tuple<KhalaMsg, XException> tup = utilValidateResponse(value, "khala");
+                    Tuple<KhalaMsg, XException> tup = utilValidateResponse(value, "khala-digest");
                     if (tup.right != null) {
                         return;
                     }
                     KhalaMsg msg = tup.left;
-                    handleFullKhala(msg.nodes);
+                    handleDigest(msg);
                 }
 
                 @Override
@@ -705,42 +912,58 @@ public class Khala {
     }
 
     private void notifyNetwork(String type, Node remoteNode, KhalaNode node) {
-        Object[] msg = {
-            1 /*version*/,
-            type,
-            new Object[]{ // list of discovery node
-                new Object[]{
-                    discovery.localNode.nodeName,
-                    discovery.localNode.address,
-                    discovery.localNode.udpPort,
-                    discovery.localNode.tcpPort,
-                    new Object[]{ // list of khala-nodes
-                        new Object[]{
-                            node.type.name(),
-                            node.service,
-                            node.zone,
-                            node.address,
-                            node.port
-                        }
+        KhalaVersion version = khalaNodes.versions.get(discovery.localNode);
+        InetSocketAddress remote = new InetSocketAddress(remoteNode.inetAddress, remoteNode.tcpPort);
+        Object msg;
+        if (discovery.supportsBinaryData(remote)) {
+            binaryMsg.start(type);
+            binaryMsg.putShort(1); // only the local discovery node
+            KhalaMsg.writeBinaryNode(binaryMsg, discovery.localNode, version, Collections.singleton(node));
+            msg = binaryMsg.toBytes();
+        } else {
+            msg = new Object[]{
+                1 /*version*/,
+                type,
+                new Object[]{ // list of discovery node
+                    new Object[]{
+                        discovery.localNode.nodeName,
+                        discovery.localNode.address,
+                        discovery.localNode.udpPort,
+                        discovery.localNode.tcpPort,
+                        new Object[]{ // list of khala-nodes
+                            new Object[]{
+                                node.type.name(),
+                                node.service,
+                                node.zone,
+                                node.address,
+                                node.port
+                            }
+                        },
+                        version.epoch,
+                        version.counter
                     }
                 }
-            }
-        };
-        RESPClientUtils.retry(discovery.loop,
-            new InetSocketAddress(remoteNode.inetAddress, remoteNode.tcpPort),
-            discovery.localNode.inetAddress,
+            };
+        }
+        discovery.channels.retry(
+            remote,
             msg,
             3000,
             3,
             new Callback<Object, IOException>() {
                 @Override
                 protected void onSucceeded(Object value) {
-                    Tuple<KhalaMsg, XException> tup = utilValidateResponse(value, "khala");
+                    Tuple<KhalaMsg, XException> tup = utilValidateResponse(value, "khala", "khala-digest");
                     if (tup.right != null) {
                         return;
                     }
                     KhalaMsg msg = tup.left;
-                    handleFullKhala(msg.nodes);
+                    if (msg.type.equals("khala")) {
+                        // the remote does not carry versions
+                        handleFullKhala(msg);
+                    } else {
+                        handleDigest(msg);
+                    }
                 }
 
                 @Override
@@ -770,16 +993,99 @@ public class Khala {
         return new HashMap<>(khalaNodes.khalaNodes);
     }
 
+    /**
+     * build a snapshot of the remote khala nodes, in the same format as the khala message.
+     * should be called on the discovery loop.
+     *
+     * @return the khala message with type khala-snapshot
+     */
+    public Object[] snapshot() {
+        List<Node> remote = nodes.getNodes().stream()
+            .filter(n -> !n.equals(discovery.localNode))
+            .collect(Collectors.toList());
+        Object[] msg = buildKhalaMsgByNodes("khala-snapshot", remote, true);
+        // the local epoch is appended, see startAfterEpoch()
+        return new Object[]{msg[0], msg[1], msg[2], getLocalVersion().epoch};
+    }
+
+    /**
+     * @return the version of the local khala nodes
+     */
+    public KhalaVersion getLocalVersion() {
+        return khalaNodes.versions.get(discovery.localNode);
+    }
+
+    /**
+     * make sure the local epoch is larger than the given one, e.g. the epoch persisted by the last run.
+     * the epoch is the start time by default, which is not increasing when the clock goes backwards,
+     * in which case the restarted node would be considered not newer until the epoch is raised
+     * by the versions received from other nodes.
+     *
+     * @param epoch the epoch used before
+     */
+    public void startAfterEpoch(long epoch) {
+        discovery.loop.getSelectorEventLoop().runOnLoop(() -> {
+            KhalaVersion version = getLocalVersion();
+            if (version.epoch > epoch)
+                return;
+            // the counter restarts, the version is still newer because of the epoch
+            khalaNodes.versions.put(discovery.localNode, new KhalaVersion(epoch + 1, 0));
+            Logger.info(LogType.KHALA_EVENT, "local khala epoch set to " + (epoch + 1) + " after " + epoch);
+        });
+    }
+
+    /**
+     * record khala nodes known before, e.g. loaded from a snapshot,
+     * and the listeners are alerted without waiting for the discovery nodes to be UP.
+     * <p>
+     * versions are not restored, so the khala nodes are replaced by the remote data when the discovery node is UP.
+     * the khala nodes are removed if the discovery node is not UP in the timeout.
+     *
+     * @param restore discovery node -> khala nodes on it
+     * @param timeout remove the khala nodes if the discovery node is not UP after the timeout
+     */
+    public void restore(Map<Node, List<KhalaNode>> restore, int timeout) {
+        discovery.loop.getSelectorEventLoop().runOnLoop(() -> {
+            List<Node> restored = new LinkedList<>();
+            for (Map.Entry<Node, List<KhalaNode>> e : restore.entrySet()) {
+                Node n = e.getKey();
+                if (n.equals(discovery.localNode) || nodes.containsKey(n) || khalaNodes.khalaNodes.containsKey(n))
+                    continue; // local nodes are added by user code, and known nodes are always newer
+                khalaNodes.add(n);
+                for (KhalaNode kn : e.getValue()) {
+                    khalaNodes.add(n, kn);
+                }
+                restored.add(n);
+            }
+            Logger.info(LogType.KHALA_EVENT, "restored khala nodes on " + restored);
+            discovery.loop.getSelectorEventLoop().delay(timeout, () -> {
+                for (Node n : restored) {
+                    if (nodes.containsKey(n))
+                        continue; // already UP, the khala nodes are checked with the remote
+                    Logger.warn(LogType.KHALA_EVENT, "discovery node " + n + " is not UP, remove restored khala nodes");
+                    khalaNodes.remove(n);
+                }
+            });
+        });
+    }
+
     public void addKhalaNodeListener(KhalaNodeListener lsn) {
         // the listener might be alerted when adding
         // so run the process on discovery event loop
         discovery.loop.getSelectorEventLoop().runOnLoop(() -> {
-            // alert add() event for all nodes
+            // alert pending events to existing listeners first
+            // the new listener gets the full state below, and should not get them again
+            khalaNodes.flushEvents();
+            // alert add() event for all nodes in one batch
+            List<Tuple<Node, KhalaNode>> added = new LinkedList<>();
             for (Node n : khalaNodes.khalaNodes.keySet()) {
                 for (KhalaNode kn : khalaNodes.getKhalaNodes(n)) {
-                    lsn.add(n, kn);
+                    added.add(new Tuple<>(n, kn));
                 }
             }
+            if (!added.isEmpty()) {
+                lsn.batch(new KhalaNodeBatch(added, Collections.emptyList()));
+            }
             khalaNodeListeners.add(lsn);
         });
     }
@@ -804,7 +1110,7 @@ public class Khala {
         if (ns.isEmpty())
             return;
         Node n = ns.get(rand.nextInt(ns.size()));
-        notifyNetworkFullKhala(n);
+        notifyNetworkDigest(n);
     }
 
     public void sync() {
@@ -2,12 +2,18 @@ package net.cassite.vproxy.component.khala;
 
 public class KhalaConfig {
     public final int syncPeriod;
+    public final int batchWindow; // khala node events are coalesced in this time and alerted together, 0 for the next tick
 
     public KhalaConfig(int syncPeriod) {
+        this(syncPeriod, 0);
+    }
+
+    public KhalaConfig(int syncPeriod, int batchWindow) {
         this.syncPeriod = syncPeriod;
+        this.batchWindow = batchWindow;
     }
 
     public static KhalaConfig getDefault() {
-        return new KhalaConfig(120_000);
+        return new KhalaConfig(120_000, 100);
     }
 }
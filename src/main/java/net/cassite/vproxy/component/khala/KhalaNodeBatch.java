@@ -0,0 +1,41 @@
+package net.cassite.vproxy.component.khala;
+
+import net.cassite.vproxy.discovery.Node;
+import net.cassite.vproxy.util.Tuple;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * khala node changes coalesced in one batch window.<br>
+ * a khala node added and then removed in the same window (or the reverse) is not recorded.
+ */
+public class KhalaNodeBatch {
+    public final List<Tuple<Node, KhalaNode>> added;
+    public final List<Tuple<Node, KhalaNode>> removed;
+
+    public KhalaNodeBatch(List<Tuple<Node, KhalaNode>> added, List<Tuple<Node, KhalaNode>> removed) {
+        this.added = Collections.unmodifiableList(added);
+        this.removed = Collections.unmodifiableList(removed);
+    }
+
+    public static KhalaNodeBatch ofAdd(Node n, KhalaNode node) {
+        return new KhalaNodeBatch(Collections.singletonList(new Tuple<>(n, node)), Collections.emptyList());
+    }
+
+    public static KhalaNodeBatch ofRemove(Node n, KhalaNode node) {
+        return new KhalaNodeBatch(Collections.emptyList(), Collections.singletonList(new Tuple<>(n, node)));
+    }
+
+    public boolean isEmpty() {
+        return added.isEmpty() && removed.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return "KhalaNodeBatch{" +
+            "added=" + added +
+            ", removed=" + removed +
+            '}';
+    }
+}
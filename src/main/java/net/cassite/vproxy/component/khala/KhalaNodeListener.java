@@ -1,9 +1,25 @@
 package net.cassite.vproxy.component.khala;
 
 import net.cassite.vproxy.discovery.Node;
+import net.cassite.vproxy.util.Tuple;
 
 public interface KhalaNodeListener {
     void add(Node n, KhalaNode node);
 
     void remove(Node n, KhalaNode node);
+
+    /**
+     * alert all changes in a batch window.
+     * by default, the changes are alerted one by one, removals first
+     *
+     * @param batch the changes
+     */
+    default void batch(KhalaNodeBatch batch) {
+        for (Tuple<Node, KhalaNode> t : batch.removed) {
+            remove(t.left, t.right);
+        }
+        for (Tuple<Node, KhalaNode> t : batch.added) {
+            add(t.left, t.right);
+        }
+    }
 }
@@ -0,0 +1,147 @@
+package net.cassite.vproxy.component.khala;
+
+import net.cassite.vproxy.component.exception.XException;
+import net.cassite.vproxy.component.khala.protocol.KhalaMsg;
+import net.cassite.vproxy.redis.RESPParser;
+import net.cassite.vproxy.redis.Serializer;
+import net.cassite.vproxy.selector.PeriodicEvent;
+import net.cassite.vproxy.selector.SelectorEventLoop;
+import net.cassite.vproxy.util.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * periodically write the discovery nodes and khala nodes into a file,
+ * and load the file when starting, so the service nodes are known before searching and syncing.
+ * <p>
+ * the file content is a khala message with type `khala-snapshot`,
+ * followed by the epoch of the local khala, so the epoch keeps increasing after restarting.
+ * the file is written into a temporary file first and then moved, so it's never partially written.
+ */
+public class KhalaSnapshot {
+    public final Khala khala;
+    public final String filepath;
+    public final int period;
+    public final int restoreTimeout;
+
+    private final SelectorEventLoop writeLoop;
+    private PeriodicEvent periodicEvent;
+    private byte[] lastWritten; // only accessed on write loop
+
+    public KhalaSnapshot(Khala khala, String filepath, int period, int restoreTimeout) throws IOException {
+        if (filepath.startsWith("~")) {
+            filepath = System.getProperty("user.home") + filepath.substring("~".length());
+        }
+        this.khala = khala;
+        this.filepath = filepath;
+        this.period = period;
+        this.restoreTimeout = restoreTimeout;
+
+        // writing file is blocking, so use a separate thread
+        writeLoop = SelectorEventLoop.open();
+        writeLoop.loop(r -> new Thread(r, "KhalaSnapshotThread"));
+    }
+
+    /**
+     * load the snapshot file and restore discovery nodes and khala nodes
+     *
+     * @return false if the file does not exist
+     * @throws IOException reading the file failed
+     * @throws XException  the file content is invalid
+     */
+    @Blocking // reading file is blocking
+    public boolean load() throws IOException, XException {
+        File f = new File(filepath);
+        if (!f.exists())
+            return false;
+        byte[] bytes = Files.readAllBytes(f.toPath());
+        if (bytes.length == 0)
+            throw new XException("empty snapshot file");
+
+        RingBuffer rb = RingBuffer.allocate(bytes.length);
+        rb.storeBytesFrom(ByteArrayChannel.fromFull(bytes));
+        RESPParser parser = new RESPParser(bytes.length);
+        int res = parser.feed(rb);
+        if (res == -1) {
+            String msg = parser.getErrorMessage();
+            throw new XException("invalid snapshot file: " + (msg == null ? "incomplete data" : msg));
+        }
+        Object o = parser.getResult().getJavaObject();
+        if (!(o instanceof List))
+            throw new XException("invalid snapshot file: not list");
+        KhalaMsg msg = KhalaMsg.parse((List) o);
+        if (msg.version != 1 || !msg.type.equals("khala-snapshot"))
+            throw new XException("invalid snapshot file: " + msg.version + " " + msg.type);
+
+        Logger.info(LogType.KHALA_EVENT, "loading snapshot " + filepath + ": " + msg);
+        List list = (List) o;
+        if (list.size() >= 4 && (list.get(3) instanceof Integer || list.get(3) instanceof Long)) {
+            khala.startAfterEpoch(((Number) list.get(3)).longValue());
+        }
+        khala.discovery.restoreNodes(msg.nodes.keySet());
+        khala.restore(msg.nodes, restoreTimeout);
+        return true;
+    }
+
+    public void start() {
+        if (periodicEvent != null)
+            return;
+        // write immediately to persist the local epoch of this run
+        takeSnapshot();
+        periodicEvent = writeLoop.period(period, this::takeSnapshot);
+    }
+
+    private void takeSnapshot() {
+        // the khala nodes are modified on discovery loop
+        khala.discovery.loop.getSelectorEventLoop().runOnLoop(() -> {
+            Object[] msg = khala.snapshot();
+            writeLoop.runOnLoop(() -> write(msg));
+        });
+    }
+
+    @Blocking // writing file is blocking
+    private void write(Object[] msg) {
+        byte[] bytes = Serializer.from(msg);
+        if (Arrays.equals(bytes, lastWritten))
+            return; // nothing changed
+        Path path = new File(filepath).toPath();
+        Path tmp = new File(filepath + ".tmp").toPath();
+        try {
+            try (FileChannel ch = FileChannel.open(tmp,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                ByteBuffer buf = ByteBuffer.wrap(bytes);
+                while (buf.hasRemaining()) {
+                    ch.write(buf);
+                }
+                // flush to disk before the move, otherwise the file might be empty after a crash
+                ch.force(true);
+            }
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Logger.error(LogType.UNEXPECTED, "writing snapshot " + filepath + " failed", e);
+            return;
+        }
+        lastWritten = bytes;
+        assert Logger.lowLevelDebug("snapshot written into " + filepath);
+    }
+
+    public void stop() {
+        if (periodicEvent != null) {
+            periodicEvent.cancel();
+            periodicEvent = null;
+        }
+        try {
+            writeLoop.close();
+        } catch (IOException ignore) {
+        }
+    }
+}
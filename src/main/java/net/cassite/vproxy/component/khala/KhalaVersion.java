@@ -0,0 +1,46 @@
+package net.cassite.vproxy.component.khala;
+
+/**
+ * version of khala nodes on one discovery node.<br>
+ * the counter increases when local khala nodes change,
+ * and the epoch is the start time in milliseconds, which is raised above
+ * the versions of the node seen by others, so a restarted node is always newer.
+ */
+public class KhalaVersion implements Comparable<KhalaVersion> {
+    public final long epoch;
+    public final int counter;
+
+    public KhalaVersion(long epoch, int counter) {
+        this.epoch = epoch;
+        this.counter = counter;
+    }
+
+    public KhalaVersion next() {
+        return new KhalaVersion(epoch, counter + 1);
+    }
+
+    @Override
+    public int compareTo(KhalaVersion o) {
+        if (epoch != o.epoch) return Long.compare(epoch, o.epoch);
+        return Integer.compare(counter, o.counter);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        KhalaVersion that = (KhalaVersion) o;
+        return epoch == that.epoch &&
+            counter == that.counter;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Long.hashCode(epoch) + counter;
+    }
+
+    @Override
+    public String toString() {
+        return epoch + "." + counter;
+    }
+}
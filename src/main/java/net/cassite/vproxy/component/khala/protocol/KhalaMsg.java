@@ -3,20 +3,48 @@ package net.cassite.vproxy.component.khala.protocol;
 import net.cassite.vproxy.component.exception.XException;
 import net.cassite.vproxy.component.khala.KhalaNode;
 import net.cassite.vproxy.component.khala.KhalaNodeType;
+import net.cassite.vproxy.component.khala.KhalaVersion;
 import net.cassite.vproxy.discovery.Node;
+import net.cassite.vproxy.discovery.protocol.BinaryMsg;
 
 import java.net.UnknownHostException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 public class KhalaMsg {
+    /*
+     * the body of the binary format, see BinaryMsg:
+     * count        2 bytes, count of discovery nodes, and for each discovery node:
+     * nodeName     string
+     * address      string
+     * udpPort      2 bytes
+     * tcpPort      2 bytes
+     * hasVersion   1 byte, 1 if followed by the version, otherwise 0
+     * epoch        8 bytes, optional
+     * counter      4 bytes, optional
+     * count        2 bytes, count of khala nodes, and for each khala node:
+     * type         1 byte, 0 for nexus, 1 for pylon
+     * service      string
+     * zone         string
+     * address      string
+     * port         2 bytes
+     */
+
     public final int version;
     public final String type;
     public final Map<Node, List<KhalaNode>> nodes;
+    public final Map<Node, KhalaVersion> versions; // only contains nodes carrying a version
 
     public KhalaMsg(int version, String type, Map<Node, List<KhalaNode>> nodes) {
+        this(version, type, nodes, Collections.emptyMap());
+    }
+
+    public KhalaMsg(int version, String type, Map<Node, List<KhalaNode>> nodes, Map<Node, KhalaVersion> versions) {
         this.version = version;
         this.type = type;
         this.nodes = Collections.unmodifiableMap(nodes);
+        this.versions = Collections.unmodifiableMap(versions);
     }
 
     public static KhalaMsg parse(List msg) throws XException {
@@ -29,6 +57,7 @@ public class KhalaMsg {
         List nodes = (List) msg.get(2);
 
         Map<Node, List<KhalaNode>> nodeMap = new HashMap<>();
+        Map<Node, KhalaVersion> versionMap = new HashMap<>();
         for (Object e : nodes) {
             if (!(e instanceof List))
                 throw new XException("invalid message, element wrong format");
@@ -51,6 +80,12 @@ public class KhalaMsg {
             }
             List<KhalaNode> list = new LinkedList<>();
             nodeMap.put(n, list);
+            if (nNodes.size() >= 7) {
+                // the epoch is in milliseconds, which is parsed as a Long
+                if (!(nNodes.get(5) instanceof Integer || nNodes.get(5) instanceof Long) || !(nNodes.get(6) instanceof Integer))
+                    throw new XException("invalid message, element version wrong format");
+                versionMap.put(n, new KhalaVersion(((Number) nNodes.get(5)).longValue(), (int) nNodes.get(6)));
+            }
 
             List kNodes = (List) nNodes.get(4);
             for (Object ee : kNodes) {
@@ -78,7 +113,81 @@ public class KhalaMsg {
                 list.add(kn);
             }
         }
-        return new KhalaMsg(version, type, nodeMap);
+        return new KhalaMsg(version, type, nodeMap, versionMap);
+    }
+
+    public static KhalaMsg parseBinary(ByteBuffer buf) throws XException {
+        KhalaNodeType[] types = KhalaNodeType.values();
+        try {
+            String type = BinaryMsg.readType(buf);
+            Map<Node, List<KhalaNode>> nodeMap = new HashMap<>();
+            Map<Node, KhalaVersion> versionMap = new HashMap<>();
+            int count = buf.getShort() & 0xffff;
+            for (int i = 0; i < count; ++i) {
+                String nodeName = BinaryMsg.readString(buf);
+                String address = BinaryMsg.readString(buf);
+                int udpPort = buf.getShort() & 0xffff;
+                int tcpPort = buf.getShort() & 0xffff;
+                Node n;
+                try {
+                    n = new Node(nodeName, address, udpPort, tcpPort);
+                } catch (UnknownHostException e1) {
+                    throw new XException(address + " is not a valid address");
+                }
+                List<KhalaNode> list = new LinkedList<>();
+                nodeMap.put(n, list);
+                if (buf.get() != 0) {
+                    versionMap.put(n, new KhalaVersion(buf.getLong(), buf.getInt()));
+                }
+
+                int kCount = buf.getShort() & 0xffff;
+                for (int j = 0; j < kCount; ++j) {
+                    int kType = buf.get();
+                    if (kType < 0 || kType >= types.length)
+                        throw new XException("invalid message, khala-node type is wrong");
+                    String service = BinaryMsg.readString(buf);
+                    String zone = BinaryMsg.readString(buf);
+                    String kNAddress = BinaryMsg.readString(buf);
+                    int port = buf.getShort() & 0xffff;
+                    list.add(new KhalaNode(types[kType], service, zone, kNAddress, port));
+                }
+            }
+            // the binary format carries the same content as version 1
+            return new KhalaMsg(1, type, nodeMap, versionMap);
+        } catch (BufferUnderflowException e) {
+            throw new XException("invalid message, too short");
+        }
+    }
+
+    /**
+     * write one discovery node and the khala nodes on it,
+     * the count of discovery nodes should be written by the caller
+     *
+     * @param msg        the writer
+     * @param n          the discovery node
+     * @param version    version of the khala nodes, may be null
+     * @param khalaNodes khala nodes on the discovery node
+     */
+    public static void writeBinaryNode(BinaryMsg msg, Node n, KhalaVersion version, Collection<KhalaNode> khalaNodes) {
+        msg.putString(n.nodeName)
+            .putString(n.address)
+            .putShort(n.udpPort)
+            .putShort(n.tcpPort);
+        if (version == null) {
+            msg.putByte(0);
+        } else {
+            msg.putByte(1)
+                .putLong(version.epoch)
+                .putInt(version.counter);
+        }
+        msg.putShort(khalaNodes.size());
+        for (KhalaNode kn : khalaNodes) {
+            msg.putByte(kn.type.ordinal())
+                .putString(kn.service)
+                .putString(kn.zone)
+                .putString(kn.address)
+                .putShort(kn.port);
+        }
     }
 
     @Override
@@ -87,6 +196,7 @@ public class KhalaMsg {
             "version=" + version +
             ", type='" + type + '\'' +
             ", nodes=" + nodes +
+            ", versions=" + versions +
             '}';
     }
 }
@@ -7,6 +7,7 @@ import net.cassite.vproxy.util.Callback;
 import net.cassite.vproxy.util.Tuple;
 
 import java.io.IOException;
+import java.util.Collection;
 
 public interface ConnectorGen<T> {
     enum Type {
@@ -18,8 +19,30 @@ public interface ConnectorGen<T> {
         return Type.direct;
     }
 
+    // called once when a connection is accepted, before any connector is generated,
+    // return false to close the connection directly
+    default boolean admit(Connection accepted) {
+        return true;
+    }
+
     Connector genConnector(Connection accepted);
 
+    // when genConnector returns null, the Proxy lib will call this method,
+    // return true if the connection should wait in the queue for
+    // backends to have capacity (the wait queue should be enabled in ProxyNetConfig),
+    // return false to close the connection directly
+    default boolean shouldWait(Connection accepted) {
+        return false;
+    }
+
+    // when the passive connection failed before established,
+    // and the retry is enabled in ProxyNetConfig, the Proxy lib will call this method
+    // to get another endpoint, the `failed` collection contains the connectors already failed,
+    // return null to give up and close the connection
+    default Connector genConnectorForRetry(Connection accepted, Collection<Connector> failed) {
+        return null;
+    }
+
     // the handler should set Tuple<T, null> to the context when init()
     // and the Callback object will be set by the Proxy lib
     default ProtocolHandler<Tuple<T, Callback<Connector, IOException>>> handler() {
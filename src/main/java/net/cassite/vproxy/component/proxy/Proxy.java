@@ -1,14 +1,23 @@
 package net.cassite.vproxy.component.proxy;
 
+import net.cassite.vproxy.app.Config;
 import net.cassite.vproxy.connection.*;
 import net.cassite.vproxy.protocol.ProtocolConnectionHandler;
 import net.cassite.vproxy.protocol.ProtocolHandler;
 import net.cassite.vproxy.protocol.ProtocolHandlerContext;
+import net.cassite.vproxy.selector.PeriodicEvent;
 import net.cassite.vproxy.util.*;
 
 import java.io.IOException;
+import java.net.SocketTimeoutException;
 import java.nio.channels.NetworkChannel;
+import java.util.ArrayDeque;
 import java.util.Collection;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * when a connection is accepted, another connection will be generated by calling the callback handler<br>
@@ -48,6 +57,9 @@ public class Proxy {
     }
 
     class SessionServerHandler implements ServerHandler {
+        // one queue for each worker loop, a queue is only accessed in its own loop
+        private final ConcurrentHashMap<NetEventLoop, WaitQueue> waitQueues = new ConcurrentHashMap<>();
+
         @Override
         public void acceptFail(ServerHandlerContext ctx, IOException err) {
             Logger.fatal(LogType.SERVER_ACCEPT_FAIL, "accept connection failed, server = " + config.server + ", err = " + err);
@@ -55,6 +67,11 @@ public class Proxy {
 
         @Override
         public void connection(ServerHandlerContext ctx, Connection connection) {
+            if (!config.connGen.get().admit(connection)) {
+                assert Logger.lowLevelDebug("connection " + connection + " is not admitted");
+                utilCloseConnectionAndReleaseBuffers(connection);
+                return;
+            }
             switch (config.connGen.get().type()) {
                 case handler:
                     handleHandler(connection);
@@ -66,75 +83,38 @@ public class Proxy {
         }
 
         private void handleDirect(Connection connection) {
-            // make connection to another end point
-            Connector connector = config.connGen.get().genConnector(connection);
-            handleDirect(connection, connector);
-        }
-
-        private void handleDirect(Connection connection, Connector connector) {
-            // check whether address tuple is null
-            // null means the user code fail to provide a new connection
-            // maybe user think that the backend is not working, or the source ip is forbidden
-            // any way, the user refuse to provide a new connection
-            if (connector == null) {
-                Logger.info(LogType.NO_CLIENT_CONN, "the user code refuse to provide a remote endpoint");
-                // close the active connection
-                utilCloseConnectionAndReleaseBuffers(connection);
+            if (waiting.get() > 0) {
+                // let the waiting connections go first
+                enqueue(connection);
                 return;
             }
-
-            ClientConnection clientConnection;
-            try {
-                clientConnection = connector.connect(/*switch the two buffers to make a PROXY*/connection.getOutBuffer(), connection.getInBuffer());
-            } catch (IOException e) {
-                Logger.fatal(LogType.CONN_ERROR, "make passive connection failed, maybe provided endpoint info is invalid", e);
-                // it should not happen if user provided endpoint is valid
-                // but if it happens, we close both sides
-
-                utilCloseConnectionAndReleaseBuffers(connection);
+            // make connection to another end point
+            ConnectorGen connGen = config.connGen.get();
+            Connector connector = connGen.genConnector(connection);
+            if (connector == null && config.waitQueueSize > 0 && connGen.shouldWait(connection)) {
+                assert Logger.lowLevelDebug("backends are saturated, connection " + connection + " waits in queue");
+                enqueue(connection);
                 return;
             }
+            handleDirect(connection, connector);
+        }
 
-            Session session = new Session(connection, clientConnection);
-            ClientConnectionHandler handler = new SessionClientConnectionHandler(session);
-
-            // we get a new event loop for handling
-            // the event loop is provided by user
-            // user may use the same loop as the acceptLoop
-            //
-            // and we only register the passive connection here
-            // the active connection will be registered
-            // when the passive connection is successfully established
-            NetEventLoop loop;
-            {
-                NetEventLoop foo = connector.loop();
-                if (foo == null) {
-                    assert Logger.lowLevelDebug("connector did not provide any loop, retrieve a new one");
-                    loop = config.handleLoopProvider.get();
-                } else {
-                    assert Logger.lowLevelDebug("connector provided a loop");
-                    loop = foo;
-                }
-            }
+        private void enqueue(Connection connection) {
+            // the connection waits in a worker loop
+            // so the sessions of different workers do not contend on one queue
+            NetEventLoop loop = config.handleLoopProvider.get();
             if (loop == null) {
                 // the loop not exist
-                utilCloseSessionAndReleaseBuffers(session);
-                Logger.warn(LogType.NO_EVENT_LOOP, "cannot get event loop for client connection " + clientConnection);
+                Logger.warn(LogType.NO_EVENT_LOOP, "cannot get event loop for waiting connection " + connection);
+                utilCloseConnectionAndReleaseBuffers(connection);
                 return;
             }
-            try {
-                loop.addClientConnection(clientConnection, null, handler);
-
-                // here the handler added successfully, we can record the session
-                sessions.add(session);
-                // the session record will be removed in `removed()` callback
+            WaitQueue queue = waitQueues.computeIfAbsent(loop, l -> new WaitQueue(this, l));
+            loop.getSelectorEventLoop().runOnLoop(() -> queue.offer(connection));
+        }
 
-            } catch (IOException e) {
-                Logger.fatal(LogType.EVENT_LOOP_ADD_FAIL, "register passive connection into event loop failed, passive conn = " + clientConnection + ", err = " + e);
-                // should not happen
-                // but if it happens, we close both sides
-                utilCloseSessionAndReleaseBuffers(session);
-            }
+        private void handleDirect(Connection connection, Connector connector) {
+            Proxy.this.handleDirect(connection, connector, null);
         }
 
         class HandlerCallback extends Callback<Connector, IOException> {
@@ -229,10 +209,240 @@ public class Proxy {
 
         @Override
         public void removed(ServerHandlerContext ctx) {
+            for (WaitQueue queue : waitQueues.values()) {
+                queue.loop.getSelectorEventLoop().runOnLoop(queue::clear);
+            }
             handler.serverRemoved(ctx.server);
         }
     }
 
+    private void handleDirect(Connection connection, Connector connector, ConnectRetry retry) {
+        // check whether address tuple is null
+        // null means the user code fail to provide a new connection
+        // maybe user think that the backend is not working, or the source ip is forbidden
+        // any way, the user refuse to provide a new connection
+        if (connector == null) {
+            Logger.info(LogType.NO_CLIENT_CONN, "the user code refuse to provide a remote endpoint");
+            // close the active connection
+            utilCloseConnectionAndReleaseBuffers(connection);
+            return;
+        }
+
+        ClientConnection clientConnection;
+        try {
+            clientConnection = connector.connect(/*switch the two buffers to make a PROXY*/connection.getOutBuffer(), connection.getInBuffer());
+        } catch (IOException e) {
+            Logger.fatal(LogType.CONN_ERROR, "make passive connection failed, maybe provided endpoint info is invalid", e);
+            // it should not happen if user provided endpoint is valid
+            // but if it happens, we close both sides
+
+            utilCloseConnectionAndReleaseBuffers(connection);
+            return;
+        }
+
+        // both directions of the session are limited by the limiters of the two connections
+        clientConnection.shareBandwidthLimiters(connection);
+
+        if (retry == null && config.connectRetry > 0) {
+            // the retry deadline starts from the first connect
+            retry = new ConnectRetry(Config.currentTimestamp + config.connectRetryTimeout);
+        }
+
+        Session session = new Session(connection, clientConnection);
+        ClientConnectionHandler handler = new SessionClientConnectionHandler(session, retry);
+
+        // we get a new event loop for handling
+        // the event loop is provided by user
+        // user may use the same loop as the acceptLoop
+        //
+        // and we only register the passive connection here
+        // the active connection will be registered
+        // when the passive connection is successfully established
+        NetEventLoop loop;
+        {
+            NetEventLoop foo = connector.loop();
+            if (foo == null) {
+                assert Logger.lowLevelDebug("connector did not provide any loop, retrieve a new one");
+                loop = config.handleLoopProvider.get();
+            } else {
+                assert Logger.lowLevelDebug("connector provided a loop");
+                loop = foo;
+            }
+        }
+        if (loop == null) {
+            // the loop not exist
+            utilCloseSessionAndReleaseBuffers(session);
+            Logger.warn(LogType.NO_EVENT_LOOP, "cannot get event loop for client connection " + clientConnection);
+            return;
+        }
+        try {
+            loop.addClientConnection(clientConnection, null, handler);
+
+            // here the handler added successfully, we can record the session
+            sessions.add(session);
+            // the session record will be removed in `removed()` callback
+
+        } catch (IOException e) {
+            Logger.fatal(LogType.EVENT_LOOP_ADD_FAIL, "register passive connection into event loop failed, passive conn = " + clientConnection + ", err = " + e);
+            // should not happen
+            // but if it happens, we close both sides
+            utilCloseSessionAndReleaseBuffers(session);
+        }
+    }
+
+    // records the connect attempts of one accepted connection
+    static class ConnectRetry {
+        final long deadline;
+        int retried = 0;
+        final List<Connector> failed = new LinkedList<>();
+
+        ConnectRetry(long deadline) {
+            this.deadline = deadline;
+        }
+    }
+
+    class WaitQueue {
+        class Waiting implements ConnectionHandler {
+            final Connection connection;
+            final long since;
+            boolean queued = true;
+
+            Waiting(Connection connection, long since) {
+                this.connection = connection;
+                this.since = since;
+            }
+
+            @Override
+            public void readable(ConnectionHandlerContext ctx) {
+                // keep the bytes in the in-buffer
+                // they will be sent to the backend after the session is created
+            }
+
+            @Override
+            public void writable(ConnectionHandlerContext ctx) {
+                // nothing to write while waiting
+            }
+
+            @Override
+            public void exception(ConnectionHandlerContext ctx, IOException err) {
+                assert Logger.lowLevelDebug("waiting connection " + connection + " got exception: " + err);
+                drop(this);
+            }
+
+            @Override
+            public void closed(ConnectionHandlerContext ctx) {
+                assert Logger.lowLevelDebug("waiting connection " + connection + " is closed by the client");
+                drop(this);
+            }
+
+            @Override
+            public void removed(ConnectionHandlerContext ctx) {
+                // the connection is removed when it leaves the queue
+                // if it's still queued, it's removed by someone else, so drop it
+                if (queued) {
+                    drop(this);
+                }
+            }
+        }
+
+        private final SessionServerHandler serverHandler;
+        private final NetEventLoop loop;
+        private final ArrayDeque<Waiting> queue = new ArrayDeque<>();
+        private PeriodicEvent retryEvent;
+
+        WaitQueue(SessionServerHandler serverHandler, NetEventLoop loop) {
+            this.serverHandler = serverHandler;
+            this.loop = loop;
+        }
+
+        void offer(Connection connection) {
+            if (queue.size() >= config.waitQueueSize) {
+                Logger.warn(LogType.NO_CLIENT_CONN, "the wait queue is full, drop connection " + connection);
+                waitRejected.increment();
+                utilCloseConnectionAndReleaseBuffers(connection);
+                return;
+            }
+            Waiting w = new Waiting(connection, Config.currentTimestamp);
+            // register the connection to know when the client goes away
+            try {
+                loop.addConnection(connection, null, w);
+            } catch (IOException e) {
+                Logger.error(LogType.EVENT_LOOP_ADD_FAIL, "add waiting connection into loop failed", e);
+                utilCloseConnectionAndReleaseBuffers(connection);
+                return;
+            }
+            queue.add(w);
+            waiting.incrementAndGet();
+            waitTotal.increment();
+            if (retryEvent == null) {
+                retryEvent = loop.getSelectorEventLoop().period(WAIT_RETRY_INTERVAL, this::retry);
+            }
+        }
+
+        // take the entry out of the queue
+        // the connection will not be handled by the queue anymore
+        private void leave(Waiting w) {
+            w.queued = false;
+            waiting.decrementAndGet();
+            loop.removeConnection(w.connection);
+        }
+
+        private void drop(Waiting w) {
+            if (!w.queued)
+                return;
+            queue.remove(w);
+            leave(w);
+            utilCloseConnectionAndReleaseBuffers(w.connection);
+            if (queue.isEmpty()) {
+                cancelRetry();
+            }
+        }
+
+        private void retry() {
+            long now = Config.currentTimestamp;
+            ConnectorGen connGen = config.connGen.get();
+            while (!queue.isEmpty()) {
+                Waiting w = queue.peek();
+                if (now - w.since >= config.waitTimeout) {
+                    queue.poll();
+                    leave(w);
+                    waitTimeout.increment();
+                    Logger.warn(LogType.NO_CLIENT_CONN, "connection " + w.connection + " waited too long for backends");
+                    utilCloseConnectionAndReleaseBuffers(w.connection);
+                    continue;
+                }
+                Connector connector = connGen.genConnector(w.connection);
+                if (connector == null && connGen.shouldWait(w.connection)) {
+                    break; // still saturated, keep the order
+                }
+                queue.poll();
+                // remove the connection from loop first
+                // the session will register it again with its own handler
+                leave(w);
+                serverHandler.handleDirect(w.connection, connector);
+            }
+            if (queue.isEmpty()) {
+                cancelRetry();
+            }
+        }
+
+        private void cancelRetry() {
+            if (retryEvent != null) {
+                retryEvent.cancel();
+                retryEvent = null;
+            }
+        }
+
+        void clear() {
+            cancelRetry();
+            Waiting w;
+            while ((w = queue.poll()) != null) {
+                leave(w);
+                utilCloseConnectionAndReleaseBuffers(w.connection);
+            }
+        }
+    }
+
     class SessionConnectionHandler implements ConnectionHandler {
         private final Session session;
 
@@ -292,10 +502,14 @@ public class Proxy {
 
     class SessionClientConnectionHandler implements ClientConnectionHandler {
         private final Session session;
+        private final ConnectRetry retry; // null means retry is disabled
         private boolean isConnected = false;
+        private boolean retrying = false; // the active connection is handed over to a new session
+        private boolean resultReported = false; // the result of the passive connection is reported to the connector
 
-        SessionClientConnectionHandler(Session session) {
+        SessionClientConnectionHandler(Session session, ConnectRetry retry) {
             this.session = session;
+            this.retry = retry;
         }
 
         @Override
@@ -332,23 +546,84 @@ public class Proxy {
 
         @Override
         public void exception(ConnectionHandlerContext ctx, IOException err) {
-            Logger.error(LogType.CONN_ERROR, "session " + session + " got exception: " + err);
-            // close both sides
-            utilCloseSessionAndReleaseBuffers(session);
-
             if (!isConnected) {
                 // the connection failed before established
                 // we should alert the connector that the connection failed
+                resultReported = true;
                 Connector connector = ((ClientConnection) ctx.connection).getConnector();
                 if (connector != null) {
-                    connector.connectionFailed();
+                    if (err instanceof SocketTimeoutException) {
+                        connector.connectionTimeout();
+                    } else {
+                        connector.connectionFailed();
+                    }
                 }
+                // nothing is sent to the backend yet
+                // so it's safe to connect to another one
+                if (tryRetry(connector, err))
+                    return;
+            } else {
+                reportResult(ctx, err);
+            }
+
+            Logger.error(LogType.CONN_ERROR, "session " + session + " got exception: " + err);
+            // close both sides
+            utilCloseSessionAndReleaseBuffers(session);
+        }
+
+        private boolean tryRetry(Connector failedConnector, IOException err) {
+            if (retry == null)
+                return false;
+            if (retry.retried >= config.connectRetry || Config.currentTimestamp >= retry.deadline) {
+                assert Logger.lowLevelDebug("no more retry for " + session.active);
+                return false;
+            }
+            if (failedConnector != null) {
+                retry.failed.add(failedConnector);
+            }
+            Connector connector = config.connGen.get().genConnectorForRetry(session.active, retry.failed);
+            if (connector == null) {
+                assert Logger.lowLevelDebug("no connector provided for retrying " + session.active);
+                return false;
+            }
+            ++retry.retried;
+            retryTotal.increment();
+            Logger.warn(LogType.CONN_ERROR, "session " + session + " failed to connect: " + err + ", " +
+                "retry(" + retry.retried + ") with " + connector);
+
+            // only close the passive connection
+            // the active connection and the buffers are handed over to the new session
+            retrying = true;
+            utilCloseConnection(session.passive);
+            handleDirect(session.active, connector, retry);
+            return true;
+        }
+
+        // tell the connector whether the backend works on this connection
+        // the backend is considered to be broken if it resets the connection,
+        // or the connection times out, before sending anything back
+        // a clean close (err == null) is a legitimate empty response
+        private void reportResult(ConnectionHandlerContext ctx, IOException err) {
+            if (resultReported)
+                return;
+            resultReported = true;
+            Connector connector = ((ClientConnection) ctx.connection).getConnector();
+            if (connector == null)
+                return;
+            if (err == null || ctx.connection.getFromRemoteBytes() > 0) {
+                connector.connectionResponded();
+            } else if (err instanceof SocketTimeoutException) {
+                connector.connectionTimeout();
+            } else {
+                connector.connectionReset();
             }
         }
 
         @Override
         public void closed(ConnectionHandlerContext ctx) {
             assert Logger.lowLevelDebug("now the passive connection is closed, we should close the session");
+            // closed by the backend
+            reportResult(ctx, null);
             // now the passive connection is closed
             if (session.isClosed()) // do nothing if the session is already closed
                 return;
@@ -368,7 +643,14 @@ public class Proxy {
 
         @Override
         public void removed(ConnectionHandlerContext ctx) {
-            utilCloseSessionAndReleaseBuffers(session);
+            if (!retrying) {
+                if (isConnected && ctx.connection.getFromRemoteBytes() > 0) {
+                    // the session is closed by the client or the lib,
+                    // only report when the backend responded
+                    reportResult(ctx, null);
+                }
+                utilCloseSessionAndReleaseBuffers(session);
+            }
             sessions.remove(session); // remove the session record
         }
     }
@@ -377,6 +659,16 @@ public class Proxy {
     private final ProxyEventHandler handler;
     private final ConcurrentHashSet<Session> sessions = new ConcurrentHashSet<>();
 
+    // the interval for waiting connections to retry
+    private static final int WAIT_RETRY_INTERVAL = 10;
+    // statistics of the wait queues
+    private final AtomicInteger waiting = new AtomicInteger(0);
+    private final LongAdder waitTotal = new LongAdder();
+    private final LongAdder waitTimeout = new LongAdder();
+    private final LongAdder waitRejected = new LongAdder();
+    // statistics of connect retry
+    private final LongAdder retryTotal = new LongAdder();
+
     public Proxy(ProxyNetConfig config, ProxyEventHandler handler) {
         this.handler = handler;
         this.config = config;
@@ -398,4 +690,29 @@ public class Proxy {
     public void copySessions(Collection<? super Session> coll) {
         coll.addAll(sessions);
     }
+
+    // current count of connections waiting for backends
+    public int waitingCount() {
+        return waiting.get();
+    }
+
+    // total count of connections ever put into the wait queues
+    public long waitTotalCount() {
+        return waitTotal.longValue();
+    }
+
+    // count of connections closed because of waiting timeout
+    public long waitTimeoutCount() {
+        return waitTimeout.longValue();
+    }
+
+    // count of connections closed because the wait queue is full
+    public long waitRejectedCount() {
+        return waitRejected.longValue();
+    }
+
+    // count of connect retries
+    public long connectRetryCount() {
+        return retryTotal.longValue();
+    }
 }
@@ -15,6 +15,12 @@ public class ProxyNetConfig {
     int inBufferSize = 128;
     int outBufferSize = 128;
 
+    int waitQueueSize = 0; // 0 means connections never wait
+    int waitTimeout = 0; // milliseconds
+
+    int connectRetry = 0; // 0 means never retry
+    int connectRetryTimeout = 0; // milliseconds, no retry after the timeout since the first connect
+
     public ProxyNetConfig setAcceptLoop(NetEventLoop acceptLoop) {
         this.acceptLoop = acceptLoop;
         return this;
@@ -45,6 +51,26 @@ public class ProxyNetConfig {
         return this;
     }
 
+    public ProxyNetConfig setWaitQueueSize(int waitQueueSize) {
+        this.waitQueueSize = waitQueueSize;
+        return this;
+    }
+
+    public ProxyNetConfig setWaitTimeout(int waitTimeout) {
+        this.waitTimeout = waitTimeout;
+        return this;
+    }
+
+    public ProxyNetConfig setConnectRetry(int connectRetry) {
+        this.connectRetry = connectRetry;
+        return this;
+    }
+
+    public ProxyNetConfig setConnectRetryTimeout(int connectRetryTimeout) {
+        this.connectRetryTimeout = connectRetryTimeout;
+        return this;
+    }
+
     public NetEventLoop getAcceptLoop() {
         return acceptLoop;
     }
@@ -68,4 +94,20 @@ public class ProxyNetConfig {
     public int getOutBufferSize() {
         return outBufferSize;
     }
+
+    public int getWaitQueueSize() {
+        return waitQueueSize;
+    }
+
+    public int getWaitTimeout() {
+        return waitTimeout;
+    }
+
+    public int getConnectRetry() {
+        return connectRetry;
+    }
+
+    public int getConnectRetryTimeout() {
+        return connectRetryTimeout;
+    }
 }
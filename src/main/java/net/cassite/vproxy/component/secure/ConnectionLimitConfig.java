@@ -0,0 +1,45 @@
+package net.cassite.vproxy.component.secure;
+
+public class ConnectionLimitConfig {
+    // limits of one client ip
+    public final int ipRate; // new connections per second, 0 means no limit
+    public final int ipMaxConn; // concurrent connections, 0 means no limit
+    // limits of all clients in one network
+    public final int cidrRate; // new connections per second, 0 means no limit
+    public final int cidrMaxConn; // concurrent connections, 0 means no limit
+    public final int cidrV4Mask; // [1, 32]
+    public final int cidrV6Mask; // [1, 128]
+
+    public ConnectionLimitConfig() {
+        this(0, 0, 0, 0, 24, 64);
+    }
+
+    public ConnectionLimitConfig(int ipRate, int ipMaxConn, int cidrRate, int cidrMaxConn, int cidrV4Mask, int cidrV6Mask) {
+        this.ipRate = ipRate;
+        this.ipMaxConn = ipMaxConn;
+        this.cidrRate = cidrRate;
+        this.cidrMaxConn = cidrMaxConn;
+        this.cidrV4Mask = cidrV4Mask;
+        this.cidrV6Mask = cidrV6Mask;
+    }
+
+    public boolean ipLimited() {
+        return ipRate > 0 || ipMaxConn > 0;
+    }
+
+    public boolean cidrLimited() {
+        return cidrRate > 0 || cidrMaxConn > 0;
+    }
+
+    @Override
+    public String toString() {
+        return "ConnectionLimitConfig{" +
+            "ipRate=" + ipRate +
+            ", ipMaxConn=" + ipMaxConn +
+            ", cidrRate=" + cidrRate +
+            ", cidrMaxConn=" + cidrMaxConn +
+            ", cidrV4Mask=" + cidrV4Mask +
+            ", cidrV6Mask=" + cidrV6Mask +
+            '}';
+    }
+}
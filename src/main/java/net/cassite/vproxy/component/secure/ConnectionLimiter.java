@@ -0,0 +1,318 @@
+package net.cassite.vproxy.component.secure;
+
+import net.cassite.vproxy.app.Config;
+import net.cassite.vproxy.util.AddressTable;
+import net.cassite.vproxy.util.ThreadSafe;
+
+import java.net.InetAddress;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// limit new connection rate and concurrent connections of
+// each client ip and each client network (cidr)
+//
+// the rate is limited by token buckets, a bucket holds at most
+// tokens of one second, and every new connection takes one token
+//
+// the states are stored in bounded tables, when a table is full,
+// old entries will be evicted, so the memory cost is fixed
+// whatever the clients are. entries with connections are never
+// evicted, when a client cannot be tracked because all entries
+// around have connections, it's limited by the bucket of its
+// network only, and rejected if the network cannot be tracked either
+//
+// the tables are split into stripes by the client network, each
+// stripe has its own lock, so accepting on different event loops
+// seldom contend. the entries of a client and of its network are
+// always in the same stripe. the stripe hash is seeded, so the
+// clients cannot choose addresses falling into one stripe
+public class ConnectionLimiter {
+    // max count of tracked clients (and networks)
+    private static final int TABLE_CAPACITY = 65536;
+    private static final int STRIPES = 16; // power of 2
+    // the values of one table entry
+    private static final int F_TOKENS = 0; // 1/1000 tokens
+    private static final int F_REFILL = 1; // last time refilling the bucket
+    private static final int F_CONN = 2; // current connections
+    // a bucket is full after 1 second, and an idle entry with
+    // no connections and a full bucket carries no info, so can be removed
+    private static final int IDLE_TIMEOUT = 1000;
+
+    private static class LimitTable extends AddressTable {
+        private final Stripe stripe;
+
+        LimitTable(Stripe stripe) {
+            super(TABLE_CAPACITY / STRIPES * 4 / 3, 3);
+            this.stripe = stripe;
+        }
+
+        @Override
+        protected boolean evictable(int slot) {
+            return get(slot, F_CONN) == 0 && stripe.now - access(slot) >= IDLE_TIMEOUT;
+        }
+
+        // evicting the entry would reset the connection count
+        @Override
+        protected boolean pinned(int slot) {
+            return get(slot, F_CONN) > 0;
+        }
+    }
+
+    // the fields are protected by the stripe lock
+    private static class Stripe {
+        LimitTable ipTable;
+        LimitTable cidrTable;
+        long now;
+    }
+
+    private volatile ConnectionLimitConfig config = new ConnectionLimitConfig();
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final long stripeSeed = ThreadLocalRandom.current().nextLong();
+    private final AtomicLong lastSweep = new AtomicLong();
+
+    private final LongAdder rateRejected = new LongAdder();
+    private final LongAdder connRejected = new LongAdder();
+
+    public ConnectionLimiter() {
+        for (int i = 0; i < STRIPES; ++i) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    public ConnectionLimitConfig getConfig() {
+        return config;
+    }
+
+    public boolean isEnabled() {
+        ConnectionLimitConfig c = config;
+        return c.ipLimited() || c.cidrLimited();
+    }
+
+    // the tables are kept if still used, otherwise they are dropped,
+    // so the counting restarts when the limit is enabled again.
+    // changing the cidr settings moves the clients to other stripes,
+    // so all tables are dropped in that case
+    @ThreadSafe
+    public synchronized void setConfig(ConnectionLimitConfig config) {
+        ConnectionLimitConfig old = this.config;
+        this.config = config;
+        boolean cidrChanged = config.cidrLimited() != old.cidrLimited()
+            || config.cidrV4Mask != old.cidrV4Mask
+            || config.cidrV6Mask != old.cidrV6Mask;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                if (!config.ipLimited() || cidrChanged) {
+                    stripe.ipTable = null;
+                }
+                if (!config.cidrLimited() || cidrChanged) {
+                    stripe.cidrTable = null;
+                }
+            }
+        }
+    }
+
+    // return true if the client is allowed to make a new connection
+    // the caller should call release() when the connection is closed
+    @ThreadSafe
+    public boolean tryAcquire(InetAddress address) {
+        if (!isEnabled())
+            return true;
+        return tryAcquire(address.getAddress(), Config.currentTimestamp);
+    }
+
+    @ThreadSafe
+    public boolean tryAcquire(byte[] address, long now) {
+        ConnectionLimitConfig c = config;
+        byte[] network = c.cidrLimited() ? network(address, c) : null;
+        now = Math.max(now, 1); // 0 is used as `empty` in the table
+        sweep(now);
+        Stripe stripe = stripe(network == null ? address : network);
+        synchronized (stripe) {
+            stripe.now = now;
+
+            int ipSlot = -1;
+            if (c.ipLimited()) {
+                if (stripe.ipTable == null) {
+                    stripe.ipTable = new LimitTable(stripe);
+                }
+                ipSlot = lookup(stripe.ipTable, address, c.ipRate);
+            }
+            int cidrSlot = -1;
+            if (network != null) {
+                if (stripe.cidrTable == null) {
+                    stripe.cidrTable = new LimitTable(stripe);
+                }
+                // NOTE: the ip table and the cidr table are different objects,
+                // so looking up one will not move the entries in another
+                cidrSlot = lookup(stripe.cidrTable, network, c.cidrRate);
+            }
+            // the tables are full of entries with connections,
+            // an untracked client falls back to the bucket of its network,
+            // and is rejected if no bucket can limit it
+            if ((network != null && cidrSlot == -1)
+                || (network == null && c.ipLimited() && ipSlot == -1)) {
+                connRejected.increment();
+                return false;
+            }
+
+            if ((ipSlot != -1 && !hasToken(stripe.ipTable, ipSlot, c.ipRate))
+                || (cidrSlot != -1 && !hasToken(stripe.cidrTable, cidrSlot, c.cidrRate))) {
+                rateRejected.increment();
+                return false;
+            }
+            if ((ipSlot != -1 && !hasConn(stripe.ipTable, ipSlot, c.ipMaxConn))
+                || (cidrSlot != -1 && !hasConn(stripe.cidrTable, cidrSlot, c.cidrMaxConn))) {
+                connRejected.increment();
+                return false;
+            }
+            if (ipSlot != -1) {
+                acquire(stripe.ipTable, ipSlot, c.ipRate);
+            }
+            if (cidrSlot != -1) {
+                acquire(stripe.cidrTable, cidrSlot, c.cidrRate);
+            }
+            return true;
+        }
+    }
+
+    @ThreadSafe
+    public void release(InetAddress address) {
+        release(address.getAddress());
+    }
+
+    @ThreadSafe
+    public void release(byte[] address) {
+        ConnectionLimitConfig c = config;
+        byte[] network = c.cidrLimited() ? network(address, c) : null;
+        Stripe stripe = stripe(network == null ? address : network);
+        synchronized (stripe) {
+            // the entries might be missing or the tables might be dropped
+            // in which case there's nothing to release
+            if (stripe.ipTable != null) {
+                release(stripe.ipTable, address);
+            }
+            if (stripe.cidrTable != null && network != null) {
+                release(stripe.cidrTable, network);
+            }
+        }
+    }
+
+    private void release(LimitTable table, byte[] key) {
+        int slot = table.find(key);
+        if (slot == -1)
+            return;
+        long conn = table.get(slot, F_CONN);
+        if (conn > 0) {
+            table.set(slot, F_CONN, conn - 1);
+        }
+    }
+
+    private Stripe stripe(byte[] key) {
+        long h = AddressTable.hash(AddressTable.keyHi(key), AddressTable.keyLo(key), stripeSeed);
+        return stripes[(int) h & (STRIPES - 1)];
+    }
+
+    // remove idle entries from time to time
+    // only one thread sweeps, and the stripes are locked one by one
+    private void sweep(long now) {
+        long last = lastSweep.get();
+        if (now - last < IDLE_TIMEOUT || !lastSweep.compareAndSet(last, now))
+            return;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                stripe.now = now;
+                if (stripe.ipTable != null) {
+                    stripe.ipTable.removeIf(stripe.ipTable::evictable);
+                }
+                if (stripe.cidrTable != null) {
+                    stripe.cidrTable.removeIf(stripe.cidrTable::evictable);
+                }
+            }
+        }
+    }
+
+    // find or create the entry, and refill the bucket
+    // return -1 if the entry cannot be created
+    private static int lookup(LimitTable table, byte[] key, int rate) {
+        long now = table.stripe.now;
+        int slot = table.find(key);
+        if (slot == -1) {
+            slot = table.add(key, now);
+            if (slot == -1) {
+                // all tracked clients have connections
+                return -1;
+            }
+            table.set(slot, F_TOKENS, rate * 1000L);
+            table.set(slot, F_REFILL, now);
+            return slot;
+        }
+        table.touch(slot, now);
+        long elapsed = Math.min(now - table.get(slot, F_REFILL), IDLE_TIMEOUT);
+        if (elapsed > 0) {
+            // `rate` tokens per second, i.e. `rate` 1/1000 tokens per millisecond
+            long tokens = Math.min(table.get(slot, F_TOKENS) + elapsed * rate, rate * 1000L);
+            table.set(slot, F_TOKENS, tokens);
+            table.set(slot, F_REFILL, now);
+        }
+        return slot;
+    }
+
+    private static boolean hasToken(LimitTable table, int slot, int rate) {
+        return rate == 0 || table.get(slot, F_TOKENS) >= 1000;
+    }
+
+    private static boolean hasConn(LimitTable table, int slot, int maxConn) {
+        return maxConn == 0 || table.get(slot, F_CONN) < maxConn;
+    }
+
+    private static void acquire(LimitTable table, int slot, int rate) {
+        if (rate != 0) {
+            table.set(slot, F_TOKENS, table.get(slot, F_TOKENS) - 1000);
+        }
+        table.set(slot, F_CONN, table.get(slot, F_CONN) + 1);
+    }
+
+    // the network address of the client
+    private static byte[] network(byte[] address, ConnectionLimitConfig c) {
+        int maskLen = address.length == 4 ? c.cidrV4Mask : c.cidrV6Mask;
+        byte[] net = new byte[address.length];
+        for (int i = 0; i < net.length; ++i) {
+            int bits = Math.max(0, Math.min(8, maskLen - i * 8));
+            net[i] = (byte) (address[i] & (0xff00 >> bits));
+        }
+        return net;
+    }
+
+    public long rateRejectedCount() {
+        return rateRejected.sum();
+    }
+
+    public long connRejectedCount() {
+        return connRejected.sum();
+    }
+
+    // count of tracked clients
+    @ThreadSafe
+    public int ipEntryCount() {
+        int n = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                n += stripe.ipTable == null ? 0 : stripe.ipTable.size();
+            }
+        }
+        return n;
+    }
+
+    // count of tracked networks
+    @ThreadSafe
+    public int cidrEntryCount() {
+        int n = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                n += stripe.cidrTable == null ? 0 : stripe.cidrTable.size();
+            }
+        }
+        return n;
+    }
+}
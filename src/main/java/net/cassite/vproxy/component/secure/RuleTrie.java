@@ -0,0 +1,268 @@
+package net.cassite.vproxy.component.secure;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+ * An immutable binary trie compiled from security group rules.
+ *
+ * There are two tries, one for ipv4 input and one for ipv6 input.
+ * A rule is translated into one or more prefixes of the input address,
+ * the rule index is recorded on the node of the prefix.
+ * When matching, we walk the trie along the input address bits,
+ * and check all rules recorded on the path. The rule with the smallest
+ * index wins, which keeps the `first match` semantics of the rule list.
+ *
+ * Chains of nodes with only one child and no rules are compressed into one edge,
+ * so the lookup only visits the nodes where the paths branch or rules end.
+ *
+ * Rules which cannot be translated into prefixes (e.g. the mask is not continuous)
+ * are checked one by one, see Utils.maskMatch().
+ */
+class RuleTrie {
+    private static final int[] EMPTY_RULES = new int[0];
+
+    private final SecurityGroupRule[] rules; // in the original order
+    private final Node v4;
+    private final Node v6;
+    private final int[] linearRules; // indexes of the rules which cannot be put into the trie
+
+    private static class Node {
+        Node zero;
+        Node one;
+        int[] rules = EMPTY_RULES; // sorted indexes of rules end at this node
+        // set when compressing
+        int depth; // count of bits from root to this node
+        byte[] key; // the bits from root to this node, bits after `depth` are meaningless
+    }
+
+    private RuleTrie(SecurityGroupRule[] rules, Node v4, Node v6, int[] linearRules) {
+        this.rules = rules;
+        this.v4 = v4;
+        this.v6 = v6;
+        this.linearRules = linearRules;
+    }
+
+    static RuleTrie compile(List<SecurityGroupRule> ruleList) {
+        SecurityGroupRule[] rules = ruleList.toArray(new SecurityGroupRule[0]);
+        Node v4 = new Node();
+        Node v6 = new Node();
+        List<Integer> linear = new ArrayList<>();
+        for (int i = 0; i < rules.length; ++i) {
+            SecurityGroupRule r = rules[i];
+            if (!addV4(v4, r, i) | !addV6(v6, r, i)) {
+                linear.add(i);
+            }
+        }
+        compress(v4, 0, new byte[4]);
+        compress(v6, 0, new byte[16]);
+        int[] linearRules = new int[linear.size()];
+        for (int i = 0; i < linearRules.length; ++i) {
+            linearRules[i] = linear.get(i);
+        }
+        return new RuleTrie(rules, v4, v6, linearRules);
+    }
+
+    // return false if the rule cannot be put into the trie
+    private static boolean addV4(Node root, SecurityGroupRule r, int idx) {
+        byte[] ip = r.ip;
+        byte[] mask = r.mask;
+        if (ip.length == 4 && mask.length == 4) {
+            return add(root, ip, mask, idx);
+        } else if (ip.length == 16 && mask.length == 4) {
+            return true; // never match ipv4 input
+        } else if (ip.length == 16 && mask.length == 16) {
+            if (!v4CompatibleOrMapped(ip))
+                return true; // never match ipv4 input
+            return add(root, Arrays.copyOfRange(ip, 12, 16), Arrays.copyOfRange(mask, 12, 16), idx);
+        }
+        return false;
+    }
+
+    // return false if the rule cannot be put into the trie
+    private static boolean addV6(Node root, SecurityGroupRule r, int idx) {
+        byte[] ip = r.ip;
+        byte[] mask = r.mask;
+        if (ip.length == 16 && (mask.length == 16 || mask.length == 4)) {
+            // when mask is shorter, only the high bits are checked
+            return add(root, Arrays.copyOf(ip, mask.length), mask, idx);
+        } else if (ip.length == 4 && mask.length == 4) {
+            // ipv4-compatible and ipv4-mapped ipv6 addresses
+            byte[] compatible = new byte[16];
+            byte[] mapped = new byte[16];
+            mapped[10] = (byte) 0xff;
+            mapped[11] = (byte) 0xff;
+            byte[] fullMask = new byte[16];
+            for (int i = 0; i < 12; ++i) {
+                fullMask[i] = (byte) 0xff;
+            }
+            for (int i = 0; i < 4; ++i) {
+                compatible[12 + i] = ip[i];
+                mapped[12 + i] = ip[i];
+                fullMask[12 + i] = mask[i];
+            }
+            return add(root, compatible, fullMask, idx) && add(root, mapped, fullMask, idx);
+        }
+        return false;
+    }
+
+    private static boolean v4CompatibleOrMapped(byte[] ip) {
+        for (int i = 0; i < 10; ++i) {
+            if (ip[i] != 0)
+                return false;
+        }
+        return (ip[10] == 0 && ip[11] == 0) || (ip[10] == (byte) 0xff && ip[11] == (byte) 0xff);
+    }
+
+    // return false if the mask is not continuous
+    private static boolean add(Node root, byte[] ip, byte[] mask, int idx) {
+        int len = prefixLength(mask);
+        if (len == -1)
+            return false;
+        // the bits out of the mask should be 0
+        // otherwise the rule never matches
+        for (int i = 0; i < ip.length; ++i) {
+            if ((ip[i] & ~mask[i]) != 0)
+                return true;
+        }
+        Node n = root;
+        for (int i = 0; i < len; ++i) {
+            if (bit(ip, i) == 0) {
+                if (n.zero == null)
+                    n.zero = new Node();
+                n = n.zero;
+            } else {
+                if (n.one == null)
+                    n.one = new Node();
+                n = n.one;
+            }
+        }
+        // the rules are added in order, so the array is sorted
+        // and a rule may be added to the same node twice (see addV6)
+        int[] rules = n.rules;
+        if (rules.length == 0 || rules[rules.length - 1] != idx) {
+            rules = Arrays.copyOf(rules, rules.length + 1);
+            rules[rules.length - 1] = idx;
+            n.rules = rules;
+        }
+        return true;
+    }
+
+    // `path` holds the bits from root to n
+    // it's shared in the recursion, every bit is set before being used
+    private static void compress(Node n, int depth, byte[] path) {
+        n.depth = depth;
+        n.key = path.clone();
+        n.zero = compressChild(n.zero, depth, path, 0);
+        n.one = compressChild(n.one, depth, path, 1);
+    }
+
+    private static Node compressChild(Node c, int depth, byte[] path, int bit) {
+        if (c == null)
+            return null;
+        setBit(path, depth, bit);
+        ++depth;
+        // skip the nodes which have only one child and no rules
+        while (c.rules.length == 0 && (c.zero == null) != (c.one == null)) {
+            if (c.zero != null) {
+                c = c.zero;
+                setBit(path, depth, 0);
+            } else {
+                c = c.one;
+                setBit(path, depth, 1);
+            }
+            ++depth;
+        }
+        compress(c, depth, path);
+        return c;
+    }
+
+    private static void setBit(byte[] bytes, int i, int bit) {
+        if (bit == 0) {
+            bytes[i >> 3] &= ~(1 << (7 - (i & 7)));
+        } else {
+            bytes[i >> 3] |= 1 << (7 - (i & 7));
+        }
+    }
+
+    // check whether bits in [from, to) are the same
+    private static boolean bitsMatch(byte[] a, byte[] b, int from, int to) {
+        for (int i = from; i < to; ) {
+            if ((i & 7) == 0 && to - i >= 8) {
+                // compare the whole byte
+                if (a[i >> 3] != b[i >> 3])
+                    return false;
+                i += 8;
+            } else {
+                if (bit(a, i) != bit(b, i))
+                    return false;
+                ++i;
+            }
+        }
+        return true;
+    }
+
+    // -1 for not continuous masks
+    private static int prefixLength(byte[] mask) {
+        int len = 0;
+        int i = 0;
+        for (; i < mask.length * 8; ++i) {
+            if (bit(mask, i) == 0)
+                break;
+            ++len;
+        }
+        for (; i < mask.length * 8; ++i) {
+            if (bit(mask, i) != 0)
+                return -1;
+        }
+        return len;
+    }
+
+    private static int bit(byte[] bytes, int i) {
+        return (bytes[i >> 3] >> (7 - (i & 7))) & 1;
+    }
+
+    // return the first matching rule, or null if not found
+    SecurityGroupRule match(byte[] address, int port) {
+        Node n;
+        if (address.length == 4) {
+            n = v4;
+        } else {
+            n = v6;
+        }
+        int best = Integer.MAX_VALUE;
+        int bits = address.length * 8;
+        while (n != null) {
+            for (int idx : n.rules) {
+                if (idx >= best)
+                    break;
+                SecurityGroupRule r = rules[idx];
+                if (r.minPort <= port && port <= r.maxPort) {
+                    best = idx;
+                    break;
+                }
+            }
+            int d = n.depth;
+            if (d == bits)
+                break;
+            Node next = bit(address, d) == 0 ? n.zero : n.one;
+            if (next != null && !bitsMatch(address, next.key, d + 1, next.depth))
+                break; // the compressed edge does not match
+            n = next;
+        }
+        for (int idx : linearRules) {
+            if (idx >= best)
+                break;
+            if (rules[idx].match(address, port)) {
+                best = idx;
+                break;
+            }
+        }
+        return best == Integer.MAX_VALUE ? null : rules[best];
+    }
+
+    boolean isEmpty() {
+        return rules.length == 0;
+    }
+}
@@ -17,6 +17,9 @@ public class SecurityGroup {
     public final boolean defaultAllow;
     private LinkedList<SecurityGroupRule> tcpRules = new LinkedList<>();
     private LinkedList<SecurityGroupRule> udpRules = new LinkedList<>();
+    // compiled from the rule lists, rebuilt when rules change
+    private RuleTrie tcpTrie = RuleTrie.compile(tcpRules);
+    private RuleTrie udpTrie = RuleTrie.compile(udpRules);
 
     public SecurityGroup(String alias, boolean defaultAllow) {
         this.alias = alias;
@@ -28,20 +31,19 @@ public class SecurityGroup {
     }
 
     public boolean allow(Protocol protocol, InetAddress address, int port) {
-        LinkedList<SecurityGroupRule> rules;
+        RuleTrie trie;
         if (protocol == Protocol.TCP) {
-            rules = tcpRules;
+            trie = tcpTrie;
         } else {
             assert protocol == Protocol.UDP;
-            rules = udpRules;
+            trie = udpTrie;
         }
-        if (rules.isEmpty())
+        if (trie.isEmpty())
             return defaultAllow;
-        for (SecurityGroupRule rule : rules) {
-            if (rule.match(address, port))
-                return rule.allow;
-        }
-        return defaultAllow;
+        SecurityGroupRule rule = trie.match(address.getAddress(), port);
+        if (rule == null)
+            return defaultAllow;
+        return rule.allow;
     }
 
     public List<SecurityGroupRule> getRules() {
@@ -70,11 +72,14 @@ public class SecurityGroup {
                 throw new AlreadyExistException();
         }
         rules.add(rule);
+        RuleTrie trie = RuleTrie.compile(rules);
         if (rule.protocol == Protocol.TCP) {
+            this.tcpTrie = trie;
             this.tcpRules = rules;
         } else {
             //noinspection ConstantConditions
             assert rule.protocol == Protocol.UDP;
+            this.udpTrie = trie;
             this.udpRules = rules;
         }
     }
@@ -90,11 +95,15 @@ public class SecurityGroup {
         if (!optRule.isPresent())
             throw new NotFoundException();
         if (optRule.get().protocol == Protocol.TCP) {
+            tcpRules = new LinkedList<>(tcpRules);
             tcpRules.remove(optRule.get());
+            this.tcpTrie = RuleTrie.compile(tcpRules);
             this.tcpRules = tcpRules;
         } else {
             assert optRule.get().protocol == Protocol.UDP;
+            udpRules = new LinkedList<>(udpRules);
             udpRules.remove(optRule.get());
+            this.udpTrie = RuleTrie.compile(udpRules);
             this.udpRules = udpRules;
         }
     }
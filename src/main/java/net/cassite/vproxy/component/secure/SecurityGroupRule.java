@@ -29,7 +29,11 @@ public class SecurityGroupRule {
     }
 
     public boolean match(InetAddress address, int port) {
-        return Utils.maskMatch(address.getAddress(), ip, mask) && minPort <= port && port <= maxPort;
+        return match(address.getAddress(), port);
+    }
+
+    boolean match(byte[] address, int port) {
+        return Utils.maskMatch(address, ip, mask) && minPort <= port && port <= maxPort;
     }
 
     public boolean ipMaskMatch(SecurityGroupRule rule) {
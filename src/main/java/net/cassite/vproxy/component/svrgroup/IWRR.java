@@ -0,0 +1,132 @@
+package net.cassite.vproxy.component.svrgroup;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/*
+ * Interleaved WRR:
+ *
+ * all weights are divided by their gcd first, let W(Si) be the divided weight,
+ * the schedule is made of max{W(Si)} rounds,
+ * and server Si is selected in round r if W(Si) > r.
+ *
+ * The sequence is never materialized:
+ * servers are sorted by weight desc, so the servers selected in one round
+ * are always a prefix of the sorted array. Adjacent rounds with the same
+ * prefix length are merged into one `band`, so there are at most n bands.
+ *
+ * memory: O(n), lookup: O(log n)
+ */
+class IWRR {
+    private static final IWRR EMPTY = new IWRR(new int[0], new long[0], new int[0], 0);
+
+    private final int[] sortedIdx; // original index, sorted by weight desc
+    private final long[] bandStart; // the first position of each band in the sequence
+    private final int[] bandWidth; // count of servers selected in each round of the band
+    final long length; // the virtual sequence length
+
+    private IWRR(int[] sortedIdx, long[] bandStart, int[] bandWidth, long length) {
+        this.sortedIdx = sortedIdx;
+        this.bandStart = bandStart;
+        this.bandWidth = bandWidth;
+        this.length = length;
+    }
+
+    /**
+     * build the sequence
+     *
+     * @param weights weights of the elements, every weight should be greater than 0
+     * @return the sequence
+     */
+    static IWRR build(int[] weights) {
+        int n = weights.length;
+        if (n == 0)
+            return EMPTY;
+
+        int g = weights[0];
+        for (int i = 1; i < n; ++i) {
+            g = gcd(g, weights[i]);
+        }
+        int[] w = new int[n];
+        for (int i = 0; i < n; ++i) {
+            w[i] = weights[i] / g;
+        }
+
+        Integer[] sorted = new Integer[n];
+        for (int i = 0; i < n; ++i) {
+            sorted[i] = i;
+        }
+        // the sort is stable, so servers with same weight keep their order
+        Arrays.sort(sorted, Comparator.comparingInt((Integer i) -> w[i]).reversed());
+        int[] sortedIdx = new int[n];
+        for (int i = 0; i < n; ++i) {
+            sortedIdx[i] = sorted[i];
+        }
+
+        // count bands
+        int bands = 1;
+        for (int i = 1; i < n; ++i) {
+            if (w[sortedIdx[i]] != w[sortedIdx[i - 1]])
+                ++bands;
+        }
+        long[] bandStart = new long[bands];
+        int[] bandWidth = new int[bands];
+        // walk from the lightest server to the heaviest
+        // band b covers rounds [lastRound, W) where W is the weight of the prefix end
+        int b = 0;
+        long pos = 0;
+        int lastRound = 0;
+        for (int i = n - 1; i >= 0; --i) {
+            int cur = w[sortedIdx[i]];
+            if (i != 0 && w[sortedIdx[i - 1]] == cur)
+                continue; // not the start of the prefix with the same weight
+            // servers [0, ..., p] are selected in rounds [lastRound, cur)
+            // where p is the last index with weight == cur
+            int width = prefixEnd(w, sortedIdx, i) + 1;
+            bandStart[b] = pos;
+            bandWidth[b] = width;
+            pos += (long) (cur - lastRound) * width;
+            lastRound = cur;
+            ++b;
+        }
+        return new IWRR(sortedIdx, bandStart, bandWidth, pos);
+    }
+
+    private static int prefixEnd(int[] w, int[] sortedIdx, int from) {
+        int cur = w[sortedIdx[from]];
+        int p = from;
+        while (p + 1 < sortedIdx.length && w[sortedIdx[p + 1]] == cur) {
+            ++p;
+        }
+        return p;
+    }
+
+    private static int gcd(int a, int b) {
+        while (b != 0) {
+            int t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+
+    /**
+     * @param pos position in the sequence, [0, length)
+     * @return the original index of the element
+     */
+    int get(long pos) {
+        // find the last band whose start <= pos
+        int lo = 0;
+        int hi = bandStart.length - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (bandStart[mid] <= pos) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        long off = pos - bandStart[lo];
+        return sortedIdx[(int) (off % bandWidth[lo])];
+    }
+}
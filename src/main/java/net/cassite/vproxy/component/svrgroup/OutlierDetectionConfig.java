@@ -0,0 +1,30 @@
+package net.cassite.vproxy.component.svrgroup;
+
+public class OutlierDetectionConfig {
+    public final int consecutiveErrors; // 0 means never eject
+    public final int ejectionTime; // milliseconds
+    public final int maxEjectionPercent; // [0, 100]
+
+    public OutlierDetectionConfig() {
+        this(0, 30_000, 50);
+    }
+
+    public OutlierDetectionConfig(int consecutiveErrors, int ejectionTime, int maxEjectionPercent) {
+        this.consecutiveErrors = consecutiveErrors;
+        this.ejectionTime = ejectionTime;
+        this.maxEjectionPercent = maxEjectionPercent;
+    }
+
+    public OutlierDetectionConfig(OutlierDetectionConfig c) {
+        this(c.consecutiveErrors, c.ejectionTime, c.maxEjectionPercent);
+    }
+
+    @Override
+    public String toString() {
+        return "OutlierDetectionConfig{" +
+            "consecutiveErrors=" + consecutiveErrors +
+            ", ejectionTime=" + ejectionTime +
+            ", maxEjectionPercent=" + maxEjectionPercent +
+            '}';
+    }
+}
@@ -1,5 +1,6 @@
 package net.cassite.vproxy.component.svrgroup;
 
+import net.cassite.vproxy.app.Config;
 import net.cassite.vproxy.component.check.HealthCheckConfig;
 import net.cassite.vproxy.component.check.HealthCheckHandler;
 import net.cassite.vproxy.component.check.TCPHealthCheckClient;
@@ -13,6 +14,7 @@ import net.cassite.vproxy.component.exception.NotFoundException;
 import net.cassite.vproxy.connection.ConnCloseHandler;
 import net.cassite.vproxy.connection.Connection;
 import net.cassite.vproxy.connection.NetFlowRecorder;
+import net.cassite.vproxy.connection.TokenBucket;
 import net.cassite.vproxy.util.ConcurrentHashSet;
 import net.cassite.vproxy.util.LogType;
 import net.cassite.vproxy.util.Logger;
@@ -47,6 +49,7 @@ public class ServerGroup {
 
                 // alert event
                 alertListeners(lsn -> lsn.up(ServerHandle.this));
+                alertCapacityListeners();
             }
 
             @Override
@@ -57,6 +60,7 @@ public class ServerGroup {
 
                 // alert event
                 alertListeners(lsn -> lsn.down(ServerHandle.this));
+                alertCapacityListeners();
             }
 
             @Override
@@ -106,6 +110,7 @@ public class ServerGroup {
         public final InetSocketAddress server;
         public final InetAddress local;
         private int weight;
+        private int maxConn = 0; // 0 means no limit
         private ServerHandle toLogicDelete; // the server will be deleted when this server is UP, may be null
         EventLoopWrapper el;
         boolean valid = true;
@@ -117,7 +122,19 @@ public class ServerGroup {
         private final LongAdder fromRemoteBytes = new LongAdder();
         private final LongAdder toRemoteBytes = new LongAdder();
 
+        // outlier detection
+        // session results are reported from worker loops
+        private final AtomicInteger consecutiveErrors = new AtomicInteger(0);
+        private volatile long ejectedUntil = 0;
+        private final LongAdder ejectedTimes = new LongAdder();
+        private final LongAdder connectFailures = new LongAdder();
+        private final LongAdder earlyResets = new LongAdder();
+        private final LongAdder timeouts = new LongAdder();
+
         private ConcurrentHashSet<Connection> connMap = new ConcurrentHashSet<>();
+        // count of connections, including the slots reserved when the server is picked
+        // the server is picked on several loops, so max-conn is checked with cas
+        private final AtomicInteger connCount = new AtomicInteger(0);
 
         public Object data; // the data field, not used by this lib
 
@@ -158,15 +175,42 @@ public class ServerGroup {
 
         @Override
         public void onConnClose(Connection conn) {
-            connMap.remove(conn);
+            if (connMap.remove(conn)) {
+                connCount.decrementAndGet();
+            }
         }
 
         void attachConnection(Connection conn) {
             connMap.add(conn);
         }
 
+        ServerGroup group() {
+            return ServerGroup.this;
+        }
+
         public int connectionCount() {
-            return connMap.size();
+            return connCount.get();
+        }
+
+        // reserve a connection slot if max-conn is not reached
+        boolean tryReserve() {
+            while (true) {
+                int n = connCount.get();
+                if (maxConn != 0 && n >= maxConn)
+                    return false;
+                if (connCount.compareAndSet(n, n + 1))
+                    return true;
+            }
+        }
+
+        // take a slot without checking max-conn, e.g. for persisted connectors
+        void acquire() {
+            connCount.incrementAndGet();
+        }
+
+        // release a slot which is not used by any connection
+        void release() {
+            connCount.decrementAndGet();
         }
 
         public void copyConnections(Collection<? super Connection> c) {
@@ -189,6 +233,94 @@ public class ServerGroup {
             return weight;
         }
 
+        public void setMaxConn(int maxConn) {
+            this.maxConn = maxConn;
+        }
+
+        public int getMaxConn() {
+            return maxConn;
+        }
+
+        // mark the server UP or DOWN the same way as the health check does,
+        // so the listeners are alerted, e.g. when the health is known without checking
+        public void setHealthy(boolean healthy) {
+            if (this.healthy == healthy)
+                return;
+            if (healthy) {
+                handler.up(server);
+            } else {
+                handler.down(server);
+            }
+        }
+
+        // true if the server can accept new connections
+        boolean available() {
+            return healthy && !isEjected() && (maxConn == 0 || connectionCount() < maxConn);
+        }
+
+        public boolean isEjected() {
+            return ejectedUntil != 0 && Config.currentTimestamp < ejectedUntil;
+        }
+
+        public long getEjectedTimes() {
+            return ejectedTimes.longValue();
+        }
+
+        public long getConnectFailures() {
+            return connectFailures.longValue();
+        }
+
+        public long getEarlyResets() {
+            return earlyResets.longValue();
+        }
+
+        public long getTimeouts() {
+            return timeouts.longValue();
+        }
+
+        void connectionFailed() {
+            // accelerate the down process
+            TCPHealthCheckClient c = healthCheckClient;
+            if (c != null) {
+                c.manuallyDownOnce();
+            }
+            connectFailures.increment();
+            errorOccurred("connect failures");
+        }
+
+        void connectionReset() {
+            earlyResets.increment();
+            errorOccurred("early resets");
+        }
+
+        void connectionTimeout() {
+            timeouts.increment();
+            errorOccurred("timeouts");
+        }
+
+        void connectionResponded() {
+            consecutiveErrors.set(0);
+        }
+
+        private void errorOccurred(String reason) {
+            OutlierDetectionConfig c = outlierDetectionConfig;
+            if (c.consecutiveErrors <= 0)
+                return; // outlier detection disabled
+            if (consecutiveErrors.incrementAndGet() < c.consecutiveErrors)
+                return;
+            if (isEjected())
+                return; // already ejected
+            if (!tryEject(this, c)) {
+                // keep the counter, will try again when next error occurs
+                assert Logger.lowLevelDebug("cannot eject " + alias + " because of max-ejection-percent");
+                return;
+            }
+            consecutiveErrors.set(0);
+            Logger.warn(LogType.HEALTH_CHECK_CHANGE,
+                "server " + alias + "(" + server + ") is ejected for " + c.ejectionTime + "ms " +
+                    "after " + c.consecutiveErrors + " consecutive errors, the last one is one of " + reason);
+        }
+
         void start() {
             if (el != null)
                 return;
@@ -198,13 +330,15 @@ public class ServerGroup {
         void restart() {
             if (el != null)
                 stop(); // event loop exists, so we stop first, then start (which makes it a `restart`)
-            EventLoopWrapper w = eventLoopGroup.next();
+            // servers with the same address and health check config are put on the same event loop
+            // so that they can share the same health check probe
+            EventLoopWrapper w = eventLoopGroup.next(Objects.hash(server, local, healthCheckConfig));
             if (w == null) {
                 assert Logger.lowLevelDebug("cannot get event loop, give up for now. we will start again when there're available event loops");
                 return;
             }
             el = w;
-            healthCheckClient = new TCPHealthCheckClient(el, server, local, healthCheckConfig, healthy, handler);
+            healthCheckClient = new TCPHealthCheckClient(el, server, local, healthCheckConfig, healthy, handler, jitterFirstCheck);
             try {
                 el.attachResource(this);
             } catch (AlreadyExistException e) {
@@ -270,7 +404,15 @@ public class ServerGroup {
         }
 
         public SvrHandleConnector makeConnector() {
-            return new SvrHandleConnector(this);
+            return new SvrHandleConnector(this, false);
+        }
+
+        // pick the server for a new connection
+        // return null if max-conn is reached
+        private SvrHandleConnector reserveConnector() {
+            if (!tryReserve())
+                return null;
+            return new SvrHandleConnector(this, true);
         }
 
         @Override
@@ -307,14 +449,21 @@ public class ServerGroup {
     public final EventLoopGroup eventLoopGroup;
     private HealthCheckConfig healthCheckConfig;
     private Method method;
+    private OutlierDetectionConfig outlierDetectionConfig = new OutlierDetectionConfig();
+    private boolean jitterFirstCheck = true; // make the first health check at a random point of the period
+    // bytes read from the connections to the servers in this group
+    // and from the connections proxied to them
+    final TokenBucket bandwidthLimiter = new TokenBucket(0);
     private final Attach attach;
     private ArrayList<ServerHandle> servers = new ArrayList<>(0);
     private final CopyOnWriteArraySet<ServerListener> serverListeners = new CopyOnWriteArraySet<>();
+    // alerted when the group may gain or lose its healthy capacity
+    private final CopyOnWriteArraySet<Runnable> capacityListeners = new CopyOnWriteArraySet<>();
 
     // START fields for WRR
     static class WRR {
-        int[] seq;
-        final AtomicInteger wrrCursor = new AtomicInteger(0);
+        IWRR seq;
+        final AtomicLong wrrCursor = new AtomicLong(0);
         final ArrayList<ServerHandle> servers; // = servers;
 
         WRR(List<ServerHandle> servers) {
@@ -337,6 +486,61 @@ public class ServerGroup {
     private WLC _wlc;
     // END fields for WLC
 
+    // START fields for batch
+    public static class Batch {
+        enum OpType {
+            add,
+            remove,
+            weight,
+        }
+
+        static class Op {
+            final OpType type;
+            final String alias;
+            final String hostName;
+            final InetSocketAddress server;
+            final InetAddress local;
+            final int weight;
+
+            Op(OpType type, String alias, String hostName, InetSocketAddress server, InetAddress local, int weight) {
+                this.type = type;
+                this.alias = alias;
+                this.hostName = hostName;
+                this.server = server;
+                this.local = local;
+                this.weight = weight;
+            }
+        }
+
+        final List<Op> ops = new ArrayList<>();
+
+        public Batch add(String alias, InetSocketAddress server, InetAddress local, int weight) {
+            return add(alias, null, server, local, weight);
+        }
+
+        public Batch add(String alias, /*nullable*/ String hostName, InetSocketAddress server, InetAddress local, int weight) {
+            ops.add(new Op(OpType.add, alias, hostName, server, local, weight));
+            return this;
+        }
+
+        public Batch remove(String alias) {
+            ops.add(new Op(OpType.remove, alias, null, null, null, 0));
+            return this;
+        }
+
+        public Batch setWeight(String alias, int weight) {
+            ops.add(new Op(OpType.weight, alias, null, null, null, weight));
+            return this;
+        }
+
+        public boolean isEmpty() {
+            return ops.isEmpty();
+        }
+    }
+
+    private boolean batching = false; // guarded by `this`
+    // END fields for batch
+
     public ServerGroup(String alias,
                        EventLoopGroup eventLoopGroup,
                        HealthCheckConfig healthCheckConfig,
@@ -400,6 +604,39 @@ public class ServerGroup {
      * return NULL;
      */
 
+    /**
+     * @return true if there are healthy servers but all of them reached max-conn
+     */
+    public boolean saturated() {
+        boolean anyHealthy = false;
+        for (ServerHandle h : servers) {
+            if (!h.healthy || h.weight == 0 || h.isEjected())
+                continue;
+            if (h.available())
+                return false;
+            anyHealthy = true;
+        }
+        return anyHealthy;
+    }
+
+    // true if any server is healthy and can be picked
+    // max-conn and ejection are not considered because they are transient
+    boolean hasHealthy() {
+        for (ServerHandle h : servers) {
+            if (h.healthy && h.weight > 0)
+                return true;
+        }
+        return false;
+    }
+
+    boolean hasAvailable() {
+        for (ServerHandle h : servers) {
+            if (h.weight > 0 && h.available())
+                return true;
+        }
+        return false;
+    }
+
     private SvrHandleConnector wlcNext() {
         return wlcNext(_wlc, 0);
     }
@@ -420,7 +657,7 @@ public class ServerGroup {
             WSm = Sm.weight;
             CSm = Sm.connectionCount();
         } // --------- END ---------
-        if (!Sm.healthy) {
+        if (!Sm.available()) {
             return wlcNext(wlc, mStart + 1);
         }
         // if (WSm > 0) {
@@ -428,7 +665,7 @@ public class ServerGroup {
             ServerHandle Si = wlc.servers.get(i);
             WSi = Si.weight;
             CSi = Si.connectionCount();
-            if (CSm * WSi > CSi * WSm && Si.healthy) {
+            if (CSm * WSi > CSi * WSm && Si.available()) {
                 m = i;
                 { // --------- START ---------
                     Sm = wlc.servers.get(m);
@@ -437,38 +674,56 @@ public class ServerGroup {
                 } // --------- END ---------
             }
         }
-        return Sm.makeConnector();
+        SvrHandleConnector connector = Sm.reserveConnector();
+        if (connector == null) {
+            // max-conn reached by other loops after checking
+            return wlcNext(wlc, mStart);
+        }
+        return connector;
         // }
         // }
         // return null;
     }
 
     private SvrHandleConnector wrrNext() {
-        return wrrNext(this._wrr, 0);
+        return wrrNext(this._wrr);
     }
 
-    private SvrHandleConnector wrrNext(WRR wrr, int recursion) {
-        if (recursion > wrr.seq.length)
-            return null;
-        if (wrr.seq.length == 0)
+    private static SvrHandleConnector wrrNext(WRR wrr) {
+        long len = wrr.seq.length;
+        if (len == 0)
             return null; // return null if no elements
 
-        int idx = wrr.wrrCursor.getAndIncrement();
-        if (idx >= wrr.seq.length) {
-            idx = idx % wrr.seq.length;
-            wrr.wrrCursor.set(idx + 1);
+        for (long i = 0; i < len; ++i) {
+            long idx = wrr.wrrCursor.getAndIncrement();
+            if (idx >= len) {
+                idx = idx % len;
+                wrr.wrrCursor.set(idx + 1);
+            }
+            ServerHandle h = wrr.servers.get(wrr.seq.get(idx));
+            if (h.available()) {
+                SvrHandleConnector connector = h.reserveConnector();
+                if (connector != null)
+                    return connector;
+            }
+            if (i == wrr.servers.size()) {
+                // already tried as many times as the server count
+                // check whether there's any available server
+                // to prevent walking through the whole sequence
+                if (wrr.servers.stream().noneMatch(ServerHandle::available))
+                    return null;
+            }
         }
-        int realIdx = wrr.seq[idx];
-        ServerHandle h = wrr.servers.get(realIdx);
-        if (h.healthy)
-            return h.makeConnector();
-        else
-            return wrrNext(wrr, recursion + 1);
+        return null;
     }
 
-    private void resetMethodRelatedFields() {
+    private synchronized void resetMethodRelatedFields() {
+        if (batching) {
+            return; // will be reset when the batch finishes
+        }
         wrrReset();
         wlcReset();
+        alertCapacityListeners();
     }
 
     private void wlcReset() {
@@ -479,36 +734,12 @@ public class ServerGroup {
         WRR wrr = new WRR(this.servers.stream()
             .filter(s -> s.weight > 0) // only consider those weight > 0
             .collect(Collectors.toList()));
-        if (wrr.servers.isEmpty()) {
-            wrr.seq = new int[0];
-        } else {
-            // calculate the seq
-            List<Integer> listSeq = new LinkedList<>();
-            int[] weights = new int[wrr.servers.size()];
-            int[] original = new int[wrr.servers.size()];
-            // run calculation
-            int sum = 0;
-            for (int i = 0; i < wrr.servers.size(); i++) {
-                ServerHandle h = wrr.servers.get(i);
-                weights[i] = h.weight;
-                original[i] = h.weight;
-                sum += h.weight;
-            }
-            //noinspection Duplicates
-            while (true) {
-                int idx = maxIndex(weights);
-                listSeq.add(idx);
-                weights[idx] -= sum;
-                if (calculationEnd(weights)) {
-                    break;
-                }
-                for (int i = 0; i < weights.length; ++i) {
-                    weights[i] += original[i];
-                }
-                sum = sum(weights); // recalculate sum
-            }
-            int[] seq = new int[listSeq.size()];
-
+        int[] weights = new int[wrr.servers.size()];
+        for (int i = 0; i < weights.length; ++i) {
+            weights[i] = wrr.servers.get(i).weight;
+        }
+        wrr.seq = IWRR.build(weights);
+        if (wrr.seq.length > 0) {
             // random is for this concern:
             // if you deploy multiple instances of vproxy
             // with exactly the same configuration
@@ -516,48 +747,14 @@ public class ServerGroup {
             // without the `randStart`, first few connections
             // will always be made to the same server
             // which may cause some failure
-            int randStart = new Random().nextInt(seq.length);
+            long randStart = (long) (new Random().nextDouble() * wrr.seq.length);
             // the random wll only run when updating config
-            Iterator<Integer> ite = listSeq.iterator();
-            int idx = 0;
-            while (ite.hasNext()) {
-                seq[(idx + randStart) % seq.length] = ite.next();
-                ++idx;
-            }
-            wrr.seq = seq;
+            wrr.wrrCursor.set(randStart);
         }
 
         this._wrr = wrr;
     }
 
-    private int sum(int[] weights) {
-        int s = 0;
-        for (int w : weights) {
-            s += w;
-        }
-        return s;
-    }
-
-    private boolean calculationEnd(int[] weights) {
-        for (int w : weights) {
-            if (w != 0)
-                return false;
-        }
-        return true;
-    }
-
-    private int maxIndex(int[] weights) {
-        int maxIdx = 0;
-        int maxVal = weights[0];
-        for (int i = 1; i < weights.length; ++i) {
-            if (weights[i] > maxVal) {
-                maxVal = weights[i];
-                maxIdx = i;
-            }
-        }
-        return maxIdx;
-    }
-
     public void setMethod(Method method) {
         boolean needReload = this.method != method;
         this.method = method;
@@ -583,6 +780,43 @@ public class ServerGroup {
         return new HealthCheckConfig(healthCheckConfig);
     }
 
+    // set to false to check new servers immediately
+    // it's only applied to the health checks started after this call
+    public void setJitterFirstCheck(boolean jitterFirstCheck) {
+        this.jitterFirstCheck = jitterFirstCheck;
+    }
+
+    public void setOutlierDetectionConfig(OutlierDetectionConfig outlierDetectionConfig) {
+        this.outlierDetectionConfig = new OutlierDetectionConfig(outlierDetectionConfig);
+    }
+
+    public OutlierDetectionConfig getOutlierDetectionConfig() {
+        return new OutlierDetectionConfig(outlierDetectionConfig);
+    }
+
+    // bytes per second, 0 means no limit
+    public void setBandwidth(long bandwidth) {
+        bandwidthLimiter.setRate(bandwidth);
+    }
+
+    public long getBandwidth() {
+        return bandwidthLimiter.getRate();
+    }
+
+    // the count of servers ejected should not exceed the max-ejection-percent of the group
+    private synchronized boolean tryEject(ServerHandle h, OutlierDetectionConfig c) {
+        int ejected = 0;
+        for (ServerHandle s : servers) {
+            if (s.isEjected())
+                ++ejected;
+        }
+        if ((ejected + 1) * 100 > servers.size() * c.maxEjectionPercent)
+            return false;
+        h.ejectedUntil = Config.currentTimestamp + c.ejectionTime;
+        h.ejectedTimes.increment();
+        return true;
+    }
+
     public synchronized ServerHandle add(String alias, InetSocketAddress server, InetAddress local, int weight) throws AlreadyExistException {
         return add(alias, null, server, local, weight);
     }
@@ -636,6 +870,17 @@ public class ServerGroup {
      * @throws AlreadyExistException already exists
      */
     private synchronized ServerHandle add(String alias, String hostName, boolean replace, InetSocketAddress server, InetAddress local, int weight) throws AlreadyExistException {
+        ArrayList<ServerHandle> newLs = new ArrayList<>(servers.size() + 1);
+        newLs.addAll(servers);
+        ServerHandle handle = addInto(newLs, alias, hostName, replace, server, local, weight);
+        servers = newLs;
+        resetMethodRelatedFields();
+        return handle;
+    }
+
+    // add the server into the provided list
+    // the list will not be published into `servers` field in this method
+    private ServerHandle addInto(ArrayList<ServerHandle> ls, String alias, String hostName, boolean replace, InetSocketAddress server, InetAddress local, int weight) throws AlreadyExistException {
         // set the hostName to null if it's an ip literal
         if (hostName != null && Utils.isIpLiteral(hostName))
             hostName = null;
@@ -646,7 +891,6 @@ public class ServerGroup {
         // will be null if alias not found or `replace` is set to false
         ServerHandle toLogicDelete = null;
 
-        ArrayList<ServerHandle> ls = servers;
         for (ServerHandle c : ls) {
             if (c.alias.equals(alias)) {
                 if (c.logicDelete) // ignore logic deleted servers
@@ -663,11 +907,7 @@ public class ServerGroup {
         ServerHandle handle = new ServerHandle(
             alias, idForServer.getAndIncrement(), hostName, server, local, weight, toLogicDelete);
         handle.start();
-        ArrayList<ServerHandle> newLs = new ArrayList<>(ls.size() + 1);
-        newLs.addAll(ls);
-        newLs.add(handle);
-        servers = newLs;
-        resetMethodRelatedFields();
+        ls.add(handle);
 
         assert Logger.lowLevelDebug("server added: " + alias + "(" + server + ") to " + this.alias);
 
@@ -678,26 +918,79 @@ public class ServerGroup {
         ArrayList<ServerHandle> ls = servers;
         if (ls.isEmpty())
             throw new NotFoundException();
-        ArrayList<ServerHandle> newLs = new ArrayList<>(servers.size() - 1);
+        ArrayList<ServerHandle> newLs = new ArrayList<>(ls);
+        removeFrom(newLs, alias);
+        servers = newLs;
+        resetMethodRelatedFields();
+    }
+
+    // remove servers with the alias from the provided list
+    // the list will not be published into `servers` field in this method
+    private void removeFrom(ArrayList<ServerHandle> ls, String alias) throws NotFoundException {
         boolean found = false;
-        for (ServerHandle c : ls) {
+        Iterator<ServerHandle> ite = ls.iterator();
+        while (ite.hasNext()) {
+            ServerHandle c = ite.next();
             if (c.alias.equals(alias)) {
                 // here may remove multiple servers
                 // with the same alias
                 found = true;
                 c.stop();
-            } else {
-                newLs.add(c);
+                ite.remove();
             }
         }
         if (!found)
             throw new NotFoundException();
-        servers = newLs;
-        resetMethodRelatedFields();
 
         assert Logger.lowLevelDebug("server removed " + alias + " from " + this.alias);
     }
 
+    /**
+     * apply all changes in the batch, the servers list and
+     * the method related fields will only be rebuilt once.<br>
+     * the changes are applied in the order they are recorded,
+     * adding an existing server or removing a non-existing server is ignored.
+     *
+     * @param batch changes to apply
+     */
+    public synchronized void apply(Batch batch) {
+        ArrayList<ServerHandle> newLs = new ArrayList<>(servers);
+        batching = true;
+        try {
+            for (Batch.Op op : batch.ops) {
+                switch (op.type) {
+                    case add:
+                        try {
+                            addInto(newLs, op.alias, op.hostName, false, op.server, op.local, op.weight);
+                        } catch (AlreadyExistException e) {
+                            assert Logger.lowLevelDebug("server " + op.alias + " already exists in " + this.alias);
+                        }
+                        break;
+                    case remove:
+                        try {
+                            removeFrom(newLs, op.alias);
+                        } catch (NotFoundException e) {
+                            assert Logger.lowLevelDebug("server " + op.alias + " not found in " + this.alias);
+                        }
+                        break;
+                    case weight:
+                        for (ServerHandle h : newLs) {
+                            if (h.alias.equals(op.alias) && !h.logicDelete) {
+                                h.setWeight(op.weight);
+                            }
+                        }
+                        break;
+                }
+            }
+            servers = newLs;
+        } finally {
+            batching = false;
+        }
+        resetMethodRelatedFields();
+
+        assert Logger.lowLevelDebug("batch of " + batch.ops.size() + " changes applied to " + this.alias);
+    }
+
     // this method should do exactly the same as `remove()`
     // but only remove one serverHandle and do not raise error
     private synchronized void remove(ServerHandle h) {
@@ -749,6 +1042,20 @@ public class ServerGroup {
         this.serverListeners.add(serverListener);
     }
 
+    void addCapacityListener(Runnable listener) {
+        this.capacityListeners.add(listener);
+    }
+
+    void removeCapacityListener(Runnable listener) {
+        this.capacityListeners.remove(listener);
+    }
+
+    private void alertCapacityListeners() {
+        for (Runnable r : capacityListeners) {
+            r.run();
+        }
+    }
+
     public List<ServerHandle> getServerHandles() {
         return new ArrayList<>(servers);
     }
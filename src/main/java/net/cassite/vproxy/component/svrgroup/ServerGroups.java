@@ -3,19 +3,19 @@ package net.cassite.vproxy.component.svrgroup;
 import net.cassite.vproxy.component.exception.AlreadyExistException;
 import net.cassite.vproxy.component.exception.NotFoundException;
 import net.cassite.vproxy.connection.Connector;
+import net.cassite.vproxy.util.Logger;
+import net.cassite.vproxy.util.Tuple;
 
 import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.stream.Collectors;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class ServerGroups {
     public class ServerGroupHandle {
         public final String alias;
         public final ServerGroup group;
         private int weight;
+        private String zone; // nullable
 
         public ServerGroupHandle(ServerGroup group, int weight) {
             this.alias = group.alias;
@@ -29,108 +29,115 @@ public class ServerGroups {
 
         public void setWeight(int weight) {
             this.weight = weight;
-            recalculateWRR();
+            recalculate();
+        }
+
+        public String getZone() {
+            return zone;
+        }
+
+        public void setZone(String zone) {
+            this.zone = zone;
+            recalculate();
         }
     }
 
-    class WRR {
-        final AtomicInteger cursor = new AtomicInteger(0);
+    static class WRR {
+        final AtomicLong cursor = new AtomicLong(0);
         final ArrayList<ServerGroupHandle> groups;
-        int[] seq;
+        final IWRR seq;
 
-        WRR(ArrayList<ServerGroupHandle> serverGroups) {
-            this.groups = serverGroups;
+        WRR(ArrayList<ServerGroupHandle> groups) {
+            this.groups = groups;
+
+            int[] weights = new int[groups.size()];
+            for (int i = 0; i < weights.length; ++i) {
+                weights[i] = groups.get(i).weight;
+            }
+            this.seq = IWRR.build(weights);
         }
     }
 
-    public final String alias;
-    private ArrayList<ServerGroupHandle> serverGroups = new ArrayList<>(0);
-    private WRR _wrr;
+    /*
+     * the groups are split by whether they have healthy servers and whether they are in local zone:
+     *
+     * preferred: healthy groups in local zone (or all healthy groups when local zone not set)
+     * spillover: healthy groups in other zones, only used when no preferred group can provide a server
+     *
+     * the view is rebuilt when the capacity listeners of the groups are alerted
+     */
+    static class View {
+        final WRR preferred;
+        final WRR spillover;
 
-    public ServerGroups(String alias) {
-        this.alias = alias;
-        recalculateWRR();
-    }
-
-    private void recalculateWRR() {
-        ArrayList<ServerGroupHandle> groups =
-            serverGroups
-                .stream()
-                .filter(g -> g.weight > 0)
-                .collect(Collectors.toCollection(ArrayList::new));
-        WRR wrr = new WRR(groups);
-
-        if (wrr.groups.isEmpty()) {
-            wrr.seq = new int[0];
-        } else {
-            // calculate the seq
-            List<Integer> listSeq = new LinkedList<>();
-            int[] weights = new int[wrr.groups.size()];
-            int[] original = new int[wrr.groups.size()];
-            // run calculation
-            int sum = 0;
-            for (int i = 0; i < wrr.groups.size(); i++) {
-                ServerGroupHandle h = wrr.groups.get(i);
-                weights[i] = h.weight;
-                original[i] = h.weight;
-                sum += h.weight;
-            }
-            //noinspection Duplicates
-            while (true) {
-                int idx = maxIndex(weights);
-                listSeq.add(idx);
-                weights[idx] -= sum;
-                if (calculationEnd(weights)) {
-                    break;
-                }
-                for (int i = 0; i < weights.length; ++i) {
-                    weights[i] += original[i];
-                }
-                sum = sum(weights); // recalculate sum
-            }
-            int[] seq = new int[listSeq.size()];
-            Iterator<Integer> ite = listSeq.iterator();
-            int seqIdx = 0;
-            while (ite.hasNext()) {
-                int idx = ite.next();
-                seq[seqIdx++] = idx;
-            }
+        View(WRR preferred, WRR spillover) {
+            this.preferred = preferred;
+            this.spillover = spillover;
+        }
+    }
+
+    public static class Batch {
+        // weight == null means remove
+        final List<Tuple<ServerGroup, Integer>> ops = new ArrayList<>();
 
-            wrr.seq = seq;
+        public Batch add(ServerGroup group, int weight) {
+            ops.add(new Tuple<>(group, weight));
+            return this;
         }
 
-        _wrr = wrr;
+        public Batch remove(ServerGroup group) {
+            ops.add(new Tuple<>(group, null));
+            return this;
+        }
     }
 
-    private static int sum(int[] weights) {
-        int s = 0;
-        for (int w : weights) {
-            s += w;
-        }
-        return s;
+    public final String alias;
+    private ArrayList<ServerGroupHandle> serverGroups = new ArrayList<>(0);
+    private String localZone; // nullable
+    private View _view;
+    // the health change of servers will be alerted from health check event loops
+    private final Runnable capacityListener = this::refresh;
+
+    public ServerGroups(String alias) {
+        this.alias = alias;
+        recalculate();
     }
 
-    private static boolean calculationEnd(int[] weights) {
-        for (int w : weights) {
-            if (w != 0)
-                return false;
-        }
-        return true;
+    private synchronized void recalculate() {
+        ArrayList<ServerGroupHandle> preferred = new ArrayList<>();
+        ArrayList<ServerGroupHandle> spillover = new ArrayList<>();
+        split(preferred, spillover);
+        _view = new View(new WRR(preferred), new WRR(spillover));
     }
 
-    private static int maxIndex(int[] weights) {
-        int maxIdx = 0;
-        int maxVal = weights[0];
-        for (int i = 1; i < weights.length; ++i) {
-            if (weights[i] > maxVal) {
-                maxVal = weights[i];
-                maxIdx = i;
+    private void split(List<ServerGroupHandle> preferred, List<ServerGroupHandle> spillover) {
+        String localZone = this.localZone;
+        for (ServerGroupHandle h : serverGroups) {
+            if (h.weight <= 0)
+                continue;
+            if (!h.group.hasHealthy())
+                continue;
+            if (localZone == null || localZone.equals(h.zone)) {
+                preferred.add(h);
+            } else {
+                spillover.add(h);
             }
         }
-        return maxIdx;
     }
 
-    public void add(ServerGroup group, int weight) throws AlreadyExistException {
+    // only rebuild when healthy groups changed
+    private synchronized void refresh() {
+        ArrayList<ServerGroupHandle> preferred = new ArrayList<>();
+        ArrayList<ServerGroupHandle> spillover = new ArrayList<>();
+        split(preferred, spillover);
+        View view = _view;
+        if (preferred.equals(view.preferred.groups) && spillover.equals(view.spillover.groups))
+            return;
+        assert Logger.lowLevelDebug("healthy groups in " + alias + " changed");
+        _view = new View(new WRR(preferred), new WRR(spillover));
+    }
+
+    public synchronized void add(ServerGroup group, int weight) throws AlreadyExistException {
         List<ServerGroupHandle> groups = serverGroups;
         if (groups.stream().anyMatch(g -> g.group.equals(group)))
             throw new AlreadyExistException();
@@ -138,7 +145,8 @@ public class ServerGroups {
         newLs.addAll(groups);
         newLs.add(new ServerGroupHandle(group, weight));
         serverGroups = newLs;
-        recalculateWRR();
+        group.addCapacityListener(capacityListener);
+        recalculate();
     }
 
     public synchronized void remove(ServerGroup group) throws NotFoundException {
@@ -158,31 +166,108 @@ public class ServerGroups {
             throw new NotFoundException();
         }
         serverGroups = newLs;
-        recalculateWRR();
+        group.removeCapacityListener(capacityListener);
+        recalculate();
     }
 
-    public List<ServerGroupHandle> getServerGroups() {
-        return new ArrayList<>(serverGroups);
+    /**
+     * apply all changes in the batch with only one recalculation.<br>
+     * the changes are applied in the order they are recorded,
+     * adding an existing group or removing a non-existing group is ignored.
+     *
+     * @param batch changes to apply
+     */
+    public synchronized void apply(Batch batch) {
+        ArrayList<ServerGroupHandle> oldLs = serverGroups;
+        ArrayList<ServerGroupHandle> newLs = new ArrayList<>(oldLs);
+        for (Tuple<ServerGroup, Integer> op : batch.ops) {
+            if (op.right == null) {
+                newLs.removeIf(g -> g.group.equals(op.left));
+            } else if (newLs.stream().noneMatch(g -> g.group.equals(op.left))) {
+                newLs.add(new ServerGroupHandle(op.left, op.right));
+            }
+        }
+        serverGroups = newLs;
+        for (ServerGroupHandle h : oldLs) {
+            if (!newLs.contains(h)) {
+                h.group.removeCapacityListener(capacityListener);
+            }
+        }
+        for (ServerGroupHandle h : newLs) {
+            h.group.addCapacityListener(capacityListener); // it's a set
+        }
+        recalculate();
     }
 
-    public Connector next() {
-        WRR wrr = _wrr;
-        return next(wrr, 0);
+    public String getLocalZone() {
+        return localZone;
     }
 
-    private /*use static to prevent access local variable*/ static Connector next(WRR wrr, int recursion) {
-        if (recursion > wrr.seq.length)
-            return null;
-        ++recursion;
+    /**
+     * groups in the local zone are preferred,
+     * groups in other zones are only used when no local group can provide a server.
+     *
+     * @param localZone the local zone, null means no preference
+     */
+    public void setLocalZone(String localZone) {
+        this.localZone = localZone;
+        recalculate();
+    }
 
-        int idx = wrr.cursor.getAndIncrement();
-        if (wrr.seq.length <= idx) {
-            idx = idx % wrr.seq.length;
-            wrr.cursor.set(idx + 1);
+    public List<ServerGroupHandle> getServerGroups() {
+        return new ArrayList<>(serverGroups);
+    }
+
+    /**
+     * @return true if no group can provide a server now,
+     * and at least one of them is only saturated rather than down
+     */
+    public boolean saturated() {
+        boolean anySaturated = false;
+        for (ServerGroupHandle h : serverGroups) {
+            if (h.weight == 0)
+                continue;
+            if (h.group.hasAvailable()) {
+                return false;
+            }
+            if (h.group.saturated()) {
+                anySaturated = true;
+            }
         }
-        Connector connector = wrr.groups.get(wrr.seq[idx]).group.next();
+        return anySaturated;
+    }
+
+    public Connector next() {
+        View view = _view;
+        Connector connector = next(view.preferred);
         if (connector != null)
             return connector;
-        return next(wrr, recursion);
+        connector = next(view.spillover);
+        if (connector != null) {
+            assert Logger.lowLevelDebug("no server in preferred groups of " + alias + ", spill over to " + connector);
+        }
+        return connector;
+    }
+
+    private /*use static to prevent access local variable*/ static Connector next(WRR wrr) {
+        long len = wrr.seq.length;
+        for (long i = 0; i < len; ++i) {
+            long idx = wrr.cursor.getAndIncrement();
+            if (len <= idx) {
+                idx = idx % len;
+                wrr.cursor.set(idx + 1);
+            }
+            Connector connector = wrr.groups.get(wrr.seq.get(idx)).group.next();
+            if (connector != null)
+                return connector;
+            if (i == wrr.groups.size()) {
+                // already tried as many times as the group count
+                // check whether any group can provide a server
+                // to prevent walking through the whole sequence when all of them are saturated
+                if (wrr.groups.stream().noneMatch(g -> g.group.hasAvailable()))
+                    return null;
+            }
+        }
+        return null;
     }
 }
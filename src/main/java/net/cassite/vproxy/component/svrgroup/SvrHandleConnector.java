@@ -6,24 +6,46 @@ import net.cassite.vproxy.util.RingBuffer;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class SvrHandleConnector extends Connector {
     private final ServerGroup.ServerHandle serverHandle;
+    // a connection slot is reserved when the server is picked
+    // the connector may be reused by persistence, so only the first connection uses the slot
+    private final AtomicBoolean reserved;
 
-    SvrHandleConnector(ServerGroup.ServerHandle h) {
+    SvrHandleConnector(ServerGroup.ServerHandle h, boolean reserved) {
         super(h.server, new InetSocketAddress(h.local, 0));
         this.serverHandle = h;
+        this.reserved = new AtomicBoolean(reserved);
     }
 
     @Override
     public ClientConnection connect(RingBuffer in, RingBuffer out) throws IOException {
-        ClientConnection conn = super.connect(in, out);
+        if (!reserved.compareAndSet(true, false)) {
+            serverHandle.acquire();
+        }
+        ClientConnection conn;
+        try {
+            conn = super.connect(in, out);
+        } catch (IOException e) {
+            serverHandle.release();
+            throw e;
+        }
         conn.addNetFlowRecorder(serverHandle);
         serverHandle.attachConnection(conn);
         conn.addConnCloseHandler(serverHandle);
+        conn.addBandwidthLimiter(serverHandle.group().bandwidthLimiter);
         return conn;
     }
 
+    // the connector will not be used to connect, release the reserved slot
+    public void cancel() {
+        if (reserved.compareAndSet(true, false)) {
+            serverHandle.release();
+        }
+    }
+
     @Override
     public boolean isValid() {
         return serverHandle.valid;
@@ -31,8 +53,30 @@ public class SvrHandleConnector extends Connector {
 
     @Override
     public void connectionFailed() {
-        // accelerate the down process
-        serverHandle.healthCheckClient.manuallyDownOnce();
+        serverHandle.connectionFailed();
+    }
+
+    @Override
+    public void connectionReset() {
+        serverHandle.connectionReset();
+    }
+
+    @Override
+    public void connectionTimeout() {
+        serverHandle.connectionTimeout();
+    }
+
+    @Override
+    public void connectionResponded() {
+        serverHandle.connectionResponded();
+    }
+
+    public String getServerAlias() {
+        return serverHandle.alias;
+    }
+
+    public String getGroupAlias() {
+        return serverHandle.group().alias;
     }
 
     public String getHostName() {
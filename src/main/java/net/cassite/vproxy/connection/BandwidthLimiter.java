@@ -0,0 +1,12 @@
+package net.cassite.vproxy.connection;
+
+// limit bytes read from connections
+// one limiter may be shared by connections on different event loops
+public interface BandwidthLimiter {
+    // record bytes read at `now`
+    // return how long (ms) the connection should stop reading, 0 means no need to stop
+    long consume(int bytes, long now);
+
+    // return how long (ms) to wait until the connection can read again, 0 means can read now
+    long waitTime(long now);
+}
@@ -1,5 +1,6 @@
 package net.cassite.vproxy.connection;
 
+import net.cassite.vproxy.app.Config;
 import net.cassite.vproxy.selector.TimerEvent;
 import net.cassite.vproxy.util.Logger;
 import net.cassite.vproxy.util.RingBuffer;
@@ -9,6 +10,7 @@ import net.cassite.vproxy.util.Utils;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.channels.*;
+import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.CopyOnWriteArrayList;
 
@@ -39,7 +41,7 @@ public class Connection implements NetFlowRecorder {
         public void writableET() {
             assert Logger.lowLevelNetDebug("writableET triggered " + Connection.this);
             NetEventLoop eventLoop = _eventLoop;
-            if (!closed && eventLoop != null) {
+            if (!closed && eventLoop != null && !readPaused) {
                 // the buffer is writable means the channel can read data
                 assert Logger.lowLevelDebug("in buffer is writable, add READ for channel " + channel);
                 eventLoop.getSelectorEventLoop().addOps(channel, SelectionKey.OP_READ);
@@ -174,6 +176,13 @@ public class Connection implements NetFlowRecorder {
 
     private boolean closed = false;
 
+    // bandwidth limiters, checked when reading from the channel
+    private static final BandwidthLimiter[] NO_LIMITERS = new BandwidthLimiter[0];
+    private volatile BandwidthLimiter[] bandwidthLimiters = NO_LIMITERS;
+    private volatile BandwidthLimiter[] peerBandwidthLimiters = NO_LIMITERS;
+    private boolean readPaused = false; // only accessed on event loop
+    private TimerEvent resumeReadingEvent; // only accessed on event loop
+
     Connection(Protocol protocol,
                SelectableChannel channel,
                InetSocketAddress remote,
@@ -257,6 +266,84 @@ public class Connection implements NetFlowRecorder {
         connCloseHandlers.add(cch);
     }
 
+    // NOTE: this is not thread safe
+    public void addBandwidthLimiter(BandwidthLimiter limiter) {
+        BandwidthLimiter[] arr = Arrays.copyOf(bandwidthLimiters, bandwidthLimiters.length + 1);
+        arr[arr.length - 1] = limiter;
+        bandwidthLimiters = arr;
+    }
+
+    // the bytes read from this connection will also be limited by the limiters of the `peer`
+    // (only the limiters added by addBandwidthLimiter() are used)
+    // e.g. the two connections of a proxy session
+    // NOTE: this is not thread safe
+    public void shareBandwidthLimiters(Connection peer) {
+        this.peerBandwidthLimiters = peer.bandwidthLimiters;
+        peer.peerBandwidthLimiters = this.bandwidthLimiters;
+    }
+
+    boolean isBandwidthLimited() {
+        return bandwidthLimiters.length != 0 || peerBandwidthLimiters.length != 0;
+    }
+
+    // record the read bytes, and stop reading for a while if any limiter requires
+    void consumeBandwidth(int bytes) {
+        long now = Config.currentTimestamp;
+        long wait = 0;
+        for (BandwidthLimiter l : bandwidthLimiters) {
+            wait = Math.max(wait, l.consume(bytes, now));
+        }
+        for (BandwidthLimiter l : peerBandwidthLimiters) {
+            wait = Math.max(wait, l.consume(bytes, now));
+        }
+        if (wait > 0) {
+            pauseReading(wait);
+        }
+    }
+
+    private long bandwidthWaitTime() {
+        long now = Config.currentTimestamp;
+        long wait = 0;
+        for (BandwidthLimiter l : bandwidthLimiters) {
+            wait = Math.max(wait, l.waitTime(now));
+        }
+        for (BandwidthLimiter l : peerBandwidthLimiters) {
+            wait = Math.max(wait, l.waitTime(now));
+        }
+        return wait;
+    }
+
+    private void pauseReading(long wait) {
+        NetEventLoop eventLoop = _eventLoop;
+        if (closed || eventLoop == null)
+            return;
+        assert Logger.lowLevelDebug("bandwidth exceeded, stop reading for " + wait + "ms " + this);
+        readPaused = true;
+        eventLoop.getSelectorEventLoop().rmOps(channel, SelectionKey.OP_READ);
+        if (resumeReadingEvent != null) {
+            resumeReadingEvent.cancel();
+        }
+        resumeReadingEvent = eventLoop.getSelectorEventLoop().delay((int) Math.min(wait, Integer.MAX_VALUE), this::resumeReading);
+    }
+
+    private void resumeReading() {
+        resumeReadingEvent = null;
+        NetEventLoop eventLoop = _eventLoop;
+        if (closed || eventLoop == null)
+            return;
+        // the tokens might be taken by other connections
+        long wait = bandwidthWaitTime();
+        if (wait > 0) {
+            pauseReading(wait);
+            return;
+        }
+        readPaused = false;
+        if (!remoteClosed && getInBuffer().free() > 0) {
+            assert Logger.lowLevelDebug("bandwidth available, add READ for channel " + channel);
+            eventLoop.getSelectorEventLoop().addOps(channel, SelectionKey.OP_READ);
+        }
+    }
+
     protected String genId() {
         return (protocol == Protocol.UDP ? "UDP:" : "")
             + Utils.ipStr(remote.getAddress().getAddress()) + ":" + remote.getPort()
@@ -285,6 +372,11 @@ public class Connection implements NetFlowRecorder {
         // but here we clear it since it doesn't hurt
         netFlowRecorders.clear();
 
+        if (resumeReadingEvent != null) {
+            resumeReadingEvent.cancel();
+            resumeReadingEvent = null;
+        }
+
         // clear close handler here
         for (ConnCloseHandler h : connCloseHandlers)
             h.onConnClose(this);
@@ -34,6 +34,23 @@ public class Connector {
         // do nothing in default implementation
     }
 
+    // let user code alert that the connection is reset
+    // before receiving any data from the remote
+    public void connectionReset() {
+        // do nothing in default implementation
+    }
+
+    // let user code alert that the connection timed out
+    // before receiving any data from the remote
+    public void connectionTimeout() {
+        // do nothing in default implementation
+    }
+
+    // let user code know that the remote responded some data on the connection
+    public void connectionResponded() {
+        // do nothing in default implementation
+    }
+
     // provide a event loop
     public NetEventLoop loop() {
         return null; // default: do not provide
@@ -432,6 +432,11 @@ class HandlerForConnection implements Handler<SelectableChannel> {
                 ctx.rmOps(SelectionKey.OP_READ);
             }
         }
+        if (cctx.connection.isBandwidthLimited()) {
+            // it's checked after reading, so the limiter only needs to know how many bytes are read
+            // and the bytes exceeding the limit will be paid by stopping reading for a while
+            cctx.connection.consumeBandwidth(read);
+        }
     }
 
     @Override
@@ -0,0 +1,80 @@
+package net.cassite.vproxy.connection;
+
+import net.cassite.vproxy.util.ThreadSafe;
+
+// a token bucket of bytes, which holds at most tokens of one second
+// the bytes are recorded after read, so the tokens might be negative,
+// and the readers should wait until the debt is paid
+public class TokenBucket implements BandwidthLimiter {
+    private volatile long rate; // bytes per second, 0 means no limit
+    // the following fields are protected by the bucket lock
+    private long tokens; // 1/1000 bytes
+    private long lastRefill;
+
+    public TokenBucket(long rate) {
+        this.rate = rate;
+        this.tokens = rate * 1000;
+    }
+
+    public long getRate() {
+        return rate;
+    }
+
+    @ThreadSafe
+    public synchronized void setRate(long rate) {
+        this.rate = rate;
+        this.tokens = Math.min(tokens, rate * 1000);
+    }
+
+    // the tokens after refilling for `elapsed` milliseconds
+    // `rate` bytes per second, i.e. `rate` 1/1000 bytes per millisecond
+    // also used by the buckets stored in tables, see ClientBandwidthLimiter
+    public static long refill(long tokens, long elapsed, long rate) {
+        if (elapsed <= 0)
+            return tokens;
+        long full = rate * 1000;
+        // check the time to fill the bucket first, which also avoids overflow
+        long needed = (full - tokens + rate - 1) / rate;
+        return elapsed >= needed ? full : tokens + elapsed * rate;
+    }
+
+    // how long (ms) until the debt is paid
+    public static long debtTime(long tokens, long rate) {
+        if (tokens >= 0)
+            return 0;
+        return (-tokens + rate - 1) / rate;
+    }
+
+    private void refill(long rate, long now) {
+        long elapsed = now - lastRefill;
+        if (elapsed <= 0)
+            return;
+        lastRefill = now;
+        tokens = refill(tokens, elapsed, rate);
+    }
+
+    @Override
+    @ThreadSafe
+    public long consume(int bytes, long now) {
+        long rate = this.rate;
+        if (rate == 0)
+            return 0;
+        synchronized (this) {
+            refill(rate, now);
+            tokens -= bytes * 1000L;
+            return debtTime(tokens, rate);
+        }
+    }
+
+    @Override
+    @ThreadSafe
+    public long waitTime(long now) {
+        long rate = this.rate;
+        if (rate == 0)
+            return 0;
+        synchronized (this) {
+            refill(rate, now);
+            return debtTime(tokens, rate);
+        }
+    }
+}
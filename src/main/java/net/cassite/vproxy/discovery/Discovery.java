@@ -7,8 +7,11 @@ import net.cassite.vproxy.component.svrgroup.Method;
 import net.cassite.vproxy.component.svrgroup.ServerGroup;
 import net.cassite.vproxy.component.svrgroup.ServerListener;
 import net.cassite.vproxy.connection.*;
+import net.cassite.vproxy.discovery.protocol.BinaryMsg;
+import net.cassite.vproxy.discovery.protocol.GossipMsg;
 import net.cassite.vproxy.discovery.protocol.NodeDataMsg;
 import net.cassite.vproxy.discovery.protocol.NodeExistenceMsg;
+import net.cassite.vproxy.discovery.protocol.NodeSyncMsg;
 import net.cassite.vproxy.protocol.ProtocolServerConfig;
 import net.cassite.vproxy.protocol.ProtocolServerHandler;
 import net.cassite.vproxy.redis.RESPConfig;
@@ -38,20 +41,35 @@ import java.util.stream.Collectors;
  * When the instance is started:
  * 1. bind udp and tcp port on the specified nic
  * 2. start a udp sock, and try to send the following data to each ip:port in the specified subnet and port range
- * ******** version=1, type=search, nodeName, udpPort, tcpPort, SHA512(sort(nodeName+address+udpPort+tcpPort (only healthy))) ********
- * 3. the server who receives a `search` packet, it will check the SHA512 of vproxy nodes info, and if doesn't match:
+ * ******** version=1, type=search, nodeName, udpPort, tcpPort, digest(nodeName+address+udpPort+tcpPort (only healthy)) ********
+ * 3. the server who receives a `search` packet, it will check the digest of vproxy nodes info, and if doesn't match:
  * 4. the server will send a udp packet to the sender's bindAddress:udpPort
- * ******** version=1, type=inform, nodeName, udpPort, tcpPort, SHA512(sort(nodeName+address+udpPort+tcpPort (only healthy))) ********
- * 5. when a discovery instance receives the `inform` packet, it checks the SHA512, and if doesn't match:
- * 6. make a tcp connection to the server bindAddress:tcpPort, and send the full info of vproxy nodes:
- * ******** version=1, type=nodes, list:[nodeName,address,tcpPort,status] ********
- * 7. then the remote server will send back its vproxy nodes info
- * ******** version=1, type=nodes, list:[nodeName,address,udpPort,tcpPort,status] ********
+ * ******** version=1, type=inform, nodeName, udpPort, tcpPort, digest(nodeName+address+udpPort+tcpPort (only healthy)) ********
+ * 5. when a discovery instance receives the `inform` packet, it checks the digest, and if doesn't match:
+ * 6. send the digest of each bucket to the server bindAddress:tcpPort via tcp (the connection is kept for later requests):
+ * ******** version=1, type=sync, list:[bucket digest] ********
+ * 7. then the remote server will send back its vproxy nodes info in the buckets whose digests don't match
+ * ******** version=1, type=nodes, list:[nodeName,address,udpPort,tcpPort,status,incarnation], list:[bucket] ********
+ * 7.1. and the node sends its nodes in these buckets to the remote, the remote responds the same way
+ * ******** version=1, type=nodes, list:[nodeName,address,udpPort,tcpPort,status,incarnation], list:[bucket] ********
  * 8. all missing nodes will be added to the nodes list, initially down, will be up when health check succeeds
  * 9. when health check is down for 5 minutes, it will be removed from the node list
  * 10. when the node leaves, it sends the following udp packet to all known nodes
  * ******** version=1, type=leave, nodeName, udpPort, tcpPort, (empty string) ********
  * 11. when receiving the packet, they will remove the left node
+ * <p>
+ * The resp udp messages carry a 7th element: the max version the sender supports.
+ * When a peer supports version 2, the search/inform/leave messages sent to it use the binary format,
+ * see {@link NodeExistenceMsg#BINARY_VERSION}, which is parsed without a resp parser.
+ * When a peer supports version 3, the requests to its tcp port are pipelined,
+ * see {@link NodeExistenceMsg#PIPELINE_VERSION}.
+ * When a peer supports version 4, the data messages sent to its tcp port use the binary format,
+ * see {@link BinaryMsg}, and the responses use the format of the requests.
+ * <p>
+ * When seeds are specified in the config, the network is not searched,
+ * and the nodes are found and checked by the SWIM style gossip, see {@link Gossip}:
+ * ******** version=1, type=ping|ping-req|ack, nodeName, udpPort, tcpPort, incarnation, seq, targetAddress, targetUdpPort, list:[nodeName,address,udpPort,tcpPort,state,incarnation] ********
+ * the full node list (step 6/7) is exchanged with the first node found and then periodically with a random node.
  */
 public class Discovery {
     class NodeExistenceServerHandler implements ServerHandler {
@@ -101,21 +119,48 @@ public class Discovery {
             }
         }
 
+        // only used on the event loop thread, the blocking receiving thread has its own array
+        private final byte[] recvBytes = new byte[2048]; // same as the in buffer
+        private final ByteArrayChannel recvChnl = ByteArrayChannel.fromEmpty(recvBytes);
+        // the packets are received either on the event loop or on the blocking receiving thread,
+        // never both, so one parser is reused for all resp packets
+        private final RESPParser parser = new RESPParser(16384); // same as the blocking receiving array
+
         @Override
         public void readable(ConnectionHandlerContext ctx) {
-            handle(ctx.connection.remote.getAddress(), ctx.connection.getInBuffer());
+            RingBuffer rb = ctx.connection.getInBuffer();
+            recvChnl.reset();
+            while (rb.used() > 0 && recvChnl.free() > 0) {
+                rb.writeTo(recvChnl);
+            }
+            if (rb.used() > 0) {
+                Logger.error(LogType.INVALID_EXTERNAL_DATA, "invalid data, packet too large");
+                clearBuffer(rb);
+                return;
+            }
+            readable(ctx.connection.remote.getAddress(), recvBytes, recvChnl.used());
         }
 
+        // the binary and resp messages are both parsed from the bytes directly
         public void readable(InetAddress remoteAddr, byte[] bytes, int len) {
-            RingBuffer rb = RingBuffer.allocate(len);
-            ByteArrayChannel chnl = ByteArrayChannel.from(bytes, 0, len, 0);
-            rb.storeBytesFrom(chnl);
-            handle(remoteAddr, rb);
+            ByteBuffer buf = ByteBuffer.wrap(bytes, 0, len);
+            if (NodeExistenceMsg.isBinary(bytes, len)) {
+                NodeExistenceMsg msg;
+                try {
+                    msg = NodeExistenceMsg.parseBinary(buf);
+                } catch (XException e) {
+                    Logger.error(LogType.INVALID_EXTERNAL_DATA, e.getMessage());
+                    return;
+                }
+                handleExistence(remoteAddr, msg);
+                return;
+            }
+            handle(remoteAddr, buf);
         }
 
-        void handle(InetAddress remoteAddr, RingBuffer buffer) {
-            RESPParser parser = new RESPParser(buffer.capacity());
-            int res = parser.feed(buffer);
+        private void handle(InetAddress remoteAddr, ByteBuffer buf) {
+            parser.reset();
+            int res = parser.feed(buf);
             if (res == -1) {
                 String msg = parser.getErrorMessage();
                 if (msg == null) {
@@ -123,15 +168,17 @@ public class Discovery {
                 } else {
                     Logger.error(LogType.INVALID_EXTERNAL_DATA, "parse error " + msg);
                 }
-                clearBuffer(buffer);
                 return;
             }
-            if (buffer.used() > 0) {
+            if (buf.hasRemaining()) {
                 Logger.error(LogType.INVALID_EXTERNAL_DATA, "invalid data, still have data after parsing");
-                clearBuffer(buffer);
                 return;
             }
             Object o = parser.getResult().getJavaObject();
+            if (o instanceof List && ((List) o).size() > 1 && GossipMsg.isGossipType(((List) o).get(1))) {
+                handleGossip(remoteAddr, o);
+                return;
+            }
             NodeExistenceMsg msg;
             try {
                 msg = NodeExistenceMsg.parse(o);
@@ -139,8 +186,11 @@ public class Discovery {
                 Logger.error(LogType.INVALID_EXTERNAL_DATA, e.getMessage());
                 return;
             }
+            handleExistence(remoteAddr, msg);
+        }
 
-            if (msg.version != 1) {
+        private void handleExistence(InetAddress remoteAddr, NodeExistenceMsg msg) {
+            if (msg.version != 1 && msg.version != NodeExistenceMsg.BINARY_VERSION) {
                 Logger.error(LogType.INVALID_EXTERNAL_DATA, "invalid message, version not match: " + msg);
                 return;
             }
@@ -155,6 +205,22 @@ public class Discovery {
 
             String remote = Utils.ipStr(remoteAddr.getAddress());
 
+            InetSocketAddress peer = new InetSocketAddress(remoteAddr, msg.udpPort);
+            if (msg.type.equals("leave") || msg.supportedVersion < NodeExistenceMsg.BINARY_VERSION) {
+                binaryPeers.remove(peer);
+            } else {
+                binaryPeers.add(peer);
+            }
+            // requests to the tcp port are pipelined only when the peer can handle them
+            InetSocketAddress tcpPeer = new InetSocketAddress(remoteAddr, msg.tcpPort);
+            channels.setPipelining(tcpPeer,
+                !msg.type.equals("leave") && msg.supportedVersion >= NodeExistenceMsg.PIPELINE_VERSION);
+            if (msg.type.equals("leave") || msg.supportedVersion < NodeExistenceMsg.BINARY_DATA_VERSION) {
+                binaryDataPeers.remove(tcpPeer);
+            } else {
+                binaryDataPeers.add(tcpPeer);
+            }
+
             switch (msg.type) {
                 case "search": {
                     if (msg.hash.equals(Discovery.this.hash)) {
@@ -204,6 +270,26 @@ public class Discovery {
             // there are no other types
         }
 
+        private void handleGossip(InetAddress remoteAddr, Object o) {
+            GossipMsg msg;
+            try {
+                msg = GossipMsg.parse(o);
+            } catch (XException e) {
+                Logger.error(LogType.INVALID_EXTERNAL_DATA, e.getMessage());
+                return;
+            }
+            if (msg.version != 1) {
+                Logger.error(LogType.INVALID_EXTERNAL_DATA, "invalid message, version not match: " + msg);
+                return;
+            }
+            if (gossip == null) {
+                Logger.error(LogType.INVALID_EXTERNAL_DATA, "gossip is not enabled, drop message: " + msg);
+                return;
+            }
+            // the handler might be running on the blocking udp thread
+            loop.getSelectorEventLoop().runOnLoop(() -> gossip.handle(remoteAddr, msg));
+        }
+
         @Override
         public void writable(ConnectionHandlerContext ctx) {
             // ignore
@@ -234,14 +320,19 @@ public class Discovery {
 
         @Override
         public void handle(Object o, RESPApplicationContext ctx, Callback<Object, Throwable> cb) {
-            if (o instanceof List && ((List) o).size() > 2
+            // the response uses the same format as the request
+            String binaryType = BinaryMsg.typeOf(o);
+            boolean binary = binaryType != null;
+            if ((binary && !binaryType.equals("nodes") && !binaryType.equals("sync"))
+                || (o instanceof List && ((List) o).size() > 2
                 && (((List) o).get(0).equals(1)) // version == 1
                 && !(((List) o).get(1).equals("nodes")) // type != nodes
-            ) {
-                // not `nodes` message
+                && !(((List) o).get(1).equals("sync")) // type != sync
+            )) {
+                // not `nodes` or `sync` message
                 // maybe an upper level message
                 // so let's try to handle it in external application handler
-                String type = (String) ((List) o).get(1);
+                String type = binary ? binaryType : (String) ((List) o).get(1);
                 boolean found = false;
                 for (NodeDataHandler h : externalHandlers) {
                     if (h.canHandle(type)) {
@@ -255,11 +346,16 @@ public class Discovery {
                 }
                 return;
             }
-            handleReceivedNodeData(o, new Callback<Void, XException>() {
+            if (binary ? binaryType.equals("sync")
+                : (o instanceof List && ((List) o).size() > 2 && ((List) o).get(1).equals("sync"))) {
+                handleSync(o, binary, cb);
+                return;
+            }
+            handleReceivedNodeData(o, new Callback<NodeDataMsg, XException>() {
                 @Override
-                protected void onSucceeded(Void value) {
+                protected void onSucceeded(NodeDataMsg msg) {
                     // return this node messages
-                    cb.succeeded(getNodeDataToSend());
+                    cb.succeeded(getNodeDataToSend(msg.buckets, binary));
                 }
 
                 @Override
@@ -273,6 +369,7 @@ public class Discovery {
     class NodeDetach {
         public final String keyName;
         public final Node node;
+        public final long digest;
         public TimerEvent detachTimer;
 
         NodeDetach(Node node) {
@@ -282,8 +379,9 @@ public class Discovery {
         NodeDetach(String keyName, Node node, boolean doNotDetach) {
             this.keyName = keyName;
             this.node = node;
+            this.digest = digestOf(node);
 
-            if (!doNotDetach /*this flag is true only when adding THIS node itself*/) {
+            if (!doNotDetach /*this flag is true only when adding THIS node itself or an alive node found by gossip*/) {
                 // the node is unhealthy by default
                 // so add the detach timer when initiating
                 startTimer();
@@ -319,7 +417,7 @@ public class Discovery {
 
             n.pause(); // stop the timer because it's up
 
-            n.node.healthy = true;
+            setHealthy(n, true);
             calcAll(); // recalculate hash and other related things
 
             // alert up
@@ -337,7 +435,7 @@ public class Discovery {
 
             n.startTimer(); // it's down, so start the detach timer
 
-            n.node.healthy = false;
+            setHealthy(n, false);
             calcAll(); // recalculate hash and other related things
 
             // alert down
@@ -365,11 +463,35 @@ public class Discovery {
         }
     }
 
-    private static String buildGroupServerName(Node n) {
+    static final int DIGEST_BUCKETS = 16;
+
+    // the identity of the node, so the digest never changes
+    private static long digestOf(Node n) {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            Logger.shouldNotHappen("SHA-256 not found");
+            throw new RuntimeException(e);
+        }
+        md.update((n.nodeName + "," + n.address + "," + n.udpPort + "," + n.tcpPort).getBytes());
+        byte[] bytes = md.digest();
+        long l = 0;
+        for (int i = 0; i < 8; ++i) {
+            l = (l << 8) | (bytes[i] & 0xff);
+        }
+        return l;
+    }
+
+    private static int bucketOf(long digest) {
+        return (int) (digest >>> 60); // 16 buckets
+    }
+
+    static String buildGroupServerName(Node n) {
         return buildGroupServerName(n.nodeName, n.address, n.tcpPort);
     }
 
-    private static String buildGroupServerName(String nodeName, String address, int tcpPort) {
+    static String buildGroupServerName(String nodeName, String address, int tcpPort) {
         return nodeName + "@" + address + ":" + tcpPort;
     }
 
@@ -378,6 +500,7 @@ public class Discovery {
     public final Node localNode;
 
     public final DiscoveryConfig config;
+    public final RESPClientChannelManager channels; // tcp connections to other nodes
     private long searchCount = 0;
     private long searchAddressCursor = 0;
     private int searchPortCursor = 0;
@@ -386,8 +509,14 @@ public class Discovery {
     private final Map<String /*buildGroupServerName*/, NodeDetach> nodes = new ConcurrentHashMap<>();
     private final ServerGroup hcGroup;
     private String hash;
+    private final long[] digestBuckets = new long[DIGEST_BUCKETS]; // sum of digests of healthy nodes in each bucket
     private final ByteBuffer searchBuffer;
     private final ByteBuffer informBuffer;
+    private final ByteBuffer searchBinBuffer;
+    private final ByteBuffer informBinBuffer;
+    private final Set<InetSocketAddress> binaryPeers = ConcurrentHashMap.newKeySet(); // address:udpPort of nodes supporting the binary format
+    private final Set<InetSocketAddress> binaryDataPeers = ConcurrentHashMap.newKeySet(); // address:tcpPort of nodes supporting the binary data messages
+    private final BinaryMsg binaryMsg = new BinaryMsg(4096); // only used on the discovery loop
 
     // resources
     private final EventLoopGroup eventLoopGroup;
@@ -398,6 +527,7 @@ public class Discovery {
     private final BindServer udpServer;
     private final DatagramSocket udpBlockingServer;
     private final BindServer tcpServer;
+    private final Gossip gossip; // null if searching the network
 
     private boolean intoInterval = false; // should go into a long interval
     private boolean isInInterval = false; // is already into the interval
@@ -419,6 +549,8 @@ public class Discovery {
         ServerGroup hcGroup = null;
         ByteBuffer searchBuffer = null;
         ByteBuffer informBuffer = null;
+        ByteBuffer searchBinBuffer = null;
+        ByteBuffer informBinBuffer = null;
         DatagramChannel udpSock = null;
         DatagramSocket udpBlockingSock = null;
         BindServer udpServer = null;
@@ -452,6 +584,8 @@ public class Discovery {
                 Logger.shouldNotHappen("adding health check group failed", e);
                 throw new RuntimeException(e);
             }
+            // the nodes are found one by one, so check them immediately
+            hcGroup.setJitterFirstCheck(false);
             hcGroup.addServerListener(new HealthListener());
 
             searchBuffer = Config.useDatagramChannel
@@ -460,11 +594,18 @@ public class Discovery {
             informBuffer = Config.useDatagramChannel
                 ? ByteBuffer.allocateDirect(nodeName.getBytes().length + 256/*make it large enough*/)
                 : ByteBuffer.allocate(/*--*/nodeName.getBytes().length + 256/*make it large enough*/);
+            searchBinBuffer = Config.useDatagramChannel
+                ? ByteBuffer.allocateDirect(nodeName.getBytes().length + 256/*make it large enough*/)
+                : ByteBuffer.allocate(/*--*/nodeName.getBytes().length + 256/*make it large enough*/);
+            informBinBuffer = Config.useDatagramChannel
+                ? ByteBuffer.allocateDirect(nodeName.getBytes().length + 256/*make it large enough*/)
+                : ByteBuffer.allocate(/*--*/nodeName.getBytes().length + 256/*make it large enough*/);
             Node n = new Node(nodeName, config.bindAddress, config.udpPort, config.tcpPort);
-            n.healthy = true;
             this.localNode = n;
             String groupServerName = buildGroupServerName(nodeName, config.bindAddress, config.tcpPort);
-            nodes.put(groupServerName, new NodeDetach(groupServerName, n, true));
+            NodeDetach self = new NodeDetach(groupServerName, n, true);
+            setHealthy(self, true);
+            nodes.put(groupServerName, self);
 
             udpSock = startUdpSock();
             udpBlockingSock = startUdpBlockingSock();
@@ -485,6 +626,10 @@ public class Discovery {
                 Utils.clean(searchBuffer);
             if (informBuffer != null)
                 Utils.clean(informBuffer);
+            if (searchBinBuffer != null)
+                Utils.clean(searchBinBuffer);
+            if (informBinBuffer != null)
+                Utils.clean(informBinBuffer);
             if (udpSock != null)
                 udpSock.close();
             if (udpBlockingSock != null)
@@ -512,11 +657,14 @@ public class Discovery {
         this.hcGroup = hcGroup;
         this.searchBuffer = searchBuffer;
         this.informBuffer = informBuffer;
+        this.searchBinBuffer = searchBinBuffer;
+        this.informBinBuffer = informBinBuffer;
         this.udpSock = udpSock;
         this.udpBlockingSock = udpBlockingSock;
         this.udpServer = udpServer;
         this.udpBlockingServer = udpBlockingServer;
         this.tcpServer = tcpServer;
+        this.channels = new RESPClientChannelManager(loop, config.bindInetAddress);
 
         // calc
         calcAll();
@@ -524,7 +672,13 @@ public class Discovery {
 
         // start
         startUdpBlockingServer();
-        loop.getSelectorEventLoop().delay(config.timeoutConfig.delayWhenNotJoined, this::startSearch);
+        if (config.seeds.isEmpty()) {
+            this.gossip = null;
+            loop.getSelectorEventLoop().delay(config.timeoutConfig.delayWhenNotJoined, this::startSearch);
+        } else {
+            this.gossip = new Gossip(this);
+            gossip.start();
+        }
     }
 
     private void alertNodeListeners(Consumer<NodeListener> f) {
@@ -533,7 +687,7 @@ public class Discovery {
         }
     }
 
-    private void handleReceivedNodeData(Object o, Callback<Void, XException> cb) {
+    private void handleReceivedNodeData(Object o, Callback<NodeDataMsg, XException> cb) {
         NodeDataMsg msg;
         try {
             msg = NodeDataMsg.parse(o);
@@ -555,7 +709,7 @@ public class Discovery {
         Logger.info(LogType.DISCOVERY_EVENT, "receive nodes message, recording ...");
 
         // parse done
-        cb.succeeded(null);
+        cb.succeeded(msg);
 
         // record the nodes
         for (Node n : msg.nodes) {
@@ -563,22 +717,94 @@ public class Discovery {
         }
     }
 
-    private Object[] getNodeDataToSend() {
-        List<Object[]> nodeList = new LinkedList<>();
+    private void handleSync(Object o, boolean binary, Callback<Object, Throwable> cb) {
+        NodeSyncMsg msg;
+        try {
+            msg = NodeSyncMsg.parse(o);
+        } catch (XException e) {
+            Logger.error(LogType.INVALID_EXTERNAL_DATA, e.getMessage());
+            cb.failed(e);
+            return;
+        }
+        if (msg.version != 1) {
+            Logger.error(LogType.INVALID_EXTERNAL_DATA, "invalid message, version mismatch: " + msg);
+            cb.failed(new XException("version mismatch"));
+            return;
+        }
+        if (msg.buckets.size() != DIGEST_BUCKETS) {
+            Logger.error(LogType.INVALID_EXTERNAL_DATA, "invalid message, bucket count mismatch: " + msg);
+            cb.failed(new XException("bucket count mismatch"));
+            return;
+        }
+        List<Integer> diff = new LinkedList<>();
+        for (int i = 0; i < DIGEST_BUCKETS; ++i) {
+            if (msg.buckets.get(i) != digestBuckets[i]) {
+                diff.add(i);
+            }
+        }
+        assert Logger.lowLevelDebug("receive sync message, buckets differ: " + diff);
+        cb.succeeded(getNodeDataToSend(diff, binary));
+    }
+
+    private Object getSyncDataToSend(boolean binary) {
+        if (binary) {
+            return NodeSyncMsg.toBinary(binaryMsg, digestBuckets);
+        }
+        List<String> buckets = new ArrayList<>(DIGEST_BUCKETS);
+        for (long b : digestBuckets) {
+            buckets.add(Long.toHexString(b));
+        }
+        return new Object[]{
+            1 /*version*/,
+            "sync" /*type*/,
+            buckets,
+        };
+    }
+
+    // buckets: only send nodes in these buckets, or null for all nodes
+    private Object getNodeDataToSend(List<Integer> buckets, boolean binary) {
+        boolean[] inBuckets = null;
+        if (buckets != null) {
+            inBuckets = new boolean[DIGEST_BUCKETS];
+            for (int b : buckets) {
+                if (b >= 0 && b < DIGEST_BUCKETS) {
+                    inBuckets[b] = true;
+                }
+            }
+        }
+        List<Node> toSend = new LinkedList<>();
         for (NodeDetach n : nodes.values()) {
+            if (inBuckets != null && !inBuckets[bucketOf(n.digest)])
+                continue;
+            toSend.add(n.node);
+        }
+        if (binary) {
+            return NodeDataMsg.toBinary(binaryMsg, toSend, buckets);
+        }
+        List<Object[]> nodeList = new LinkedList<>();
+        for (Node n : toSend) {
             Object[] e = {
-                n.node.nodeName,
-                n.node.address,
-                n.node.udpPort,
-                n.node.tcpPort,
-                n.node.healthy ? 1 : 0 // resp doesn't support boolean
+                n.nodeName,
+                n.address,
+                n.udpPort,
+                n.tcpPort,
+                n.healthy ? 1 : 0, // resp doesn't support boolean
+                n.incarnation,
             };
             nodeList.add(e);
         }
+        if (buckets == null) {
+            return new Object[]{
+                1 /*version*/,
+                "nodes" /*type*/,
+                nodeList,
+            };
+        }
         return new Object[]{
             1 /*version*/,
             "nodes" /*type*/,
             nodeList,
+            buckets,
         };
     }
 
@@ -664,6 +890,10 @@ public class Discovery {
     }
 
     private void recordNode(Node node) {
+        if (gossip != null) {
+            gossip.merge(node);
+            return;
+        }
         String groupServerName = buildGroupServerName(node);
         if (!nodes.containsKey(groupServerName)) {
             Logger.info(LogType.DISCOVERY_EVENT, "recording new node: " + node);
@@ -684,11 +914,19 @@ public class Discovery {
             Logger.error(LogType.INVALID_EXTERNAL_DATA, "the name " + groupServerName + " not exists");
             return;
         }
-        Node node = nodes.remove(groupServerName).node;
-        try {
-            hcGroup.remove(groupServerName);
-        } catch (NotFoundException e) {
-            Logger.shouldNotHappen("the node not exist in hcGroup " + groupServerName);
+        NodeDetach removed = nodes.remove(groupServerName);
+        Node node = removed.node;
+        if (node.healthy) {
+            digestBuckets[bucketOf(removed.digest)] -= removed.digest;
+        }
+        if (gossip == null) {
+            try {
+                hcGroup.remove(groupServerName);
+            } catch (NotFoundException e) {
+                Logger.shouldNotHappen("the node not exist in hcGroup " + groupServerName);
+            }
+        } else {
+            gossip.removed(groupServerName);
         }
         calcAll();
 
@@ -698,6 +936,50 @@ public class Discovery {
         Logger.warn(LogType.DISCOVERY_EVENT, "node " + groupServerName + " is REMOVED");
     }
 
+    // the node is found alive by gossip
+    void gossipUp(String groupServerName, Node node) {
+        NodeDetach n = nodes.get(groupServerName);
+        if (n == null) {
+            Logger.info(LogType.DISCOVERY_EVENT, "recording new node: " + node);
+            n = new NodeDetach(groupServerName, node, true);
+            nodes.put(groupServerName, n);
+        } else {
+            n.pause();
+        }
+        if (n.node.healthy)
+            return;
+
+        Logger.info(LogType.DISCOVERY_EVENT, "node " + groupServerName + " is UP");
+        Node upNode = n.node;
+        setHealthy(n, true);
+        calcAll(); // recalculate hash and other related things
+        alertNodeListeners(lsn -> lsn.up(upNode));
+    }
+
+    // the node is confirmed dead by gossip
+    void gossipDown(String groupServerName) {
+        NodeDetach n = nodes.get(groupServerName);
+        if (n == null)
+            return; // already removed
+        n.startTimer();
+        if (!n.node.healthy)
+            return;
+
+        Logger.warn(LogType.DISCOVERY_EVENT, "node " + groupServerName + " is DOWN");
+        setHealthy(n, false);
+        calcAll(); // recalculate hash and other related things
+        alertNodeListeners(lsn -> lsn.down(n.node));
+    }
+
+    void sendGossip(byte[] bytes, InetSocketAddress sockAddr) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        try {
+            sendBuffer(buffer, sockAddr);
+        } catch (IOException e) {
+            assert Logger.lowLevelDebug("send gossip message to " + sockAddr + " got error " + e);
+        }
+    }
+
     private void sendBuffer(ByteBuffer buffer, InetSocketAddress sockAddr) throws IOException {
         int pos = buffer.position();
         int lim = buffer.limit();
@@ -724,8 +1006,9 @@ public class Discovery {
     }
 
     private void informNode(Node node) {
+        InetSocketAddress sockAddr = new InetSocketAddress(node.inetAddress, node.udpPort);
         try {
-            sendBuffer(informBuffer, new InetSocketAddress(node.inetAddress, node.udpPort));
+            sendBuffer(binaryPeers.contains(sockAddr) ? informBinBuffer : informBuffer, sockAddr);
         } catch (IOException e) {
             assert Logger.lowLevelDebug("send inform message got error " + e);
         }
@@ -750,7 +1033,7 @@ public class Discovery {
         InetSocketAddress sockAddr = nextSearch();
         if (sockAddr != null) {
             try {
-                sendBuffer(searchBuffer, sockAddr);
+                sendBuffer(binaryPeers.contains(sockAddr) ? searchBinBuffer : searchBuffer, sockAddr);
             } catch (IOException e) {
                 assert Logger.lowLevelDebug("send search message got error " + e);
             }
@@ -814,15 +1097,19 @@ public class Discovery {
         return new InetSocketAddress(addr, port);
     }
 
-    private void requestForNodes(Node target) {
-        RESPClientUtils.oneReq(loop, new InetSocketAddress(target.inetAddress, target.tcpPort), config.bindInetAddress,
-            getNodeDataToSend(), 3000, new Callback<Object, IOException>() {
+    void requestForNodes(Node target) {
+        InetSocketAddress remote = new InetSocketAddress(target.inetAddress, target.tcpPort);
+        channels.request(remote,
+            getSyncDataToSend(supportsBinaryData(remote)), 3000, new Callback<Object, IOException>() {
                 @Override
                 protected void onSucceeded(Object value) {
-                    handleReceivedNodeData(value, new Callback<Void, XException>() {
+                    handleReceivedNodeData(value, new Callback<NodeDataMsg, XException>() {
                         @Override
-                        protected void onSucceeded(Void value) {
-                            // do nothing, everything is done
+                        protected void onSucceeded(NodeDataMsg msg) {
+                            if (msg.buckets == null || msg.buckets.isEmpty())
+                                return; // nothing differs
+                            // let the remote know the local nodes in the differing buckets
+                            sendNodes(remote, msg.buckets);
                         }
 
                         @Override
@@ -839,45 +1126,64 @@ public class Discovery {
             });
     }
 
+    private void sendNodes(InetSocketAddress remote, List<Integer> buckets) {
+        channels.request(remote,
+            getNodeDataToSend(buckets, supportsBinaryData(remote)), 3000, new Callback<Object, IOException>() {
+                @Override
+                protected void onSucceeded(Object value) {
+                    handleReceivedNodeData(value, new Callback<NodeDataMsg, XException>() {
+                        @Override
+                        protected void onSucceeded(NodeDataMsg msg) {
+                            // do nothing, everything is done
+                        }
+
+                        @Override
+                        protected void onFailed(XException err) {
+                            // do nothing, msg is logged in `handleReceivedNodeData()`
+                        }
+                    });
+                }
+
+                @Override
+                protected void onFailed(IOException err) {
+                    Logger.error(LogType.DISCOVERY_EVENT, "send nodes failed", err);
+                }
+            });
+    }
+
+    private void setHealthy(NodeDetach n, boolean healthy) {
+        if (n.node.healthy == healthy)
+            return;
+        n.node.healthy = healthy;
+        if (healthy) {
+            digestBuckets[bucketOf(n.digest)] += n.digest;
+        } else {
+            digestBuckets[bucketOf(n.digest)] -= n.digest;
+        }
+    }
+
     private void calcAll() {
-        hash = calcHash();
+        String h = calcHash();
+        if (h.equals(hash))
+            return; // nothing changed
+        hash = h;
         calcSearchBuffer();
         calcInformBuffer();
     }
 
+    // the digests are summed, so it does not depend on the order of nodes,
+    // and only costs O(1) when a node changes
     private String calcHash() {
-        PriorityQueue<Node> p = new PriorityQueue<>(Node::compareTo);
-        for (NodeDetach n : nodes.values()) {
-            if (n.node.healthy) {
-                p.add(n.node);
-            } // ignore unhealthy nodes
-        }
-        StringBuilder sb = new StringBuilder();
-        while (!p.isEmpty()) {
-            Node n = p.poll();
-            sb.append(n.nodeName).append(",")
-                .append(n.address).append(",")
-                .append(n.udpPort).append(",")
-                .append(n.tcpPort).append(",");
-        }
-        MessageDigest md;
-        try {
-            md = MessageDigest.getInstance("SHA-512");
-        } catch (NoSuchAlgorithmException e) {
-            Logger.shouldNotHappen("SHA-512 not found");
-            throw new RuntimeException(e);
+        long sum = 0;
+        for (long b : digestBuckets) {
+            sum += b;
         }
-        md.update(sb.toString().getBytes());
-        byte[] bytes = md.digest();
-        StringBuilder strHexString = new StringBuilder();
-        for (byte aByte : bytes) {
-            String hex = Integer.toHexString(Utils.positive(aByte));
-            if (hex.length() == 1) {
-                strHexString.append('0');
-            }
-            strHexString.append(hex);
+        String hex = Long.toHexString(sum);
+        StringBuilder sb = new StringBuilder(16);
+        for (int i = hex.length(); i < 16; ++i) {
+            sb.append('0');
         }
-        return strHexString.toString();
+        return sb.append(hex).toString();
     }
 
     private void calcSearchBuffer() {
@@ -890,10 +1196,15 @@ public class Discovery {
             config.udpPort,
             config.tcpPort,
             hash,
+            NodeExistenceMsg.SUPPORTED_VERSION,
         };
         byte[] bytes = Serializer.from(message);
         searchBuffer.put(bytes);
         searchBuffer.flip();
+
+        searchBinBuffer.position(0).limit(searchBinBuffer.capacity());
+        NodeExistenceMsg.writeBinary(searchBinBuffer, "search", nodeName, config.udpPort, config.tcpPort, hash);
+        searchBinBuffer.flip();
     }
 
     private void calcInformBuffer() {
@@ -906,16 +1217,38 @@ public class Discovery {
             config.udpPort,
             config.tcpPort,
             hash,
+            NodeExistenceMsg.SUPPORTED_VERSION,
         };
         byte[] bytes = Serializer.from(message);
         informBuffer.put(bytes);
         informBuffer.flip();
+
+        informBinBuffer.position(0).limit(informBinBuffer.capacity());
+        NodeExistenceMsg.writeBinary(informBinBuffer, "inform", nodeName, config.udpPort, config.tcpPort, hash);
+        informBinBuffer.flip();
     }
 
     public List<Node> getNodes() {
         return nodes.values().stream().map(n -> n.node).collect(Collectors.toList());
     }
 
+    /**
+     * record nodes known before, e.g. loaded from a snapshot.
+     * the nodes are added as DOWN and will be UP when health check succeeds,
+     * so they do not have to be searched again.
+     *
+     * @param nodes nodes to record, the local node is ignored
+     */
+    public void restoreNodes(Collection<Node> nodes) {
+        loop.getSelectorEventLoop().runOnLoop(() -> {
+            for (Node n : nodes) {
+                if (n.equals(localNode))
+                    continue;
+                recordNode(n);
+            }
+        });
+    }
+
     public void addNodeListener(NodeListener lsn) {
         loop.getSelectorEventLoop().runOnLoop(() -> {
             // alert `up()` for all healthy nodes
@@ -928,12 +1261,32 @@ public class Discovery {
         });
     }
 
+    public void removeNodeListener(NodeListener lsn) {
+        loop.getSelectorEventLoop().runOnLoop(() ->
+            nodeListeners.remove(lsn)
+        );
+    }
+
     public void addExternalHandler(NodeDataHandler h) {
         loop.getSelectorEventLoop().runOnLoop(() ->
             externalHandlers.add(h)
         );
     }
 
+    public void removeExternalHandler(NodeDataHandler h) {
+        loop.getSelectorEventLoop().runOnLoop(() ->
+            externalHandlers.remove(h)
+        );
+    }
+
+    /**
+     * @param remote address:tcpPort of the node
+     * @return true if the node announced that it can handle the binary data messages, see {@link BinaryMsg}
+     */
+    public boolean supportsBinaryData(InetSocketAddress remote) {
+        return binaryDataPeers.contains(remote);
+    }
+
     public boolean isClosed() {
         return closed;
     }
@@ -945,6 +1298,9 @@ public class Discovery {
         }
         closed = true;
 
+        if (gossip != null) {
+            loop.getSelectorEventLoop().runOnLoop(gossip::stop);
+        }
         // close the udp server to stop receiving packets
         if (Config.useDatagramChannel) {
             udpServer.close();
@@ -959,6 +1315,7 @@ public class Discovery {
             config.udpPort,
             config.tcpPort,
             "",
+            NodeExistenceMsg.SUPPORTED_VERSION,
         };
         byte[] bytesToSend = Serializer.from(messageToSend);
         ByteBuffer byteBuffer =
@@ -967,7 +1324,14 @@ public class Discovery {
                 : ByteBuffer.allocate(bytesToSend.length);
         byteBuffer.put(bytesToSend);
         byteBuffer.flip();
-        leave(byteBuffer, nodes.values().iterator(), new Callback<Void, NoException>() {
+        int binLen = NodeExistenceMsg.binarySize(nodeName, "");
+        ByteBuffer binBuffer =
+            Config.useDatagramChannel
+                ? ByteBuffer.allocateDirect(binLen)
+                : ByteBuffer.allocate(binLen);
+        NodeExistenceMsg.writeBinary(binBuffer, "leave", nodeName, config.udpPort, config.tcpPort, "");
+        binBuffer.flip();
+        leave(byteBuffer, binBuffer, nodes.values().iterator(), new Callback<Void, NoException>() {
             @Override
             protected void onSucceeded(Void value) {
                 // then release
@@ -981,9 +1345,10 @@ public class Discovery {
         });
     }
 
-    private void leave(ByteBuffer leaveMsg, Iterator<NodeDetach> nodes, Callback<Void, NoException> cb) {
+    private void leave(ByteBuffer leaveMsg, ByteBuffer leaveBinMsg, Iterator<NodeDetach> nodes, Callback<Void, NoException> cb) {
         if (!nodes.hasNext()) {
             Utils.clean(leaveMsg); // do release if it's direct memory
+            Utils.clean(leaveBinMsg);
             cb.succeeded(null);
             return;
         }
@@ -991,25 +1356,27 @@ public class Discovery {
         try {
             n = nodes.next();
         } catch (NoSuchElementException e) {
-            leave(leaveMsg, nodes, cb);
+            leave(leaveMsg, leaveBinMsg, nodes, cb);
             return;
         }
         if (n.node.address.equals(config.bindAddress) && n.node.udpPort == config.udpPort) {
             // self node, ignore
-            leave(leaveMsg, nodes, cb);
+            leave(leaveMsg, leaveBinMsg, nodes, cb);
             return;
         }
+        InetSocketAddress sockAddr = new InetSocketAddress(n.node.address, n.node.udpPort);
         try {
-            sendBuffer(leaveMsg, new InetSocketAddress(n.node.address, n.node.udpPort));
+            sendBuffer(binaryPeers.contains(sockAddr) ? leaveBinMsg : leaveMsg, sockAddr);
         } catch (IOException e) {
             // ignore error
             assert Logger.lowLevelDebug("udp sock send leave message failed " + e);
         }
-        loop.getSelectorEventLoop().delay(config.timeoutConfig.ppsLimitWhenNotJoined, () -> leave(leaveMsg, nodes, cb));
+        loop.getSelectorEventLoop().delay(config.timeoutConfig.ppsLimitWhenNotJoined, () -> leave(leaveMsg, leaveBinMsg, nodes, cb));
     }
 
     private void releaseAfterLeave(Callback<Void, NoException> cb) {
         tcpServer.close();
+        channels.close();
         try {
             eventLoopGroup.remove("EventLoop:" + nodeName);
         } catch (NotFoundException e) {
@@ -1030,6 +1397,8 @@ public class Discovery {
         // then release the buffers
         Utils.clean(searchBuffer);
         Utils.clean(informBuffer);
+        Utils.clean(searchBinBuffer);
+        Utils.clean(informBinBuffer);
 
         // close blocking threads
         try {
@@ -6,7 +6,10 @@ import net.cassite.vproxy.util.Utils;
 
 import java.net.Inet4Address;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.SocketException;
+import java.util.Collections;
+import java.util.List;
 
 public class DiscoveryConfig {
     public final String nic;
@@ -20,6 +23,8 @@ public class DiscoveryConfig {
     public final int searchMaxUDPPort;
     public final TimeoutConfig timeoutConfig;
     public final HealthCheckConfig healthCheckConfig;
+    public final List<InetSocketAddress> seeds; // udp addresses, use gossip instead of searching if not empty
+    public final GossipConfig gossipConfig; // null if not using gossip
     final long searchNetworkCursorMaxExclusive;
     final byte[] searchNetworkByte;
     final byte[] searchMaskByte;
@@ -37,6 +42,41 @@ public class DiscoveryConfig {
                            int searchMinUDPPort, int searchMaxUDPPort,
                            TimeoutConfig timeoutConfig,
                            HealthCheckConfig healthCheckConfig) throws SocketException {
+        this(nicName, ipType, udpSockPort, udpPort, tcpPort,
+            searchMask, searchMinUDPPort, searchMaxUDPPort,
+            timeoutConfig, healthCheckConfig,
+            Collections.emptyList(), null);
+    }
+
+    // find nodes via the seeds with gossip, the network is not searched
+    public DiscoveryConfig(String nicName,
+                           IPType ipType,
+                           int udpSockPort,
+                           int udpPort,
+                           int tcpPort,
+                           List<InetSocketAddress> seeds,
+                           TimeoutConfig timeoutConfig,
+                           HealthCheckConfig healthCheckConfig,
+                           GossipConfig gossipConfig) throws SocketException {
+        this(nicName, ipType, udpSockPort, udpPort, tcpPort,
+            ipType == IPType.v4 ? 32 : 128, udpPort, udpPort,
+            timeoutConfig, healthCheckConfig,
+            Collections.unmodifiableList(seeds), gossipConfig);
+        if (seeds.isEmpty())
+            throw new IllegalArgumentException("no seeds specified");
+    }
+
+    private DiscoveryConfig(String nicName,
+                            IPType ipType,
+                            int udpSockPort,
+                            int udpPort,
+                            int tcpPort,
+                            int searchMask,
+                            int searchMinUDPPort, int searchMaxUDPPort,
+                            TimeoutConfig timeoutConfig,
+                            HealthCheckConfig healthCheckConfig,
+                            List<InetSocketAddress> seeds,
+                            GossipConfig gossipConfig) throws SocketException {
         this.nic = nicName;
         this.udpSockPort = udpSockPort;
         this.udpPort = udpPort;
@@ -46,6 +86,8 @@ public class DiscoveryConfig {
         this.searchMaxUDPPort = searchMaxUDPPort;
         this.timeoutConfig = timeoutConfig;
         this.healthCheckConfig = healthCheckConfig;
+        this.seeds = seeds;
+        this.gossipConfig = gossipConfig;
 
         bindInetAddress = Utils.getInetAddressFromNic(nicName, ipType);
         bindAddress = Utils.ipStr(bindInetAddress.getAddress());
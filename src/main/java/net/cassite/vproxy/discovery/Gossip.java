@@ -0,0 +1,496 @@
+package net.cassite.vproxy.discovery;
+
+import net.cassite.vproxy.discovery.protocol.GossipMsg;
+import net.cassite.vproxy.redis.Serializer;
+import net.cassite.vproxy.selector.PeriodicEvent;
+import net.cassite.vproxy.selector.SelectorEventLoop;
+import net.cassite.vproxy.selector.TimerEvent;
+import net.cassite.vproxy.util.LogType;
+import net.cassite.vproxy.util.Logger;
+import net.cassite.vproxy.util.Utils;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.*;
+
+/**
+ * SWIM style membership, used instead of searching the network when seeds are configured.
+ * <p>
+ * 1. in each probe period, ping one node picked round robin from a shuffled node list
+ * 2. if no ack in probe timeout, ask k random nodes to ping the target (ping-req), they relay the ack back
+ * 3. if still no ack at the end of the period, the target becomes suspect
+ * 4. the suspect node becomes dead if it does not refute in suspect timeout
+ * 5. a node refutes the suspicion by increasing its incarnation and spreading itself as alive
+ * 6. the state changes are piggybacked on ping/ping-req/ack messages, each is sent about log(n) times
+ * 7. a node joins by pinging the seeds, then exchanges full node list over tcp with the first node it finds,
+ * and does this again with a random node in push-pull interval
+ * <p>
+ * only runs on discovery event loop
+ */
+class Gossip {
+    private class Member {
+        final String key;
+        final Node node;
+        int state = GossipMsg.STATE_ALIVE;
+        int incarnation;
+        TimerEvent suspectTimer;
+        TimerEvent forgetTimer;
+
+        Member(String key, Node node, int incarnation) {
+            this.key = key;
+            this.node = node;
+            this.incarnation = incarnation;
+            node.incarnation = incarnation;
+        }
+
+        void setIncarnation(int incarnation) {
+            this.incarnation = incarnation;
+            node.incarnation = incarnation;
+        }
+
+        void cancelSuspect() {
+            if (suspectTimer != null) {
+                suspectTimer.cancel();
+                suspectTimer = null;
+            }
+        }
+
+        void cancelForget() {
+            if (forgetTimer != null) {
+                forgetTimer.cancel();
+                forgetTimer = null;
+            }
+        }
+
+        GossipMsg.Update toUpdate() {
+            return new GossipMsg.Update(node.nodeName, node.address, node.udpPort, node.tcpPort, state, incarnation);
+        }
+    }
+
+    private static class Broadcast {
+        final String key;
+        final GossipMsg.Update update;
+        int transmits = 0;
+
+        Broadcast(String key, GossipMsg.Update update) {
+            this.key = key;
+            this.update = update;
+        }
+    }
+
+    private class Probe {
+        final int seq;
+        final Member target;
+        boolean acked = false;
+        TimerEvent indirectTimer;
+
+        Probe(int seq, Member target) {
+            this.seq = seq;
+            this.target = target;
+        }
+    }
+
+    private static class Relay {
+        final InetSocketAddress origin;
+        final int originSeq;
+        TimerEvent timer;
+
+        Relay(InetSocketAddress origin, int originSeq) {
+            this.origin = origin;
+            this.originSeq = originSeq;
+        }
+    }
+
+    private final Discovery discovery;
+    private final GossipConfig config;
+    private final SelectorEventLoop loop;
+    private final String localKey;
+
+    private final Map<String, Member> members = new HashMap<>(); // alive, suspect and dead (tombstone)
+    private final LinkedList<Broadcast> broadcasts = new LinkedList<>();
+    private final Map<Integer, Relay> relays = new HashMap<>();
+    private final List<Member> probeList = new ArrayList<>();
+    private int probeIdx = 0;
+    private final Random rand = new Random();
+
+    private int incarnation = 0;
+    private int seq = 0;
+    private Probe probe;
+    private TimerEvent probeTimer;
+    private PeriodicEvent pushPullTimer;
+    private boolean stopped = false;
+
+    Gossip(Discovery discovery) {
+        this.discovery = discovery;
+        this.config = discovery.config.gossipConfig;
+        this.loop = discovery.loop.getSelectorEventLoop();
+        this.localKey = Discovery.buildGroupServerName(discovery.localNode);
+    }
+
+    void start() {
+        loop.runOnLoop(() -> {
+            tick();
+            pushPullTimer = loop.period(config.pushPullInterval, this::pushPull);
+        });
+    }
+
+    void stop() {
+        stopped = true;
+        if (probeTimer != null) {
+            probeTimer.cancel();
+            probeTimer = null;
+        }
+        if (pushPullTimer != null) {
+            pushPullTimer.cancel();
+            pushPullTimer = null;
+        }
+        if (probe != null && probe.indirectTimer != null) {
+            probe.indirectTimer.cancel();
+        }
+        probe = null;
+        for (Relay r : relays.values()) {
+            r.timer.cancel();
+        }
+        relays.clear();
+        for (Member m : members.values()) {
+            m.cancelSuspect();
+            m.cancelForget();
+        }
+    }
+
+    private int aliveCount() {
+        int n = 0;
+        for (Member m : members.values()) {
+            if (m.state != GossipMsg.STATE_DEAD) {
+                ++n;
+            }
+        }
+        return n;
+    }
+
+    // ceil(log2(n+1)) of the cluster size (including self), at least 1
+    private int logN() {
+        int n = aliveCount() + 1;
+        return Math.max(1, 32 - Integer.numberOfLeadingZeros(n));
+    }
+
+    private int nextSeq() {
+        seq = (seq + 1) & 0x7fffffff;
+        return seq;
+    }
+
+    // ------------------
+    // probe
+    // ------------------
+
+    private void tick() {
+        probeTimer = null;
+        if (stopped)
+            return;
+
+        if (probe != null) {
+            if (probe.indirectTimer != null) {
+                probe.indirectTimer.cancel();
+            }
+            if (!probe.acked && members.get(probe.target.key) == probe.target) {
+                Member m = probe.target;
+                Logger.warn(LogType.DISCOVERY_EVENT, "probing " + m.key + " failed, suspect it");
+                apply(new GossipMsg.Update(m.node.nodeName, m.node.address, m.node.udpPort, m.node.tcpPort,
+                    GossipMsg.STATE_SUSPECT, m.incarnation));
+            }
+            probe = null;
+        }
+
+        Member target = nextTarget();
+        if (target == null) {
+            pingSeeds(); // not joined, or all other nodes are dead
+        } else {
+            sendProbe(target);
+        }
+        probeTimer = loop.delay(config.probePeriod, this::tick);
+    }
+
+    private Member nextTarget() {
+        while (true) {
+            if (probeIdx >= probeList.size()) {
+                probeList.clear();
+                probeIdx = 0;
+                for (Member m : members.values()) {
+                    if (m.state != GossipMsg.STATE_DEAD) {
+                        probeList.add(m);
+                    }
+                }
+                if (probeList.isEmpty())
+                    return null;
+                Collections.shuffle(probeList, rand);
+            }
+            Member m = probeList.get(probeIdx++);
+            if (m.state != GossipMsg.STATE_DEAD && members.get(m.key) == m)
+                return m;
+        }
+    }
+
+    private void sendProbe(Member target) {
+        Probe p = new Probe(nextSeq(), target);
+        probe = p;
+        send("ping", p.seq, "", 0, new InetSocketAddress(target.node.inetAddress, target.node.udpPort));
+        p.indirectTimer = loop.delay(config.probeTimeout, () -> {
+            p.indirectTimer = null;
+            if (p.acked || probe != p)
+                return;
+            List<Member> others = new ArrayList<>();
+            for (Member m : members.values()) {
+                if (m != target && m.state == GossipMsg.STATE_ALIVE) {
+                    others.add(m);
+                }
+            }
+            Collections.shuffle(others, rand);
+            for (int i = 0; i < config.indirectProbes && i < others.size(); ++i) {
+                Member m = others.get(i);
+                send("ping-req", p.seq, target.node.address, target.node.udpPort,
+                    new InetSocketAddress(m.node.inetAddress, m.node.udpPort));
+            }
+        });
+    }
+
+    private void pingSeeds() {
+        for (InetSocketAddress seed : discovery.config.seeds) {
+            if (seed.getAddress().equals(discovery.config.bindInetAddress) && seed.getPort() == discovery.config.udpPort)
+                continue; // self
+            send("ping", nextSeq(), "", 0, seed);
+        }
+    }
+
+    private void pushPull() {
+        if (stopped)
+            return;
+        List<Member> alive = new ArrayList<>();
+        for (Member m : members.values()) {
+            if (m.state == GossipMsg.STATE_ALIVE) {
+                alive.add(m);
+            }
+        }
+        if (alive.isEmpty())
+            return;
+        discovery.requestForNodes(alive.get(rand.nextInt(alive.size())).node);
+    }
+
+    // ------------------
+    // messages
+    // ------------------
+
+    private List<Object[]> piggyback() {
+        List<Object[]> ret = new LinkedList<>();
+        if (broadcasts.isEmpty())
+            return ret;
+        broadcasts.sort(Comparator.comparingInt(b -> b.transmits));
+        int limit = config.retransmitMult * logN();
+        Iterator<Broadcast> ite = broadcasts.iterator();
+        while (ite.hasNext() && ret.size() < config.maxPiggyback) {
+            Broadcast b = ite.next();
+            ret.add(b.update.toArray());
+            if (++b.transmits >= limit) {
+                ite.remove();
+            }
+        }
+        return ret;
+    }
+
+    private void send(String type, int seq, String targetAddress, int targetUdpPort, InetSocketAddress to) {
+        Object[] message = {
+            1 /*version*/,
+            type,
+            discovery.nodeName,
+            discovery.config.udpPort,
+            discovery.config.tcpPort,
+            incarnation,
+            seq,
+            targetAddress,
+            targetUdpPort,
+            piggyback(),
+        };
+        discovery.sendGossip(Serializer.from(message), to);
+    }
+
+    void handle(InetAddress remoteAddr, GossipMsg msg) {
+        if (stopped)
+            return;
+        String remote = Utils.ipStr(remoteAddr.getAddress());
+        InetSocketAddress sender = new InetSocketAddress(remoteAddr, msg.udpPort);
+
+        // the sender is alive
+        apply(new GossipMsg.Update(msg.nodeName, remote, msg.udpPort, msg.tcpPort, GossipMsg.STATE_ALIVE, msg.incarnation));
+        for (GossipMsg.Update u : msg.updates) {
+            apply(u);
+        }
+
+        switch (msg.type) {
+            case "ping":
+                send("ack", msg.seq, "", 0, sender);
+                break;
+            case "ping-req": {
+                InetAddress target;
+                try {
+                    target = InetAddress.getByAddress(Utils.parseIpString(msg.targetAddress));
+                } catch (UnknownHostException | NullPointerException e) {
+                    Logger.error(LogType.INVALID_EXTERNAL_DATA, "invalid ping-req target in " + msg);
+                    return;
+                }
+                int relaySeq = nextSeq();
+                Relay relay = new Relay(sender, msg.seq);
+                relay.timer = loop.delay(config.probePeriod, () -> relays.remove(relaySeq));
+                relays.put(relaySeq, relay);
+                send("ping", relaySeq, "", 0, new InetSocketAddress(target, msg.targetUdpPort));
+                break;
+            }
+            case "ack": {
+                Relay relay = relays.remove(msg.seq);
+                if (relay != null) {
+                    relay.timer.cancel();
+                    send("ack", relay.originSeq, remote, msg.udpPort, relay.origin);
+                } else if (probe != null && probe.seq == msg.seq) {
+                    probe.acked = true;
+                    if (probe.indirectTimer != null) {
+                        probe.indirectTimer.cancel();
+                        probe.indirectTimer = null;
+                    }
+                }
+                break;
+            }
+        }
+    }
+
+    // a node from the full node list exchanged over tcp
+    void merge(Node node) {
+        if (stopped || !node.healthy)
+            return; // only learn alive nodes from the list
+        apply(new GossipMsg.Update(node.nodeName, node.address, node.udpPort, node.tcpPort,
+            GossipMsg.STATE_ALIVE, node.incarnation));
+    }
+
+    // the node is removed from discovery, keep a tombstone to ignore out-dated alive messages
+    void removed(String key) {
+        Member m = members.get(key);
+        if (m == null)
+            return;
+        m.cancelSuspect();
+        if (m.state != GossipMsg.STATE_DEAD) {
+            m.state = GossipMsg.STATE_DEAD;
+            enqueue(m);
+        }
+        if (m.forgetTimer == null && !stopped) {
+            m.forgetTimer = loop.delay(discovery.config.timeoutConfig.detachTimeout, () -> {
+                if (members.get(key) == m && m.state == GossipMsg.STATE_DEAD) {
+                    members.remove(key);
+                }
+            });
+        }
+    }
+
+    private void enqueue(Member m) {
+        enqueue(m.key, m.toUpdate());
+    }
+
+    private void enqueue(String key, GossipMsg.Update update) {
+        broadcasts.removeIf(b -> b.key.equals(key));
+        broadcasts.add(new Broadcast(key, update));
+    }
+
+    private void refute(int inc) {
+        incarnation = Math.max(incarnation, inc) + 1;
+        discovery.localNode.incarnation = incarnation;
+        Logger.warn(LogType.DISCOVERY_EVENT, "refute the suspicion with incarnation " + incarnation);
+        Node n = discovery.localNode;
+        enqueue(localKey, new GossipMsg.Update(n.nodeName, n.address, n.udpPort, n.tcpPort,
+            GossipMsg.STATE_ALIVE, incarnation));
+    }
+
+    private void apply(GossipMsg.Update u) {
+        if (u.udpPort < 1 || u.udpPort > 65535 || u.tcpPort < 1 || u.tcpPort > 65535) {
+            Logger.error(LogType.INVALID_EXTERNAL_DATA, "invalid gossip update " + u);
+            return;
+        }
+        String key = Discovery.buildGroupServerName(u.nodeName, u.address, u.tcpPort);
+        if (key.equals(localKey)) {
+            if (u.state != GossipMsg.STATE_ALIVE && u.incarnation >= incarnation) {
+                refute(u.incarnation);
+            }
+            return;
+        }
+        Member m = members.get(key);
+        switch (u.state) {
+            case GossipMsg.STATE_ALIVE: {
+                if (m == null) {
+                    Node node;
+                    try {
+                        node = new Node(u.nodeName, u.address, u.udpPort, u.tcpPort);
+                    } catch (UnknownHostException e) {
+                        Logger.error(LogType.INVALID_EXTERNAL_DATA, "invalid address in gossip update " + u);
+                        return;
+                    }
+                    boolean joined = aliveCount() > 0;
+                    m = new Member(key, node, u.incarnation);
+                    members.put(key, m);
+                    enqueue(m);
+                    discovery.gossipUp(key, node);
+                    if (!joined) {
+                        // the first node found, get the full node list from it
+                        discovery.requestForNodes(node);
+                    }
+                    return;
+                }
+                if (u.incarnation <= m.incarnation)
+                    return; // out-dated
+                boolean wasDead = m.state == GossipMsg.STATE_DEAD;
+                m.setIncarnation(u.incarnation);
+                m.state = GossipMsg.STATE_ALIVE;
+                m.cancelSuspect();
+                m.cancelForget();
+                enqueue(m);
+                if (wasDead) {
+                    discovery.gossipUp(key, m.node);
+                }
+                break;
+            }
+            case GossipMsg.STATE_SUSPECT: {
+                if (m == null || m.state == GossipMsg.STATE_DEAD)
+                    return; // do not learn nodes from suspicion
+                if (u.incarnation < m.incarnation)
+                    return; // out-dated
+                if (m.state == GossipMsg.STATE_SUSPECT && u.incarnation == m.incarnation)
+                    return; // already suspected
+                m.setIncarnation(u.incarnation);
+                m.state = GossipMsg.STATE_SUSPECT;
+                m.cancelSuspect();
+                Member suspected = m;
+                m.suspectTimer = loop.delay(config.suspicionMult * logN() * config.probePeriod, () -> {
+                    suspected.suspectTimer = null;
+                    if (suspected.state != GossipMsg.STATE_SUSPECT)
+                        return;
+                    Logger.warn(LogType.DISCOVERY_EVENT, "suspect node " + key + " did not refute, mark it dead");
+                    suspected.state = GossipMsg.STATE_DEAD;
+                    enqueue(suspected);
+                    discovery.gossipDown(key);
+                });
+                enqueue(m);
+                break;
+            }
+            case GossipMsg.STATE_DEAD: {
+                if (m == null)
+                    return; // do not learn nodes from death
+                if (u.incarnation < m.incarnation)
+                    return; // out-dated
+                boolean wasDead = m.state == GossipMsg.STATE_DEAD;
+                m.setIncarnation(u.incarnation);
+                if (wasDead)
+                    return;
+                m.state = GossipMsg.STATE_DEAD;
+                m.cancelSuspect();
+                enqueue(m);
+                discovery.gossipDown(key);
+                break;
+            }
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package net.cassite.vproxy.discovery;
+
+public class GossipConfig {
+    public final int probePeriod;// = 1000; // probe one node in each period
+    public final int probeTimeout;// = 400; // send indirect probes if no ack in this time, less than probePeriod
+    public final int indirectProbes;// = 3; // how many nodes to ask for the indirect probes
+    public final int suspicionMult;// = 4; // suspect timeout = suspicionMult * log2(n+1) * probePeriod
+    public final int retransmitMult;// = 3; // each update is piggybacked retransmitMult * log2(n+1) times
+    public final int maxPiggyback;// = 8; // max updates in one message
+    public final int pushPullInterval;// = 30000; // exchange full node list with a random node over tcp
+
+    public GossipConfig(int probePeriod,
+                        int probeTimeout,
+                        int indirectProbes,
+                        int suspicionMult,
+                        int retransmitMult,
+                        int maxPiggyback,
+                        int pushPullInterval) {
+        this.probePeriod = probePeriod;
+        this.probeTimeout = probeTimeout;
+        this.indirectProbes = indirectProbes;
+        this.suspicionMult = suspicionMult;
+        this.retransmitMult = retransmitMult;
+        this.maxPiggyback = maxPiggyback;
+        this.pushPullInterval = pushPullInterval;
+    }
+
+    public static GossipConfig getDefault() {
+        return new GossipConfig(
+            1000,
+            400,
+            3,
+            4,
+            3,
+            8,
+            30 * 1000);
+    }
+}
@@ -14,6 +14,7 @@ public class Node implements Comparable<Node> {
     public final int udpPort;
     public final int tcpPort;
     public boolean healthy = false; // default the node is unhealthy, will become healthy in hc callback
+    public int incarnation = 0; // only used by gossip, increased by the node itself to refute suspicion
 
     public final InetAddress inetAddress;
 
@@ -66,6 +67,7 @@ public class Node implements Comparable<Node> {
             ", udpPort=" + udpPort +
             ", tcpPort=" + tcpPort +
             ", healthy=" + healthy +
+            ", incarnation=" + incarnation +
             '}';
     }
 }
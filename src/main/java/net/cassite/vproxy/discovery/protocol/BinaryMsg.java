@@ -0,0 +1,158 @@
+package net.cassite.vproxy.discovery.protocol;
+
+import net.cassite.vproxy.component.exception.XException;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * the binary format of the messages sent to the tcp port of discovery.
+ * the bytes are carried in a resp bulk string, because the port is served by a resp server:
+ * <pre>
+ * version   1 byte, always 2, the resp messages of discovery are arrays, so they are never confused
+ * type      1 byte length + ascii
+ * body      defined by each message
+ * </pre>
+ * strings are 2 bytes length + utf-8 bytes, all integers are big endian.
+ * <p>
+ * a request is sent in binary format only when the peer announced
+ * {@link NodeExistenceMsg#BINARY_DATA_VERSION}, and the response uses the format of the request.
+ * <p>
+ * the writer reuses its buffer, so it should only be used on one thread.
+ */
+public class BinaryMsg {
+    public static final int VERSION = 2;
+
+    private ByteBuffer buf;
+
+    public BinaryMsg(int initialCapacity) {
+        buf = ByteBuffer.allocate(initialCapacity);
+    }
+
+    private void ensure(int len) {
+        if (buf.remaining() >= len)
+            return;
+        ByteBuffer newBuf = ByteBuffer.allocate(Math.max(buf.capacity() * 2, buf.position() + len));
+        buf.flip();
+        newBuf.put(buf);
+        buf = newBuf;
+    }
+
+    /**
+     * clear the buffer and write the header
+     */
+    public BinaryMsg start(String type) {
+        buf.clear();
+        byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+        putByte(VERSION);
+        putByte(typeBytes.length);
+        ensure(typeBytes.length);
+        buf.put(typeBytes);
+        return this;
+    }
+
+    public BinaryMsg putByte(int b) {
+        ensure(1);
+        buf.put((byte) b);
+        return this;
+    }
+
+    public BinaryMsg putShort(int s) {
+        ensure(2);
+        buf.putShort((short) s);
+        return this;
+    }
+
+    public BinaryMsg putInt(int i) {
+        ensure(4);
+        buf.putInt(i);
+        return this;
+    }
+
+    public BinaryMsg putLong(long l) {
+        ensure(8);
+        buf.putLong(l);
+        return this;
+    }
+
+    public BinaryMsg putString(String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        putShort(bytes.length);
+        ensure(bytes.length);
+        buf.put(bytes);
+        return this;
+    }
+
+    // the count of a list is not known before writing its elements,
+    // so reserve the position and set it later
+    public int reserveShort() {
+        int pos = buf.position();
+        putShort(0);
+        return pos;
+    }
+
+    public void setShort(int pos, int s) {
+        buf.putShort(pos, (short) s);
+    }
+
+    /**
+     * @return the written bytes, can be sent as a request or returned as a response
+     */
+    public byte[] toBytes() {
+        return Arrays.copyOf(buf.array(), buf.position());
+    }
+
+    /**
+     * @param o the object parsed from resp
+     * @return the buffer positioned after the header, or null if it's not a binary message
+     */
+    public static ByteBuffer wrap(Object o) {
+        if (!(o instanceof String))
+            return null;
+        String s = (String) o;
+        if (s.isEmpty() || s.charAt(0) != VERSION)
+            return null;
+        // the bulk string is decoded with one char for each byte
+        return ByteBuffer.wrap(s.getBytes(StandardCharsets.ISO_8859_1), 1, s.length() - 1).slice();
+    }
+
+    /**
+     * @return the type of the binary message, and the buffer is positioned after it
+     */
+    public static String readType(ByteBuffer buf) throws XException {
+        if (!buf.hasRemaining())
+            throw new XException("invalid message, too short");
+        int len = buf.get() & 0xff;
+        if (buf.remaining() < len)
+            throw new XException("invalid message, type too long");
+        String type = new String(buf.array(), buf.arrayOffset() + buf.position(), len, StandardCharsets.US_ASCII);
+        buf.position(buf.position() + len);
+        return type;
+    }
+
+    /**
+     * @return the type of the binary message without modifying the object, or null if it's not binary
+     */
+    public static String typeOf(Object o) {
+        if (!(o instanceof String))
+            return null;
+        String s = (String) o;
+        if (s.length() < 2 || s.charAt(0) != VERSION)
+            return null;
+        int len = s.charAt(1);
+        if (s.length() < 2 + len)
+            return null;
+        return s.substring(2, 2 + len);
+    }
+
+    public static String readString(ByteBuffer buf) throws XException {
+        int len = buf.getShort() & 0xffff;
+        if (buf.remaining() < len) {
+            throw new XException("invalid message, string too long");
+        }
+        String s = new String(buf.array(), buf.arrayOffset() + buf.position(), len, StandardCharsets.UTF_8);
+        buf.position(buf.position() + len);
+        return s;
+    }
+}
@@ -0,0 +1,152 @@
+package net.cassite.vproxy.discovery.protocol;
+
+import net.cassite.vproxy.component.exception.XException;
+
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+
+public class GossipMsg {
+    public static final int STATE_ALIVE = 0;
+    public static final int STATE_SUSPECT = 1;
+    public static final int STATE_DEAD = 2;
+
+    public static class Update {
+        public final String nodeName;
+        public final String address;
+        public final int udpPort;
+        public final int tcpPort;
+        public final int state;
+        public final int incarnation;
+
+        public Update(String nodeName, String address, int udpPort, int tcpPort, int state, int incarnation) {
+            this.nodeName = nodeName;
+            this.address = address;
+            this.udpPort = udpPort;
+            this.tcpPort = tcpPort;
+            this.state = state;
+            this.incarnation = incarnation;
+        }
+
+        public Object[] toArray() {
+            return new Object[]{nodeName, address, udpPort, tcpPort, state, incarnation};
+        }
+
+        @Override
+        public String toString() {
+            return "Update{" +
+                "nodeName='" + nodeName + '\'' +
+                ", address='" + address + '\'' +
+                ", udpPort=" + udpPort +
+                ", tcpPort=" + tcpPort +
+                ", state=" + state +
+                ", incarnation=" + incarnation +
+                '}';
+        }
+    }
+
+    public final int version;
+    public final String type;
+    public final String nodeName;
+    public final int udpPort;
+    public final int tcpPort;
+    public final int incarnation;
+    public final int seq;
+    public final String targetAddress; // empty string if not ping-req
+    public final int targetUdpPort; // 0 if not ping-req
+    public final List<Update> updates;
+
+    public GossipMsg(int version, String type, String nodeName, int udpPort, int tcpPort, int incarnation,
+                     int seq, String targetAddress, int targetUdpPort, List<Update> updates) {
+        this.version = version;
+        this.type = type;
+        this.nodeName = nodeName;
+        this.udpPort = udpPort;
+        this.tcpPort = tcpPort;
+        this.incarnation = incarnation;
+        this.seq = seq;
+        this.targetAddress = targetAddress;
+        this.targetUdpPort = targetUdpPort;
+        this.updates = Collections.unmodifiableList(updates);
+    }
+
+    public static boolean isGossipType(Object type) {
+        return "ping".equals(type) || "ping-req".equals(type) || "ack".equals(type);
+    }
+
+    public static GossipMsg parse(Object o) throws XException {
+        if (!(o instanceof List)) {
+            throw new XException("invalid message, not list");
+        }
+        List l = (List) o;
+        if (l.size() < 10) {
+            throw new XException("invalid message, list too short");
+        }
+        if (!(l.get(0) instanceof Integer)
+            || !(l.get(1) instanceof String)
+            || !(l.get(2) instanceof String)
+            || !(l.get(3) instanceof Integer)
+            || !(l.get(4) instanceof Integer)
+            || !(l.get(5) instanceof Integer)
+            || !(l.get(6) instanceof Integer)
+            || !(l.get(7) instanceof String)
+            || !(l.get(8) instanceof Integer)
+            || !(l.get(9) instanceof List)) {
+            throw new XException("invalid message, list data type wrong");
+        }
+
+        int version = (int) l.get(0);
+        String type = (String) l.get(1);
+        String nodeName = (String) l.get(2);
+        int udpPort = (int) l.get(3);
+        int tcpPort = (int) l.get(4);
+        int incarnation = (int) l.get(5);
+        int seq = (int) l.get(6);
+        String targetAddress = (String) l.get(7);
+        int targetUdpPort = (int) l.get(8);
+        List updatesL = (List) l.get(9);
+        List<Update> updates = new LinkedList<>();
+        for (Object u : updatesL) {
+            if (!(u instanceof List)) {
+                throw new XException("invalid message, update element not list");
+            }
+            List ul = (List) u;
+            if (ul.size() < 6) {
+                throw new XException("invalid message, update list too short");
+            }
+            if (!(ul.get(0) instanceof String)
+                || !(ul.get(1) instanceof String)
+                || !(ul.get(2) instanceof Integer)
+                || !(ul.get(3) instanceof Integer)
+                || !(ul.get(4) instanceof Integer)
+                || !(ul.get(5) instanceof Integer)) {
+                throw new XException("invalid message, update list data type wrong");
+            }
+            int state = (int) ul.get(4);
+            if (state != STATE_ALIVE && state != STATE_SUSPECT && state != STATE_DEAD) {
+                throw new XException("invalid message, unknown state " + state);
+            }
+            updates.add(new Update((String) ul.get(0), (String) ul.get(1),
+                (int) ul.get(2), (int) ul.get(3), state, (int) ul.get(5)));
+        }
+
+        return new GossipMsg(version, type, nodeName, udpPort, tcpPort, incarnation,
+            seq, targetAddress, targetUdpPort, updates);
+    }
+
+    @Override
+    public String toString() {
+        return "GossipMsg{" +
+            "version=" + version +
+            ", type='" + type + '\'' +
+            ", nodeName='" + nodeName + '\'' +
+            ", udpPort=" + udpPort +
+            ", tcpPort=" + tcpPort +
+            ", incarnation=" + incarnation +
+            ", seq=" + seq +
+            ", targetAddress='" + targetAddress + '\'' +
+            ", targetUdpPort=" + targetUdpPort +
+            ", updates=" + updates +
+            '}';
+    }
+}
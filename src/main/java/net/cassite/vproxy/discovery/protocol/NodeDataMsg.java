@@ -4,22 +4,46 @@ import net.cassite.vproxy.component.exception.XException;
 import net.cassite.vproxy.discovery.Node;
 
 import java.net.UnknownHostException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
 
 public class NodeDataMsg {
+    /**
+     * the body of the binary format, see {@link BinaryMsg}:
+     * <pre>
+     * count        2 bytes, count of nodes, and for each node:
+     * nodeName     string
+     * address      string
+     * udpPort      2 bytes
+     * tcpPort      2 bytes
+     * healthy      1 byte
+     * incarnation  4 bytes
+     * buckets      2 bytes count + 2 bytes for each bucket, count is 0xffff for all nodes
+     * </pre>
+     */
+    private static final int ALL_BUCKETS = 0xffff;
+
     public final int version;
     public final String type;
     public final List<Node> nodes;
+    public final List<Integer> buckets; // optional, the nodes are only in these digest buckets, or null for all nodes
 
-    public NodeDataMsg(int version, String type, List<Node> nodes) {
+    public NodeDataMsg(int version, String type, List<Node> nodes, List<Integer> buckets) {
         this.version = version;
         this.type = type;
         this.nodes = Collections.unmodifiableList(nodes);
+        this.buckets = buckets == null ? null : Collections.unmodifiableList(buckets);
     }
 
     public static NodeDataMsg parse(Object o) throws XException {
+        ByteBuffer buf = BinaryMsg.wrap(o);
+        if (buf != null) {
+            return parseBinary(buf);
+        }
         if (!(o instanceof List)) {
             throw new XException("invalid message, not list");
         }
@@ -66,11 +90,94 @@ public class NodeDataMsg {
                 throw new XException("invalid message, address invalid");
             }
             node.healthy = healthy;
+            if (nl.size() > 5 && nl.get(5) instanceof Integer) {
+                node.incarnation = (int) nl.get(5); // optional
+            }
 
             nodes.add(node);
         }
 
-        return new NodeDataMsg(version, type, nodes);
+        List<Integer> buckets = null;
+        if (l.size() > 3) {
+            if (!(l.get(3) instanceof List)) {
+                throw new XException("invalid message, buckets not list");
+            }
+            buckets = new LinkedList<>();
+            for (Object b : (List) l.get(3)) {
+                if (!(b instanceof Integer)) {
+                    throw new XException("invalid message, bucket not integer");
+                }
+                buckets.add((Integer) b);
+            }
+        }
+
+        return new NodeDataMsg(version, type, nodes, buckets);
+    }
+
+    private static NodeDataMsg parseBinary(ByteBuffer buf) throws XException {
+        try {
+            String type = BinaryMsg.readType(buf);
+            int count = buf.getShort() & 0xffff;
+            List<Node> nodes = new LinkedList<>();
+            for (int i = 0; i < count; ++i) {
+                String nodeName = BinaryMsg.readString(buf);
+                String address = BinaryMsg.readString(buf);
+                int udpPort = buf.getShort() & 0xffff;
+                int tcpPort = buf.getShort() & 0xffff;
+                boolean healthy = buf.get() != 0;
+                int incarnation = buf.getInt();
+
+                Node node;
+                try {
+                    node = new Node(nodeName, address, udpPort, tcpPort);
+                } catch (UnknownHostException e) {
+                    throw new XException("invalid message, address invalid");
+                }
+                node.healthy = healthy;
+                node.incarnation = incarnation;
+                nodes.add(node);
+            }
+            List<Integer> buckets = null;
+            int bucketCount = buf.getShort() & 0xffff;
+            if (bucketCount != ALL_BUCKETS) {
+                buckets = new LinkedList<>();
+                for (int i = 0; i < bucketCount; ++i) {
+                    buckets.add(buf.getShort() & 0xffff);
+                }
+            }
+            // the binary format carries the same content as version 1
+            return new NodeDataMsg(1, type, nodes, buckets);
+        } catch (BufferUnderflowException e) {
+            throw new XException("invalid message, too short");
+        }
+    }
+
+    /**
+     * @param msg     the writer to use
+     * @param nodes   nodes to send
+     * @param buckets the nodes are only in these buckets, or null for all nodes
+     * @return the message of type `nodes` in binary format
+     */
+    public static byte[] toBinary(BinaryMsg msg, Collection<Node> nodes, List<Integer> buckets) {
+        msg.start("nodes");
+        msg.putShort(nodes.size());
+        for (Node n : nodes) {
+            msg.putString(n.nodeName)
+                .putString(n.address)
+                .putShort(n.udpPort)
+                .putShort(n.tcpPort)
+                .putByte(n.healthy ? 1 : 0)
+                .putInt(n.incarnation);
+        }
+        if (buckets == null) {
+            msg.putShort(ALL_BUCKETS);
+        } else {
+            msg.putShort(buckets.size());
+            for (int b : buckets) {
+                msg.putShort(b);
+            }
+        }
+        return msg.toBytes();
     }
 
     @Override
@@ -79,6 +186,7 @@ public class NodeDataMsg {
             "version=" + version +
             ", type='" + type + '\'' +
             ", nodes=" + nodes +
+            ", buckets=" + buckets +
             '}';
     }
 }
@@ -2,23 +2,62 @@ package net.cassite.vproxy.discovery.protocol;
 
 import net.cassite.vproxy.component.exception.XException;
 
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.List;
 
 public class NodeExistenceMsg {
+    /**
+     * the binary format:
+     * <pre>
+     * version    1 byte, always 2, a resp message never starts with it
+     * length     2 bytes, length of the following bytes
+     * type       1 byte, 0 for search, 1 for inform, 2 for leave
+     * udpPort    2 bytes
+     * tcpPort    2 bytes
+     * nodeName   2 bytes length + utf-8 bytes
+     * hash       2 bytes length + utf-8 bytes
+     * supported  1 byte, optional, the max version the sender can handle, 2 if missing
+     * </pre>
+     */
+    public static final int BINARY_VERSION = 2;
+    /**
+     * the sender also handles pipelined requests on its tcp port,
+     * see {@link net.cassite.vproxy.redis.application.RESPClientChannelManager#setPipelining}
+     */
+    public static final int PIPELINE_VERSION = 3;
+    /**
+     * the sender also handles the node data and khala messages in binary format on its tcp port,
+     * see {@link BinaryMsg}
+     */
+    public static final int BINARY_DATA_VERSION = 4;
+    /**
+     * the max version this node can handle
+     */
+    public static final int SUPPORTED_VERSION = BINARY_DATA_VERSION;
+    private static final String[] BINARY_TYPES = {"search", "inform", "leave"};
+
     public final int version;
     public final String type;
     public final String nodeName;
     public final int udpPort;
     public final int tcpPort;
     public final String hash;
+    public final int supportedVersion; // the max version the sender can handle
 
     public NodeExistenceMsg(int version, String type, String nodeName, int udpPort, int tcpPort, String hash) {
+        this(version, type, nodeName, udpPort, tcpPort, hash, version);
+    }
+
+    public NodeExistenceMsg(int version, String type, String nodeName, int udpPort, int tcpPort, String hash, int supportedVersion) {
         this.version = version;
         this.type = type;
         this.nodeName = nodeName;
         this.udpPort = udpPort;
         this.tcpPort = tcpPort;
         this.hash = hash;
+        this.supportedVersion = supportedVersion;
     }
 
     public static NodeExistenceMsg parse(Object o) throws XException {
@@ -44,8 +83,74 @@ public class NodeExistenceMsg {
         int udpPort = (int) l.get(3);
         int tcpPort = (int) l.get(4);
         String hash = (String) l.get(5);
+        int supportedVersion = version;
+        if (l.size() > 6 && l.get(6) instanceof Integer) {
+            supportedVersion = (int) l.get(6);
+        }
+
+        return new NodeExistenceMsg(version, type, nodeName, udpPort, tcpPort, hash, supportedVersion);
+    }
+
+    public static boolean isBinary(byte[] bytes, int len) {
+        return len > 0 && bytes[0] == BINARY_VERSION;
+    }
 
-        return new NodeExistenceMsg(version, type, nodeName, udpPort, tcpPort, hash);
+    public static int binarySize(String nodeName, String hash) {
+        return 1 + 2 + 1 + 2 + 2
+            + 2 + nodeName.getBytes(StandardCharsets.UTF_8).length
+            + 2 + hash.getBytes(StandardCharsets.UTF_8).length
+            + 1;
+    }
+
+    /**
+     * write the message in binary format into the buffer, starting from its position
+     */
+    public static void writeBinary(ByteBuffer buf, String type, String nodeName, int udpPort, int tcpPort, String hash) {
+        int t = -1;
+        for (int i = 0; i < BINARY_TYPES.length; ++i) {
+            if (BINARY_TYPES[i].equals(type)) {
+                t = i;
+                break;
+            }
+        }
+        if (t == -1)
+            throw new IllegalArgumentException("unknown type " + type);
+        byte[] nameBytes = nodeName.getBytes(StandardCharsets.UTF_8);
+        byte[] hashBytes = hash.getBytes(StandardCharsets.UTF_8);
+
+        buf.put((byte) BINARY_VERSION);
+        buf.putShort((short) (1 + 2 + 2 + 2 + nameBytes.length + 2 + hashBytes.length + 1));
+        buf.put((byte) t);
+        buf.putShort((short) udpPort);
+        buf.putShort((short) tcpPort);
+        buf.putShort((short) nameBytes.length);
+        buf.put(nameBytes);
+        buf.putShort((short) hashBytes.length);
+        buf.put(hashBytes);
+        buf.put((byte) SUPPORTED_VERSION);
+    }
+
+    public static NodeExistenceMsg parseBinary(ByteBuffer buf) throws XException {
+        try {
+            int version = buf.get();
+            int len = buf.getShort() & 0xffff;
+            if (buf.remaining() != len) {
+                throw new XException("invalid message, length mismatch");
+            }
+            int t = buf.get();
+            if (t < 0 || t >= BINARY_TYPES.length) {
+                throw new XException("invalid message, unknown type " + t);
+            }
+            int udpPort = buf.getShort() & 0xffff;
+            int tcpPort = buf.getShort() & 0xffff;
+            String nodeName = BinaryMsg.readString(buf);
+            String hash = BinaryMsg.readString(buf);
+            // older senders do not carry the supported version
+            int supportedVersion = buf.hasRemaining() ? buf.get() : version;
+            return new NodeExistenceMsg(version, BINARY_TYPES[t], nodeName, udpPort, tcpPort, hash, supportedVersion);
+        } catch (BufferUnderflowException e) {
+            throw new XException("invalid message, too short");
+        }
     }
 
     @Override
@@ -57,6 +162,7 @@ public class NodeExistenceMsg {
             ", udpPort=" + udpPort +
             ", tcpPort=" + tcpPort +
             ", hash='" + hash + '\'' +
+            ", supportedVersion=" + supportedVersion +
             '}';
     }
 }
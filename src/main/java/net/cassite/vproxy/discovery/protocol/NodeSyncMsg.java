@@ -0,0 +1,104 @@
+package net.cassite.vproxy.discovery.protocol;
+
+import net.cassite.vproxy.component.exception.XException;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class NodeSyncMsg {
+    /*
+     * the body of the binary format, see BinaryMsg:
+     * count    2 bytes, count of buckets
+     * digest   8 bytes for each bucket
+     */
+
+    public final int version;
+    public final String type;
+    public final List<Long> buckets; // digest of each bucket
+
+    public NodeSyncMsg(int version, String type, List<Long> buckets) {
+        this.version = version;
+        this.type = type;
+        this.buckets = Collections.unmodifiableList(buckets);
+    }
+
+    public static NodeSyncMsg parse(Object o) throws XException {
+        ByteBuffer buf = BinaryMsg.wrap(o);
+        if (buf != null) {
+            return parseBinary(buf);
+        }
+        if (!(o instanceof List)) {
+            throw new XException("invalid message, not list");
+        }
+        List l = (List) o;
+        if (l.size() < 3) {
+            throw new XException("invalid message, list too short");
+        }
+        if (!(l.get(0) instanceof Integer)
+            || !(l.get(1) instanceof String)
+            || !(l.get(2) instanceof List)) {
+            throw new XException("invalid message, list data type wrong");
+        }
+
+        int version = (int) l.get(0);
+        String type = (String) l.get(1);
+        List bucketsL = (List) l.get(2);
+        List<Long> buckets = new ArrayList<>(bucketsL.size());
+        for (Object b : bucketsL) {
+            if (!(b instanceof String)) {
+                throw new XException("invalid message, bucket digest not string");
+            }
+            try {
+                buckets.add(Long.parseUnsignedLong((String) b, 16));
+            } catch (NumberFormatException e) {
+                throw new XException("invalid message, bucket digest not hex");
+            }
+        }
+
+        return new NodeSyncMsg(version, type, buckets);
+    }
+
+    private static NodeSyncMsg parseBinary(ByteBuffer buf) throws XException {
+        try {
+            String type = BinaryMsg.readType(buf);
+            int count = buf.getShort() & 0xffff;
+            if (buf.remaining() < count * 8) {
+                throw new XException("invalid message, too short");
+            }
+            List<Long> buckets = new ArrayList<>(count);
+            for (int i = 0; i < count; ++i) {
+                buckets.add(buf.getLong());
+            }
+            // the binary format carries the same content as version 1
+            return new NodeSyncMsg(1, type, buckets);
+        } catch (BufferUnderflowException e) {
+            throw new XException("invalid message, too short");
+        }
+    }
+
+    /**
+     * @param msg     the writer to use
+     * @param buckets digest of each bucket
+     * @return the message of type `sync` in binary format
+     */
+    public static byte[] toBinary(BinaryMsg msg, long[] buckets) {
+        msg.start("sync");
+        msg.putShort(buckets.length);
+        for (long b : buckets) {
+            msg.putLong(b);
+        }
+        return msg.toBytes();
+    }
+
+    @Override
+    public String toString() {
+        return "NodeSyncMsg{" +
+            "version=" + version +
+            ", type='" + type + '\'' +
+            ", buckets=" + buckets +
+            '}';
+    }
+}
@@ -0,0 +1,367 @@
+package net.cassite.vproxy.dns;
+
+import net.cassite.vproxy.component.exception.XException;
+import net.cassite.vproxy.connection.NetEventLoop;
+import net.cassite.vproxy.selector.Handler;
+import net.cassite.vproxy.selector.HandlerContext;
+import net.cassite.vproxy.util.LogType;
+import net.cassite.vproxy.util.Logger;
+import net.cassite.vproxy.util.Utils;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.util.*;
+
+/**
+ * an authoritative dns server over udp, for the names under `domain`
+ * <p>
+ * the zone maps service names to endpoints, and is replaced as a whole by {@link #setZone(Map)}.
+ * for a service `svc.sub` (the part after the first label is optional):
+ * <pre>
+ * svc.sub.{domain}          A/AAAA: ips of the endpoints
+ * _svc._tcp.sub.{domain}    SRV: the endpoints, the targets are the following names,
+ *                           which are also attached as additional records
+ * {ip}.svc.sub.{domain}     A/AAAA: the ip, `.` and `:` in the ip are replaced with `-`
+ * </pre>
+ * all responses are encoded when the zone is set, so answering a query is
+ * a map lookup and a copy with the id, RD flag and question patched.
+ * when the records do not fit into 512 bytes, only the leading ones are returned,
+ * and several rotations of the records are encoded and returned in turn,
+ * so the clients will not always pick the same endpoint.
+ * <p>
+ * the queries are received from one unconnected datagram channel, and the buffers are reused,
+ * so nothing is kept for the clients.
+ */
+public class AuthoritativeDNSServer {
+    private static final int MAX_ROTATIONS = 8;
+    private static final int MAX_QUERY_LEN = 4096;
+
+    // the encoded responses of one name
+    private static class Entry {
+        final Map<Integer, byte[][]> responses = new HashMap<>(); // type => rotations
+        byte[] noData; // for the other types
+    }
+
+    public final String alias;
+    public final InetSocketAddress bindAddress;
+    public final String domain; // lower case and without the trailing dot
+    public final int ttl; // seconds
+    private final NetEventLoop loop;
+    private DatagramChannel channel;
+
+    private volatile Map<String, Entry> zone;
+    // the following fields are only accessed on loop
+    private int rotation = 0;
+    private final ByteBuffer queryBuf = ByteBuffer.allocate(MAX_QUERY_LEN);
+    private final ByteBuffer respBuf = ByteBuffer.allocate(DNSPacket.MAX_UDP_LEN);
+
+    private class UDPHandler implements Handler<DatagramChannel> {
+        @Override
+        public void accept(HandlerContext<DatagramChannel> ctx) {
+            // will not fire
+        }
+
+        @Override
+        public void connected(HandlerContext<DatagramChannel> ctx) {
+            // will not fire
+        }
+
+        @Override
+        public void readable(HandlerContext<DatagramChannel> ctx) {
+            while (true) {
+                queryBuf.clear();
+                SocketAddress remote;
+                try {
+                    remote = ctx.getChannel().receive(queryBuf);
+                } catch (IOException e) {
+                    assert Logger.lowLevelDebug("got exception on dns server " + alias + " " + e);
+                    return;
+                }
+                if (remote == null)
+                    return; // nothing more to read
+                if (!queryBuf.hasRemaining())
+                    continue; // might be truncated, too large for a query, drop it
+                int len = respond(queryBuf.array(), queryBuf.position(), respBuf.array());
+                if (len == 0)
+                    continue;
+                respBuf.limit(len).position(0);
+                try {
+                    // the packet is dropped if the socket buffer is full, the client will retry
+                    ctx.getChannel().send(respBuf, remote);
+                } catch (IOException e) {
+                    assert Logger.lowLevelDebug("sending dns response to " + remote + " failed " + e);
+                }
+            }
+        }
+
+        @Override
+        public void writable(HandlerContext<DatagramChannel> ctx) {
+            // will not fire
+        }
+
+        @Override
+        public void removed(HandlerContext<DatagramChannel> ctx) {
+            try {
+                ctx.getChannel().close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    public AuthoritativeDNSServer(String alias, InetSocketAddress bindAddress, NetEventLoop loop,
+                                  String domain, int ttl) throws XException {
+        this.alias = alias;
+        this.bindAddress = bindAddress;
+        this.loop = loop;
+        if (domain.endsWith(".")) {
+            domain = domain.substring(0, domain.length() - 1);
+        }
+        this.domain = domain.toLowerCase();
+        this.ttl = ttl;
+        noDataEntry(this.domain); // check the domain
+        setZone(Collections.emptyMap());
+    }
+
+    public void start() throws IOException {
+        DatagramChannel chnl = DatagramChannel.open(bindAddress.getAddress() instanceof Inet6Address
+            ? StandardProtocolFamily.INET6
+            : StandardProtocolFamily.INET);
+        try {
+            chnl.configureBlocking(false);
+            chnl.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            chnl.bind(bindAddress);
+            loop.getSelectorEventLoop().add(chnl, SelectionKey.OP_READ, null, new UDPHandler());
+        } catch (IOException e) {
+            chnl.close();
+            throw e;
+        }
+        this.channel = chnl;
+    }
+
+    public void stop() {
+        if (channel != null) {
+            // the channel is closed in the removed callback
+            loop.getSelectorEventLoop().remove(channel);
+            channel = null;
+        }
+    }
+
+    /**
+     * replace the zone
+     *
+     * @param services service name => endpoints,
+     *                 the services which cannot be used in dns names are ignored
+     */
+    public void setZone(Map<String, ? extends Collection<InetSocketAddress>> services) {
+        Map<String, Entry> zone = new HashMap<>();
+        try {
+            zone.put(domain, noDataEntry(domain));
+        } catch (XException e) {
+            Logger.shouldNotHappen("the domain is checked in constructor", e);
+        }
+        for (Map.Entry<String, ? extends Collection<InetSocketAddress>> e : services.entrySet()) {
+            Map<String, Entry> entries = new HashMap<>();
+            try {
+                buildService(e.getKey().toLowerCase(), e.getValue(), entries);
+            } catch (XException ex) {
+                Logger.warn(LogType.INVALID_EXTERNAL_DATA, "service " + e.getKey() + " cannot be served by dns: " + ex.getMessage());
+                continue;
+            }
+            zone.putAll(entries);
+        }
+        // the names between the records and the domain exist without records
+        for (String name : new ArrayList<>(zone.keySet())) {
+            int idx;
+            while ((idx = name.indexOf('.')) != -1 && (name = name.substring(idx + 1)).endsWith("." + domain)) {
+                if (zone.containsKey(name))
+                    continue;
+                try {
+                    zone.put(name, noDataEntry(name));
+                } catch (XException e) {
+                    Logger.shouldNotHappen("the parent name is valid if the child is valid", e);
+                }
+            }
+        }
+        this.zone = zone;
+    }
+
+    private void buildService(String svc, Collection<InetSocketAddress> endpoints, Map<String, Entry> zone) throws XException {
+        String name = svc + "." + domain;
+        int idx = svc.indexOf('.');
+        String srvName = idx == -1
+            ? "_" + svc + "._tcp." + domain
+            : "_" + svc.substring(0, idx) + "._tcp." + svc.substring(idx + 1) + "." + domain;
+
+        Set<InetAddress> addresses = new LinkedHashSet<>();
+        List<DNSPacket.Record> srvRecords = new ArrayList<>();
+        List<List<DNSPacket.Record>> srvAdditionals = new ArrayList<>();
+        for (InetSocketAddress endpoint : endpoints) {
+            InetAddress addr = endpoint.getAddress();
+            addresses.add(addr);
+            String target = hostLabel(addr) + "." + name;
+            srvRecords.add(new DNSPacket.Record(srvName, DNSPacket.TYPE_SRV, ttl,
+                DNSPacket.srvData(10, 10, endpoint.getPort(), target)));
+            srvAdditionals.add(Collections.singletonList(addressRecord(target, addr)));
+        }
+
+        Entry entry = noDataEntry(name);
+        List<DNSPacket.Record> v4 = new ArrayList<>();
+        List<DNSPacket.Record> v6 = new ArrayList<>();
+        for (InetAddress addr : addresses) {
+            (addr instanceof Inet4Address ? v4 : v6).add(addressRecord(name, addr));
+
+            String host = hostLabel(addr) + "." + name;
+            Entry hostEntry = noDataEntry(host);
+            DNSPacket.Record r = addressRecord(host, addr);
+            hostEntry.responses.put(r.type, encode(host, r.type, Collections.singletonList(r), null));
+            zone.put(host, hostEntry);
+        }
+        if (!v4.isEmpty()) {
+            entry.responses.put(DNSPacket.TYPE_A, encode(name, DNSPacket.TYPE_A, v4, null));
+        }
+        if (!v6.isEmpty()) {
+            entry.responses.put(DNSPacket.TYPE_AAAA, encode(name, DNSPacket.TYPE_AAAA, v6, null));
+        }
+        zone.put(name, entry);
+
+        Entry srvEntry = noDataEntry(srvName);
+        if (!srvRecords.isEmpty()) {
+            srvEntry.responses.put(DNSPacket.TYPE_SRV, encode(srvName, DNSPacket.TYPE_SRV, srvRecords, srvAdditionals));
+        }
+        zone.put(srvName, srvEntry);
+    }
+
+    private static String hostLabel(InetAddress addr) {
+        String ip = Utils.ipStr(addr.getAddress());
+        if (ip.startsWith("[")) {
+            ip = ip.substring(1, ip.length() - 1);
+        }
+        return ip.replace('.', '-').replace(':', '-');
+    }
+
+    private DNSPacket.Record addressRecord(String name, InetAddress addr) {
+        return new DNSPacket.Record(name,
+            addr instanceof Inet4Address ? DNSPacket.TYPE_A : DNSPacket.TYPE_AAAA,
+            ttl, addr.getAddress());
+    }
+
+    private static Entry noDataEntry(String name) throws XException {
+        Entry entry = new Entry();
+        // the type is patched from the query
+        entry.noData = DNSPacket.buildResponse(name, 0, DNSPacket.RCODE_NOERROR,
+            Collections.emptyList(), Collections.emptyList());
+        return entry;
+    }
+
+    // additionals: the additional records for each answer, or null
+    private static byte[][] encode(String name, int type, List<DNSPacket.Record> answers,
+                                   List<List<DNSPacket.Record>> additionals) throws XException {
+        int rotations = Math.min(answers.size(), MAX_ROTATIONS);
+        byte[][] result = new byte[rotations][];
+        for (int r = 0; r < rotations; ++r) {
+            List<DNSPacket.Record> ans = new ArrayList<>(answers.size());
+            List<DNSPacket.Record> add = new ArrayList<>();
+            for (int i = 0; i < answers.size(); ++i) {
+                int idx = (i + r) % answers.size();
+                ans.add(answers.get(idx));
+                if (additionals != null) {
+                    add.addAll(additionals.get(idx));
+                }
+            }
+            byte[] bytes = DNSPacket.buildResponse(name, type, DNSPacket.RCODE_NOERROR, ans, add);
+            // remove the trailing records until it fits
+            while (bytes.length > DNSPacket.MAX_UDP_LEN && ans.size() > 1) {
+                DNSPacket.Record removed = ans.remove(ans.size() - 1);
+                if (additionals != null) {
+                    add.removeAll(additionals.get(answers.indexOf(removed)));
+                }
+                bytes = DNSPacket.buildResponse(name, type, DNSPacket.RCODE_NOERROR, ans, add);
+            }
+            result[r] = bytes;
+        }
+        return result;
+    }
+
+    private static int u16(byte[] bytes, int off) {
+        return ((bytes[off] & 0xff) << 8) | (bytes[off + 1] & 0xff);
+    }
+
+    // return length of the response, or 0 if should not respond
+    int respond(byte[] query, int len, byte[] resp) {
+        if (len < DNSPacket.HEADER_LEN)
+            return 0;
+        int flags = u16(query, 2);
+        if ((flags & DNSPacket.FLAG_QR) != 0)
+            return 0; // never respond to a response
+        if ((flags & DNSPacket.OPCODE_MASK) != 0)
+            return respondEmpty(query, DNSPacket.HEADER_LEN, DNSPacket.RCODE_NOTIMP, resp);
+        DNSPacket q;
+        try {
+            q = DNSPacket.parse(query, len);
+        } catch (XException e) {
+            return respondEmpty(query, DNSPacket.HEADER_LEN, DNSPacket.RCODE_FORMERR, resp);
+        }
+        if (q.questionCount != 1)
+            return respondEmpty(query, DNSPacket.HEADER_LEN, DNSPacket.RCODE_FORMERR, resp);
+        if (q.questionClass != DNSPacket.CLASS_IN)
+            return respondEmpty(query, q.questionEnd, DNSPacket.RCODE_REFUSED, resp);
+
+        Entry entry = zone.get(q.questionName);
+        if (entry == null) {
+            boolean inZone = q.questionName.endsWith("." + domain);
+            return respondEmpty(query, q.questionEnd,
+                inZone ? DNSPacket.RCODE_NXDOMAIN : DNSPacket.RCODE_REFUSED, resp);
+        }
+        byte[][] rotations = entry.responses.get(q.questionType);
+        byte[] pre;
+        if (rotations == null) {
+            pre = entry.noData;
+        } else {
+            pre = rotations[(rotation++ & 0x7fffffff) % rotations.length];
+        }
+        if (pre.length > resp.length || q.questionEnd > pre.length)
+            return 0; // will not happen
+        System.arraycopy(pre, 0, resp, 0, pre.length);
+        // id
+        resp[0] = query[0];
+        resp[1] = query[1];
+        // RD
+        resp[2] |= (byte) (query[2] & (DNSPacket.FLAG_RD >> 8));
+        // the question, the name only differs in case, and the type is needed by no-data
+        System.arraycopy(query, DNSPacket.HEADER_LEN, resp, DNSPacket.HEADER_LEN, q.questionEnd - DNSPacket.HEADER_LEN);
+        return pre.length;
+    }
+
+    // respond the header and the question
+    private static int respondEmpty(byte[] query, int questionEnd, int rcode, byte[] resp) {
+        if (questionEnd > resp.length) {
+            questionEnd = DNSPacket.HEADER_LEN; // drop the question
+        }
+        int flags = u16(query, 2);
+        flags = DNSPacket.FLAG_QR
+            | (flags & (DNSPacket.OPCODE_MASK | DNSPacket.FLAG_RD))
+            | (rcode == DNSPacket.RCODE_NXDOMAIN ? DNSPacket.FLAG_AA : 0)
+            | rcode;
+        resp[0] = query[0];
+        resp[1] = query[1];
+        resp[2] = (byte) (flags >> 8);
+        resp[3] = (byte) flags;
+        resp[4] = 0;
+        resp[5] = (byte) (questionEnd > DNSPacket.HEADER_LEN ? 1 : 0);
+        for (int i = 6; i < DNSPacket.HEADER_LEN; ++i) {
+            resp[i] = 0;
+        }
+        System.arraycopy(query, DNSPacket.HEADER_LEN, resp, DNSPacket.HEADER_LEN, questionEnd - DNSPacket.HEADER_LEN);
+        return questionEnd;
+    }
+}
@@ -0,0 +1,376 @@
+package net.cassite.vproxy.dns;
+
+import net.cassite.vproxy.component.exception.XException;
+import net.cassite.vproxy.connection.*;
+import net.cassite.vproxy.selector.Handler;
+import net.cassite.vproxy.selector.HandlerContext;
+import net.cassite.vproxy.selector.TimerEvent;
+import net.cassite.vproxy.util.*;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * a dns stub client running on the resolver event loop
+ * <p>
+ * queries are sent over udp, each name server has its own connected channel,
+ * and all outstanding queries share one id space, so any number of queries
+ * (up to 65536) can be in flight at the same time.
+ * a response is accepted only if its id, name and type match the query.
+ * when a response is truncated, the query is sent again over tcp to the same server.
+ * when timed out, the query is sent to the next server, for `attempts` rounds.
+ * when a server responds with an error other than NXDOMAIN, e.g. SERVFAIL or REFUSED,
+ * the query is sent to the next server immediately, and the error is returned
+ * only after every server responded with an error.
+ * <p>
+ * all methods must be called on the event loop.
+ */
+class DNSClient {
+    private static final int MAX_UDP_PACKET = 4096;
+
+    private final NetEventLoop loop;
+    private final List<InetSocketAddress> servers;
+    private final int timeout;
+    private final int attempts;
+    private final DatagramChannel[] channels;
+    private final Map<Integer, Query> queries = new HashMap<>();
+    private final Random random = new SecureRandom();
+    private final ByteBuffer recvBuffer = ByteBuffer.allocate(MAX_UDP_PACKET);
+    private boolean closed = false;
+
+    private class Query {
+        final int id;
+        final String name;
+        final int type;
+        final byte[] bytes;
+        final Callback<DNSPacket, IOException> cb;
+        int tries = 0;
+        int serverIdx;
+        int errors = 0; // count of servers responded with errors
+        DNSPacket lastError;
+        TimerEvent te;
+        ClientConnection tcp;
+
+        Query(int id, String name, int type, byte[] bytes, Callback<DNSPacket, IOException> cb) {
+            this.id = id;
+            this.name = name;
+            this.type = type;
+            this.bytes = bytes;
+            this.cb = cb;
+        }
+
+        void done() {
+            queries.remove(id);
+            if (te != null) {
+                te.cancel();
+                te = null;
+            }
+            if (tcp != null) {
+                tcp.close();
+                tcp = null;
+            }
+        }
+
+        void succeeded(DNSPacket packet) {
+            done();
+            cb.succeeded(packet);
+        }
+
+        void failed(IOException err) {
+            done();
+            cb.failed(err);
+        }
+    }
+
+    private class UDPHandler implements Handler<DatagramChannel> {
+        private final int serverIdx;
+
+        UDPHandler(int serverIdx) {
+            this.serverIdx = serverIdx;
+        }
+
+        @Override
+        public void accept(HandlerContext<DatagramChannel> ctx) {
+            // will not fire
+        }
+
+        @Override
+        public void connected(HandlerContext<DatagramChannel> ctx) {
+            // will not fire
+        }
+
+        @Override
+        public void readable(HandlerContext<DatagramChannel> ctx) {
+            while (true) {
+                recvBuffer.clear();
+                try {
+                    if (ctx.getChannel().receive(recvBuffer) == null)
+                        return; // nothing more to read
+                } catch (IOException e) {
+                    // e.g. port unreachable, the queries will time out and go to the next server
+                    assert Logger.lowLevelDebug("receiving from name server " + servers.get(serverIdx) + " failed " + e);
+                    return;
+                }
+                handleResponse(serverIdx, recvBuffer.array(), recvBuffer.position(), false);
+            }
+        }
+
+        @Override
+        public void writable(HandlerContext<DatagramChannel> ctx) {
+            // will not fire
+        }
+
+        @Override
+        public void removed(HandlerContext<DatagramChannel> ctx) {
+            try {
+                ctx.getChannel().close();
+            } catch (IOException e) {
+                // ignore
+            }
+            if (channels[serverIdx] == ctx.getChannel()) {
+                channels[serverIdx] = null;
+            }
+        }
+    }
+
+    DNSClient(NetEventLoop loop, ResolvConf conf) {
+        this.loop = loop;
+        this.servers = conf.nameServers;
+        this.timeout = conf.timeout;
+        this.attempts = conf.attempts;
+        this.channels = new DatagramChannel[servers.size()];
+    }
+
+    void query(String name, int type, Callback<DNSPacket, IOException> cb) {
+        // the question name of the response is lowercase and without the trailing dot
+        // see DNSPacket.readName(), the query is built with the same name to match it
+        name = name.toLowerCase();
+        if (name.endsWith(".")) {
+            name = name.substring(0, name.length() - 1);
+        }
+        if (closed) {
+            cb.failed(new IOException("dns client closed"));
+            return;
+        }
+        if (queries.size() >= 65536) {
+            cb.failed(new IOException("too many outstanding dns queries"));
+            return;
+        }
+        int id;
+        do {
+            id = random.nextInt(65536);
+        } while (queries.containsKey(id));
+        byte[] bytes;
+        try {
+            bytes = DNSPacket.buildQuery(id, name, type);
+        } catch (XException e) {
+            cb.failed(new IOException(e.getMessage()));
+            return;
+        }
+        Query q = new Query(id, name, type, bytes, cb);
+        q.serverIdx = random.nextInt(servers.size());
+        queries.put(id, q);
+        send(q);
+    }
+
+    private void send(Query q) {
+        if (q.tries >= servers.size() * attempts) {
+            if (q.lastError != null) {
+                // some servers are not reachable, and the others responded with errors
+                q.succeeded(q.lastError);
+            } else {
+                q.failed(new IOException("dns query " + q.name + " timeout"));
+            }
+            return;
+        }
+        int idx = (q.serverIdx + q.tries) % servers.size();
+        ++q.tries;
+        q.te = loop.getSelectorEventLoop().delay(timeout, () -> {
+            q.te = null;
+            send(q);
+        });
+        try {
+            channel(idx).write(ByteBuffer.wrap(q.bytes));
+        } catch (IOException e) {
+            // the query will be sent to the next server when timed out
+            assert Logger.lowLevelDebug("sending dns query to " + servers.get(idx) + " failed " + e);
+        }
+    }
+
+    private DatagramChannel channel(int idx) throws IOException {
+        DatagramChannel chnl = channels[idx];
+        if (chnl != null)
+            return chnl;
+        InetSocketAddress server = servers.get(idx);
+        chnl = DatagramChannel.open(server.getAddress() instanceof Inet6Address
+            ? StandardProtocolFamily.INET6
+            : StandardProtocolFamily.INET);
+        try {
+            chnl.configureBlocking(false);
+            // connected, so packets from other addresses are dropped by the os
+            chnl.connect(server);
+            loop.getSelectorEventLoop().add(chnl, SelectionKey.OP_READ, null, new UDPHandler(idx));
+        } catch (IOException e) {
+            chnl.close();
+            throw e;
+        }
+        channels[idx] = chnl;
+        return chnl;
+    }
+
+    // return false if the response does not match any query
+    private boolean handleResponse(int serverIdx, byte[] bytes, int len, boolean viaTcp) {
+        DNSPacket packet;
+        try {
+            packet = DNSPacket.parse(bytes, len);
+        } catch (XException e) {
+            Logger.warn(LogType.INVALID_EXTERNAL_DATA, "invalid dns response from " + servers.get(serverIdx) + ": " + e.getMessage());
+            return false;
+        }
+        Query q = queries.get(packet.id);
+        if (q == null || !packet.response || q.type != packet.questionType || !q.name.equals(packet.questionName)) {
+            assert Logger.lowLevelDebug("dropping unexpected dns response " + packet.id + " from " + servers.get(serverIdx));
+            return false;
+        }
+        if (packet.truncated && !viaTcp) {
+            if (q.tcp == null) {
+                queryTcp(q, serverIdx);
+            }
+            return true;
+        }
+        if (packet.rcode != DNSPacket.RCODE_NOERROR && packet.rcode != DNSPacket.RCODE_NXDOMAIN) {
+            assert Logger.lowLevelDebug("name server " + servers.get(serverIdx) + " responded rcode " + packet.rcode + " for " + q.name);
+            q.lastError = packet;
+            if (++q.errors < servers.size()) {
+                // try the next server without waiting for the timeout
+                if (q.te != null) {
+                    q.te.cancel();
+                    q.te = null;
+                }
+                send(q);
+                return true;
+            }
+        }
+        q.succeeded(packet);
+        return true;
+    }
+
+    // the message is prefixed with a two byte length, see rfc 1035 4.2.2
+    private void queryTcp(Query q, int serverIdx) {
+        if (q.te != null) {
+            q.te.cancel();
+        }
+        q.te = loop.getSelectorEventLoop().delay(timeout, () -> {
+            q.te = null;
+            q.failed(new IOException("dns query " + q.name + " over tcp timeout"));
+        });
+        byte[] req = new byte[q.bytes.length + 2];
+        req[0] = (byte) ((q.bytes.length >> 8) & 0xff);
+        req[1] = (byte) (q.bytes.length & 0xff);
+        System.arraycopy(q.bytes, 0, req, 2, q.bytes.length);
+        ByteArrayChannel reqChnl = ByteArrayChannel.fromFull(req);
+        InetSocketAddress server = servers.get(serverIdx);
+        try {
+            ClientConnection conn = ClientConnection.create(server,
+                server.getAddress() instanceof Inet6Address
+                    ? new InetSocketAddress("::", 0)
+                    : new InetSocketAddress("0.0.0.0", 0),
+                RingBuffer.allocate(16384), RingBuffer.allocate(1024));
+            q.tcp = conn;
+            loop.addClientConnection(conn, null, new ClientConnectionHandler() {
+                private final ByteArrayChannel lenChnl = ByteArrayChannel.fromEmpty(new byte[2]);
+                private byte[] body;
+                private ByteArrayChannel bodyChnl;
+
+                @Override
+                public void connected(ClientConnectionHandlerContext ctx) {
+                    ctx.connection.getOutBuffer().storeBytesFrom(reqChnl);
+                }
+
+                @Override
+                public void readable(ConnectionHandlerContext ctx) {
+                    RingBuffer in = ctx.connection.getInBuffer();
+                    if (body == null) {
+                        in.writeTo(lenChnl);
+                        if (lenChnl.free() > 0)
+                            return; // want more data
+                        byte[] l = lenChnl.get();
+                        int len = ((l[0] & 0xff) << 8) | (l[1] & 0xff);
+                        if (len == 0) {
+                            q.failed(new IOException("empty dns response over tcp"));
+                            return;
+                        }
+                        body = new byte[len];
+                        bodyChnl = ByteArrayChannel.fromEmpty(body);
+                    }
+                    in.writeTo(bodyChnl);
+                    if (bodyChnl.free() > 0)
+                        return; // want more data
+                    q.tcp = null;
+                    ctx.connection.close();
+                    if (!handleResponse(serverIdx, body, body.length, true)) {
+                        q.failed(new IOException("invalid dns response over tcp"));
+                    }
+                }
+
+                @Override
+                public void writable(ConnectionHandlerContext ctx) {
+                    ctx.connection.getOutBuffer().storeBytesFrom(reqChnl);
+                }
+
+                @Override
+                public void exception(ConnectionHandlerContext ctx, IOException err) {
+                    if (q.tcp == ctx.connection) {
+                        q.failed(err);
+                    }
+                }
+
+                @Override
+                public void closed(ConnectionHandlerContext ctx) {
+                    if (q.tcp == ctx.connection) {
+                        q.failed(new IOException("name server closed the connection"));
+                    }
+                }
+
+                @Override
+                public void removed(ConnectionHandlerContext ctx) {
+                    ctx.connection.close();
+                    if (q.tcp == ctx.connection) {
+                        q.failed(new IOException("removed from event loop"));
+                    }
+                }
+            });
+        } catch (IOException e) {
+            q.failed(e);
+        }
+    }
+
+    // the event loop is closed when calling this method
+    void close() {
+        closed = true;
+        for (Query q : new ArrayList<>(queries.values())) {
+            q.failed(new IOException("dns client closed"));
+        }
+        for (int i = 0; i < channels.length; ++i) {
+            if (channels[i] != null) {
+                try {
+                    channels[i].close();
+                } catch (IOException e) {
+                    // ignore
+                }
+                channels[i] = null;
+            }
+        }
+    }
+}
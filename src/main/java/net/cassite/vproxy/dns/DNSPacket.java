@@ -0,0 +1,282 @@
+package net.cassite.vproxy.dns;
+
+import net.cassite.vproxy.component.exception.XException;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * the dns message, see rfc 1035
+ * <p>
+ * only the header, the first question and the answers are parsed,
+ * the authority and additional sections are ignored.
+ * names are returned in lower case and without the trailing dot.
+ * <p>
+ * responses of the authoritative server are encoded without the id,
+ * which is patched for each query, see {@link AuthoritativeDNSServer}.
+ */
+class DNSPacket {
+    static final int TYPE_A = 1;
+    static final int TYPE_CNAME = 5;
+    static final int TYPE_AAAA = 28;
+    static final int TYPE_SRV = 33;
+    static final int CLASS_IN = 1;
+
+    static final int RCODE_NOERROR = 0;
+    static final int RCODE_FORMERR = 1;
+    static final int RCODE_NXDOMAIN = 3;
+    static final int RCODE_NOTIMP = 4;
+    static final int RCODE_REFUSED = 5;
+
+    static final int FLAG_QR = 0x8000;
+    static final int FLAG_AA = 0x0400;
+    static final int FLAG_TC = 0x0200;
+    static final int FLAG_RD = 0x0100;
+    static final int OPCODE_MASK = 0x7800;
+    static final int HEADER_LEN = 12;
+    static final int MAX_UDP_LEN = 512; // without edns
+    private static final int MAX_NAME_LEN = 255;
+    private static final int MAX_LABEL_LEN = 63;
+
+    static class Record {
+        final String name;
+        final int type;
+        final int ttl; // seconds
+        final byte[] rdata;
+
+        Record(String name, int type, int ttl, byte[] rdata) {
+            this.name = name;
+            this.type = type;
+            this.ttl = ttl;
+            this.rdata = rdata;
+        }
+    }
+
+    final int id;
+    final int flags;
+    final boolean response;
+    final boolean truncated;
+    final int rcode;
+    final int questionCount;
+    final String questionName; // null if no question
+    final int questionType;
+    final int questionClass;
+    final int questionEnd; // the offset after the first question, HEADER_LEN if no question
+    final List<Record> answers;
+
+    private DNSPacket(int id, int flags, int questionCount,
+                      String questionName, int questionType, int questionClass, int questionEnd,
+                      List<Record> answers) {
+        this.id = id;
+        this.flags = flags;
+        this.response = (flags & FLAG_QR) != 0;
+        this.truncated = (flags & FLAG_TC) != 0;
+        this.rcode = flags & 0xf;
+        this.questionCount = questionCount;
+        this.questionName = questionName;
+        this.questionType = questionType;
+        this.questionClass = questionClass;
+        this.questionEnd = questionEnd;
+        this.answers = Collections.unmodifiableList(answers);
+    }
+
+    // build a recursive query with one question
+    static byte[] buildQuery(int id, String name, int type) throws XException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(HEADER_LEN + name.length() + 6);
+        writeU16(out, id);
+        writeU16(out, FLAG_RD);
+        writeU16(out, 1); // qdcount
+        writeU16(out, 0); // ancount
+        writeU16(out, 0); // nscount
+        writeU16(out, 0); // arcount
+        writeName(out, name);
+        writeU16(out, type);
+        writeU16(out, CLASS_IN);
+        return out.toByteArray();
+    }
+
+    /**
+     * build an authoritative response with id 0
+     *
+     * @param name        the question name
+     * @param type        the question type
+     * @param rcode       the response code
+     * @param answers     records of the answer section,
+     *                    the names equal to the question name are compressed
+     * @param additionals records of the additional section
+     * @return the encoded packet
+     * @throws XException the names are invalid
+     */
+    static byte[] buildResponse(String name, int type, int rcode,
+                                List<Record> answers, List<Record> additionals) throws XException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(MAX_UDP_LEN);
+        writeU16(out, 0);
+        writeU16(out, FLAG_QR | FLAG_AA | rcode);
+        writeU16(out, 1);
+        writeU16(out, answers.size());
+        writeU16(out, 0);
+        writeU16(out, additionals.size());
+        writeName(out, name);
+        writeU16(out, type);
+        writeU16(out, CLASS_IN);
+        for (Record r : answers) {
+            writeRecord(out, name, r);
+        }
+        for (Record r : additionals) {
+            writeRecord(out, name, r);
+        }
+        return out.toByteArray();
+    }
+
+    private static void writeRecord(ByteArrayOutputStream out, String questionName, Record r) throws XException {
+        if (r.name.equals(questionName)) {
+            writeU16(out, 0xc000 | HEADER_LEN); // pointer to the question name
+        } else {
+            writeName(out, r.name);
+        }
+        writeU16(out, r.type);
+        writeU16(out, CLASS_IN);
+        writeU16(out, (r.ttl >>> 16) & 0xffff);
+        writeU16(out, r.ttl & 0xffff);
+        writeU16(out, r.rdata.length);
+        out.write(r.rdata, 0, r.rdata.length);
+    }
+
+    // the rdata of SRV, the target is not compressed, see rfc 2782
+    static byte[] srvData(int priority, int weight, int port, String target) throws XException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeU16(out, priority);
+        writeU16(out, weight);
+        writeU16(out, port);
+        writeName(out, target);
+        return out.toByteArray();
+    }
+
+    private static void writeU16(ByteArrayOutputStream out, int n) {
+        out.write((n >> 8) & 0xff);
+        out.write(n & 0xff);
+    }
+
+    private static void writeName(ByteArrayOutputStream out, String name) throws XException {
+        if (name.endsWith(".")) {
+            name = name.substring(0, name.length() - 1);
+        }
+        if (name.length() + 2 > MAX_NAME_LEN)
+            throw new XException("name too long: " + name);
+        if (!name.isEmpty()) {
+            for (String label : name.split("\\.", -1)) {
+                if (label.isEmpty() || label.length() > MAX_LABEL_LEN)
+                    throw new XException("invalid label in name: " + name);
+                out.write(label.length());
+                for (int i = 0; i < label.length(); ++i) {
+                    char c = label.charAt(i);
+                    if (c > 0x7f)
+                        throw new XException("non-ascii name: " + name);
+                    out.write(c);
+                }
+            }
+        }
+        out.write(0);
+    }
+
+    static DNSPacket parse(byte[] bytes, int len) throws XException {
+        if (len < HEADER_LEN)
+            throw new XException("dns packet too short");
+        int id = u16(bytes, 0);
+        int flags = u16(bytes, 2);
+        int qdcount = u16(bytes, 4);
+        int ancount = u16(bytes, 6);
+
+        int[] pos = {HEADER_LEN};
+        String questionName = null;
+        int questionType = 0;
+        int questionClass = 0;
+        int questionEnd = HEADER_LEN;
+        for (int i = 0; i < qdcount; ++i) {
+            String name = readName(bytes, len, pos);
+            check(len, pos[0] + 4);
+            if (i == 0) {
+                questionName = name;
+                questionType = u16(bytes, pos[0]);
+                questionClass = u16(bytes, pos[0] + 2);
+                questionEnd = pos[0] + 4;
+            }
+            pos[0] += 4; // type and class
+        }
+        List<Record> answers = new ArrayList<>(ancount);
+        // a truncated packet might not carry all answers
+        boolean truncated = (flags & FLAG_TC) != 0;
+        for (int i = 0; i < ancount; ++i) {
+            if (truncated && pos[0] >= len)
+                break;
+            String name = readName(bytes, len, pos);
+            check(len, pos[0] + 10);
+            int type = u16(bytes, pos[0]);
+            int cls = u16(bytes, pos[0] + 2);
+            long ttl = ((long) u16(bytes, pos[0] + 4) << 16) | u16(bytes, pos[0] + 6);
+            int rdlength = u16(bytes, pos[0] + 8);
+            pos[0] += 10;
+            check(len, pos[0] + rdlength);
+            byte[] rdata = new byte[rdlength];
+            System.arraycopy(bytes, pos[0], rdata, 0, rdlength);
+            pos[0] += rdlength;
+            if (cls != CLASS_IN)
+                continue;
+            // rfc 2181: ttl with the most significant bit set is treated as 0
+            answers.add(new Record(name, type, ttl > Integer.MAX_VALUE ? 0 : (int) ttl, rdata));
+        }
+        return new DNSPacket(id, flags, qdcount,
+            questionName, questionType, questionClass, questionEnd, answers);
+    }
+
+    private static int u16(byte[] bytes, int off) {
+        return ((bytes[off] & 0xff) << 8) | (bytes[off + 1] & 0xff);
+    }
+
+    private static void check(int len, int end) throws XException {
+        if (end > len)
+            throw new XException("dns packet too short");
+    }
+
+    // read a name at pos[0] and move pos[0] after the name
+    private static String readName(byte[] bytes, int len, int[] pos) throws XException {
+        StringBuilder sb = new StringBuilder();
+        int p = pos[0];
+        int end = -1; // where the name ends in the original position
+        int jumps = 0;
+        while (true) {
+            check(len, p + 1);
+            int l = bytes[p] & 0xff;
+            if ((l & 0xc0) == 0xc0) {
+                // compression pointer
+                check(len, p + 2);
+                if (end == -1) {
+                    end = p + 2;
+                }
+                if (++jumps > MAX_NAME_LEN / 2)
+                    throw new XException("too many compression pointers");
+                p = ((l & 0x3f) << 8) | (bytes[p + 1] & 0xff);
+                continue;
+            }
+            if ((l & 0xc0) != 0)
+                throw new XException("unsupported label type");
+            ++p;
+            if (l == 0)
+                break;
+            check(len, p + l);
+            if (sb.length() != 0) {
+                sb.append('.');
+            }
+            for (int i = 0; i < l; ++i) {
+                sb.append(Character.toLowerCase((char) (bytes[p + i] & 0xff)));
+            }
+            if (sb.length() > MAX_NAME_LEN)
+                throw new XException("name too long");
+            p += l;
+        }
+        pos[0] = end == -1 ? p : end;
+        return sb.toString();
+    }
+}
@@ -0,0 +1,83 @@
+package net.cassite.vproxy.dns;
+
+import net.cassite.vproxy.util.Utils;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * the static host table, see hosts(5)
+ * <p>
+ * `localhost` always resolves to the loopback addresses (rfc 6761),
+ * the addresses in the file are appended.
+ */
+class Hosts {
+    static final String DEFAULT_PATH = "/etc/hosts";
+
+    private final Map<String, List<InetAddress>> map = new HashMap<>();
+
+    private Hosts() {
+    }
+
+    // return a table with only `localhost` if the file cannot be read
+    static Hosts load(String path) {
+        Hosts hosts = new Hosts();
+        try {
+            hosts.add("localhost", InetAddress.getByAddress(new byte[]{127, 0, 0, 1}));
+            hosts.add("localhost", InetAddress.getByAddress(new byte[]{0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 1}));
+        } catch (UnknownHostException e) {
+            throw new RuntimeException(e); // should not happen
+        }
+        try (BufferedReader reader = new BufferedReader(new FileReader(path))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int idx = line.indexOf('#');
+                if (idx != -1) {
+                    line = line.substring(0, idx);
+                }
+                line = line.trim();
+                if (line.isEmpty())
+                    continue;
+                String[] arr = line.split("\\s+");
+                if (arr.length < 2)
+                    continue;
+                byte[] bytes = Utils.parseIpString(arr[0]);
+                if (bytes == null)
+                    continue;
+                InetAddress addr = InetAddress.getByAddress(bytes);
+                for (int i = 1; i < arr.length; ++i) {
+                    hosts.add(arr[i], addr);
+                }
+            }
+        } catch (IOException ignore) {
+            // use the default entries
+        }
+        return hosts;
+    }
+
+    private void add(String name, InetAddress addr) {
+        name = name.toLowerCase();
+        List<InetAddress> list = map.computeIfAbsent(name, k -> new ArrayList<>());
+        if (!list.contains(addr)) {
+            list.add(addr);
+        }
+    }
+
+    // return null if not found
+    InetAddress[] lookup(String name) {
+        if (name.endsWith(".")) {
+            name = name.substring(0, name.length() - 1);
+        }
+        List<InetAddress> list = map.get(name.toLowerCase());
+        if (list == null)
+            return null;
+        return list.toArray(new InetAddress[0]);
+    }
+}
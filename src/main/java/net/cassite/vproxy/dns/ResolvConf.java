@@ -0,0 +1,137 @@
+package net.cassite.vproxy.dns;
+
+import net.cassite.vproxy.util.LogType;
+import net.cassite.vproxy.util.Logger;
+import net.cassite.vproxy.util.Utils;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * the resolver configuration, see resolv.conf(5)
+ * <p>
+ * supports: nameserver, search, domain, options timeout/attempts/ndots
+ */
+public class ResolvConf {
+    public static final String DEFAULT_PATH = "/etc/resolv.conf";
+    // the defaults are the same as glibc
+    private static final int DEFAULT_TIMEOUT = 5000;
+    private static final int DEFAULT_ATTEMPTS = 2;
+    private static final int DEFAULT_NDOTS = 1;
+    private static final int MAX_NAME_SERVERS = 3;
+
+    public final List<InetSocketAddress> nameServers;
+    public final List<String> searchDomains;
+    public final int ndots;
+    public final int timeout; // ms to wait for one response
+    public final int attempts; // times to send a query to each server
+
+    public ResolvConf(List<InetSocketAddress> nameServers, List<String> searchDomains,
+                      int ndots, int timeout, int attempts) {
+        this.nameServers = Collections.unmodifiableList(new ArrayList<>(nameServers));
+        this.searchDomains = Collections.unmodifiableList(new ArrayList<>(searchDomains));
+        this.ndots = ndots;
+        this.timeout = timeout;
+        this.attempts = attempts;
+    }
+
+    public ResolvConf(List<InetSocketAddress> nameServers) {
+        this(nameServers, Collections.emptyList(), DEFAULT_NDOTS, DEFAULT_TIMEOUT, DEFAULT_ATTEMPTS);
+    }
+
+    // return an empty config if the file cannot be read
+    public static ResolvConf load(String path) {
+        List<InetSocketAddress> nameServers = new ArrayList<>();
+        List<String> searchDomains = new ArrayList<>();
+        int ndots = DEFAULT_NDOTS;
+        int timeout = DEFAULT_TIMEOUT;
+        int attempts = DEFAULT_ATTEMPTS;
+        try (BufferedReader reader = new BufferedReader(new FileReader(path))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#") || line.startsWith(";"))
+                    continue;
+                String[] arr = line.split("\\s+");
+                switch (arr[0]) {
+                    case "nameserver":
+                        if (arr.length < 2 || nameServers.size() >= MAX_NAME_SERVERS)
+                            break;
+                        InetAddress addr = parseNameServer(arr[1]);
+                        if (addr == null) {
+                            Logger.warn(LogType.INVALID_EXTERNAL_DATA, "invalid nameserver in " + path + ": " + arr[1]);
+                            break;
+                        }
+                        nameServers.add(new InetSocketAddress(addr, 53));
+                        break;
+                    case "domain":
+                    case "search":
+                        // the latest one takes effect
+                        searchDomains.clear();
+                        for (int i = 1; i < arr.length; ++i) {
+                            searchDomains.add(arr[i]);
+                        }
+                        break;
+                    case "options":
+                        for (int i = 1; i < arr.length; ++i) {
+                            String opt = arr[i];
+                            int idx = opt.indexOf(':');
+                            if (idx == -1)
+                                continue;
+                            int n;
+                            try {
+                                n = Integer.parseInt(opt.substring(idx + 1));
+                            } catch (NumberFormatException e) {
+                                continue;
+                            }
+                            switch (opt.substring(0, idx)) {
+                                case "timeout":
+                                    timeout = Math.max(1, Math.min(n, 30)) * 1000;
+                                    break;
+                                case "attempts":
+                                    attempts = Math.max(1, Math.min(n, 5));
+                                    break;
+                                case "ndots":
+                                    ndots = Math.max(0, Math.min(n, 15));
+                                    break;
+                            }
+                        }
+                        break;
+                }
+            }
+        } catch (IOException e) {
+            assert Logger.lowLevelDebug("reading " + path + " failed " + e);
+        }
+        return new ResolvConf(nameServers, searchDomains, ndots, timeout, attempts);
+    }
+
+    private static InetAddress parseNameServer(String s) {
+        int idx = s.indexOf('%'); // ipv6 scope
+        byte[] bytes = Utils.parseIpString(idx == -1 ? s : s.substring(0, idx));
+        if (bytes == null)
+            return null;
+        try {
+            return InetAddress.getByAddress(bytes);
+        } catch (UnknownHostException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ResolvConf{" +
+            "nameServers=" + nameServers +
+            ", searchDomains=" + searchDomains +
+            ", ndots=" + ndots +
+            ", timeout=" + timeout +
+            ", attempts=" + attempts +
+            '}';
+    }
+}
@@ -1,5 +1,6 @@
 package net.cassite.vproxy.dns;
 
+import net.cassite.vproxy.app.Config;
 import net.cassite.vproxy.connection.NetEventLoop;
 import net.cassite.vproxy.selector.SelectorEventLoop;
 import net.cassite.vproxy.selector.TimerEvent;
@@ -10,14 +11,12 @@ import java.net.Inet4Address;
 import java.net.Inet6Address;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
-import java.util.Collection;
-import java.util.Collections;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class Resolver implements IResolver {
     static class ResolveTask {
@@ -25,27 +24,203 @@ public class Resolver implements IResolver {
         final Callback<InetAddress, UnknownHostException> cb;
         final boolean ipv4;
         final boolean ipv6;
+        final boolean refresh; // started by the cache, not by a user
 
         ResolveTask(String host, Callback<InetAddress, UnknownHostException> cb,
                     boolean ipv4, boolean ipv6) {
+            this(host, cb, ipv4, ipv6, false);
+        }
+
+        ResolveTask(String host, Callback<InetAddress, UnknownHostException> cb,
+                    boolean ipv4, boolean ipv6, boolean refresh) {
             this.host = host;
             this.cb = cb;
             this.ipv4 = ipv4;
             this.ipv6 = ipv6;
+            this.refresh = refresh;
         }
     }
 
+    // resolve one host via the dns client
+    // the tasks for the same host share one lookup
+    private class Lookup {
+        final String host;
+        final List<String> names; // the names to query, see searchNames()
+        final List<ResolveTask> tasks = new LinkedList<>();
+        int nameIdx = 0;
+        // the following fields are reset for each name
+        int pending;
+        final List<InetAddress> addresses = new ArrayList<>();
+        long minTtl;
+        IOException err;
+
+        Lookup(String host) {
+            this.host = host;
+            this.names = searchNames(host);
+        }
+
+        void next() {
+            if (nameIdx >= names.size()) {
+                // the host does not exist, the cached addresses should not be used any more
+                Cache cache = cacheMap.get(host);
+                if (cache != null) {
+                    cache.remove();
+                }
+                done(new UnknownHostException(host));
+                return;
+            }
+            String name = names.get(nameIdx++);
+            pending = 2;
+            addresses.clear();
+            minTtl = Long.MAX_VALUE;
+            err = null;
+            // query A and AAAA at the same time
+            client.query(name, DNSPacket.TYPE_A, new Callback<DNSPacket, IOException>() {
+                @Override
+                protected void onSucceeded(DNSPacket value) {
+                    handle(value);
+                }
+
+                @Override
+                protected void onFailed(IOException err) {
+                    handle(err);
+                }
+            });
+            client.query(name, DNSPacket.TYPE_AAAA, new Callback<DNSPacket, IOException>() {
+                @Override
+                protected void onSucceeded(DNSPacket value) {
+                    handle(value);
+                }
+
+                @Override
+                protected void onFailed(IOException err) {
+                    handle(err);
+                }
+            });
+        }
+
+        void handle(DNSPacket packet) {
+            if (packet.rcode == DNSPacket.RCODE_NOERROR) {
+                for (DNSPacket.Record r : packet.answers) {
+                    InetAddress addr;
+                    try {
+                        if (r.type == DNSPacket.TYPE_A && r.rdata.length == 4) {
+                            addr = InetAddress.getByAddress(r.rdata);
+                        } else if (r.type == DNSPacket.TYPE_AAAA && r.rdata.length == 16) {
+                            // use Inet6Address directly, otherwise v4-mapped addresses become Inet4Address
+                            addr = Inet6Address.getByAddress(null, r.rdata, -1);
+                        } else if (r.type == DNSPacket.TYPE_CNAME) {
+                            // the aliases also limit the ttl
+                            minTtl = Math.min(minTtl, r.ttl);
+                            continue;
+                        } else {
+                            continue;
+                        }
+                    } catch (UnknownHostException e) {
+                        continue; // will not happen because the length is checked
+                    }
+                    if (!addresses.contains(addr)) {
+                        addresses.add(addr);
+                    }
+                    minTtl = Math.min(minTtl, r.ttl);
+                }
+            } else if (packet.rcode != DNSPacket.RCODE_NXDOMAIN) {
+                err = new IOException("dns server returned rcode " + packet.rcode);
+            }
+            roundDone();
+        }
+
+        void handle(IOException err) {
+            this.err = err;
+            roundDone();
+        }
+
+        void roundDone() {
+            if (--pending > 0)
+                return;
+            if (!addresses.isEmpty()) {
+                // ipv4 first, see comments in filter()
+                addresses.sort((a, b) -> (a instanceof Inet4Address ? 0 : 1) - (b instanceof Inet4Address ? 0 : 1));
+                InetAddress[] arr = addresses.toArray(new InetAddress[0]);
+                // the configured ttl is the max time to cache a record
+                long recordTtl = minTtl * 1000;
+                if (recordTtl > 0) {
+                    Cache cache = record(host, arr, (int) (ttl > 0 ? Math.min(ttl, recordTtl) : Math.min(Integer.MAX_VALUE, recordTtl)));
+                    cache.stats.misses.addAndGet(tasks.stream().filter(t -> !t.refresh).count());
+                } else {
+                    // not cacheable, drop the old record as well
+                    Cache cache = cacheMap.get(host);
+                    if (cache != null) {
+                        cache.remove();
+                    }
+                }
+                done(arr);
+            } else if (err != null) {
+                // no server is working properly, do not try other names
+                done(new UnknownHostException(host + ": " + err.getMessage()));
+            } else {
+                next();
+            }
+        }
+
+        void done(InetAddress[] addresses) {
+            resolving.remove(host);
+            for (ResolveTask task : tasks) {
+                complete(task, addresses);
+            }
+        }
+
+        void done(UnknownHostException err) {
+            resolving.remove(host);
+            for (ResolveTask task : tasks) {
+                task.cb.failed(err);
+            }
+        }
+    }
+
+    // the stats are kept when the cache of the host is refreshed
+    public static class Stats {
+        public final AtomicLong hits = new AtomicLong(); // answered by the cache
+        public final AtomicLong staleHits = new AtomicLong(); // answered by the cache after the record expired
+        public final AtomicLong misses = new AtomicLong(); // user requests that had to wait for a lookup
+        public final AtomicLong refreshes = new AtomicLong(); // lookups started by the cache
+        public final AtomicLong refreshFailures = new AtomicLong();
+
+        @Override
+        public String toString() {
+            return "hits " + hits + " stale-hits " + staleHits + " misses " + misses +
+                " refreshes " + refreshes + " refresh-failures " + refreshFailures;
+        }
+    }
+
+    /**
+     * a record is refreshed in background when it's about to expire
+     * if it is used after recorded (or refreshed),
+     * and it's served for at most `staleTimeout` after expired if the refreshing fails,
+     * during which the refreshing is retried with backoff.
+     * a record not used is simply removed when expired.
+     */
     public class Cache {
         public final String host;
         public final List<Inet4Address> ipv4;
         public final List<Inet6Address> ipv6;
         private final AtomicInteger idxIpv4 = new AtomicInteger(0);
         private final AtomicInteger idxIpv6 = new AtomicInteger(0);
-        final TimerEvent te;
+        private final int timeout;
+        private final AtomicLong recentHits = new AtomicLong(); // hits of this record, not of the host
+        private volatile TimerEvent te;
+        private volatile boolean stale = false;
+        private volatile TimerEvent retryTe; // retrying to refresh the stale record
+        // the following fields are only accessed on loop
+        private long staleDeadline;
+        private int retryDelay = REFRESH_RETRY_DELAY;
+        public final Stats stats;
         public final long timestamp;
 
-        Cache(String host, InetAddress[] addresses) {
+        Cache(String host, InetAddress[] addresses, int timeout, Stats stats) {
             this.host = host;
+            this.timeout = timeout;
+            this.stats = stats;
             List<Inet4Address> ipv4 = new LinkedList<>();
             List<Inet6Address> ipv6 = new LinkedList<>();
             for (InetAddress a : addresses) {
@@ -58,22 +233,98 @@ public class Resolver implements IResolver {
             this.ipv4 = Collections.unmodifiableList(ipv4);
             this.ipv6 = Collections.unmodifiableList(ipv6);
 
-            if (ttl > 0) {
-                // start a timer to clear the record
-                te = loop.getSelectorEventLoop().delay(ttl, Cache.this::remove);
+            timestamp = System.currentTimeMillis();
+
+            if (timeout > 0) {
+                // start a timer to refresh or clear the record
+                te = loop.getSelectorEventLoop().delay(timeout - timeout / 10, this::prefetch);
             } else {
                 te = null;
             }
+        }
 
-            timestamp = System.currentTimeMillis();
+        // called on loop
+        private void prefetch() {
+            te = loop.getSelectorEventLoop().delay(timeout / 10, this::expire);
+            if (recentHits.get() > 0) {
+                refresh();
+            }
         }
 
-        public void remove() {
+        // called on loop
+        private void expire() {
+            if (recentHits.get() == 0 || staleTimeout <= 0) {
+                remove();
+                return;
+            }
+            // the record is in use but not refreshed yet
+            stale = true;
+            staleDeadline = System.currentTimeMillis() + staleTimeout;
+            te = loop.getSelectorEventLoop().delay(staleTimeout, this::remove);
+            refresh(); // the record is replaced when succeeded, or try again
+        }
+
+        // called on loop
+        // refresh the stale record again with backoff, until the stale timeout
+        private void retry() {
+            if (!stale || retryTe != null || cacheMap.get(host) != this)
+                return; // will be refreshed when expired, or already retrying, or replaced
+            long left = staleDeadline - System.currentTimeMillis();
+            if (left <= retryDelay)
+                return; // will be removed before the next try
+            retryTe = loop.getSelectorEventLoop().delay(retryDelay, () -> {
+                retryTe = null;
+                refresh();
+            });
+            retryDelay *= 2;
+        }
+
+        private void cancelTimers() {
+            TimerEvent te = this.te;
             if (te != null) {
                 te.cancel();
             }
+            TimerEvent retryTe = this.retryTe;
+            if (retryTe != null) {
+                retryTe.cancel();
+            }
+        }
+
+        // called on loop
+        private void refresh() {
+            stats.refreshes.incrementAndGet();
+            doResolve(new ResolveTask(host, new Callback<InetAddress, UnknownHostException>() {
+                @Override
+                protected void onSucceeded(InetAddress value) {
+                    // the record is replaced
+                }
+
+                @Override
+                protected void onFailed(UnknownHostException err) {
+                    stats.refreshFailures.incrementAndGet();
+                    assert Logger.lowLevelDebug("refreshing " + host + " failed " + err);
+                    retry();
+                }
+            }, true, true, true));
+        }
+
+        void hit() {
+            recentHits.incrementAndGet();
+            stats.hits.incrementAndGet();
+            if (stale) {
+                stats.staleHits.incrementAndGet();
+            }
+        }
+
+        public boolean isStale() {
+            return stale;
+        }
+
+        public void remove() {
+            cancelTimers();
+            if (!cacheMap.remove(host, this))
+                return; // already removed or replaced
             assert Logger.lowLevelDebug("cache removed " + host);
-            cacheMap.remove(host);
 
             for (ResolveListener lsn : resolveListeners) {
                 try {
@@ -125,6 +376,11 @@ public class Resolver implements IResolver {
                 else sb.append(",");
                 sb.append(Utils.ipStr(i.getAddress()));
             }
+            sb.append("]");
+            if (stale) {
+                sb.append(" stale");
+            }
+            sb.append(" ").append(stats);
             return sb.toString();
         }
     }
@@ -166,19 +422,36 @@ public class Resolver implements IResolver {
 
     private final String alias;
     private final NetEventLoop loop;
-    public int ttl = 60000;
+    public int ttl = 60000; // the max time to cache a record
+    public int staleTimeout = 30000; // the max time to serve an expired record in use when refreshing fails
+    // the first delay to refresh a stale record again, doubled after every failure
+    private static final int REFRESH_RETRY_DELAY = 1000;
     private final ConcurrentMap<String, Cache> cacheMap = new ConcurrentHashMap<>();
     private final CopyOnWriteArraySet<ResolveListener> resolveListeners = new CopyOnWriteArraySet<>();
+    private final ResolvConf conf;
+    private final Hosts hosts;
+    private final DNSClient client; // null if cannot use the dns client
+    // host => the lookup in progress, only accessed on loop
+    private final Map<String, Lookup> resolving = new HashMap<>();
 
     public Resolver(String alias) throws IOException {
-        // currently we only use java standard lib to resolve the address
-        // so this loop is only used for handling events for now
+        this(alias, ResolvConf.load(ResolvConf.DEFAULT_PATH));
+    }
+
+    public Resolver(String alias, ResolvConf conf) throws IOException {
         this.alias = alias;
         this.loop = new NetEventLoop(SelectorEventLoop.open());
-        // java resolve process will block the thread
-        // so we start a new thread only for resolving
-        // it will make a callback when resolve completed
-        // let's just handle it in the loop since it is created for resolving
+        this.conf = conf;
+        this.hosts = Hosts.load(Hosts.DEFAULT_PATH);
+        if (Config.useDatagramChannel && !conf.nameServers.isEmpty()) {
+            this.client = new DNSClient(loop, conf);
+        } else {
+            // use java standard lib to resolve the address
+            // it will block the thread, but the loop is created only for resolving
+            Logger.warn(LogType.ALERT, "the dns client is not used: " +
+                (conf.nameServers.isEmpty() ? "no name servers" : "datagram channel not supported"));
+            this.client = null;
+        }
     }
 
     public void start() {
@@ -186,6 +459,54 @@ public class Resolver implements IResolver {
     }
 
     private void doResolve(ResolveTask task) {
+        InetAddress[] addresses = hosts.lookup(task.host);
+        if (addresses != null) {
+            Cache cache = record(task.host, addresses, ttl);
+            if (!task.refresh) {
+                cache.stats.misses.incrementAndGet();
+            }
+            complete(task, addresses);
+            return;
+        }
+        if (client == null) {
+            blockingResolve(task);
+            return;
+        }
+        Lookup lookup = resolving.get(task.host);
+        if (lookup != null) {
+            lookup.tasks.add(task);
+            return;
+        }
+        lookup = new Lookup(task.host);
+        lookup.tasks.add(task);
+        resolving.put(task.host, lookup);
+        lookup.next();
+    }
+
+    // see resolv.conf(5) about search and ndots
+    private List<String> searchNames(String host) {
+        if (host.endsWith("."))
+            return Collections.singletonList(host);
+        int dots = 0;
+        for (int i = 0; i < host.length(); ++i) {
+            if (host.charAt(i) == '.') {
+                ++dots;
+            }
+        }
+        List<String> names = new ArrayList<>(conf.searchDomains.size() + 1);
+        if (dots >= conf.ndots) {
+            names.add(host);
+        }
+        for (String domain : conf.searchDomains) {
+            names.add(host + "." + domain);
+        }
+        if (dots < conf.ndots) {
+            names.add(host);
+        }
+        return names;
+    }
+
+    private void blockingResolve(ResolveTask task) {
         // handle the task
         InetAddress[] addresses;
         try {
@@ -195,21 +516,36 @@ public class Resolver implements IResolver {
             task.cb.failed(e);
             return;
         }
-        // record
-        if (addresses.length > 0) {
-            Cache cache = new Cache(task.host, addresses);
-            assert Logger.lowLevelDebug("cache recorded " + cache.host);
-            cacheMap.put(task.host, cache);
-            for (ResolveListener lsn : resolveListeners) {
-                try {
-                    lsn.onResolve(cache);
-                } catch (Throwable t) {
-                    // we can do nothing about it
-                    Logger.error(LogType.IMPROPER_USE, "onResolve() raised exception", t);
-                }
+        Cache cache = record(task.host, addresses, ttl);
+        if (cache != null && !task.refresh) {
+            cache.stats.misses.incrementAndGet();
+        }
+        complete(task, addresses);
+    }
+
+    // return null if not recorded
+    private Cache record(String host, InetAddress[] addresses, int timeout) {
+        if (addresses.length == 0)
+            return null;
+        Cache old = cacheMap.get(host);
+        Cache cache = new Cache(host, addresses, timeout, old == null ? new Stats() : old.stats);
+        assert Logger.lowLevelDebug("cache recorded " + cache.host);
+        old = cacheMap.put(host, cache);
+        if (old != null) {
+            old.cancelTimers();
+        }
+        for (ResolveListener lsn : resolveListeners) {
+            try {
+                lsn.onResolve(cache);
+            } catch (Throwable t) {
+                // we can do nothing about it
+                Logger.error(LogType.IMPROPER_USE, "onResolve() raised exception", t);
             }
         }
+        return cache;
+    }
 
+    private void complete(ResolveTask task, InetAddress[] addresses) {
         // filter the result
         InetAddress result = filter(addresses, task.ipv4, task.ipv6);
         if (result != null) {
@@ -293,6 +629,7 @@ public class Resolver implements IResolver {
                 doResolve(new ResolveTask(host, (Callback) cb, ipv4, ipv6)));
             return;
         }
+        r.hit();
         Tuple<Inet4Address, Inet6Address> tup = r.next();
         Inet4Address v4 = tup.left;
         Inet6Address v6 = tup.right;
@@ -357,6 +694,10 @@ public class Resolver implements IResolver {
     @Blocking
     public void stop() throws IOException {
         loop.getSelectorEventLoop().close();
+        if (client != null) {
+            // the loop is closed, so it's safe to operate on this thread
+            client.close();
+        }
         clearCache();
     }
 }
@@ -2,9 +2,15 @@ package net.cassite.vproxy.redis;
 
 public class RESPConfig {
     int maxParseLen = 16384;
+    int maxPipeline = 128; // max commands handling without reply flushed on one connection
 
     public RESPConfig setMaxParseLen(int maxParseLen) {
         this.maxParseLen = maxParseLen;
         return this;
     }
+
+    public RESPConfig setMaxPipeline(int maxPipeline) {
+        this.maxPipeline = maxPipeline;
+        return this;
+    }
 }
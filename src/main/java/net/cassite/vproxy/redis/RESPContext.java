@@ -1,6 +1,16 @@
 package net.cassite.vproxy.redis;
 
+import java.util.ArrayDeque;
+import java.util.Deque;
+
 public class RESPContext {
+    static class Reply {
+        volatile byte[] bytes; // null when the command is still handling
+    }
+
     RESPParser parser;
     Object attachment;
+    // replies in the order of commands, only accessed on the loop
+    final Deque<Reply> replies = new ArrayDeque<>();
+    boolean parsing = false; // replies are flushed after parsing
 }
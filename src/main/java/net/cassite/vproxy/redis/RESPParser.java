@@ -1,11 +1,22 @@
 package net.cassite.vproxy.redis;
 
 import net.cassite.vproxy.redis.entity.*;
-import net.cassite.vproxy.util.ByteArrayChannel;
 import net.cassite.vproxy.util.Logger;
 import net.cassite.vproxy.util.RingBuffer;
 import net.cassite.vproxy.util.Utils;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * the parser scans the bytes directly on the buffer segments handed out by the ring buffer,
+ * and copies the bulk string body in bulk.
+ * <p>
+ * the parser stops exactly at the end of one message,
+ * so the bytes of the next message are kept in the ring buffer.
+ * call reset() to parse the next message with the same parser.
+ */
 @SuppressWarnings("Duplicates")
 public class RESPParser {
     private final int maxLen;
@@ -15,6 +26,10 @@ public class RESPParser {
     private String errorMessage = null;
     private int state = 0; // 0 is the start state
 
+    // the ring buffer writes its segments into this channel
+    private final ScanChannel scanChannel = new ScanChannel();
+    private int scanResult;
+
     /*
      * state machine:
      *
@@ -45,7 +60,7 @@ public class RESPParser {
      * 7 ---> bulk string header end
      * ----->(\n) -> bulk string body --> 8
      * 8 ---> bulk string body
-     * ----->for $len times, read data--> 8
+     * ----->copy $len bytes at once----> 8
      * then->(\r) -> simple end -----> 2
      * 9 ---> array
      * ----->(digital)--> increase --> 10
@@ -55,7 +70,7 @@ public class RESPParser {
      * 11---> array header end
      * ----->(\n)->if arr.len == 0 end, otherwise array body-> 12
      * 12---> array body
-     * -----> start a new parser for $len times -->12
+     * -----> let the element parser scan for $len times -->12
      * then-> end
      * 13---> inline
      * ----->(\r) -> simple end -----> 2
@@ -81,23 +96,100 @@ public class RESPParser {
     // return -1 means: got error, or want more data
     // call getErrorMessage() to check whether is error
     public int feed(RingBuffer buffer) {
-        byte[] nextByte = new byte[1];
-        ByteArrayChannel chnl = ByteArrayChannel.fromEmpty(nextByte);
-        while (true) {
-            chnl.reset();
-            // an integer field that does multiple things, no particular name for it
-            int foo = buffer.writeTo(chnl);
-            if (foo == 0)
-                return -1; // indicating `want more`
-            ++parsedLen;
-            if (parsedLen > maxLen) {
-                errorMessage = "too many input bytes";
-                return -1;
+        if (errorMessage != null)
+            return -1;
+        scanResult = WANT_MORE;
+        int n;
+        try {
+            n = buffer.writeTo(scanChannel, maxBytes());
+        } catch (IOException e) {
+            // it's memory operation, should not raise error
+            throw new RuntimeException(e);
+        }
+        return fed(n);
+    }
+
+    // same as feed(RingBuffer), but the bytes are read from the position of the `src`
+    // and the position is moved to where the parsing stops
+    public int feed(ByteBuffer src) {
+        if (errorMessage != null)
+            return -1;
+        scanResult = WANT_MORE;
+        int limit = src.limit();
+        if (src.remaining() > maxBytes()) {
+            src.limit(src.position() + maxBytes());
+        }
+        int n;
+        try {
+            n = scanChannel.write(src);
+        } finally {
+            src.limit(limit);
+        }
+        return fed(n);
+    }
+
+    // one more byte than the limit, to find out whether the input is too long
+    private int maxBytes() {
+        return (int) Math.min((long) maxLen - parsedLen + 1, Integer.MAX_VALUE);
+    }
+
+    private int fed(int n) {
+        parsedLen += n;
+        if (parsedLen > maxLen) {
+            errorMessage = "too many input bytes";
+            return -1;
+        }
+        if (scanResult == WANT_MORE)
+            return -1; // indicating `want more`
+        return scanResult;
+    }
+
+    public void reset() {
+        parsedLen = 0;
+        resp = null;
+        errorMessage = null;
+        state = 0;
+    }
+
+    class ScanChannel implements WritableByteChannel {
+        @Override
+        public int write(ByteBuffer src) {
+            if (scanResult != WANT_MORE)
+                return 0; // already done or got error, keep the bytes in the buffer
+            int pos = src.position();
+            scanResult = scan(src);
+            return src.position() - pos;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+            // nothing to close
+        }
+    }
+
+    // consume bytes from the src until the message is done
+    // return GOT_ERROR when error
+    // return DONE when done
+    // return WANT_MORE when all bytes are consumed
+    private int scan(ByteBuffer src) {
+        while (src.hasRemaining()) {
+            int res;
+            if (state == 8 && ((RESPBulkString) resp).len > 0) {
+                res = copyBulkStringBody8(src);
+            } else if (state == 12) {
+                res = scanArrayBody12(src);
+            } else {
+                res = doSwitch(Utils.positive(src.get()));
             }
-            foo = doSwitch(Utils.positive(nextByte[0]));
-            if (foo == -1 || foo == 0)
-                return foo;
+            if (res == GOT_ERROR || res == DONE)
+                return res;
         }
+        return WANT_MORE;
     }
 
     // only for private switch methods
@@ -153,9 +245,6 @@ public class RESPParser {
             case 11:
                 res = switchArrayHeaderEnd11(b);
                 break;
-            case 12:
-                res = switchArrayBody12(b);
-                break;
             case 13:
                 res = switchInline13(b);
                 break;
@@ -306,8 +395,11 @@ public class RESPParser {
                 // -2,-3 etc
                 // invalid
                 return error("bulk string length cannot be " + bs.len);
+            } else if (bs.len > maxLen) {
+                // do not allocate the body for a message that will be rejected
+                return error("too many input bytes");
             } else {
-                bs.string = new StringBuilder();
+                bs.bytes = new byte[bs.len];
                 return 7;
             }
         }
@@ -327,18 +419,21 @@ public class RESPParser {
         return error("expecting \\n");
     }
 
+    // the body bytes are copied in copyBulkStringBody8
+    // so only the ending \r is handled here
     private int switchBulkStringBody8(int b) {
-        RESPBulkString bs = (RESPBulkString) resp;
-        if (bs.len == 0) {
-            if (b == '\r') {
-                return 2;
-            }
-            return error("expecting \\r");
-        } else {
-            --bs.len;
-            bs.string.append((char) b);
-            return 8;
+        if (b == '\r') {
+            return 2;
         }
+        return error("expecting \\r");
+    }
+
+    private int copyBulkStringBody8(ByteBuffer src) {
+        RESPBulkString bs = (RESPBulkString) resp;
+        int n = Math.min(bs.len, src.remaining());
+        src.get(bs.bytes, bs.bytes.length - bs.len, n);
+        bs.len -= n;
+        return WANT_MORE;
     }
 
     private int switchArray9(int b) {
@@ -374,23 +469,24 @@ public class RESPParser {
         return error("expecting \\n");
     }
 
-    private int switchArrayBody12(int b) {
+    private int scanArrayBody12(ByteBuffer src) {
         RESPArray array = (RESPArray) resp;
         if (array.parser == null) {
-            array.parser = new RESPParser(this.maxLen - parsedLen);
+            array.parser = new RESPParser(this.maxLen);
         }
-        int res = array.parser.doSwitch(b);
-        if (res == -1)
+        int res = array.parser.scan(src);
+        if (res == GOT_ERROR)
             return error(array.parser.errorMessage);
-        if (res == 0) {
+        if (res == DONE) {
             array.array.add(array.parser.getResult());
-            array.parser = null;
+            array.parser.reset(); // reuse the parser for the next element
             --array.len;
             if (array.len == 0) {
+                array.parser = null;
                 return DONE;
             }
         }
-        return 12;
+        return WANT_MORE;
     }
 
     private int switchInline13(int b) {
@@ -7,6 +7,8 @@ import net.cassite.vproxy.util.LogType;
 import net.cassite.vproxy.util.Logger;
 import net.cassite.vproxy.util.Utils;
 
+import java.util.Deque;
+
 public class RESPProtocolHandler implements ProtocolHandler<RESPContext> {
     private final RESPConfig config;
     private final RESPHandler handler;
@@ -21,26 +23,54 @@ public class RESPProtocolHandler implements ProtocolHandler<RESPContext> {
         assert Logger.lowLevelDebug("connection established in RESPProtocolHandler " + ctx.connectionId);
         // init resp context
         ctx.data = new RESPContext();
+        ctx.data.parser = new RESPParser(config.maxParseLen);
         ctx.data.attachment = handler.attachment();
     }
 
     @Override
     public void readable(ProtocolHandlerContext<RESPContext> ctx) {
-        if (ctx.data.parser == null) {
-            ctx.data.parser = new RESPParser(config.maxParseLen);
+        RESPContext data = ctx.data;
+        while (true) {
+            data.parsing = true;
+            try {
+                parse(ctx);
+            } finally {
+                data.parsing = false;
+            }
+            flush(ctx);
+            // the parsing stops when too many commands are handling
+            // continue if some of them are flushed
+            if (ctx.inBuffer.used() == 0 || data.replies.size() >= config.maxPipeline)
+                break;
         }
-        int r = ctx.data.parser.feed(ctx.inBuffer);
-        if (r == -1) {
-            String error = ctx.data.parser.getErrorMessage();
-            if (error == null)
-                return; // no error and -1 means want more data
-            ctx.inBuffer.clear(); // remove pending input data
-            ctx.data.parser = null; // remove the parser
-            ctx.write(Serializer.fromErrorString(error));
-            return;
+    }
+
+    // parse all complete commands in the in buffer and dispatch them to the handler
+    // the handler may reply asynchronously and in any order
+    private void parse(ProtocolHandlerContext<RESPContext> ctx) {
+        RESPContext data = ctx.data;
+        while (ctx.inBuffer.used() > 0 && data.replies.size() < config.maxPipeline) {
+            int r = data.parser.feed(ctx.inBuffer);
+            if (r == -1) {
+                String error = data.parser.getErrorMessage();
+                if (error == null)
+                    return; // no error and -1 means want more data
+                ctx.inBuffer.clear(); // remove pending input data
+                data.parser.reset();
+                RESPContext.Reply reply = new RESPContext.Reply();
+                reply.bytes = Serializer.fromErrorString(error);
+                data.replies.add(reply);
+                return;
+            }
+            Object o = data.parser.getResult().getJavaObject();
+            data.parser.reset();
+            RESPContext.Reply reply = new RESPContext.Reply();
+            data.replies.add(reply);
+            handle(ctx, o, reply);
         }
-        Object o = ctx.data.parser.getResult().getJavaObject();
-        ctx.data.parser = null; // remove the parser
+    }
+
+    private void handle(ProtocolHandlerContext<RESPContext> ctx, Object o, RESPContext.Reply reply) {
         // let user code handle the object
         try {
             //noinspection unchecked
@@ -52,10 +82,10 @@ public class RESPProtocolHandler implements ProtocolHandler<RESPContext> {
                         bytes = Serializer.from(value);
                     } catch (IllegalArgumentException e) {
                         Logger.error(LogType.IMPROPER_USE, "user returned an unexpected object", e);
-                        ctx.write(Serializer.fromErrorString("Internal Error"));
+                        reply(ctx, reply, Serializer.fromErrorString("Internal Error"));
                         return;
                     }
-                    ctx.write(bytes);
+                    reply(ctx, reply, bytes);
                 }
 
                 @Override
@@ -65,13 +95,56 @@ public class RESPProtocolHandler implements ProtocolHandler<RESPContext> {
                         " - " + Utils.formatErr(err));
                     assert Logger.printStackTrace(err);
                     String errStr = Utils.formatErr(err);
-                    ctx.write(Serializer.fromErrorString(errStr));
+                    reply(ctx, reply, Serializer.fromErrorString(errStr));
                 }
             });
         } catch (Throwable t) {
             Logger.error(LogType.IMPROPER_USE, "user handle function thrown error", t);
-            ctx.write(Serializer.fromErrorString("Internal Error"));
+            reply(ctx, reply, Serializer.fromErrorString("Internal Error"));
+        }
+    }
+
+    // might be called on any thread
+    private void reply(ProtocolHandlerContext<RESPContext> ctx, RESPContext.Reply reply, byte[] bytes) {
+        if (reply.bytes != null)
+            return; // already replied
+        reply.bytes = bytes;
+        ctx.loop.runOnLoop(() -> {
+            if (ctx.data.parsing)
+                return; // will flush after parsing
+            // flush and continue parsing
+            readable(ctx);
+        });
+    }
+
+    // write the replies in the order of commands
+    // the replies ready to send are written in one batch
+    private void flush(ProtocolHandlerContext<RESPContext> ctx) {
+        Deque<RESPContext.Reply> replies = ctx.data.replies;
+        int count = 0;
+        int len = 0;
+        for (RESPContext.Reply r : replies) {
+            byte[] b = r.bytes;
+            if (b == null)
+                break; // still handling, the following replies should wait
+            ++count;
+            len += b.length;
+        }
+        if (count == 0)
+            return;
+        byte[] bytes;
+        if (count == 1) {
+            bytes = replies.poll().bytes;
+        } else {
+            bytes = new byte[len];
+            int off = 0;
+            for (int i = 0; i < count; ++i) {
+                byte[] b = replies.poll().bytes;
+                System.arraycopy(b, 0, bytes, off, b.length);
+                off += b.length;
+            }
         }
+        ctx.write(bytes);
     }
 
     @Override
@@ -1,14 +1,17 @@
 package net.cassite.vproxy.redis;
 
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.List;
 
+// the messages are built as strings with one char for each byte,
+// so that byte arrays can be carried as bulk strings
 public class Serializer {
     private Serializer() {
     }
 
     private static String _nullStr = "$-1\r\n";
-    private static byte[] _null = _nullStr.getBytes();
+    private static byte[] _null = _nullStr.getBytes(StandardCharsets.ISO_8859_1);
 
     public static byte[] fromNull() {
         return _null;
@@ -19,7 +22,7 @@ public class Serializer {
     }
 
     public static byte[] fromInteger(int i) {
-        return fromIntegerToString(i).getBytes();
+        return fromIntegerToString(i).getBytes(StandardCharsets.ISO_8859_1);
     }
 
     private static String fromIntegerToString(int i) {
@@ -27,7 +30,7 @@ public class Serializer {
     }
 
     private static byte[] fromLong(long l) {
-        return fromLongToString(l).getBytes();
+        return fromLongToString(l).getBytes(StandardCharsets.ISO_8859_1);
     }
 
     private static String fromLongToString(long l) {
@@ -35,23 +38,37 @@ public class Serializer {
     }
 
     public static byte[] fromString(String s) {
-        return fromStringToString(s).getBytes();
+        return fromStringToString(s).getBytes(StandardCharsets.ISO_8859_1);
     }
 
     private static String fromStringToString(String s) {
-        return "$" + s.length() + "\r\n" + s + "\r\n";
+        return fromBytesToString(s.getBytes());
+    }
+
+    public static byte[] fromBytes(byte[] b) {
+        byte[] head = ("$" + b.length + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        byte[] ret = new byte[head.length + b.length + 2];
+        System.arraycopy(head, 0, ret, 0, head.length);
+        System.arraycopy(b, 0, ret, head.length, b.length);
+        ret[ret.length - 2] = '\r';
+        ret[ret.length - 1] = '\n';
+        return ret;
+    }
+
+    private static String fromBytesToString(byte[] b) {
+        return "$" + b.length + "\r\n" + new String(b, StandardCharsets.ISO_8859_1) + "\r\n";
     }
 
     public static byte[] fromErrorString(String e) {
-        return fromErrorToString(e).getBytes();
+        return fromErrorToString(e).getBytes(StandardCharsets.ISO_8859_1);
     }
 
     private static String fromErrorToString(String e) {
-        return "-" + e + "\r\n";
+        return "-" + new String(e.getBytes(), StandardCharsets.ISO_8859_1) + "\r\n";
     }
 
     public static byte[] fromArray(List<Object> arr) {
-        return fromArrayToString(arr).getBytes();
+        return fromArrayToString(arr).getBytes(StandardCharsets.ISO_8859_1);
     }
 
     private static String fromArrayToString(List<Object> arr) {
@@ -79,6 +96,8 @@ public class Serializer {
             return fromLongToString((Long) o);
         if (o instanceof String)
             return fromStringToString((String) o);
+        if (o instanceof byte[])
+            return fromBytesToString((byte[]) o);
         if (o instanceof Object[])
             return fromArrayToString((Object[]) o);
         if (o instanceof List) {
@@ -89,6 +108,8 @@ public class Serializer {
     }
 
     public static byte[] from(Object o) {
-        return fromObjectToString(o).getBytes();
+        if (o instanceof byte[])
+            return fromBytes((byte[]) o); // no need to build the string
+        return fromObjectToString(o).getBytes(StandardCharsets.ISO_8859_1);
     }
 }
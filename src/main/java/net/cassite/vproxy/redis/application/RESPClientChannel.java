@@ -0,0 +1,320 @@
+package net.cassite.vproxy.redis.application;
+
+import net.cassite.vproxy.connection.ClientConnection;
+import net.cassite.vproxy.connection.ClientConnectionHandler;
+import net.cassite.vproxy.connection.ClientConnectionHandlerContext;
+import net.cassite.vproxy.connection.ConnectionHandlerContext;
+import net.cassite.vproxy.redis.RESPParser;
+import net.cassite.vproxy.selector.TimerEvent;
+import net.cassite.vproxy.util.ByteArrayChannel;
+import net.cassite.vproxy.util.Callback;
+import net.cassite.vproxy.util.Logger;
+import net.cassite.vproxy.util.RingBuffer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * a persistent connection to one remote resp server.
+ * <p>
+ * the responses are correlated with the requests by order,
+ * at most `maxInflight` requests are written before their responses arrive.
+ * when a connection fails before getting any response, the next connection is made after a backoff.
+ * the channel is closed when no request is made in `idleTimeout`.
+ * <p>
+ * all methods should be called on the event loop of the manager.
+ */
+class RESPClientChannel {
+    private static final int MIN_BACKOFF = 100;
+    private static final int MAX_BACKOFF = 5000;
+
+    class Req {
+        final byte[] bytes;
+        final Callback<Object, IOException> cb;
+        TimerEvent timeoutEvent;
+
+        Req(byte[] bytes, Callback<Object, IOException> cb) {
+            this.bytes = bytes;
+            this.cb = cb;
+        }
+
+        void failed(IOException err) {
+            timeoutEvent.cancel();
+            if (!cb.isCalled()) {
+                cb.failed(err);
+            }
+        }
+    }
+
+    class ChannelHandler implements ClientConnectionHandler {
+        @Override
+        public void connected(ClientConnectionHandlerContext ctx) {
+            if (ctx.connection != conn)
+                return; // not the current connection
+            connected = true;
+            write();
+        }
+
+        @Override
+        public void readable(ConnectionHandlerContext ctx) {
+            if (ctx.connection != conn)
+                return; // not the current connection
+            RingBuffer inBuffer = ctx.connection.getInBuffer();
+            while (inBuffer.used() > 0) {
+                int res = parser.feed(inBuffer);
+                if (res == -1) {
+                    String msg = parser.getErrorMessage();
+                    if (msg == null) {
+                        // want more data
+                        return;
+                    }
+                    lost(new IOException("external data is not RESP format"));
+                    return;
+                }
+                Object o = parser.getResult().getJavaObject();
+                parser.reset();
+                Req req = inflight.poll();
+                if (req == null) {
+                    lost(new IOException("got response without request"));
+                    return;
+                }
+                backoff = 0; // the remote works
+                responded = true;
+                lastActive = System.currentTimeMillis();
+                req.timeoutEvent.cancel();
+                req.cb.succeeded(o);
+                if (ctx.connection != conn)
+                    return; // closed in the callback
+            }
+            write();
+        }
+
+        @Override
+        public void writable(ConnectionHandlerContext ctx) {
+            if (ctx.connection != conn)
+                return; // not the current connection
+            write();
+        }
+
+        @Override
+        public void exception(ConnectionHandlerContext ctx, IOException err) {
+            if (ctx.connection != conn)
+                return; // not the current connection
+            lost(err);
+        }
+
+        @Override
+        public void closed(ConnectionHandlerContext ctx) {
+            if (ctx.connection != conn)
+                return; // not the current connection
+            lost(new IOException("remote closed"));
+        }
+
+        @Override
+        public void removed(ConnectionHandlerContext ctx) {
+            if (ctx.connection != conn)
+                return; // not the current connection
+            lost(new IOException("removed from event loop"));
+        }
+    }
+
+    private static final int BUFFER_SIZE = 16384;
+
+    private final RESPClientChannelManager manager;
+    final InetSocketAddress remote;
+
+    private final Deque<Req> queue = new ArrayDeque<>(); // not written yet
+    private final Deque<Req> inflight = new ArrayDeque<>(); // written and waiting for the response
+    private ByteArrayChannel writing; // bytes of the last inflight request not written yet
+
+    private ClientConnection conn;
+    private volatile boolean connected = false; // might be read by other threads
+    private boolean responded = false; // got any response on the current connection
+    private RESPParser parser;
+    private int backoff = 0;
+    private TimerEvent reconnectEvent;
+    private long lastActive;
+    private TimerEvent idleEvent;
+    private boolean closed = false;
+
+    RESPClientChannel(RESPClientChannelManager manager, InetSocketAddress remote) {
+        this.manager = manager;
+        this.remote = remote;
+    }
+
+    void request(byte[] bytes, int timeout, Callback<Object, IOException> cb) {
+        if (closed) {
+            cb.failed(new IOException("channel closed"));
+            return;
+        }
+        Req req = new Req(bytes, cb);
+        req.timeoutEvent = manager.loop.getSelectorEventLoop().delay(timeout, () -> timeout(req));
+        queue.add(req);
+        lastActive = System.currentTimeMillis();
+        if (idleEvent == null) {
+            idleEvent = manager.loop.getSelectorEventLoop().delay(manager.idleTimeout, this::checkIdle);
+        }
+        flush();
+    }
+
+    private void flush() {
+        if (queue.isEmpty())
+            return;
+        if (conn == null) {
+            if (reconnectEvent != null)
+                return; // will connect later
+            if (backoff == 0) {
+                connect();
+            } else {
+                assert Logger.lowLevelDebug("connect to " + remote + " after " + backoff + "ms");
+                reconnectEvent = manager.loop.getSelectorEventLoop().delay(backoff, () -> {
+                    reconnectEvent = null;
+                    if (conn == null && !queue.isEmpty() && !closed) {
+                        connect();
+                    }
+                });
+            }
+            return;
+        }
+        if (connected) {
+            write();
+        }
+    }
+
+    private void connect() {
+        ClientConnection conn;
+        try {
+            conn = ClientConnection.create(remote, manager.local, RingBuffer.allocate(BUFFER_SIZE), RingBuffer.allocate(BUFFER_SIZE));
+        } catch (IOException e) {
+            connectFailed(e);
+            return;
+        }
+        this.conn = conn;
+        this.connected = false;
+        this.responded = false;
+        this.parser = new RESPParser(BUFFER_SIZE);
+        try {
+            manager.loop.addClientConnection(conn, null, new ChannelHandler());
+        } catch (IOException e) {
+            this.conn = null;
+            conn.close();
+            connectFailed(e);
+        }
+    }
+
+    private void connectFailed(IOException err) {
+        increaseBackoff();
+        // the remote is not reachable, so fail the waiting requests quickly
+        failAll(queue, err);
+    }
+
+    private void increaseBackoff() {
+        backoff = backoff == 0 ? MIN_BACKOFF : Math.min(backoff * 2, MAX_BACKOFF);
+    }
+
+    void write() {
+        RingBuffer outBuffer = conn.getOutBuffer();
+        while (true) {
+            if (writing == null) {
+                if (inflight.size() >= manager.maxInflight(remote) || queue.isEmpty())
+                    return;
+                Req req = queue.poll();
+                inflight.add(req);
+                writing = ByteArrayChannel.fromFull(req.bytes);
+            }
+            outBuffer.storeBytesFrom(writing);
+            if (writing.used() > 0)
+                return; // the out buffer is full, will write when writable
+            writing = null;
+        }
+    }
+
+    // the connection cannot be used anymore
+    private void lost(IOException err) {
+        ClientConnection conn = this.conn;
+        boolean wasConnected = connected;
+        this.conn = null;
+        this.connected = false;
+        this.writing = null;
+        this.parser = null;
+        conn.close();
+
+        assert Logger.lowLevelDebug("connection to " + remote + " lost " + err);
+        // the requests might be handled by the remote, so let the caller decide whether to retry
+        failAll(inflight, err);
+        if (!wasConnected) {
+            connectFailed(err);
+            return;
+        }
+        if (!responded) {
+            // the remote accepts connections but does not work
+            increaseBackoff();
+        }
+        // reconnect for the waiting requests
+        flush();
+    }
+
+    private void timeout(Req req) {
+        if (queue.remove(req)) {
+            req.failed(new IOException("timeout"));
+            return;
+        }
+        if (inflight.contains(req)) {
+            // the following responses cannot be correlated if this one is skipped
+            // so the connection is dropped
+            lost(new IOException("timeout"));
+        }
+    }
+
+    private void failAll(Deque<Req> reqs, IOException err) {
+        Req[] arr = reqs.toArray(new Req[0]);
+        reqs.clear();
+        for (Req r : arr) {
+            r.failed(err);
+        }
+    }
+
+    private void checkIdle() {
+        idleEvent = null;
+        if (closed)
+            return;
+        long idle = System.currentTimeMillis() - lastActive;
+        if (!queue.isEmpty() || !inflight.isEmpty() || idle < manager.idleTimeout) {
+            int wait = (int) Math.max(manager.idleTimeout - idle, 1);
+            idleEvent = manager.loop.getSelectorEventLoop().delay(wait, this::checkIdle);
+            return;
+        }
+        assert Logger.lowLevelDebug("channel to " + remote + " is idle, close it");
+        close();
+        manager.removed(this);
+    }
+
+    boolean isConnected() {
+        return connected;
+    }
+
+    void close() {
+        if (closed)
+            return;
+        closed = true;
+        if (reconnectEvent != null) {
+            reconnectEvent.cancel();
+            reconnectEvent = null;
+        }
+        if (idleEvent != null) {
+            idleEvent.cancel();
+            idleEvent = null;
+        }
+        if (conn != null) {
+            conn.close();
+            conn = null;
+        }
+        connected = false;
+        writing = null;
+        IOException err = new IOException("channel closed");
+        failAll(inflight, err);
+        failAll(queue, err);
+    }
+}
@@ -0,0 +1,124 @@
+package net.cassite.vproxy.redis.application;
+
+import net.cassite.vproxy.connection.NetEventLoop;
+import net.cassite.vproxy.redis.Serializer;
+import net.cassite.vproxy.util.Callback;
+import net.cassite.vproxy.util.ThreadSafe;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * keep one persistent resp connection for each remote,
+ * so the requests to the same remote do not pay for connecting and closing every time.
+ * the connections are closed when idle.
+ * <p>
+ * a remote gets at most one request in flight until it's known to handle pipelined requests,
+ * e.g. by a version check, see {@link #setPipelining(InetSocketAddress, boolean)},
+ * because an old resp server handles one message for each read and would stall.
+ * <p>
+ * callbacks are called on the event loop.
+ */
+public class RESPClientChannelManager {
+    public final NetEventLoop loop;
+    public final InetAddress local;
+    public final int maxInflight; // max requests written without response on one connection supporting pipelining
+    public final int idleTimeout;
+
+    // only modified on event loop
+    private final Map<InetSocketAddress, RESPClientChannel> channels = new ConcurrentHashMap<>();
+    private final Set<InetSocketAddress> pipelining = ConcurrentHashMap.newKeySet();
+    private boolean closed = false;
+
+    public RESPClientChannelManager(NetEventLoop loop, InetAddress local) {
+        this(loop, local, 16, 60_000);
+    }
+
+    public RESPClientChannelManager(NetEventLoop loop, InetAddress local, int maxInflight, int idleTimeout) {
+        this.loop = loop;
+        this.local = local;
+        this.maxInflight = maxInflight;
+        this.idleTimeout = idleTimeout;
+    }
+
+    @ThreadSafe
+    public void request(InetSocketAddress remote, Object toSend, int timeout, Callback<Object, IOException> cb) {
+        byte[] bytes = Serializer.from(toSend);
+        loop.getSelectorEventLoop().runOnLoop(() -> {
+            if (closed) {
+                cb.failed(new IOException("closed"));
+                return;
+            }
+            RESPClientChannel channel = channels.computeIfAbsent(remote, r -> new RESPClientChannel(this, r));
+            channel.request(bytes, timeout, cb);
+        });
+    }
+
+    @ThreadSafe
+    public void retry(InetSocketAddress remote, Object toSend, int timeout, int retryTimes, Callback<Object, IOException> cb) {
+        request(remote, toSend, timeout, new Callback<Object, IOException>() {
+            @Override
+            protected void onSucceeded(Object value) {
+                cb.succeeded(value);
+            }
+
+            @Override
+            protected void onFailed(IOException err) {
+                if (retryTimes > 0) {
+                    retry(remote, toSend, timeout, retryTimes - 1, cb);
+                } else {
+                    cb.failed(err);
+                }
+            }
+        });
+    }
+
+    /**
+     * set whether the remote can handle pipelined requests, which is false by default
+     *
+     * @param remote    the remote address
+     * @param supported true to allow `maxInflight` requests in flight, false to allow only one
+     */
+    @ThreadSafe
+    public void setPipelining(InetSocketAddress remote, boolean supported) {
+        boolean changed = supported ? pipelining.add(remote) : pipelining.remove(remote);
+        if (!changed)
+            return;
+        loop.getSelectorEventLoop().runOnLoop(() -> {
+            RESPClientChannel channel = channels.get(remote);
+            if (channel != null && channel.isConnected()) {
+                channel.write(); // more requests might be sent
+            }
+        });
+    }
+
+    int maxInflight(InetSocketAddress remote) {
+        return pipelining.contains(remote) ? maxInflight : 1;
+    }
+
+    // called when the channel is closed because it's idle
+    void removed(RESPClientChannel channel) {
+        channels.remove(channel.remote, channel);
+    }
+
+    // the count of channels having a connected connection
+    public int connectedCount() {
+        return (int) channels.values().stream().filter(RESPClientChannel::isConnected).count();
+    }
+
+    @ThreadSafe
+    public void close() {
+        loop.getSelectorEventLoop().runOnLoop(() -> {
+            closed = true;
+            for (RESPClientChannel channel : new ArrayList<>(channels.values())) {
+                channel.close();
+            }
+            channels.clear();
+        });
+    }
+}
@@ -1,17 +1,20 @@
 package net.cassite.vproxy.redis.entity;
 
+import java.nio.charset.StandardCharsets;
+
 public class RESPBulkString extends RESP {
     public int negative = 1;
     public int len;
-    public StringBuilder string; // may be null
+    public byte[] bytes; // may be null
 
     @Override
     public String toString() {
-        return "RESP.BulkString(" + string + ")";
+        return "RESP.BulkString(" + getJavaObject() + ")";
     }
 
     @Override
     public Object getJavaObject() {
-        return string == null ? null : string.toString();
+        // one char for each byte
+        return bytes == null ? null : new String(bytes, StandardCharsets.ISO_8859_1);
     }
 }
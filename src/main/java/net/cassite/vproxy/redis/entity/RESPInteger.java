@@ -2,7 +2,7 @@ package net.cassite.vproxy.redis.entity;
 
 public class RESPInteger extends RESP {
     public int negative = 1;
-    public int integer;
+    public long integer;
 
     @Override
     public String toString() {
@@ -11,6 +11,9 @@ public class RESPInteger extends RESP {
 
     @Override
     public Object getJavaObject() {
+        // small integers are returned as Integer, which is used by most of the messages
+        if (integer >= Integer.MIN_VALUE && integer <= Integer.MAX_VALUE)
+            return (int) integer;
         return integer;
     }
 }
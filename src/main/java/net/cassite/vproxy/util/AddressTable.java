@@ -0,0 +1,283 @@
+package net.cassite.vproxy.util;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.IntPredicate;
+
+/*
+ * An open addressing hash table keyed by ip addresses.
+ *
+ * The address is packed into two longs, ipv4 addresses are stored
+ * as ipv4-mapped ipv6 addresses. Every entry holds `width` long values
+ * and a last access timestamp, all kept in flat primitive arrays,
+ * so an entry costs a fixed number of bytes and no objects are created.
+ *
+ * The table never grows. When it's full, an old entry near the
+ * inserting position is evicted, so the memory is bounded
+ * whatever the input is. Pinned entries are never evicted,
+ * and add() fails if there's nothing else to evict nearby.
+ *
+ * Entries are located by slot indexes, which are only valid
+ * until the next add() or remove() call.
+ */
+@ThreadSafe(false)
+public class AddressTable {
+    // how many slots to check when looking for an entry to evict
+    private static final int EVICT_WINDOW = 16;
+    // how many slots to scan at most when skipping pinned entries
+    private static final int EVICT_SCAN_LIMIT = 256;
+
+    private final int mask;
+    private final int maxSize;
+    private final int width;
+    private final long seed;
+
+    private final long[] keys; // hi and lo of each slot
+    private final long[] access; // 0 means the slot is empty
+    private final long[] values;
+    private int size = 0;
+
+    // `capacity` is rounded up to a power of 2, and at most 3/4 of it will be used
+    public AddressTable(int capacity, int width) {
+        if (capacity < 4)
+            throw new IllegalArgumentException("capacity < 4");
+        if (capacity > (1 << 28))
+            throw new IllegalArgumentException("capacity > " + (1 << 28));
+        if (width < 0)
+            throw new IllegalArgumentException("width < 0");
+        int cap = Integer.highestOneBit(capacity - 1) << 1;
+        this.mask = cap - 1;
+        this.maxSize = cap - (cap >> 2);
+        this.width = width;
+        // the addresses are chosen by remote clients
+        // so the hash is seeded to make collisions unpredictable
+        this.seed = ThreadLocalRandom.current().nextLong();
+        this.keys = new long[cap * 2];
+        this.access = new long[cap];
+        this.values = new long[cap * width];
+    }
+
+    public static long keyHi(byte[] address) {
+        if (address.length == 4)
+            return 0;
+        return bytesToLong(address, 0);
+    }
+
+    public static long keyLo(byte[] address) {
+        if (address.length == 4)
+            return 0x0000_ffff_0000_0000L | (bytesToLong(address, 0) >>> 32);
+        return bytesToLong(address, 8);
+    }
+
+    // the reverse of keyHi() and keyLo()
+    // ipv4-mapped addresses are returned as 4 bytes
+    public static byte[] address(long hi, long lo) {
+        if (hi == 0 && (lo >>> 32) == 0x0000_ffffL) {
+            return new byte[]{(byte) (lo >>> 24), (byte) (lo >>> 16), (byte) (lo >>> 8), (byte) lo};
+        }
+        byte[] bytes = new byte[16];
+        for (int i = 0; i < 8; ++i) {
+            bytes[i] = (byte) (hi >>> (56 - i * 8));
+            bytes[8 + i] = (byte) (lo >>> (56 - i * 8));
+        }
+        return bytes;
+    }
+
+    // read 8 bytes as a long, missing bytes are considered as 0
+    private static long bytesToLong(byte[] bytes, int off) {
+        long l = 0;
+        for (int i = 0; i < 8; ++i) {
+            l <<= 8;
+            if (off + i < bytes.length) {
+                l |= bytes[off + i] & 0xff;
+            }
+        }
+        return l;
+    }
+
+    // hash the key with a random seed, see keyHi() and keyLo()
+    // the addresses are chosen by remote clients, and the seed makes collisions unpredictable
+    public static long hash(long hi, long lo, long seed) {
+        long h = (hi ^ seed) * 0x9E3779B97F4A7C15L + lo;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private int home(long hi, long lo) {
+        return (int) hash(hi, lo, seed) & mask;
+    }
+
+    private int home(int slot) {
+        return home(keys[slot * 2], keys[slot * 2 + 1]);
+    }
+
+    // override this method to tell whether the entry in the slot can be evicted cheaply
+    // such entries are evicted first when the table is full
+    protected boolean evictable(int slot) {
+        return false;
+    }
+
+    // override this method to tell whether the entry in the slot must be kept
+    // such entries are never evicted, but can still be removed explicitly
+    protected boolean pinned(int slot) {
+        return false;
+    }
+
+    // return the slot, or -1 if not found
+    public int find(long hi, long lo) {
+        int i = home(hi, lo);
+        while (access[i] != 0) {
+            if (keys[i * 2] == hi && keys[i * 2 + 1] == lo)
+                return i;
+            i = (i + 1) & mask;
+        }
+        return -1;
+    }
+
+    public int find(byte[] address) {
+        return find(keyHi(address), keyLo(address));
+    }
+
+    // add a new entry and return its slot, the values of the entry are all 0
+    // return -1 if the table is full and the entries around are all pinned
+    // the key should not exist in the table, use find() to check
+    // `now` should be positive
+    public int add(long hi, long lo, long now) {
+        if (now <= 0)
+            throw new IllegalArgumentException("now <= 0");
+        if (size >= maxSize && !evict(home(hi, lo))) {
+            return -1;
+        }
+        int i = home(hi, lo);
+        while (access[i] != 0) {
+            i = (i + 1) & mask;
+        }
+        keys[i * 2] = hi;
+        keys[i * 2 + 1] = lo;
+        access[i] = now;
+        for (int j = 0; j < width; ++j) {
+            values[i * width + j] = 0;
+        }
+        ++size;
+        return i;
+    }
+
+    public int add(byte[] address, long now) {
+        return add(keyHi(address), keyLo(address), now);
+    }
+
+    // remove one entry around the `from` slot
+    // the evictable entries are preferred, then the least recently accessed ones,
+    // the pinned entries are skipped, and the scan is bounded
+    // return false if all entries in the scanned slots are pinned
+    private boolean evict(int from) {
+        int victim = -1;
+        boolean victimEvictable = false;
+        int checked = 0;
+        int i = from;
+        for (int n = 0; n <= mask && n < EVICT_SCAN_LIMIT && (checked < EVICT_WINDOW || victim == -1); ++n, i = (i + 1) & mask) {
+            if (access[i] == 0 || pinned(i))
+                continue;
+            ++checked;
+            boolean ev = evictable(i);
+            if (victim == -1
+                || (ev && !victimEvictable)
+                || (ev == victimEvictable && access[i] < access[victim])) {
+                victim = i;
+                victimEvictable = ev;
+            }
+        }
+        if (victim == -1)
+            return false;
+        remove(victim);
+        return true;
+    }
+
+    // remove the entry in the slot
+    // the entries after it might be moved, including into this slot
+    public void remove(int slot) {
+        int i = slot;
+        int j = slot;
+        while (true) {
+            j = (j + 1) & mask;
+            if (access[j] == 0)
+                break;
+            int k = home(j);
+            // the entry in j can stay if its home is cyclically in (i, j]
+            if (i <= j ? (i < k && k <= j) : (i < k || k <= j))
+                continue;
+            // move j to i
+            keys[i * 2] = keys[j * 2];
+            keys[i * 2 + 1] = keys[j * 2 + 1];
+            access[i] = access[j];
+            System.arraycopy(values, j * width, values, i * width, width);
+            i = j;
+        }
+        access[i] = 0;
+        --size;
+    }
+
+    // remove all entries that the `removable` returns true
+    // return count of removed entries
+    public int removeIf(IntPredicate removable) {
+        if (size == 0)
+            return 0;
+        int n = 0;
+        for (int i = 0; i <= mask; ) {
+            if (access[i] != 0 && removable.test(i)) {
+                remove(i);
+                ++n;
+                continue; // another entry might be moved into this slot
+            }
+            ++i;
+        }
+        return n;
+    }
+
+    // the slots are [0, slots()), use occupied() to check whether a slot holds an entry
+    public int slots() {
+        return mask + 1;
+    }
+
+    public boolean occupied(int slot) {
+        return access[slot] != 0;
+    }
+
+    public long keyHi(int slot) {
+        return keys[slot * 2];
+    }
+
+    public long keyLo(int slot) {
+        return keys[slot * 2 + 1];
+    }
+
+    public long access(int slot) {
+        return access[slot];
+    }
+
+    public void touch(int slot, long now) {
+        if (now <= 0)
+            throw new IllegalArgumentException("now <= 0");
+        access[slot] = now;
+    }
+
+    public long get(int slot, int field) {
+        return values[slot * width + field];
+    }
+
+    public void set(int slot, int field, long value) {
+        values[slot * width + field] = value;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // the max count of entries
+    public int capacity() {
+        return maxSize;
+    }
+}
@@ -0,0 +1,77 @@
+package net.cassite.vproxy.poc;
+
+import net.cassite.vproxy.redis.RESPParser;
+import net.cassite.vproxy.redis.Serializer;
+import net.cassite.vproxy.util.ByteArrayChannel;
+import net.cassite.vproxy.util.RingBuffer;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+// parse pipelined GET/SET requests from a ring buffer
+// the same way as a connection input buffer is consumed
+public class RESPParserBenchmark {
+    private static final int PIPELINE = 128;
+    private static final int BUFFER_SIZE = 16384;
+    private static final int ROUNDS = 20_000;
+
+    public static void main(String[] args) throws Exception {
+        byte[] get = pipeline(i -> new Object[]{"GET", "key:" + i});
+        byte[] set64 = pipeline(i -> new Object[]{"SET", "key:" + i, value(64)});
+        byte[] set1k = pipeline(i -> new Object[]{"SET", "key:" + i, value(1024)});
+        byte[] mixed = pipeline(i -> (i & 1) == 0 ? new Object[]{"GET", "key:" + i} : new Object[]{"SET", "key:" + i, value(256)});
+
+        for (int warmup = 0; warmup < 3; ++warmup) {
+            bench("GET        ", get);
+            bench("SET 64B    ", set64);
+            bench("SET 1KB    ", set1k);
+            bench("GET/SET 256", mixed);
+        }
+    }
+
+    interface Cmd {
+        Object[] make(int i);
+    }
+
+    private static byte[] pipeline(Cmd cmd) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < PIPELINE; ++i) {
+            out.write(Serializer.from(cmd.make(i)));
+        }
+        return out.toByteArray();
+    }
+
+    private static String value(int len) {
+        char[] chars = new char[len];
+        Arrays.fill(chars, 'v');
+        return new String(chars);
+    }
+
+    private static void bench(String name, byte[] bytes) throws Exception {
+        RingBuffer rb = RingBuffer.allocateDirect(BUFFER_SIZE);
+        RESPParser parser = new RESPParser(BUFFER_SIZE);
+        long msgs = 0;
+        long start = System.nanoTime();
+        for (int r = 0; r < ROUNDS; ++r) {
+            ByteArrayChannel chnl = ByteArrayChannel.fromFull(bytes);
+            int parsed = 0;
+            while (parsed < PIPELINE) {
+                rb.storeBytesFrom(chnl);
+                while (true) {
+                    int res = parser.feed(rb);
+                    if (res == -1) {
+                        if (parser.getErrorMessage() != null)
+                            throw new Exception("parse failed " + parser.getErrorMessage());
+                        break; // want more data
+                    }
+                    parser.reset();
+                    ++parsed;
+                }
+            }
+            msgs += parsed;
+        }
+        long cost = System.nanoTime() - start;
+        double mb = (double) bytes.length * ROUNDS / 1024 / 1024;
+        System.out.println(name + ": " + (cost / msgs) + " ns/msg, " + (long) (mb / (cost / 1_000_000_000d)) + " MB/s, msgs = " + msgs);
+    }
+}
@@ -0,0 +1,90 @@
+package net.cassite.vproxy.poc;
+
+import net.cassite.vproxy.component.secure.SecurityGroup;
+import net.cassite.vproxy.component.secure.SecurityGroupRule;
+import net.cassite.vproxy.connection.Protocol;
+import net.cassite.vproxy.util.Utils;
+
+import java.net.InetAddress;
+import java.util.List;
+import java.util.Random;
+
+// compare the compiled trie with iterating the rule list
+// 10k tcp rules, half ipv4 and half ipv6
+public class SecurityGroupBenchmark {
+    private static final int RULES = 10_000;
+    private static final int ADDRESSES = 4096;
+    private static final int ROUNDS = 2_000_000;
+
+    public static void main(String[] args) throws Exception {
+        Random rand = new Random(42);
+        SecurityGroup secg = new SecurityGroup("secg0", true);
+        int n = 0;
+        while (n < RULES) {
+            boolean v6 = (n & 1) == 1;
+            int maskInt = v6 ? 48 + rand.nextInt(81) : 8 + rand.nextInt(25);
+            byte[] mask = Utils.parseMask(maskInt);
+            byte[] ip = new byte[v6 ? 16 : 4];
+            rand.nextBytes(ip);
+            for (int i = 0; i < ip.length; ++i) {
+                ip[i] &= mask[i];
+            }
+            int minPort = rand.nextInt(60000);
+            try {
+                secg.addRule(new SecurityGroupRule("r" + n, ip, mask, Protocol.TCP,
+                    minPort, minPort + rand.nextInt(5000), rand.nextBoolean()));
+            } catch (Exception e) {
+                continue; // duplicated
+            }
+            ++n;
+        }
+        List<SecurityGroupRule> rules = secg.getRules();
+
+        InetAddress[] addresses = new InetAddress[ADDRESSES];
+        int[] ports = new int[ADDRESSES];
+        for (int i = 0; i < ADDRESSES; ++i) {
+            // make sure some of the addresses hit the rules
+            byte[] ip;
+            if ((i & 1) == 0) {
+                ip = rules.get(rand.nextInt(rules.size())).ip.clone();
+            } else {
+                ip = new byte[rand.nextBoolean() ? 16 : 4];
+                rand.nextBytes(ip);
+            }
+            addresses[i] = InetAddress.getByAddress(ip);
+            ports[i] = rand.nextInt(65536);
+        }
+
+        for (int warmup = 0; warmup < 3; ++warmup) {
+            bench("trie  ", ROUNDS, i -> secg.allow(Protocol.TCP, addresses[i], ports[i]));
+            bench("linear", ROUNDS / 100, i -> linearAllow(rules, secg.defaultAllow, addresses[i], ports[i]));
+        }
+        for (int i = 0; i < ADDRESSES; ++i) {
+            if (secg.allow(Protocol.TCP, addresses[i], ports[i]) != linearAllow(rules, secg.defaultAllow, addresses[i], ports[i]))
+                throw new Exception("result mismatch for " + addresses[i] + ":" + ports[i]);
+        }
+    }
+
+    interface Op {
+        boolean run(int i);
+    }
+
+    private static void bench(String name, int rounds, Op op) {
+        int allowed = 0;
+        long start = System.nanoTime();
+        for (int r = 0; r < rounds; ++r) {
+            if (op.run(r & (ADDRESSES - 1)))
+                ++allowed;
+        }
+        long cost = System.nanoTime() - start;
+        System.out.println(name + ": " + (cost / rounds) + " ns/op, rounds = " + rounds + ", allowed = " + allowed);
+    }
+
+    private static boolean linearAllow(List<SecurityGroupRule> rules, boolean defaultAllow, InetAddress address, int port) {
+        for (SecurityGroupRule rule : rules) {
+            if (rule.match(address, port))
+                return rule.allow;
+        }
+        return defaultAllow;
+    }
+}
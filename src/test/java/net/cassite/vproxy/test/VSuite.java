@@ -19,6 +19,14 @@ import org.junit.runners.Suite;
     TestAuto.class,
     TestConnectClient.class,
     TestSSLRingBuffers.class,
+    TestSecurityGroup.class,
+    TestConnectionLimiter.class,
+    TestTokenBucket.class,
+    TestPersistTable.class,
+    TestPersistReplication.class,
+    TestAuthoritativeDNS.class,
+    TestRESPClientChannel.class,
+    TestRESPParser.class,
 
     AfterAll.class
 })
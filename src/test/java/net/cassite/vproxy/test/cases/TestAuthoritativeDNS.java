@@ -0,0 +1,240 @@
+package net.cassite.vproxy.test.cases;
+
+import net.cassite.vproxy.connection.NetEventLoop;
+import net.cassite.vproxy.dns.AuthoritativeDNSServer;
+import net.cassite.vproxy.dns.ResolvConf;
+import net.cassite.vproxy.dns.Resolver;
+import net.cassite.vproxy.selector.SelectorEventLoop;
+import net.cassite.vproxy.util.BlockCallback;
+import net.cassite.vproxy.util.Utils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.*;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class TestAuthoritativeDNS {
+    private static final int PORT = 20153;
+
+    private SelectorEventLoop loop;
+    private AuthoritativeDNSServer server;
+    private DatagramSocket sock;
+    private Resolver resolver;
+
+    @Before
+    public void setUp() throws Exception {
+        loop = SelectorEventLoop.open();
+        loop.loop(r -> new Thread(r, "TestAuthoritativeDNS"));
+        server = new AuthoritativeDNSServer("dns", new InetSocketAddress("127.0.0.1", PORT),
+            new NetEventLoop(loop), "vproxy.local", 5);
+        server.start();
+
+        Map<String, List<InetSocketAddress>> zone = new HashMap<>();
+        zone.put("myservice.com.zone1", Arrays.asList(
+            new InetSocketAddress("10.0.0.1", 8080),
+            new InetSocketAddress("10.0.0.2", 8081)));
+        zone.put("svc6.zone1", Collections.singletonList(
+            new InetSocketAddress("fd00::1", 8080)));
+        server.setZone(zone);
+
+        sock = new DatagramSocket();
+        sock.setSoTimeout(2000);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (resolver != null) {
+            resolver.stop();
+        }
+        sock.close();
+        server.stop();
+        loop.close();
+    }
+
+    private static void writeU16(ByteArrayOutputStream out, int n) {
+        out.write((n >> 8) & 0xff);
+        out.write(n & 0xff);
+    }
+
+    private static int u16(byte[] b, int off) {
+        return ((b[off] & 0xff) << 8) | (b[off + 1] & 0xff);
+    }
+
+    private byte[] query(int id, int flags, String name, int type, int clazz) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeU16(out, id);
+        writeU16(out, flags);
+        writeU16(out, 1);
+        writeU16(out, 0);
+        writeU16(out, 0);
+        writeU16(out, 0);
+        for (String label : name.split("\\.")) {
+            out.write(label.length());
+            out.write(label.getBytes(), 0, label.length());
+        }
+        out.write(0);
+        writeU16(out, type);
+        writeU16(out, clazz);
+        byte[] q = out.toByteArray();
+        sock.send(new DatagramPacket(q, q.length, new InetSocketAddress("127.0.0.1", PORT)));
+
+        byte[] buf = new byte[1024];
+        DatagramPacket pkt = new DatagramPacket(buf, buf.length);
+        sock.receive(pkt);
+        return Arrays.copyOf(buf, pkt.getLength());
+    }
+
+    private byte[] query(int id, String name, int type) throws IOException {
+        return query(id, 0x0100 /*RD*/, name, type, 1);
+    }
+
+    private static int rcode(byte[] resp) {
+        return u16(resp, 2) & 0xf;
+    }
+
+    private static int answers(byte[] resp) {
+        return u16(resp, 6);
+    }
+
+    private static boolean contains(byte[] resp, byte[] part) {
+        outer:
+        for (int i = 0; i + part.length <= resp.length; ++i) {
+            for (int j = 0; j < part.length; ++j) {
+                if (resp[i + j] != part[j])
+                    continue outer;
+            }
+            return true;
+        }
+        return false;
+    }
+
+    @Test
+    public void address() throws Exception {
+        byte[] resp = query(0x1234, "MyService.com.zone1.vproxy.local", 1);
+        assertEquals(0x1234, u16(resp, 0));
+        int flags = u16(resp, 2);
+        assertTrue("QR", (flags & 0x8000) != 0);
+        assertTrue("AA", (flags & 0x0400) != 0);
+        assertTrue("RD copied", (flags & 0x0100) != 0);
+        assertEquals(0, rcode(resp));
+        assertEquals(2, answers(resp));
+        // the question is echoed as it is
+        assertTrue(contains(resp, "MyService".getBytes()));
+        assertTrue(contains(resp, new byte[]{10, 0, 0, 1}));
+        assertTrue(contains(resp, new byte[]{10, 0, 0, 2}));
+
+        resp = query(1, "svc6.zone1.vproxy.local", 28);
+        assertEquals(0, rcode(resp));
+        assertEquals(1, answers(resp));
+        assertTrue(contains(resp, InetAddress.getByName("fd00::1").getAddress()));
+
+        // no AAAA records for the v4 service
+        resp = query(2, "myservice.com.zone1.vproxy.local", 28);
+        assertEquals(0, rcode(resp));
+        assertEquals(0, answers(resp));
+    }
+
+    @Test
+    public void rotate() throws Exception {
+        Set<Integer> firsts = new HashSet<>();
+        for (int i = 0; i < 4; ++i) {
+            byte[] resp = query(i, 0, "myservice.com.zone1.vproxy.local", 1, 1);
+            // header(12) + question(34+4) + name pointer(2) + type/class/ttl/len(10)
+            firsts.add(resp[12 + 38 + 12 + 3] & 0xff);
+        }
+        assertEquals(new HashSet<>(Arrays.asList(1, 2)), firsts);
+    }
+
+    @Test
+    public void srv() throws Exception {
+        byte[] resp = query(7, "_myservice._tcp.com.zone1.vproxy.local", 33);
+        assertEquals(0, rcode(resp));
+        assertEquals(2, answers(resp));
+        assertEquals(2, u16(resp, 10)); // additionals
+        assertTrue(contains(resp, new byte[]{0x1f, (byte) 0x90})); // 8080
+        assertTrue(contains(resp, new byte[]{0x1f, (byte) 0x91})); // 8081
+        assertTrue(contains(resp, "10-0-0-1".getBytes()));
+
+        // the srv target resolves
+        resp = query(8, "10-0-0-2.myservice.com.zone1.vproxy.local", 1);
+        assertEquals(0, rcode(resp));
+        assertEquals(1, answers(resp));
+        assertTrue(contains(resp, new byte[]{10, 0, 0, 2}));
+    }
+
+    @Test
+    public void errors() throws Exception {
+        // not found in the zone
+        byte[] resp = query(1, "other.zone1.vproxy.local", 1);
+        assertEquals(3, rcode(resp));
+        assertTrue((u16(resp, 2) & 0x0400) != 0);
+        // the parent names exist
+        resp = query(2, "zone1.vproxy.local", 1);
+        assertEquals(0, rcode(resp));
+        assertEquals(0, answers(resp));
+        // out of the zone
+        resp = query(3, "example.com", 1);
+        assertEquals(5, rcode(resp));
+        // not IN class
+        resp = query(4, 0, "myservice.com.zone1.vproxy.local", 1, 3);
+        assertEquals(5, rcode(resp));
+        // not a standard query
+        resp = query(5, 0x1000 /*opcode 2*/, "myservice.com.zone1.vproxy.local", 1, 1);
+        assertEquals(4, rcode(resp));
+        assertEquals(5, u16(resp, 0));
+    }
+
+    @Test
+    public void updateZone() throws Exception {
+        server.setZone(Collections.singletonMap("myservice.com.zone1",
+            Collections.singletonList(new InetSocketAddress("10.0.0.3", 8080))));
+        byte[] resp = query(1, "myservice.com.zone1.vproxy.local", 1);
+        assertEquals(1, answers(resp));
+        assertTrue(contains(resp, new byte[]{10, 0, 0, 3}));
+        resp = query(2, "svc6.zone1.vproxy.local", 28);
+        assertEquals(3, rcode(resp));
+    }
+
+    @Test
+    public void resolve() throws Exception {
+        resolver = new Resolver("TestAuthoritativeDNS" + ((int) (Math.random() * 10000)),
+            new ResolvConf(Collections.singletonList(new InetSocketAddress("127.0.0.1", PORT)),
+                Collections.singletonList("zone1.vproxy.local"), 1, 500, 2));
+        resolver.start();
+
+        BlockCallback<InetAddress, UnknownHostException> cb = new BlockCallback<>();
+        resolver.resolve("svc6", cb);
+        assertEquals(InetAddress.getByName("fd00::1"), cb.block());
+
+        BlockCallback<Inet4Address, UnknownHostException> cb4 = new BlockCallback<>();
+        resolver.resolveV4("myservice.com.zone1.vproxy.local", cb4);
+        String ip = Utils.ipStr(cb4.block().getAddress());
+        assertTrue(ip.equals("10.0.0.1") || ip.equals("10.0.0.2"));
+    }
+
+    @Test
+    public void manySources() throws Exception {
+        DatagramSocket origin = sock;
+        try {
+            // each query comes from a new source port
+            for (int i = 0; i < 200; ++i) {
+                sock = new DatagramSocket();
+                sock.setSoTimeout(2000);
+                try {
+                    byte[] resp = query(i, "myservice.com.zone1.vproxy.local", 1);
+                    assertEquals(i, u16(resp, 0));
+                    assertEquals(2, answers(resp));
+                } finally {
+                    sock.close();
+                }
+            }
+        } finally {
+            sock = origin;
+        }
+    }
+}
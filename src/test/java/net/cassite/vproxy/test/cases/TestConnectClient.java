@@ -2,9 +2,14 @@ package net.cassite.vproxy.test.cases;
 
 import net.cassite.vproxy.component.check.CheckProtocol;
 import net.cassite.vproxy.component.check.ConnectClient;
+import net.cassite.vproxy.component.check.HealthCheckConfig;
+import net.cassite.vproxy.component.check.HealthCheckHandler;
+import net.cassite.vproxy.component.check.HealthCheckScheduler;
+import net.cassite.vproxy.component.check.TCPHealthCheckClient;
 import net.cassite.vproxy.connection.NetEventLoop;
 import net.cassite.vproxy.selector.SelectorEventLoop;
 import net.cassite.vproxy.test.tool.DirectCloseServer;
+import net.cassite.vproxy.test.tool.FixedResponseServer;
 import net.cassite.vproxy.test.tool.IdServer;
 import net.cassite.vproxy.test.tool.SendOnConnectIdServer;
 import net.cassite.vproxy.util.BlockCallback;
@@ -13,7 +18,9 @@ import org.junit.*;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.nio.channels.InterruptedByTimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.*;
 
@@ -21,6 +28,12 @@ public class TestConnectClient {
     private static final int normalServerPort = 19080;
     private static final int directWritePort = 19081;
     private static final int directClosePort = 19082;
+    private static final int httpOkPort = 19083;
+    private static final int httpErrPort = 19084;
+    private static final int redisPort = 19085;
+
+    private static FixedResponseServer httpOkServer;
+    private static FixedResponseServer redisServer;
 
     private static SelectorEventLoop serverLoop;
 
@@ -32,6 +45,9 @@ public class TestConnectClient {
         new IdServer("0", serverNetLoop, normalServerPort);
         new SendOnConnectIdServer("abcdefghijklmn"/*make it long to fill the buffer*/, serverNetLoop, directWritePort);
         new DirectCloseServer(serverNetLoop, directClosePort);
+        httpOkServer = new FixedResponseServer("HTTP/1.1 200 OK\r\nContent-Length: 0\r\n\r\n", serverNetLoop, httpOkPort);
+        new FixedResponseServer("HTTP/1.1 503 Service Unavailable\r\nContent-Length: 0\r\n\r\n", serverNetLoop, httpErrPort);
+        redisServer = new FixedResponseServer("+PONG\r\n", serverNetLoop, redisPort);
     }
 
     @AfterClass
@@ -70,6 +86,82 @@ public class TestConnectClient {
         cb.block();
     }
 
+    private void doCheck(ConnectClient client) throws Exception {
+        BlockCallback<Void, IOException> cb = new BlockCallback<>();
+        netEventLoop.getSelectorEventLoop().runOnLoop(() -> client.handle(cb));
+        cb.block();
+    }
+
+    private ConnectClient appClient(int port, HealthCheckConfig c) throws Exception {
+        return new ConnectClient(netEventLoop,
+            new InetSocketAddress("127.0.0.1", port),
+            InetAddress.getByName("127.0.0.1"),
+            c);
+    }
+
+    @Test
+    public void httpCheckReusesConnection() throws Exception {
+        long accepted = httpOkServer.accepted.get();
+        long requests = httpOkServer.requests.get();
+        ConnectClient client = appClient(httpOkPort,
+            new HealthCheckConfig(100, 0, 0, 0, CheckProtocol.http, "GET", "/health", "200"));
+        for (int i = 0; i < 3; ++i) {
+            doCheck(client);
+        }
+        client.stop();
+        assertEquals("only one connection is made", accepted + 1, httpOkServer.accepted.get());
+        assertEquals(requests + 3, httpOkServer.requests.get());
+    }
+
+    @Test
+    public void httpCheckFailWithUnexpectedStatus() throws Exception {
+        ConnectClient client = appClient(httpErrPort,
+            new HealthCheckConfig(100, 0, 0, 0, CheckProtocol.http));
+        try {
+            doCheck(client);
+            fail();
+        } catch (IOException e) {
+            assertEquals("unexpected http status 503", e.getMessage());
+        }
+    }
+
+    @Test
+    public void httpCheckFailWithNonHttpServer() throws Exception {
+        ConnectClient client = appClient(redisPort,
+            new HealthCheckConfig(100, 0, 0, 0, CheckProtocol.http));
+        try {
+            doCheck(client);
+            fail();
+        } catch (IOException e) {
+            // the server responds `+PONG\r\n`
+            // which is not a valid http response
+        }
+    }
+
+    @Test
+    public void redisCheckReusesConnection() throws Exception {
+        long accepted = redisServer.accepted.get();
+        ConnectClient client = appClient(redisPort,
+            new HealthCheckConfig(100, 0, 0, 0, CheckProtocol.redis));
+        for (int i = 0; i < 3; ++i) {
+            doCheck(client);
+        }
+        client.stop();
+        assertEquals("only one connection is made", accepted + 1, redisServer.accepted.get());
+    }
+
+    @Test
+    public void redisCheckFailWithNonRedisServer() throws Exception {
+        ConnectClient client = appClient(normalServerPort,
+            new HealthCheckConfig(100, 0, 0, 0, CheckProtocol.redis));
+        try {
+            doCheck(client);
+            fail();
+        } catch (IOException e) {
+            // the id server responds `0` which is not PONG
+        }
+    }
+
     @Test
     public void connectionSuccessToNormalServer() throws Exception {
         doConnect(CheckProtocol.tcp, normalServerPort);
@@ -149,4 +241,207 @@ public class TestConnectClient {
             assertTrue(e instanceof InterruptedByTimeoutException);
         }
     }
+
+    @Test
+    public void sharedHealthCheckProbe() throws Exception {
+        AtomicInteger[] ups = {new AtomicInteger(), new AtomicInteger(), new AtomicInteger()};
+        TCPHealthCheckClient[] clients = new TCPHealthCheckClient[3];
+        for (int i = 0; i < clients.length; ++i) {
+            AtomicInteger up = ups[i];
+            clients[i] = new TCPHealthCheckClient(netEventLoop,
+                new InetSocketAddress("127.0.0.1", i == 2 ? directClosePort : normalServerPort),
+                InetAddress.getByName("127.0.0.1"),
+                new HealthCheckConfig(100, 200, 2, 3),
+                false, new HealthCheckHandler() {
+                @Override
+                public void up(SocketAddress remote) {
+                }
+
+                @Override
+                public void down(SocketAddress remote) {
+                }
+
+                @Override
+                public void upOnce(SocketAddress remote) {
+                    up.incrementAndGet();
+                }
+
+                @Override
+                public void downOnce(SocketAddress remote) {
+                }
+            });
+            clients[i].start();
+        }
+        // client 0 and 1 check the same target with the same config
+        assertEquals(2, HealthCheckScheduler.probeCount(netEventLoop));
+        assertEquals(3, HealthCheckScheduler.subscriberCount(netEventLoop));
+
+        Thread.sleep(700);
+        assertTrue("checked at least twice", ups[0].get() >= 2);
+        // client 1 may miss the first check which is started by client 0
+        assertTrue("the result is dispatched to both clients", ups[0].get() - ups[1].get() <= 1);
+        assertTrue("the other probe works as well", ups[2].get() >= 2);
+
+        clients[0].stop();
+        assertEquals(2, HealthCheckScheduler.probeCount(netEventLoop));
+        clients[1].stop();
+        assertEquals(1, HealthCheckScheduler.probeCount(netEventLoop));
+        clients[2].stop();
+        assertEquals(0, HealthCheckScheduler.probeCount(netEventLoop));
+        assertEquals(0, HealthCheckScheduler.subscriberCount(netEventLoop));
+    }
+
+    @Test
+    public void jitteredFirstCheck() throws Exception {
+        int n = 10;
+        long[] firstCheck = new long[n];
+        TCPHealthCheckClient[] clients = new TCPHealthCheckClient[n];
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < n; ++i) {
+            int idx = i;
+            clients[i] = new TCPHealthCheckClient(netEventLoop,
+                new InetSocketAddress("127.0.0.1", normalServerPort),
+                InetAddress.getByName("127.0.0.1"),
+                // different timeouts make different probes
+                new HealthCheckConfig(100 + i, 1000, 1, 1),
+                false, new HealthCheckHandler() {
+                @Override
+                public void up(SocketAddress remote) {
+                }
+
+                @Override
+                public void down(SocketAddress remote) {
+                }
+
+                @Override
+                public void upOnce(SocketAddress remote) {
+                    if (firstCheck[idx] == 0) {
+                        firstCheck[idx] = System.currentTimeMillis();
+                    }
+                }
+
+                @Override
+                public void downOnce(SocketAddress remote) {
+                }
+            });
+            clients[i].start();
+        }
+        assertEquals(n, HealthCheckScheduler.probeCount(netEventLoop));
+
+        Thread.sleep(1200);
+        long min = Long.MAX_VALUE;
+        long max = 0;
+        for (long t : firstCheck) {
+            assertTrue("checked within the first period", t != 0 && t - start < 1100);
+            min = Math.min(min, t);
+            max = Math.max(max, t);
+        }
+        assertTrue("the probes should not fire in lockstep, spread " + (max - min), max - min > 100);
+        for (TCPHealthCheckClient c : clients) {
+            c.stop();
+        }
+    }
+
+    @Test
+    public void adaptivePeriod() throws Exception {
+        HealthCheckConfig c = new HealthCheckConfig(100, 200, 2, 3, CheckProtocol.tcp, "HEAD", "/", "2xx",
+            5000, 10, 3000);
+        assertEquals(200, c.nextPeriod(0, 0));
+        assertEquals(200, c.nextPeriod(9, 0));
+        assertEquals("stable", 5000, c.nextPeriod(10, 0));
+        assertEquals("still detecting", 200, c.nextPeriod(0, 3));
+        assertEquals("back off", 400, c.nextPeriod(0, 4));
+        assertEquals("back off", 800, c.nextPeriod(0, 5));
+        assertEquals("back off", 3000, c.nextPeriod(0, 100));
+    }
+
+    @Test
+    public void acceleratedCheck() throws Exception {
+        AtomicInteger ups = new AtomicInteger();
+        TCPHealthCheckClient client = new TCPHealthCheckClient(netEventLoop,
+            new InetSocketAddress("127.0.0.1", normalServerPort),
+            InetAddress.getByName("127.0.0.1"),
+            new HealthCheckConfig(100, 200, 1, 1, CheckProtocol.tcp, "HEAD", "/", "2xx",
+                60_000, 2, 0),
+            true, new HealthCheckHandler() {
+            @Override
+            public void up(SocketAddress remote) {
+            }
+
+            @Override
+            public void down(SocketAddress remote) {
+            }
+
+            @Override
+            public void upOnce(SocketAddress remote) {
+                ups.incrementAndGet();
+            }
+
+            @Override
+            public void downOnce(SocketAddress remote) {
+            }
+        });
+        client.start();
+        Thread.sleep(800);
+        assertEquals("the server becomes stable after 2 checks", 2, ups.get());
+
+        client.manuallyDownOnce();
+        Thread.sleep(100);
+        assertEquals("checked immediately", 3, ups.get());
+        Thread.sleep(300);
+        assertEquals("checked with the normal period", 4, ups.get());
+        Thread.sleep(500);
+        assertEquals("stable again", 4, ups.get());
+        client.stop();
+    }
+
+    @Test
+    public void joinStableProbe() throws Exception {
+        HealthCheckConfig config = new HealthCheckConfig(100, 200, 2, 1, CheckProtocol.tcp, "HEAD", "/", "2xx",
+            60_000, 2, 0);
+        AtomicInteger[] ups = {new AtomicInteger(), new AtomicInteger()};
+        AtomicInteger[] upEvents = {new AtomicInteger(), new AtomicInteger()};
+        TCPHealthCheckClient[] clients = new TCPHealthCheckClient[2];
+        for (int i = 0; i < clients.length; ++i) {
+            int idx = i;
+            clients[i] = new TCPHealthCheckClient(netEventLoop,
+                new InetSocketAddress("127.0.0.1", normalServerPort),
+                InetAddress.getByName("127.0.0.1"),
+                config, false, new HealthCheckHandler() {
+                @Override
+                public void up(SocketAddress remote) {
+                    upEvents[idx].incrementAndGet();
+                }
+
+                @Override
+                public void down(SocketAddress remote) {
+                }
+
+                @Override
+                public void upOnce(SocketAddress remote) {
+                    ups[idx].incrementAndGet();
+                }
+
+                @Override
+                public void downOnce(SocketAddress remote) {
+                }
+            }, false);
+        }
+        clients[0].start();
+        Thread.sleep(800);
+        assertEquals("the probe becomes stable after 2 checks", 2, ups[0].get());
+        assertEquals(1, upEvents[0].get());
+
+        // the new subscriber gets the current state of the probe
+        clients[1].start();
+        Thread.sleep(50);
+        assertEquals(1, HealthCheckScheduler.probeCount(netEventLoop));
+        assertEquals("up without waiting for the stable period", 1, upEvents[1].get());
+        Thread.sleep(300);
+        assertEquals("checked within the base period", 3, ups[0].get());
+        assertEquals(3, ups[1].get());
+
+        clients[0].stop();
+        clients[1].stop();
+    }
 }
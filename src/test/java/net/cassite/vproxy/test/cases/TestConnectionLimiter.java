@@ -0,0 +1,289 @@
+package net.cassite.vproxy.test.cases;
+
+import net.cassite.vproxy.component.secure.ConnectionLimitConfig;
+import net.cassite.vproxy.component.secure.ConnectionLimiter;
+import net.cassite.vproxy.util.AddressTable;
+import net.cassite.vproxy.util.Utils;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class TestConnectionLimiter {
+    private static byte[] ip(String s) {
+        return Utils.blockParseAddress(s);
+    }
+
+    @Test
+    public void addressTable() {
+        AddressTable table = new AddressTable(1024, 1);
+        Map<String, Long> expected = new HashMap<>();
+        Random rand = new Random(1);
+        long now = 1;
+        for (int round = 0; round < 100000; ++round) {
+            ++now;
+            byte[] addr;
+            if (rand.nextBoolean()) {
+                addr = new byte[]{10, 0, (byte) rand.nextInt(2), (byte) rand.nextInt(256)};
+            } else {
+                addr = new byte[16];
+                addr[0] = (byte) 0xfd;
+                addr[14] = (byte) rand.nextInt(2);
+                addr[15] = (byte) rand.nextInt(256);
+            }
+            String key = Utils.ipStr(addr);
+            int slot = table.find(addr);
+            if (rand.nextInt(3) == 0) {
+                // remove
+                if (slot != -1) {
+                    assertEquals(expected.remove(key), Long.valueOf(table.get(slot, 0)));
+                    table.remove(slot);
+                } else {
+                    assertNull(expected.get(key));
+                }
+            } else {
+                if (slot == -1) {
+                    assertNull(expected.get(key));
+                    // the table might evict entries when full
+                    if (table.size() >= table.capacity()) {
+                        continue;
+                    }
+                    slot = table.add(addr, now);
+                }
+                long v = rand.nextLong();
+                table.set(slot, 0, v);
+                table.touch(slot, now);
+                expected.put(key, v);
+            }
+            assertEquals(expected.size(), table.size());
+        }
+        // ipv4 addresses are stored as ipv4-mapped addresses
+        table.removeIf(slot -> true);
+        assertEquals(0, table.size());
+        int slot = table.add(ip("10.0.0.1"), 1);
+        assertEquals(slot, table.find(ip("::ffff:10.0.0.1")));
+        assertEquals(-1, table.find(ip("::10.0.0.1")));
+
+        // the keys can be converted back to addresses
+        table.add(ip("fd00::1:2"), 1);
+        Set<String> keys = new HashSet<>();
+        for (int i = 0; i < table.slots(); ++i) {
+            if (table.occupied(i)) {
+                keys.add(Utils.ipStr(AddressTable.address(table.keyHi(i), table.keyLo(i))));
+            }
+        }
+        assertEquals(new HashSet<>(Arrays.asList("10.0.0.1", Utils.ipStr(ip("fd00::1:2")))), keys);
+    }
+
+    @Test
+    public void addressTableBounded() {
+        AddressTable table = new AddressTable(64, 0) {
+            @Override
+            protected boolean evictable(int slot) {
+                // prefer entries added at even timestamps
+                return access(slot) % 2 == 0;
+            }
+        };
+        for (int i = 1; i <= 10000; ++i) {
+            byte[] addr = {(byte) (i >> 24), (byte) (i >> 16), (byte) (i >> 8), (byte) i};
+            assertEquals(-1, table.find(addr));
+            table.add(addr, i);
+            assertTrue(table.size() <= table.capacity());
+        }
+        assertEquals(48, table.capacity());
+        assertEquals(48, table.size());
+        // the latest one is always kept
+        assertNotEquals(-1, table.find(new byte[]{0, 0, 0x27, 0x10}));
+    }
+
+    @Test
+    public void addressTablePinned() {
+        AddressTable table = new AddressTable(64, 0) {
+            @Override
+            protected boolean pinned(int slot) {
+                // entries added at odd timestamps must be kept
+                return access(slot) % 2 == 1;
+            }
+        };
+        for (int i = 1; i <= 10000; ++i) {
+            byte[] addr = {(byte) (i >> 24), (byte) (i >> 16), (byte) (i >> 8), (byte) i};
+            int slot = table.add(addr, i);
+            if (slot == -1) {
+                assertEquals("only fails when full of pinned entries", table.capacity(), table.size());
+                break;
+            }
+        }
+        assertEquals(table.capacity(), table.size());
+        for (int i = 0; i < table.slots(); ++i) {
+            if (table.occupied(i)) {
+                assertEquals("pinned entries are never evicted", 1, table.access(i) % 2);
+            }
+        }
+        assertEquals(-1, table.add(ip("10.0.0.1"), 20000));
+    }
+
+    @Test
+    public void ipRate() {
+        ConnectionLimiter limiter = new ConnectionLimiter();
+        limiter.setConfig(new ConnectionLimitConfig(2, 0, 0, 0, 24, 64));
+        byte[] a = ip("10.0.0.1");
+        byte[] b = ip("10.0.0.2");
+        assertTrue(limiter.tryAcquire(a, 1000));
+        assertTrue(limiter.tryAcquire(a, 1000));
+        assertFalse("no tokens", limiter.tryAcquire(a, 1000));
+        assertTrue("another client", limiter.tryAcquire(b, 1000));
+        assertFalse("half token refilled", limiter.tryAcquire(a, 1250));
+        assertTrue("one token refilled", limiter.tryAcquire(a, 1500));
+        assertFalse(limiter.tryAcquire(a, 1500));
+        assertTrue(limiter.tryAcquire(a, 3000));
+        assertTrue("bucket holds tokens of one second", limiter.tryAcquire(a, 3000));
+        assertFalse(limiter.tryAcquire(a, 3000));
+        assertEquals(4, limiter.rateRejectedCount());
+        assertEquals(0, limiter.connRejectedCount());
+    }
+
+    @Test
+    public void ipMaxConn() {
+        ConnectionLimiter limiter = new ConnectionLimiter();
+        limiter.setConfig(new ConnectionLimitConfig(0, 2, 0, 0, 24, 64));
+        byte[] a = ip("fd00::1");
+        assertTrue(limiter.tryAcquire(a, 1000));
+        assertTrue(limiter.tryAcquire(a, 1000));
+        assertFalse(limiter.tryAcquire(a, 1000));
+        limiter.release(a);
+        assertTrue(limiter.tryAcquire(a, 1000));
+        assertFalse(limiter.tryAcquire(a, 1000));
+        assertEquals(2, limiter.connRejectedCount());
+
+        // entries with connections are not removed
+        assertFalse(limiter.tryAcquire(a, 100000));
+        assertEquals(1, limiter.ipEntryCount());
+        limiter.release(a);
+        limiter.release(a);
+        limiter.release(a); // released more than acquired
+        assertTrue(limiter.tryAcquire(a, 100000));
+        assertTrue(limiter.tryAcquire(a, 100000));
+        assertFalse(limiter.tryAcquire(a, 100000));
+    }
+
+    @Test
+    public void cidr() {
+        ConnectionLimiter limiter = new ConnectionLimiter();
+        limiter.setConfig(new ConnectionLimitConfig(0, 1, 0, 3, 24, 64));
+        assertTrue(limiter.tryAcquire(ip("10.0.0.1"), 1000));
+        assertFalse("ip limit", limiter.tryAcquire(ip("10.0.0.1"), 1000));
+        assertTrue(limiter.tryAcquire(ip("10.0.0.2"), 1000));
+        assertTrue(limiter.tryAcquire(ip("10.0.0.3"), 1000));
+        assertFalse("cidr limit", limiter.tryAcquire(ip("10.0.0.4"), 1000));
+        assertTrue("another network", limiter.tryAcquire(ip("10.0.1.4"), 1000));
+        assertTrue(limiter.tryAcquire(ip("fd00::1:1"), 1000));
+        assertTrue(limiter.tryAcquire(ip("fd00::2:1"), 1000));
+        assertTrue(limiter.tryAcquire(ip("fd00::3:1"), 1000));
+        assertFalse("cidr limit", limiter.tryAcquire(ip("fd00::4:1"), 1000));
+        assertTrue("another network", limiter.tryAcquire(ip("fd00:0:0:1::1"), 1000));
+        assertEquals(4, limiter.cidrEntryCount());
+
+        // releasing a connection frees the quota of its network
+        limiter.release(ip("10.0.0.1"));
+        assertTrue(limiter.tryAcquire(ip("10.0.0.4"), 1000));
+
+        // change the mask
+        limiter.setConfig(new ConnectionLimitConfig(0, 1, 0, 3, 16, 64));
+        assertEquals(0, limiter.cidrEntryCount());
+        assertTrue(limiter.tryAcquire(ip("10.0.2.1"), 1000));
+        assertEquals(1, limiter.cidrEntryCount());
+    }
+
+    @Test
+    public void idleEntriesRemoved() {
+        ConnectionLimiter limiter = new ConnectionLimiter();
+        limiter.setConfig(new ConnectionLimitConfig(10, 10, 0, 0, 24, 64));
+        for (int i = 0; i < 100; ++i) {
+            byte[] addr = {10, 0, 0, (byte) i};
+            assertTrue(limiter.tryAcquire(addr, 1000));
+            if (i % 2 == 0) {
+                limiter.release(addr);
+            }
+        }
+        assertEquals(100, limiter.ipEntryCount());
+        assertTrue(limiter.tryAcquire(ip("10.0.1.1"), 1500));
+        assertEquals(101, limiter.ipEntryCount());
+        // only the entries with connections are kept
+        assertTrue(limiter.tryAcquire(ip("10.0.1.1"), 2100));
+        assertEquals(51, limiter.ipEntryCount());
+    }
+
+    @Test
+    public void entriesWithConnectionsNotEvicted() {
+        ConnectionLimiter limiter = new ConnectionLimiter();
+        limiter.setConfig(new ConnectionLimitConfig(0, 1, 0, 0, 24, 64));
+        byte[] first = ip("fd00::1");
+        assertTrue(limiter.tryAcquire(first, 1000));
+        // far more clients with connections than the tables can hold
+        int accepted = 1;
+        for (int i = 2; i <= 150000; ++i) {
+            byte[] addr = new byte[16];
+            addr[0] = (byte) 0xfd;
+            addr[13] = (byte) (i >> 16);
+            addr[14] = (byte) (i >> 8);
+            addr[15] = (byte) i;
+            if (limiter.tryAcquire(addr, 1000)) {
+                ++accepted;
+            }
+        }
+        // the clients that cannot be tracked are rejected
+        assertEquals(limiter.ipEntryCount(), accepted);
+        assertTrue(accepted < 150000);
+        assertEquals(150000 - accepted, limiter.connRejectedCount());
+        assertFalse("the count is kept", limiter.tryAcquire(first, 1000));
+        assertFalse("even after idle", limiter.tryAcquire(first, 100000));
+    }
+
+    @Test
+    public void untrackedClientsLimitedByNetwork() {
+        ConnectionLimiter limiter = new ConnectionLimiter();
+        limiter.setConfig(new ConnectionLimitConfig(0, 1, 0, 10000, 16, 64));
+        // all clients are in one network, so they are in one stripe
+        int accepted = 0;
+        for (int i = 0; i < 20000; ++i) {
+            if (limiter.tryAcquire(new byte[]{10, 0, (byte) (i >> 8), (byte) i}, 1000)) {
+                ++accepted;
+            }
+        }
+        assertTrue("more clients than one stripe can track", limiter.ipEntryCount() < accepted);
+        assertEquals("limited by the network", 10000, accepted);
+    }
+
+    @Test
+    public void concurrent() throws Exception {
+        ConnectionLimiter limiter = new ConnectionLimiter();
+        limiter.setConfig(new ConnectionLimitConfig(0, 5, 0, 20, 24, 64));
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; ++t) {
+            int tid = t;
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 10000; ++i) {
+                    byte[] addr = {10, 0, (byte) (i % 8), (byte) (tid * 8 + i % 5)};
+                    if (limiter.tryAcquire(addr, 1000 + i)) {
+                        limiter.release(addr);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        // all connections are released, so the quota of every network is complete
+        for (int i = 0; i < 20; ++i) {
+            assertTrue(limiter.tryAcquire(new byte[]{10, 0, 0, (byte) (100 + i)}, 20000));
+        }
+        assertFalse(limiter.tryAcquire(new byte[]{10, 0, 0, (byte) 200}, 20000));
+    }
+}
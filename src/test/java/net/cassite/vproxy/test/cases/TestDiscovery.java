@@ -2,8 +2,15 @@ package net.cassite.vproxy.test.cases;
 
 import net.cassite.vproxy.component.check.HealthCheckConfig;
 import net.cassite.vproxy.component.exception.NoException;
+import net.cassite.vproxy.component.exception.XException;
 import net.cassite.vproxy.connection.BindServer;
 import net.cassite.vproxy.discovery.*;
+import net.cassite.vproxy.discovery.protocol.BinaryMsg;
+import net.cassite.vproxy.discovery.protocol.NodeDataMsg;
+import net.cassite.vproxy.discovery.protocol.NodeExistenceMsg;
+import net.cassite.vproxy.discovery.protocol.NodeSyncMsg;
+import net.cassite.vproxy.redis.RESPParser;
+import net.cassite.vproxy.redis.Serializer;
 import net.cassite.vproxy.test.tool.DiscoveryHolder;
 import net.cassite.vproxy.util.BlockCallback;
 import net.cassite.vproxy.util.IPType;
@@ -12,9 +19,23 @@ import org.junit.Before;
 import org.junit.Test;
 
 import java.lang.reflect.Field;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class TestDiscovery {
     private DiscoveryHolder holder;
@@ -147,6 +168,216 @@ public class TestDiscovery {
         assertEquals(0, d2.getNodes().stream().filter(n -> n.nodeName.equals("d0")).count());
     }
 
+    private static String tcpReq(int port, Object[] msg) throws Exception {
+        return new String(tcpReqBytes(port, msg));
+    }
+
+    private static byte[] tcpReqBytes(int port, Object msg) throws Exception {
+        try (Socket sock = new Socket("127.0.0.1", port)) {
+            sock.setSoTimeout(1000);
+            sock.getOutputStream().write(Serializer.from(msg));
+            sock.getOutputStream().flush();
+            byte[] buf = new byte[4096];
+            int total = 0;
+            try {
+                int n;
+                while ((n = sock.getInputStream().read(buf, total, buf.length - total)) > 0) {
+                    total += n;
+                }
+            } catch (SocketTimeoutException ignore) {
+            }
+            return Arrays.copyOf(buf, total);
+        }
+    }
+
+    @Test
+    public void sync() throws Exception {
+        Discovery d0 = new Discovery("d0",
+            new DiscoveryConfig(
+                "lo0", IPType.v4, 17080, 18080, 18080,
+                32, 18080, 18080,
+                new TimeoutConfig(5, 1050, 5, 1050, 2000),
+                new HealthCheckConfig(1000, 500, 2, 3)
+            ));
+        holder.add(d0);
+
+        List<String> zeros = new ArrayList<>();
+        for (int i = 0; i < 16; ++i) {
+            zeros.add("0");
+        }
+        // all buckets are empty on the sender, so only the bucket of d0 differs
+        String resp = tcpReq(18080, new Object[]{1, "sync", zeros});
+        assertTrue(resp, resp.startsWith("*4\r\n"));
+        assertTrue(resp, resp.contains("d0"));
+        assertTrue(resp, resp.matches("(?s).*\\*1\r\n:\\d+\r\n"));
+
+        // the nodes in buckets are recorded
+        resp = tcpReq(18080, new Object[]{1, "nodes",
+            Collections.singletonList(new Object[]{"dx", "127.0.0.1", 18099, 18099, 1}),
+            Collections.singletonList(0)});
+        assertTrue(resp, resp.startsWith("*4\r\n"));
+        assertEquals(2, d0.getNodes().size());
+
+        // bucket count mismatch
+        resp = tcpReq(18080, new Object[]{1, "sync", zeros.subList(0, 15)});
+        assertTrue(resp, resp.startsWith("-"));
+    }
+
+    private static Object parseResp(byte[] bytes) {
+        RESPParser parser = new RESPParser(16384);
+        assertEquals(0, parser.feed(ByteBuffer.wrap(bytes)));
+        return parser.getResult().getJavaObject();
+    }
+
+    @Test
+    public void binaryData() throws Exception {
+        Node n0 = new Node("node-\u4e2d", "127.0.0.1", 18080, 18081);
+        n0.healthy = true;
+        n0.incarnation = 3;
+        Node n1 = new Node("n1", "127.0.0.2", 65535, 1);
+        BinaryMsg w = new BinaryMsg(8); // grows when writing
+        byte[] bytes = NodeDataMsg.toBinary(w, Arrays.asList(n0, n1), Arrays.asList(1, 15));
+
+        // carried in a resp bulk string
+        Object o = parseResp(Serializer.from(bytes));
+        assertEquals("nodes", BinaryMsg.typeOf(o));
+        NodeDataMsg msg = NodeDataMsg.parse(o);
+        assertEquals(1, msg.version);
+        assertEquals("nodes", msg.type);
+        assertEquals(Arrays.asList(n0, n1), msg.nodes);
+        assertTrue(msg.nodes.get(0).healthy);
+        assertEquals(3, msg.nodes.get(0).incarnation);
+        assertFalse(msg.nodes.get(1).healthy);
+        assertEquals(Arrays.asList(1, 15), msg.buckets);
+
+        // all nodes
+        msg = NodeDataMsg.parse(parseResp(Serializer.from(NodeDataMsg.toBinary(w, Collections.emptyList(), null))));
+        assertTrue(msg.nodes.isEmpty());
+        assertNull(msg.buckets);
+
+        long[] digests = {0, -1, Long.MAX_VALUE, 0x80};
+        NodeSyncMsg sync = NodeSyncMsg.parse(parseResp(Serializer.from(NodeSyncMsg.toBinary(w, digests))));
+        assertEquals("sync", sync.type);
+        assertEquals(Arrays.asList(0L, -1L, Long.MAX_VALUE, 0x80L), sync.buckets);
+
+        // truncated
+        o = parseResp(Serializer.from(Arrays.copyOf(bytes, bytes.length - 1)));
+        try {
+            NodeDataMsg.parse(o);
+            fail();
+        } catch (XException ignore) {
+        }
+    }
+
+    @Test
+    public void binaryDataRequest() throws Exception {
+        Discovery d0 = new Discovery("d0",
+            new DiscoveryConfig(
+                "lo0", IPType.v4, 17080, 18080, 18080,
+                32, 18080, 18080,
+                new TimeoutConfig(5, 1050, 5, 1050, 2000),
+                new HealthCheckConfig(1000, 500, 2, 3)
+            ));
+        holder.add(d0);
+
+        // the response uses the format of the request
+        Object o = parseResp(tcpReqBytes(18080, NodeSyncMsg.toBinary(new BinaryMsg(256), new long[16])));
+        assertEquals("nodes", BinaryMsg.typeOf(o));
+        NodeDataMsg msg = NodeDataMsg.parse(o);
+        assertTrue(msg.toString(), msg.nodes.stream().anyMatch(n -> n.nodeName.equals("d0")));
+        assertEquals(1, msg.buckets.size());
+
+        Node dx = new Node("dx", "127.0.0.1", 18099, 18099);
+        dx.healthy = true;
+        o = parseResp(tcpReqBytes(18080, NodeDataMsg.toBinary(new BinaryMsg(256), Collections.singletonList(dx), Collections.singletonList(0))));
+        assertEquals("nodes", BinaryMsg.typeOf(o));
+        assertEquals(2, d0.getNodes().size());
+
+        // the fake peer never announced the supported version
+        assertFalse(d0.supportsBinaryData(new InetSocketAddress("127.0.0.1", 18099)));
+    }
+
+    private static byte[] udpReq(DatagramSocket sock, byte[] msg) throws Exception {
+        sock.send(new DatagramPacket(msg, msg.length, new InetSocketAddress("127.0.0.1", 18080)));
+        byte[] buf = new byte[2048];
+        DatagramPacket pkt = new DatagramPacket(buf, buf.length);
+        sock.receive(pkt);
+        return Arrays.copyOf(buf, pkt.getLength());
+    }
+
+    @Test
+    public void binaryExistence() throws Exception {
+        Discovery d0 = new Discovery("d0",
+            new DiscoveryConfig(
+                "lo0", IPType.v4, 17080, 18080, 18080,
+                32, 18080, 18080,
+                new TimeoutConfig(5, 1050, 5, 1050, 2000),
+                new HealthCheckConfig(1000, 500, 2, 3)
+            ));
+        holder.add(d0);
+
+        try (DatagramSocket fake = new DatagramSocket(new InetSocketAddress("127.0.0.1", 18081))) {
+            fake.setSoTimeout(1000);
+
+            // an old node, resp is used, and the supported version is attached
+            byte[] resp = udpReq(fake, Serializer.from(new Object[]{1, "search", "dx", 18081, 18081, "x"}));
+            String respStr = new String(resp);
+            assertTrue(respStr, respStr.startsWith("*7\r\n:1\r\n$6\r\ninform\r\n"));
+            assertTrue(respStr, respStr.endsWith(":" + NodeExistenceMsg.SUPPORTED_VERSION + "\r\n"));
+
+            // a binary message, the response is binary as well
+            ByteBuffer buf = ByteBuffer.allocate(NodeExistenceMsg.binarySize("dx", "x"));
+            NodeExistenceMsg.writeBinary(buf, "search", "dx", 18081, 18081, "x");
+            resp = udpReq(fake, buf.array());
+            assertEquals(NodeExistenceMsg.BINARY_VERSION, resp[0]);
+            NodeExistenceMsg msg = NodeExistenceMsg.parseBinary(ByteBuffer.wrap(resp));
+            assertEquals("inform", msg.type);
+            assertEquals("d0", msg.nodeName);
+            assertEquals(18080, msg.udpPort);
+            assertEquals(18080, msg.tcpPort);
+            assertEquals(16, msg.hash.length());
+
+            // resp with the supported version keeps the binary format
+            resp = udpReq(fake, Serializer.from(new Object[]{1, "search", "dx", 18081, 18081, "x", 2}));
+            assertEquals(NodeExistenceMsg.BINARY_VERSION, resp[0]);
+
+            // downgraded to resp
+            resp = udpReq(fake, Serializer.from(new Object[]{1, "search", "dx", 18081, 18081, "x"}));
+            assertEquals('*', resp[0]);
+        }
+    }
+
+    @Test
+    public void binaryExistenceParse() throws Exception {
+        ByteBuffer buf = ByteBuffer.allocate(NodeExistenceMsg.binarySize("node-\u4e2d", "0123456789abcdef"));
+        NodeExistenceMsg.writeBinary(buf, "leave", "node-\u4e2d", 65535, 1, "0123456789abcdef");
+        assertEquals(buf.capacity(), buf.position());
+        buf.flip();
+        NodeExistenceMsg msg = NodeExistenceMsg.parseBinary(buf);
+        assertEquals(NodeExistenceMsg.BINARY_VERSION, msg.version);
+        assertEquals("leave", msg.type);
+        assertEquals("node-\u4e2d", msg.nodeName);
+        assertEquals(65535, msg.udpPort);
+        assertEquals(1, msg.tcpPort);
+        assertEquals("0123456789abcdef", msg.hash);
+        assertEquals(NodeExistenceMsg.SUPPORTED_VERSION, msg.supportedVersion);
+
+        // sent by an old node without the supported version
+        byte[] old = Arrays.copyOf(buf.array(), buf.capacity() - 1);
+        ByteBuffer.wrap(old).putShort(1, (short) (old.length - 3));
+        msg = NodeExistenceMsg.parseBinary(ByteBuffer.wrap(old));
+        assertEquals("0123456789abcdef", msg.hash);
+        assertEquals(NodeExistenceMsg.BINARY_VERSION, msg.supportedVersion);
+
+        // truncated
+        byte[] truncated = Arrays.copyOf(buf.array(), buf.capacity() - 1);
+        try {
+            NodeExistenceMsg.parseBinary(ByteBuffer.wrap(truncated));
+            fail();
+        } catch (XException ignore) {
+        }
+    }
+
     @Test
     public void discoverIPV6() throws Exception {
         Discovery d0 = new Discovery("d0",
@@ -247,4 +478,108 @@ public class TestDiscovery {
         assertEquals(1, downAlert[0]);
         assertEquals("should be removed", 1, removeAlert[0]);
     }
+
+    private static DiscoveryConfig gossipConfig(int udpSockPort, int port, int... seedPorts) throws Exception {
+        List<InetSocketAddress> seeds = new ArrayList<>();
+        for (int p : seedPorts) {
+            seeds.add(new InetSocketAddress("127.0.0.1", p));
+        }
+        return new DiscoveryConfig(
+            "lo0", IPType.v4, udpSockPort, port, port,
+            seeds,
+            new TimeoutConfig(5, 1050, 5, 1050, 2000),
+            new HealthCheckConfig(1000, 500, 2, 3),
+            new GossipConfig(100, 40, 2, 4, 3, 8, 1000)
+        );
+    }
+
+    @Test
+    public void gossip() throws Exception {
+        Discovery d0 = new Discovery("d0", gossipConfig(17080, 18080, 18081));
+        holder.add(d0);
+        Discovery d1 = new Discovery("d1", gossipConfig(17081, 18081, 18080));
+        holder.add(d1);
+        Discovery d2 = new Discovery("d2", gossipConfig(17082, 18082, 18080));
+        holder.add(d2);
+
+        // no need to wait for health checks
+        Thread.sleep(500);
+        for (Discovery d : Arrays.asList(d0, d1, d2)) {
+            assertEquals(3, d.getNodes().size());
+            assertEquals(3, d.getNodes().stream().filter(n -> n.healthy).count());
+        }
+
+        // close d2
+        BlockCallback<Void, NoException> cb = new BlockCallback<>();
+        d2.close(cb);
+        cb.block();
+        Thread.sleep(50);
+
+        // d0 and d1 should remove d2
+        assertEquals(0, d0.getNodes().stream().filter(n -> n.nodeName.equals("d2")).count());
+        assertEquals(0, d1.getNodes().stream().filter(n -> n.nodeName.equals("d2")).count());
+        // and should not be added back by out-dated messages
+        Thread.sleep(500);
+        assertEquals(2, d0.getNodes().size());
+        assertEquals(2, d1.getNodes().size());
+    }
+
+    @Test
+    public void gossipFailureDetection() throws Exception {
+        int[] upAlert = {0};
+        int[] downAlert = {0};
+        int[] removeAlert = {0};
+
+        Discovery d0 = new Discovery("d0", gossipConfig(17080, 18080, 18081));
+        holder.add(d0);
+        d0.addNodeListener(new NodeListener() {
+            @Override
+            public void up(Node node) {
+                assertEquals("fake", node.nodeName);
+                ++upAlert[0];
+            }
+
+            @Override
+            public void down(Node node) {
+                assertEquals("fake", node.nodeName);
+                ++downAlert[0];
+            }
+
+            @Override
+            public void leave(Node node) {
+                assertEquals("fake", node.nodeName);
+                ++removeAlert[0];
+            }
+        });
+
+        // a node which pings but never acks
+        try (DatagramSocket fake = new DatagramSocket(new InetSocketAddress("127.0.0.1", 18081))) {
+            byte[] ping = Serializer.from(new Object[]{1, "ping", "fake", 18081, 18081, 0, 1, "", 0, new LinkedList<>()});
+            fake.send(new DatagramPacket(ping, ping.length, new InetSocketAddress("127.0.0.1", 18080)));
+            Thread.sleep(50);
+            assertEquals(1, upAlert[0]);
+            assertEquals(0, downAlert[0]);
+
+            // suspect after one period, then dead after 4 * log2(2+1) periods
+            Thread.sleep(1000);
+            assertEquals(1, upAlert[0]);
+            assertEquals("should be down now", 1, downAlert[0]);
+            assertEquals(0, removeAlert[0]);
+
+            // the same incarnation cannot make it alive
+            fake.send(new DatagramPacket(ping, ping.length, new InetSocketAddress("127.0.0.1", 18080)));
+            Thread.sleep(50);
+            assertEquals(1, upAlert[0]);
+            // refute with a higher incarnation
+            ping = Serializer.from(new Object[]{1, "ping", "fake", 18081, 18081, 1, 2, "", 0, new LinkedList<>()});
+            fake.send(new DatagramPacket(ping, ping.length, new InetSocketAddress("127.0.0.1", 18080)));
+            Thread.sleep(50);
+            assertEquals("should be up again", 2, upAlert[0]);
+
+            // down again, and removed after detach timeout
+            Thread.sleep(3500);
+            assertEquals(2, downAlert[0]);
+            assertEquals("should be removed", 1, removeAlert[0]);
+        }
+    }
 }
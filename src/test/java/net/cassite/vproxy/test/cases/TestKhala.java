@@ -3,24 +3,49 @@ package net.cassite.vproxy.test.cases;
 import net.cassite.vproxy.component.check.HealthCheckConfig;
 import net.cassite.vproxy.component.khala.Khala;
 import net.cassite.vproxy.component.khala.KhalaConfig;
+import net.cassite.vproxy.component.exception.NoException;
+import net.cassite.vproxy.component.exception.XException;
 import net.cassite.vproxy.component.khala.KhalaNode;
+import net.cassite.vproxy.component.khala.KhalaNodeBatch;
+import net.cassite.vproxy.component.khala.KhalaNodeListener;
 import net.cassite.vproxy.component.khala.KhalaNodeType;
+import net.cassite.vproxy.component.khala.KhalaSnapshot;
+import net.cassite.vproxy.component.khala.KhalaVersion;
+import net.cassite.vproxy.component.khala.protocol.KhalaMsg;
 import net.cassite.vproxy.connection.BindServer;
 import net.cassite.vproxy.discovery.Discovery;
 import net.cassite.vproxy.discovery.DiscoveryConfig;
 import net.cassite.vproxy.discovery.Node;
 import net.cassite.vproxy.discovery.TimeoutConfig;
+import net.cassite.vproxy.discovery.protocol.BinaryMsg;
+import net.cassite.vproxy.redis.RESPParser;
+import net.cassite.vproxy.redis.Serializer;
 import net.cassite.vproxy.test.tool.DiscoveryHolder;
+import net.cassite.vproxy.util.BlockCallback;
 import net.cassite.vproxy.util.IPType;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.File;
 import java.lang.reflect.Field;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class TestKhala {
     private DiscoveryHolder holder;
@@ -106,6 +131,74 @@ public class TestKhala {
         assertEquals("nexus node added and learns the pylon node", 1, nodes1.get(d0.localNode).size());
     }
 
+    private static String tcpReq(int port, Object[] msg) throws Exception {
+        try (Socket sock = new Socket("127.0.0.1", port)) {
+            sock.setSoTimeout(1000);
+            sock.getOutputStream().write(Serializer.from(msg));
+            sock.getOutputStream().flush();
+            byte[] buf = new byte[4096];
+            int total = 0;
+            try {
+                int n;
+                while ((n = sock.getInputStream().read(buf, total, buf.length - total)) > 0) {
+                    total += n;
+                }
+            } catch (SocketTimeoutException ignore) {
+            }
+            return new String(buf, 0, total);
+        }
+    }
+
+    private static Object[] digestMsg(Node n, long epoch, int counter) {
+        return new Object[]{1, "khala-digest", Collections.singletonList(
+            new Object[]{n.nodeName, n.address, n.udpPort, n.tcpPort, new Object[0], epoch, counter})};
+    }
+
+    @Test
+    public void digest() throws Exception {
+        Discovery d0 = new Discovery("d0", new DiscoveryConfig(
+            "lo0", IPType.v4,
+            17080, 18080, 18080,
+            32, 18080, 18080,
+            new TimeoutConfig(
+                2, 1050,
+                2, 1050,
+                3000),
+            new HealthCheckConfig(200, 500, 2, 3)
+        ));
+        holder.add(d0);
+        Khala k0 = new Khala(d0, new KhalaConfig(Integer.MAX_VALUE /*disable the periodic sync for test*/));
+        k0.addLocal(new KhalaNode(KhalaNodeType.nexus, "s0", "z0", "127.0.0.0", 9990));
+        Thread.sleep(100);
+
+        // empty digest, so all nodes are newer
+        String resp = tcpReq(18080, new Object[]{1, "khala-digest", Collections.emptyList()});
+        assertTrue(resp, resp.startsWith("*3\r\n:1\r\n$12\r\nkhala-digest\r\n*1\r\n*7\r\n$2\r\nd0\r\n"));
+        assertTrue("only versions are transferred", !resp.contains("nexus"));
+        Matcher m = Pattern.compile(":(-?\\d+)\r\n:(\\d+)\r\n$").matcher(resp);
+        assertTrue(resp, m.find());
+        long epoch = Long.parseLong(m.group(1));
+        int counter = Integer.parseInt(m.group(2));
+        assertEquals("one local change", 1, counter);
+
+        // the digest is up to date, nothing to transfer
+        resp = tcpReq(18080, digestMsg(d0.localNode, epoch, counter));
+        assertEquals("*3\r\n:1\r\n$12\r\nkhala-digest\r\n*0\r\n", resp);
+
+        // the digest is out-dated
+        resp = tcpReq(18080, digestMsg(d0.localNode, epoch, counter - 1));
+        assertTrue(resp, resp.contains("d0"));
+        resp = tcpReq(18080, digestMsg(d0.localNode, epoch - 1, counter + 10));
+        assertTrue(resp, resp.contains("d0"));
+
+        // the version increases on change
+        k0.removeLocal(new KhalaNode(KhalaNodeType.nexus, "s0", "z0", "127.0.0.0", 9990));
+        Thread.sleep(100);
+        resp = tcpReq(18080, digestMsg(d0.localNode, epoch, counter));
+        assertTrue(resp, resp.contains("d0"));
+        assertTrue(resp, resp.endsWith(":" + epoch + "\r\n:2\r\n"));
+    }
+
     @Test
     public void addUpdateRemove() throws Exception {
         Discovery d0 = new Discovery("d0", new DiscoveryConfig(
@@ -383,4 +476,317 @@ public class TestKhala {
         // assertEquals(1, nodes2.get(d1.localNode).size());
         assertEquals(1, nodes2.get(d2.localNode).size());
     }
+
+    @Test
+    public void batchEvents() throws Exception {
+        Discovery d0 = new Discovery("d0", new DiscoveryConfig(
+            "lo0", IPType.v4,
+            17080, 18080, 18080,
+            32, 18080, 18081,
+            new TimeoutConfig(
+                200, Integer.MAX_VALUE,
+                200, Integer.MAX_VALUE,
+                3000),
+            new HealthCheckConfig(200, 500, 2, 3)
+        ));
+        holder.add(d0);
+        Khala k0 = new Khala(d0, new KhalaConfig(Integer.MAX_VALUE /*disable the periodic sync for test*/, 300));
+        Discovery d1 = new Discovery("d1", new DiscoveryConfig(
+            "lo0", IPType.v4,
+            17081, 18081, 18081,
+            32, 18080, 18081,
+            new TimeoutConfig(
+                200, Integer.MAX_VALUE,
+                200, Integer.MAX_VALUE,
+                3000),
+            new HealthCheckConfig(200, 500, 2, 3)
+        ));
+        holder.add(d1);
+        Khala k1 = new Khala(d1, new KhalaConfig(Integer.MAX_VALUE /*disable the periodic sync for test*/));
+
+        List<KhalaNodeBatch> batches = new CopyOnWriteArrayList<>();
+        k0.addKhalaNodeListener(new KhalaNodeListener() {
+            @Override
+            public void add(Node n, KhalaNode node) {
+                throw new AssertionError("should be alerted in batch");
+            }
+
+            @Override
+            public void remove(Node n, KhalaNode node) {
+                throw new AssertionError("should be alerted in batch");
+            }
+
+            @Override
+            public void batch(KhalaNodeBatch batch) {
+                batches.add(batch);
+            }
+        });
+
+        // wait for d0 d1 find each other
+        Thread.sleep(1050);
+        assertEquals(2, k0.getKhalaNodes().size());
+
+        KhalaNode n1 = new KhalaNode(KhalaNodeType.nexus, "s0", "z0", "127.0.0.1", 9991);
+        KhalaNode n2 = new KhalaNode(KhalaNodeType.nexus, "s0", "z0", "127.0.0.1", 9992);
+        KhalaNode n3 = new KhalaNode(KhalaNodeType.nexus, "s0", "z0", "127.0.0.1", 9993);
+        k1.addLocal(n1);
+        k1.addLocal(n2);
+        k1.addLocal(n3);
+        k1.removeLocal(n3); // cancels out
+        Thread.sleep(100);
+        assertEquals("not alerted in the window", 0, batches.size());
+        assertEquals(2, k0.getKhalaNodes().get(d1.localNode).size());
+
+        Thread.sleep(400);
+        assertEquals(1, batches.size());
+        KhalaNodeBatch batch = batches.get(0);
+        assertEquals(0, batch.removed.size());
+        assertEquals(2, batch.added.size());
+        assertTrue(batch.added.stream().allMatch(t -> t.left.equals(d1.localNode)));
+        assertTrue(batch.added.stream().anyMatch(t -> t.right.equals(n1)));
+        assertTrue(batch.added.stream().anyMatch(t -> t.right.equals(n2)));
+
+        // the d1 is down, all nodes removed in one batch
+        BlockCallback<Void, NoException> cb = new BlockCallback<>();
+        d1.close(cb);
+        cb.block();
+        Thread.sleep(500);
+        assertEquals(2, batches.size());
+        batch = batches.get(1);
+        assertEquals(0, batch.added.size());
+        assertEquals(2, batch.removed.size());
+    }
+
+    @Test
+    public void snapshot() throws Exception {
+        Discovery d0 = new Discovery("d0", new DiscoveryConfig(
+            "lo0", IPType.v4,
+            17080, 18080, 18080,
+            32, 18080, 18081,
+            new TimeoutConfig(
+                200, Integer.MAX_VALUE,
+                200, Integer.MAX_VALUE,
+                3000),
+            new HealthCheckConfig(200, 500, 2, 3)
+        ));
+        holder.add(d0);
+        Khala k0 = new Khala(d0, new KhalaConfig(Integer.MAX_VALUE /*disable the periodic sync for test*/));
+        Discovery d1 = new Discovery("d1", new DiscoveryConfig(
+            "lo0", IPType.v4,
+            17081, 18081, 18081,
+            32, 18080, 18081,
+            new TimeoutConfig(
+                200, Integer.MAX_VALUE,
+                200, Integer.MAX_VALUE,
+                3000),
+            new HealthCheckConfig(200, 500, 2, 3)
+        ));
+        holder.add(d1);
+        Khala k1 = new Khala(d1, new KhalaConfig(Integer.MAX_VALUE /*disable the periodic sync for test*/));
+        // d2 does not search d0 and d1
+        Discovery d2 = new Discovery("d2", new DiscoveryConfig(
+            "lo0", IPType.v4,
+            17082, 18082, 18082,
+            32, 18082, 18082,
+            new TimeoutConfig(
+                200, Integer.MAX_VALUE,
+                200, Integer.MAX_VALUE,
+                3000),
+            new HealthCheckConfig(200, 500, 2, 3)
+        ));
+        holder.add(d2);
+        Khala k2 = new Khala(d2, new KhalaConfig(Integer.MAX_VALUE /*disable the periodic sync for test*/));
+
+        File f = File.createTempFile("khala-snapshot", ".tmp");
+        f.deleteOnExit();
+        assertTrue(f.delete());
+
+        KhalaNode n1 = new KhalaNode(KhalaNodeType.nexus, "s0", "z0", "127.0.0.1", 9991);
+        k1.addLocal(n1);
+        // wait for d0 d1 find each other
+        Thread.sleep(1050);
+        assertEquals(Collections.singleton(n1), k0.getKhalaNodes().get(d1.localNode));
+
+        KhalaSnapshot s0 = new KhalaSnapshot(k0, f.getAbsolutePath(), 100, 2000);
+        try {
+            s0.start();
+            Thread.sleep(300);
+        } finally {
+            s0.stop();
+        }
+        assertTrue(f.exists());
+        assertTrue(new String(Files.readAllBytes(f.toPath())).contains("khala-snapshot"));
+
+        KhalaSnapshot s2 = new KhalaSnapshot(k2, f.getAbsolutePath(), 100, 2000);
+        try {
+            assertTrue(s2.load());
+        } finally {
+            s2.stop();
+        }
+        Thread.sleep(100);
+        assertEquals("restored before d1 is up", Collections.singleton(n1), k2.getKhalaNodes().get(d1.localNode));
+        assertTrue(d2.getNodes().stream().anyMatch(n -> n.nodeName.equals("d1") && !n.healthy));
+
+        // d1 is up, and the nodes are kept after the restore timeout
+        Thread.sleep(2500);
+        assertTrue(d2.getNodes().stream().anyMatch(n -> n.nodeName.equals("d1") && n.healthy));
+        assertEquals(Collections.singleton(n1), k2.getKhalaNodes().get(d1.localNode));
+
+        // the discovery node does not exist, removed after the restore timeout
+        Node dx = new Node("dx", "127.0.0.1", 18099, 18099);
+        Files.write(f.toPath(), Serializer.from(new Object[]{1, "khala-snapshot", Collections.singletonList(
+            new Object[]{"dx", "127.0.0.1", 18099, 18099, Collections.singletonList(
+                new Object[]{"nexus", "s0", "z0", "127.0.0.1", 9999})})}));
+        s2 = new KhalaSnapshot(k2, f.getAbsolutePath(), 100, 500);
+        try {
+            assertTrue(s2.load());
+        } finally {
+            s2.stop();
+        }
+        Thread.sleep(100);
+        assertEquals(1, k2.getKhalaNodes().get(dx).size());
+        Thread.sleep(1000);
+        assertFalse(k2.getKhalaNodes().containsKey(dx));
+
+        // not exist
+        assertTrue(f.delete());
+        s2 = new KhalaSnapshot(k2, f.getAbsolutePath(), 100, 500);
+        try {
+            assertFalse(s2.load());
+        } finally {
+            s2.stop();
+        }
+    }
+
+    @Test
+    public void epochIncreasesAfterRestart() throws Exception {
+        File f = File.createTempFile("khala-snapshot", ".tmp");
+        f.deleteOnExit();
+        assertTrue(f.delete());
+
+        KhalaVersion last = null;
+        // restart 3 times within one second
+        for (int i = 0; i < 3; ++i) {
+            Discovery d = new Discovery("d" + i, new DiscoveryConfig(
+                "lo0", IPType.v4,
+                17080 + i, 18080 + i, 18080 + i,
+                32, 18080 + i, 18080 + i,
+                new TimeoutConfig(
+                    200, Integer.MAX_VALUE,
+                    200, Integer.MAX_VALUE,
+                    3000),
+                new HealthCheckConfig(200, 500, 2, 3)
+            ));
+            holder.add(d);
+            Khala k = new Khala(d, new KhalaConfig(Integer.MAX_VALUE /*disable the periodic sync for test*/));
+            KhalaSnapshot s = new KhalaSnapshot(k, f.getAbsolutePath(), 60000, 2000);
+            try {
+                assertEquals(i != 0, s.load());
+                s.start(); // the snapshot is written when started
+                Thread.sleep(100);
+            } finally {
+                s.stop();
+            }
+            KhalaVersion v = k.getLocalVersion();
+            if (last != null) {
+                assertTrue(v + " should be newer than " + last, v.compareTo(last) > 0);
+                assertTrue(v.epoch > last.epoch);
+            }
+            last = v;
+        }
+
+        // the clock goes backwards
+        long future = System.currentTimeMillis() + 3600_000;
+        Files.write(f.toPath(), Serializer.from(new Object[]{1, "khala-snapshot", Collections.emptyList(), future}));
+        Discovery d = new Discovery("d3", new DiscoveryConfig(
+            "lo0", IPType.v4,
+            17083, 18083, 18083,
+            32, 18083, 18083,
+            new TimeoutConfig(
+                200, Integer.MAX_VALUE,
+                200, Integer.MAX_VALUE,
+                3000),
+            new HealthCheckConfig(200, 500, 2, 3)
+        ));
+        holder.add(d);
+        Khala k = new Khala(d, new KhalaConfig(Integer.MAX_VALUE /*disable the periodic sync for test*/));
+        KhalaSnapshot s = new KhalaSnapshot(k, f.getAbsolutePath(), 60000, 2000);
+        try {
+            assertTrue(s.load());
+        } finally {
+            s.stop();
+        }
+        Thread.sleep(100);
+        assertEquals(new KhalaVersion(future + 1, 0), k.getLocalVersion());
+    }
+
+    @Test
+    public void epochRaisedByPeers() throws Exception {
+        Discovery d0 = new Discovery("d0", new DiscoveryConfig(
+            "lo0", IPType.v4,
+            17080, 18080, 18080,
+            32, 18080, 18080,
+            new TimeoutConfig(
+                2, 1050,
+                2, 1050,
+                3000),
+            new HealthCheckConfig(200, 500, 2, 3)
+        ));
+        holder.add(d0);
+        Khala k0 = new Khala(d0, new KhalaConfig(Integer.MAX_VALUE /*disable the periodic sync for test*/));
+        KhalaNode kn = new KhalaNode(KhalaNodeType.nexus, "s0", "z0", "127.0.0.0", 9990);
+        k0.addLocal(kn);
+        Thread.sleep(100);
+        KhalaVersion v = k0.getLocalVersion();
+        assertEquals(1, v.counter);
+        assertTrue("the epoch is in milliseconds", v.epoch > System.currentTimeMillis() - 60_000);
+
+        // the versions recorded by others are not newer
+        tcpReq(18080, digestMsg(d0.localNode, v.epoch, 1));
+        tcpReq(18080, digestMsg(d0.localNode, v.epoch - 1, 10));
+        Thread.sleep(100);
+        assertEquals(v, k0.getLocalVersion());
+
+        // another node recorded a version before the clock goes backwards
+        long recorded = v.epoch + 3600_000;
+        tcpReq(18080, digestMsg(d0.localNode, recorded, 10));
+        Thread.sleep(100);
+        assertEquals(new KhalaVersion(recorded + 1, 0), k0.getLocalVersion());
+
+        k0.removeLocal(kn);
+        Thread.sleep(100);
+        assertEquals(new KhalaVersion(recorded + 1, 1), k0.getLocalVersion());
+    }
+
+    @Test
+    public void binaryMsg() throws Exception {
+        Node n0 = new Node("d0", "127.0.0.1", 18080, 18080);
+        Node n1 = new Node("d1", "127.0.0.1", 18081, 18081);
+        KhalaNode kn0 = new KhalaNode(KhalaNodeType.nexus, "s0", "z0", "127.0.0.1", 8080);
+        KhalaNode kn1 = new KhalaNode(KhalaNodeType.pylon, "s\u4e2d", "z1", "127.0.0.2", 65535);
+
+        BinaryMsg w = new BinaryMsg(16);
+        w.start("khala");
+        w.putShort(2);
+        KhalaMsg.writeBinaryNode(w, n0, new KhalaVersion(1234567890123L, 4), Arrays.asList(kn0, kn1));
+        KhalaMsg.writeBinaryNode(w, n1, null, Collections.emptyList());
+        byte[] bytes = w.toBytes();
+
+        RESPParser parser = new RESPParser(16384);
+        assertEquals(0, parser.feed(ByteBuffer.wrap(Serializer.from(bytes))));
+        ByteBuffer buf = BinaryMsg.wrap(parser.getResult().getJavaObject());
+        KhalaMsg msg = KhalaMsg.parseBinary(buf);
+        assertEquals(1, msg.version);
+        assertEquals("khala", msg.type);
+        assertEquals(Arrays.asList(kn0, kn1), msg.nodes.get(n0));
+        assertEquals(Collections.emptyList(), msg.nodes.get(n1));
+        assertEquals(new KhalaVersion(1234567890123L, 4), msg.versions.get(n0));
+        assertFalse(msg.versions.containsKey(n1));
+
+        try {
+            KhalaMsg.parseBinary(ByteBuffer.wrap(bytes, 1, bytes.length - 2).slice());
+            fail();
+        } catch (XException ignore) {
+        }
+    }
 }
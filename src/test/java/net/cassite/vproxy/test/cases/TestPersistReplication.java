@@ -0,0 +1,124 @@
+package net.cassite.vproxy.test.cases;
+
+import net.cassite.vproxy.component.app.PersistReplicator;
+import net.cassite.vproxy.component.app.TcpLB;
+import net.cassite.vproxy.component.check.HealthCheckConfig;
+import net.cassite.vproxy.component.elgroup.EventLoopGroup;
+import net.cassite.vproxy.component.secure.SecurityGroup;
+import net.cassite.vproxy.component.svrgroup.Method;
+import net.cassite.vproxy.component.svrgroup.ServerGroup;
+import net.cassite.vproxy.component.svrgroup.ServerGroups;
+import net.cassite.vproxy.discovery.Discovery;
+import net.cassite.vproxy.discovery.DiscoveryConfig;
+import net.cassite.vproxy.discovery.TimeoutConfig;
+import net.cassite.vproxy.test.tool.DiscoveryHolder;
+import net.cassite.vproxy.util.IPType;
+import net.cassite.vproxy.util.Utils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestPersistReplication {
+    private DiscoveryHolder holder;
+    private List<EventLoopGroup> groups = new ArrayList<>();
+    private List<PersistReplicator> replicators = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        holder = new DiscoveryHolder();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (PersistReplicator r : replicators) {
+            r.stop();
+            r.lb.destroy();
+        }
+        holder.release();
+        for (EventLoopGroup g : groups) {
+            g.close();
+        }
+    }
+
+    private Discovery discovery(String name, int port) throws Exception {
+        Discovery d = new Discovery(name, new DiscoveryConfig(
+            "lo0", IPType.v4,
+            port - 1000, port, port,
+            32, 18080, 18081,
+            new TimeoutConfig(
+                2, 1050,
+                2, 1050,
+                3000),
+            new HealthCheckConfig(200, 500, 2, 3)
+        ));
+        holder.add(d);
+        return d;
+    }
+
+    // the lbs have the same alias and backends on different nodes
+    private TcpLB lb(Discovery d, String elgName, int lbPort) throws Exception {
+        EventLoopGroup elg = new EventLoopGroup(elgName);
+        groups.add(elg);
+        elg.add("el0");
+        ServerGroup sg = new ServerGroup("sg0", elg, new HealthCheckConfig(400, /* disable health check */24 * 60 * 60 * 1000, 2, 3), Method.wrr);
+        sg.add("svr0", new InetSocketAddress("127.0.0.1", 19080), InetAddress.getByName("127.0.0.1"), 10);
+        sg.add("svr1", new InetSocketAddress("127.0.0.1", 19081), InetAddress.getByName("127.0.0.1"), 10);
+        for (ServerGroup.ServerHandle h : sg.getServerHandles()) {
+            h.setHealthy(true);
+        }
+        ServerGroups sgs = new ServerGroups("sgs0");
+        sgs.add(sg, 10);
+        TcpLB lb = new TcpLB("lb0", elg, elg,
+            new InetSocketAddress("127.0.0.1", lbPort), sgs,
+            16384, 16384, SecurityGroup.allowAll(), 60000);
+        lb.start();
+        PersistReplicator r = new PersistReplicator(lb, d);
+        r.start();
+        replicators.add(r);
+        return lb;
+    }
+
+    private static void connect(int port) throws Exception {
+        try (Socket sock = new Socket()) {
+            sock.connect(new InetSocketAddress("127.0.0.1", port));
+            Thread.sleep(100);
+        }
+    }
+
+    @Test
+    public void replicate() throws Exception {
+        Discovery d0 = discovery("d0", 18080);
+        TcpLB lb0 = lb(d0, "elg0", 7890);
+        // make a persist entry before the nodes find each other
+        connect(7890);
+        assertEquals(1, lb0.persistCount());
+        TcpLB.Persist persist = lb0.persistList().get(0);
+
+        Discovery d1 = discovery("d1", 18081);
+        TcpLB lb1 = lb(d1, "elg1", 7891);
+
+        // wait until d0 and d1 find each other and sync
+        Thread.sleep(3000);
+        assertEquals("all entries are sent when the node is UP", 1, lb1.persistCount());
+        TcpLB.Persist replica = lb1.persistList().get(0);
+        assertEquals("127.0.0.1", Utils.ipStr(replica.clientAddress.getAddress()));
+        assertEquals("the same server", persist.connector.remote, replica.connector.remote);
+
+        // entries changed on lb1 are sent to lb0
+        replica.remove();
+        lb0.persistList().get(0).remove();
+        connect(7891);
+        assertEquals(1, lb1.persistCount());
+        Thread.sleep(1500);
+        assertEquals(1, lb0.persistCount());
+        assertEquals(lb1.persistList().get(0).connector.remote, lb0.persistList().get(0).connector.remote);
+    }
+}
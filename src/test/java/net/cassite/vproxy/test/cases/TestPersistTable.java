@@ -0,0 +1,198 @@
+package net.cassite.vproxy.test.cases;
+
+import net.cassite.vproxy.component.app.PersistTable;
+import net.cassite.vproxy.connection.Connector;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TestPersistTable {
+    private static final int TIMEOUT = 10000;
+
+    private static byte[] ip(int i) {
+        return new byte[]{10, (byte) (i >> 16), (byte) (i >> 8), (byte) i};
+    }
+
+    private static Connector connector(int port) {
+        return new Connector(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), InetAddress.getLoopbackAddress());
+    }
+
+    @Test
+    public void expirySweep() {
+        PersistTable table = new PersistTable();
+        Connector c1 = connector(1);
+        Connector c2 = connector(2);
+        for (int i = 0; i < 100; ++i) {
+            table.put(ip(i), c1, 1000, TIMEOUT);
+        }
+        table.put(ip(100), c2, 5000, TIMEOUT);
+        assertEquals(2, table.connectorCount());
+
+        // refresh one entry
+        assertSame(c1, table.get(ip(0), 6000, TIMEOUT));
+        assertEquals(101, table.size(6000, TIMEOUT));
+
+        // the entries put at 1000 are expired, and removed by the sweep of any operation
+        assertNull(table.get(ip(200), 11000, TIMEOUT));
+        assertEquals("c1 is still referenced by the refreshed entry", 2, table.connectorCount());
+        assertEquals(2, table.entries(11000, TIMEOUT).size());
+        assertNull("expired", table.get(ip(1), 11000, TIMEOUT));
+
+        assertNull(table.get(ip(200), 16000, TIMEOUT));
+        assertEquals(0, table.size(16000, TIMEOUT));
+        assertEquals("all connectors are released", 0, table.connectorCount());
+    }
+
+    @Test
+    public void growAndEvict() {
+        PersistTable table = new PersistTable();
+        Connector c = connector(1);
+        long now = 1;
+        table.put(ip(0), c, now, Integer.MAX_VALUE);
+        int initial = table.capacity();
+
+        int n = 1;
+        while (table.size(now, Integer.MAX_VALUE) < table.capacity()) {
+            table.put(ip(n++), c, ++now, Integer.MAX_VALUE);
+        }
+        // keep filling, the table grows until the max capacity
+        int capacity;
+        do {
+            capacity = table.capacity();
+            for (int i = 0; i < capacity; ++i) {
+                table.put(ip(n++), c, ++now, Integer.MAX_VALUE);
+            }
+        } while (table.capacity() > capacity);
+        assertTrue(capacity > initial);
+        assertTrue(capacity >= 1024 * 1024);
+        assertEquals("full", capacity, table.size(now, Integer.MAX_VALUE));
+        assertEquals(1, table.connectorCount());
+
+        // the least recently used entries around are evicted,
+        // so the old entries accessed recently are kept
+        int first = n - capacity;
+        List<Integer> used = new ArrayList<>();
+        for (int i = first; used.size() < 100; ++i) {
+            if (table.get(ip(i), ++now, Integer.MAX_VALUE) != null) {
+                used.add(i);
+            }
+        }
+        int last = used.get(used.size() - 1);
+        for (int i = 0; i < 1000; ++i) {
+            table.put(ip(n++), c, ++now, Integer.MAX_VALUE);
+        }
+        assertEquals(capacity, table.capacity());
+        assertEquals(capacity, table.size(now, Integer.MAX_VALUE));
+        for (int i : used) {
+            assertSame("recently used", c, table.get(ip(i), now, Integer.MAX_VALUE));
+        }
+        int evicted = 0;
+        for (int i = last + 1; i < last + 1 + 100000; ++i) {
+            if (table.get(ip(i), now, Integer.MAX_VALUE) == null) {
+                ++evicted;
+            }
+        }
+        assertTrue("old entries evicted: " + evicted, evicted > 0);
+    }
+
+    @Test
+    public void connectorRefCount() {
+        PersistTable table = new PersistTable();
+        Connector c1 = connector(1);
+        Connector c2 = connector(2);
+        Connector c3 = connector(3);
+        table.put(ip(1), c1, 1000, TIMEOUT);
+        table.put(ip(2), c1, 1000, TIMEOUT);
+        table.put(ip(3), c2, 1000, TIMEOUT);
+        assertEquals(2, table.connectorCount());
+        assertEquals(2, table.connectorIdCount());
+
+        table.remove(ip(1));
+        assertEquals("still referenced", 2, table.connectorCount());
+        table.remove(ip(2));
+        assertEquals(1, table.connectorCount());
+
+        // the id of c1 is reused
+        table.put(ip(4), c3, 1000, TIMEOUT);
+        assertEquals(2, table.connectorCount());
+        assertEquals(2, table.connectorIdCount());
+        assertSame(c2, table.get(ip(3), 1000, TIMEOUT));
+        assertSame(c3, table.get(ip(4), 1000, TIMEOUT));
+
+        // replacing releases the old connector
+        table.put(ip(3), c3, 1000, TIMEOUT);
+        assertEquals(1, table.connectorCount());
+        // the same backend keeps the id, and the latest object is used
+        Connector c3copy = connector(3);
+        table.put(ip(4), c3copy, 1000, TIMEOUT);
+        assertEquals(1, table.connectorCount());
+        assertSame(c3copy, table.get(ip(3), 1000, TIMEOUT));
+
+        // the replace predicate is respected
+        table.replace(ip(3), c1, 1000, TIMEOUT, old -> false);
+        assertSame(c3copy, table.get(ip(3), 1000, TIMEOUT));
+        assertEquals(1, table.connectorCount());
+
+        // merging an older entry is ignored, a newer one replaces
+        table.merge(ip(4), c2, 500, 1000, TIMEOUT);
+        assertSame(c3copy, table.get(ip(4), 1000, TIMEOUT));
+        table.merge(ip(4), c2, 2000, 2000, TIMEOUT);
+        assertSame(c2, table.get(ip(4), 2000, TIMEOUT));
+        assertEquals(2, table.connectorCount());
+        assertEquals("no new ids allocated", 2, table.connectorIdCount());
+
+        table.clear();
+        assertEquals(0, table.connectorCount());
+        table.put(ip(1), c1, 3000, TIMEOUT);
+        assertEquals(2, table.connectorIdCount());
+    }
+
+    @Test
+    public void collectChanged() {
+        PersistTable table = new PersistTable();
+        long t0 = 100000; // a new entry is compared with sync time 0, so start later than the timeout
+        Connector c1 = connector(1);
+        Connector c2 = connector(2);
+        List<PersistTable.Entry> out = new ArrayList<>();
+        table.put(ip(1), c1, t0 + 1000, TIMEOUT);
+        table.put(ip(2), c1, t0 + 1000, TIMEOUT);
+        table.collectChanged(1000, TIMEOUT, 10, out);
+        assertEquals(2, out.size());
+        out.clear();
+        table.collectChanged(1000, TIMEOUT, 10, out);
+        assertEquals("already replicated", 0, out.size());
+
+        // modified, or refreshed for more than half of the timeout
+        table.put(ip(1), c2, t0 + 2000, TIMEOUT);
+        assertSame(c1, table.get(ip(2), t0 + 3000, TIMEOUT));
+        table.collectChanged(3000, TIMEOUT, 10, out);
+        assertEquals(1, out.size());
+        assertSame(c2, out.get(0).connector);
+        out.clear();
+        assertSame(c1, table.get(ip(2), t0 + 6000, TIMEOUT));
+        table.collectChanged(6000, TIMEOUT, 10, out);
+        assertEquals(1, out.size());
+        assertSame(c1, out.get(0).connector);
+        out.clear();
+
+        // more changes than the queue can hold are still collected by scanning the table
+        int n = 100000;
+        for (int i = 0; i < n; ++i) {
+            table.put(ip(100 + i), c1, t0 + 7000, TIMEOUT);
+        }
+        int total = 0;
+        for (int i = 0; i < 1000; ++i) {
+            table.collectChanged(7000, TIMEOUT, 1000, out);
+            if (out.isEmpty())
+                break;
+            total += out.size();
+            out.clear();
+        }
+        assertEquals(n, total);
+    }
+}
@@ -0,0 +1,267 @@
+package net.cassite.vproxy.test.cases;
+
+import net.cassite.vproxy.connection.BindServer;
+import net.cassite.vproxy.connection.NetEventLoop;
+import net.cassite.vproxy.protocol.ProtocolServerConfig;
+import net.cassite.vproxy.protocol.ProtocolServerHandler;
+import net.cassite.vproxy.redis.RESPConfig;
+import net.cassite.vproxy.redis.RESPProtocolHandler;
+import net.cassite.vproxy.redis.Serializer;
+import net.cassite.vproxy.redis.application.RESPApplication;
+import net.cassite.vproxy.redis.application.RESPApplicationConfig;
+import net.cassite.vproxy.redis.application.RESPApplicationContext;
+import net.cassite.vproxy.redis.application.RESPApplicationHandler;
+import net.cassite.vproxy.redis.application.RESPClientChannelManager;
+import net.cassite.vproxy.selector.SelectorEventLoop;
+import net.cassite.vproxy.util.BlockCallback;
+import net.cassite.vproxy.util.Callback;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class TestRESPClientChannel {
+    private static final int port = 19090;
+    private static final InetSocketAddress remote = new InetSocketAddress("127.0.0.1", port);
+
+    private SelectorEventLoop serverLoop;
+    private NetEventLoop serverNetLoop;
+    private BindServer server;
+    private final AtomicInteger connections = new AtomicInteger(0);
+
+    private NetEventLoop loop;
+    private RESPClientChannelManager manager;
+
+    @Before
+    public void setUp() throws Exception {
+        serverLoop = SelectorEventLoop.open();
+        serverLoop.loop(r -> new Thread(r, "serverLoop"));
+        serverNetLoop = new NetEventLoop(serverLoop);
+        startServer();
+
+        loop = new NetEventLoop(SelectorEventLoop.open());
+        loop.getSelectorEventLoop().loop(r -> new Thread(r, "netEventLoop"));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (manager != null) {
+            manager.close();
+        }
+        Thread.sleep(100);
+        loop.getSelectorEventLoop().close();
+        server.close();
+        serverLoop.close();
+    }
+
+    // echo the request, never respond to `hang`, and respond to `delay` after the given millis in another thread
+    private void startServer() throws IOException {
+        server = BindServer.create(remote);
+        ProtocolServerHandler.apply(serverNetLoop, server,
+            new ProtocolServerConfig(),
+            new RESPProtocolHandler(new RESPConfig(),
+                new RESPApplicationHandler(new RESPApplicationConfig(), new RESPApplication<RESPApplicationContext>() {
+                    @Override
+                    public RESPApplicationContext context() {
+                        connections.incrementAndGet();
+                        return new RESPApplicationContext();
+                    }
+
+                    @Override
+                    public void handle(Object o, RESPApplicationContext ctx, Callback<Object, Throwable> cb) {
+                        if (o instanceof List && ((List) o).get(0).equals("hang"))
+                            return;
+                        if (o instanceof List && ((List) o).get(0).equals("delay")) {
+                            int delay = (Integer) ((List) o).get(1);
+                            new Thread(() -> {
+                                try {
+                                    Thread.sleep(delay);
+                                } catch (InterruptedException ignore) {
+                                }
+                                cb.succeeded(o);
+                            }).start();
+                            return;
+                        }
+                        cb.succeeded(o);
+                    }
+                })));
+    }
+
+    private Object req(Object msg, int timeout) throws IOException {
+        BlockCallback<Object, IOException> cb = new BlockCallback<>();
+        manager.request(remote, msg, timeout, cb);
+        return cb.block();
+    }
+
+    @Test
+    public void reuse() throws Exception {
+        manager = new RESPClientChannelManager(loop, InetAddress.getByName("127.0.0.1"));
+        List<BlockCallback<Object, IOException>> cbs = new ArrayList<>();
+        for (int i = 0; i < 10; ++i) {
+            BlockCallback<Object, IOException> cb = new BlockCallback<>();
+            manager.request(remote, new Object[]{"echo", i}, 1000, cb);
+            cbs.add(cb);
+        }
+        for (int i = 0; i < 10; ++i) {
+            List res = (List) cbs.get(i).block();
+            assertEquals("echo", res.get(0));
+            assertEquals(i, res.get(1));
+        }
+        assertEquals("requests share one connection", 1, connections.get());
+        assertEquals(1, manager.connectedCount());
+
+        req(new Object[]{"echo", 10}, 1000);
+        assertEquals(1, connections.get());
+    }
+
+    @Test
+    public void idleClose() throws Exception {
+        manager = new RESPClientChannelManager(loop, InetAddress.getByName("127.0.0.1"), 1, 300);
+        req(new Object[]{"echo", 0}, 1000);
+        assertEquals(1, manager.connectedCount());
+        Thread.sleep(200);
+        req(new Object[]{"echo", 1}, 1000);
+        Thread.sleep(200);
+        assertEquals("not idle yet", 1, manager.connectedCount());
+        Thread.sleep(400);
+        assertEquals("closed when idle", 0, manager.connectedCount());
+
+        req(new Object[]{"echo", 2}, 1000);
+        assertEquals(2, connections.get());
+    }
+
+    @Test
+    public void timeout() throws Exception {
+        manager = new RESPClientChannelManager(loop, InetAddress.getByName("127.0.0.1"));
+        try {
+            req(new Object[]{"hang"}, 200);
+            fail();
+        } catch (IOException e) {
+            assertEquals("timeout", e.getMessage());
+        }
+        // the connection is dropped and a new one is made
+        List res = (List) req(new Object[]{"echo", 0}, 1000);
+        assertEquals(0, res.get(1));
+        assertEquals(2, connections.get());
+    }
+
+    @Test
+    public void backoff() throws Exception {
+        manager = new RESPClientChannelManager(loop, InetAddress.getByName("127.0.0.1"));
+        server.close();
+        Thread.sleep(100);
+
+        long start = System.currentTimeMillis();
+        BlockCallback<Object, IOException> cb = new BlockCallback<>();
+        manager.retry(remote, new Object[]{"echo", 0}, 3000, 3, cb);
+        try {
+            cb.block();
+            fail();
+        } catch (IOException ignore) {
+        }
+        long cost = System.currentTimeMillis() - start;
+        // 0 + 100 + 200 + 400
+        assertTrue("cost " + cost, cost >= 600);
+        assertTrue("cost " + cost, cost < 2000);
+
+        startServer();
+        cb = new BlockCallback<>();
+        manager.retry(remote, new Object[]{"echo", 1}, 3000, 3, cb);
+        List res = (List) cb.block();
+        assertEquals(1, res.get(1));
+    }
+
+    @Test
+    public void pipeline() throws Exception {
+        manager = new RESPClientChannelManager(loop, InetAddress.getByName("127.0.0.1"), 10, 60_000);
+        manager.setPipelining(remote, true);
+        int[] delays = {300, 200, 100, 0};
+        List<BlockCallback<Object, IOException>> cbs = new ArrayList<>();
+        long start = System.currentTimeMillis();
+        for (int delay : delays) {
+            BlockCallback<Object, IOException> cb = new BlockCallback<>();
+            manager.request(remote, new Object[]{"delay", delay}, 2000, cb);
+            cbs.add(cb);
+        }
+        // the replies are completed in reverse order, but responded in the order of requests
+        for (int i = 0; i < delays.length; ++i) {
+            List res = (List) cbs.get(i).block();
+            assertEquals(delays[i], res.get(1));
+        }
+        long cost = System.currentTimeMillis() - start;
+        assertTrue("handled concurrently, cost " + cost, cost < 500);
+        assertEquals(1, connections.get());
+    }
+
+    @Test
+    public void pipelineNotNegotiated() throws Exception {
+        manager = new RESPClientChannelManager(loop, InetAddress.getByName("127.0.0.1"));
+        int[] delays = {200, 100, 0};
+        List<BlockCallback<Object, IOException>> cbs = new ArrayList<>();
+        long start = System.currentTimeMillis();
+        for (int delay : delays) {
+            BlockCallback<Object, IOException> cb = new BlockCallback<>();
+            manager.request(remote, new Object[]{"delay", delay}, 2000, cb);
+            cbs.add(cb);
+        }
+        for (int i = 0; i < delays.length; ++i) {
+            List res = (List) cbs.get(i).block();
+            assertEquals(delays[i], res.get(1));
+        }
+        long cost = System.currentTimeMillis() - start;
+        assertTrue("one request in flight, cost " + cost, cost >= 300);
+
+        // allowed after negotiated
+        manager.setPipelining(remote, true);
+        cbs.clear();
+        start = System.currentTimeMillis();
+        for (int delay : delays) {
+            BlockCallback<Object, IOException> cb = new BlockCallback<>();
+            manager.request(remote, new Object[]{"delay", delay}, 2000, cb);
+            cbs.add(cb);
+        }
+        for (int i = 0; i < delays.length; ++i) {
+            List res = (List) cbs.get(i).block();
+            assertEquals(delays[i], res.get(1));
+        }
+        cost = System.currentTimeMillis() - start;
+        assertTrue("handled concurrently, cost " + cost, cost < 300);
+        assertEquals(1, connections.get());
+    }
+
+    @Test
+    public void pipelineInOneWrite() throws Exception {
+        // more commands than maxPipeline of the server
+        ByteArrayOutputStream req = new ByteArrayOutputStream();
+        for (int i = 0; i < 200; ++i) {
+            req.write(Serializer.from(new Object[]{"echo", i}));
+        }
+        byte[] bytes = req.toByteArray();
+        try (Socket sock = new Socket()) {
+            sock.setSoTimeout(2000);
+            sock.connect(remote);
+            sock.getOutputStream().write(bytes);
+            sock.getOutputStream().flush();
+
+            byte[] res = new byte[bytes.length];
+            int off = 0;
+            while (off < res.length) {
+                int n = sock.getInputStream().read(res, off, res.length - off);
+                assertTrue(n > 0);
+                off += n;
+            }
+            // echo returns exactly the same bytes
+            assertArrayEquals(bytes, res);
+        }
+    }
+}
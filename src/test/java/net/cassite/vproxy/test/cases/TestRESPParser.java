@@ -0,0 +1,157 @@
+package net.cassite.vproxy.test.cases;
+
+import net.cassite.vproxy.redis.RESPParser;
+import net.cassite.vproxy.util.ByteArrayChannel;
+import net.cassite.vproxy.util.RingBuffer;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TestRESPParser {
+    private static final String SET = "*3\r\n$3\r\nSET\r\n$3\r\nkey\r\n$11\r\nhello world\r\n";
+    private static final List<Object> SET_RESULT = Arrays.asList("SET", "key", "hello world");
+
+    @Test
+    public void pipelined() {
+        String get = "*2\r\n$3\r\nGET\r\n$3\r\nkey\r\n";
+        String bytes = SET + get + ":-12\r\n" + "$-1\r\n" + "+OK\r\n";
+        RingBuffer rb = RingBuffer.allocate(bytes.length());
+        rb.storeBytesFrom(ByteArrayChannel.fromFull(bytes.getBytes()));
+
+        RESPParser parser = new RESPParser(16384);
+        assertEquals(0, parser.feed(rb));
+        assertEquals(SET_RESULT, parser.getResult().getJavaObject());
+        // stops at the end of the message
+        assertEquals(bytes.length() - SET.length(), rb.used());
+
+        parser.reset();
+        assertEquals(0, parser.feed(rb));
+        assertEquals(Arrays.asList("GET", "key"), parser.getResult().getJavaObject());
+        parser.reset();
+        assertEquals(0, parser.feed(rb));
+        assertEquals(-12, parser.getResult().getJavaObject());
+        parser.reset();
+        assertEquals(0, parser.feed(rb));
+        assertNull(parser.getResult().getJavaObject());
+        parser.reset();
+        assertEquals(0, parser.feed(rb));
+        assertEquals("OK", parser.getResult().getJavaObject());
+        assertEquals(0, rb.used());
+    }
+
+    @Test
+    public void splitAtEveryByte() {
+        byte[] bytes = SET.getBytes();
+        for (int split = 1; split < bytes.length; ++split) {
+            RingBuffer rb = RingBuffer.allocate(bytes.length);
+            RESPParser parser = new RESPParser(16384);
+            rb.storeBytesFrom(ByteArrayChannel.from(bytes, 0, split, 0));
+            assertEquals(-1, parser.feed(rb));
+            assertNull(parser.getErrorMessage());
+            rb.storeBytesFrom(ByteArrayChannel.from(bytes, split, bytes.length, 0));
+            assertEquals("split at " + split, 0, parser.feed(rb));
+            assertEquals(SET_RESULT, parser.getResult().getJavaObject());
+        }
+    }
+
+    @Test
+    public void wrappedRingBuffer() {
+        byte[] bytes = SET.getBytes();
+        // the message is stored across the end and the start of the ring buffer
+        RingBuffer rb = RingBuffer.allocate(bytes.length + 10);
+        rb.storeBytesFrom(ByteArrayChannel.fromFull(new byte[20]));
+        rb.writeTo(ByteArrayChannel.fromEmpty(new byte[20]));
+        rb.storeBytesFrom(ByteArrayChannel.fromFull(bytes));
+
+        RESPParser parser = new RESPParser(16384);
+        assertEquals(0, parser.feed(rb));
+        assertEquals(SET_RESULT, parser.getResult().getJavaObject());
+        assertEquals(0, rb.used());
+    }
+
+    @Test
+    public void nestedArray() {
+        String bytes = "*2\r\n*1\r\n$1\r\na\r\n*0\r\n";
+        RingBuffer rb = RingBuffer.allocate(bytes.length());
+        rb.storeBytesFrom(ByteArrayChannel.fromFull(bytes.getBytes()));
+        RESPParser parser = new RESPParser(16384);
+        assertEquals(0, parser.feed(rb));
+        assertEquals(Arrays.asList(Collections.singletonList("a"), Collections.emptyList()), parser.getResult().getJavaObject());
+    }
+
+    @Test
+    public void longInteger() {
+        String bytes = "*3\r\n:1\r\n:1571234567890\r\n:-2147483649\r\n";
+        RingBuffer rb = RingBuffer.allocate(bytes.length());
+        rb.storeBytesFrom(ByteArrayChannel.fromFull(bytes.getBytes()));
+        RESPParser parser = new RESPParser(16384);
+        assertEquals(0, parser.feed(rb));
+        // integers out of the int range are returned as Long
+        assertEquals(Arrays.asList(1, 1571234567890L, -2147483649L), parser.getResult().getJavaObject());
+    }
+
+    @Test
+    public void tooLong() {
+        byte[] bytes = SET.getBytes();
+        RingBuffer rb = RingBuffer.allocate(bytes.length);
+        rb.storeBytesFrom(ByteArrayChannel.fromFull(bytes));
+        RESPParser parser = new RESPParser(bytes.length - 1);
+        assertEquals(-1, parser.feed(rb));
+        assertEquals("too many input bytes", parser.getErrorMessage());
+
+        // the body is not allocated when the length is too large
+        String big = "$100000\r\n";
+        rb = RingBuffer.allocate(big.length());
+        rb.storeBytesFrom(ByteArrayChannel.fromFull(big.getBytes()));
+        parser = new RESPParser(16384);
+        assertEquals(-1, parser.feed(rb));
+        assertEquals("too many input bytes", parser.getErrorMessage());
+    }
+
+    @Test
+    public void invalid() {
+        String bytes = "$3\r\nabcd\r\n";
+        RingBuffer rb = RingBuffer.allocate(bytes.length());
+        rb.storeBytesFrom(ByteArrayChannel.fromFull(bytes.getBytes()));
+        RESPParser parser = new RESPParser(16384);
+        assertEquals(-1, parser.feed(rb));
+        assertEquals("expecting \\r", parser.getErrorMessage());
+    }
+
+    @Test
+    public void byteBuffer() {
+        String bytes = "xx" + SET + "+OK\r\n";
+        ByteBuffer buf = ByteBuffer.wrap(bytes.getBytes(), 2, bytes.length() - 2);
+        RESPParser parser = new RESPParser(16384);
+        assertEquals(0, parser.feed(buf));
+        assertEquals(SET_RESULT, parser.getResult().getJavaObject());
+        // stops at the end of the message, the limit is kept
+        assertEquals(2 + SET.length(), buf.position());
+        assertEquals(bytes.length(), buf.limit());
+
+        parser.reset();
+        assertEquals(0, parser.feed(buf));
+        assertEquals("OK", parser.getResult().getJavaObject());
+        assertFalse(buf.hasRemaining());
+
+        // split input
+        parser.reset();
+        byte[] set = SET.getBytes();
+        assertEquals(-1, parser.feed(ByteBuffer.wrap(set, 0, 10)));
+        assertNull(parser.getErrorMessage());
+        assertEquals(0, parser.feed(ByteBuffer.wrap(set, 10, set.length - 10)));
+        assertEquals(SET_RESULT, parser.getResult().getJavaObject());
+
+        // too long
+        parser = new RESPParser(set.length - 1);
+        buf = ByteBuffer.wrap(set);
+        assertEquals(-1, parser.feed(buf));
+        assertEquals("too many input bytes", parser.getErrorMessage());
+        assertEquals(set.length, buf.limit());
+    }
+}
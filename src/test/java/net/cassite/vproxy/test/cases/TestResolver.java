@@ -1,7 +1,9 @@
 package net.cassite.vproxy.test.cases;
 
+import net.cassite.vproxy.dns.ResolvConf;
 import net.cassite.vproxy.dns.Resolver;
 import net.cassite.vproxy.selector.SelectorEventLoop;
+import net.cassite.vproxy.test.tool.DNSServer;
 import net.cassite.vproxy.util.BlockCallback;
 import net.cassite.vproxy.util.Utils;
 import org.junit.After;
@@ -11,15 +13,21 @@ import org.junit.Test;
 import java.io.IOException;
 import java.net.Inet6Address;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
 
-import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.*;
 
 public class TestResolver {
     private SelectorEventLoop loop;
     private Resolver resolver;
+    private DNSServer dnsServer;
+    private Resolver dnsResolver;
 
     @Before
     public void setUp() throws IOException {
@@ -31,6 +39,12 @@ public class TestResolver {
     @After
     public void tearDown() throws IOException {
         resolver.stop();
+        if (dnsResolver != null) {
+            dnsResolver.stop();
+        }
+        if (dnsServer != null) {
+            dnsServer.close();
+        }
         loop.close();
     }
 
@@ -87,4 +101,260 @@ public class TestResolver {
 
         assertEquals("should still be 1 cache because already cached", 1, resolver.cacheCount());
     }
+
+    private void startDNS(List<String> searchDomains) throws IOException {
+        dnsServer = new DNSServer(20053);
+        dnsResolver = new Resolver("TestResolverDNS" + ((int) (Math.random() * 10000)),
+            new ResolvConf(Collections.singletonList(new InetSocketAddress("127.0.0.1", 20053)),
+                searchDomains, 1, 500, 2));
+        dnsResolver.start();
+    }
+
+    private InetAddress dnsResolve(String host) throws UnknownHostException {
+        BlockCallback<InetAddress, UnknownHostException> cb = new BlockCallback<>();
+        dnsResolver.resolve(host, cb);
+        return cb.block();
+    }
+
+    @Test
+    public void dnsRecordTtl() throws Exception {
+        startDNS(Collections.emptyList());
+        dnsServer.add("a.vproxy.test", "10.0.0.1", 1);
+        dnsServer.add("a.vproxy.test", "fd00::1", 3600);
+        dnsServer.add("b.vproxy.test", "10.0.0.2", 3600);
+        dnsServer.add("b.vproxy.test", "fd00::2", 3600);
+
+        assertEquals("10.0.0.1", Utils.ipStr(dnsResolve("a.vproxy.test").getAddress()));
+        assertEquals("10.0.0.2", Utils.ipStr(dnsResolve("b.vproxy.test").getAddress()));
+        BlockCallback<Inet6Address, UnknownHostException> cb = new BlockCallback<>();
+        dnsResolver.resolveV6("b.vproxy.test", cb);
+        assertEquals("[fd00:0000:0000:0000:0000:0000:0000:0002]", Utils.ipStr(cb.block().getAddress()));
+        assertEquals(2, dnsResolver.cacheCount());
+        assertEquals("queries are only sent when not cached", 4, dnsServer.udpQueries.get());
+
+        // the min ttl of the records is used
+        Thread.sleep(1500);
+        List<Resolver.Cache> caches = new ArrayList<>();
+        dnsResolver.copyCache(caches);
+        assertEquals(1, caches.size());
+        assertEquals("b.vproxy.test", caches.get(0).host);
+    }
+
+    @Test
+    public void dnsNotFoundAndSearch() throws Exception {
+        startDNS(Arrays.asList("none.test", "vproxy.test"));
+        dnsServer.add("svc.vproxy.test", "10.0.0.3", 60);
+
+        assertEquals("10.0.0.3", Utils.ipStr(dnsResolve("svc").getAddress()));
+        long start = System.currentTimeMillis();
+        try {
+            dnsResolve("not.exist.test.");
+            fail();
+        } catch (UnknownHostException ignore) {
+        }
+        // the query timeout is 500ms
+        assertTrue("NXDOMAIN should fail without timing out", System.currentTimeMillis() - start < 400);
+        assertEquals(1, dnsResolver.cacheCount());
+    }
+
+    @Test
+    public void dnsFqdn() throws Exception {
+        startDNS(Collections.singletonList("vproxy.test."));
+        dnsServer.add("svc.vproxy.test", "10.0.0.3", 60);
+        dnsServer.add("fqdn.vproxy.test", "10.0.0.4", 60);
+
+        long start = System.currentTimeMillis();
+        assertEquals("10.0.0.4", Utils.ipStr(dnsResolve("fqdn.vproxy.test.").getAddress()));
+        assertEquals("10.0.0.4", Utils.ipStr(dnsResolve("FQDN.Vproxy.Test.").getAddress()));
+        // the search domain ends with a dot
+        assertEquals("10.0.0.3", Utils.ipStr(dnsResolve("svc").getAddress()));
+        assertTrue("should be answered without timing out", System.currentTimeMillis() - start < 400);
+        assertEquals("A and AAAA for each name, no retries", 6, dnsServer.udpQueries.get());
+    }
+
+    @Test
+    public void dnsPipeline() throws Exception {
+        startDNS(Collections.emptyList());
+        int n = 10;
+        for (int i = 0; i < n; ++i) {
+            dnsServer.add("h" + i + ".vproxy.test", "10.0.1." + i, 60);
+        }
+        // A and AAAA for each host, the responses are sent in reverse order after all queries arrive
+        dnsServer.holdCount = n * 2;
+
+        List<BlockCallback<InetAddress, UnknownHostException>> cbs = new ArrayList<>();
+        for (int i = 0; i < n; ++i) {
+            BlockCallback<InetAddress, UnknownHostException> cb = new BlockCallback<>();
+            dnsResolver.resolve("h" + i + ".vproxy.test", cb);
+            cbs.add(cb);
+        }
+        // resolving the same host again does not send more queries
+        BlockCallback<InetAddress, UnknownHostException> dup = new BlockCallback<>();
+        dnsResolver.resolve("h0.vproxy.test", dup);
+
+        for (int i = 0; i < n; ++i) {
+            assertEquals("10.0.1." + i, Utils.ipStr(cbs.get(i).block().getAddress()));
+        }
+        assertEquals("10.0.1.0", Utils.ipStr(dup.block().getAddress()));
+        assertEquals(n * 2, dnsServer.udpQueries.get());
+    }
+
+    @Test
+    public void dnsTruncated() throws Exception {
+        startDNS(Collections.emptyList());
+        dnsServer.add("many.vproxy.test", "10.0.2.1", 60);
+        dnsServer.add("many.vproxy.test", "10.0.2.2", 60);
+        dnsServer.add("many.vproxy.test", "10.0.2.3", 60);
+        dnsServer.truncateOver = 1;
+
+        assertEquals("10.0.2.1", Utils.ipStr(dnsResolve("many.vproxy.test").getAddress()));
+        assertEquals(1, dnsServer.tcpQueries.get());
+        List<Resolver.Cache> caches = new ArrayList<>();
+        dnsResolver.copyCache(caches);
+        assertEquals(3, caches.get(0).ipv4.size());
+    }
+
+    @Test
+    public void dnsRetry() throws Exception {
+        startDNS(Collections.emptyList());
+        dnsServer.add("retry.vproxy.test", "10.0.3.1", 60);
+        dnsServer.dropFirst.set(1);
+
+        assertEquals("10.0.3.1", Utils.ipStr(dnsResolve("retry.vproxy.test").getAddress()));
+        assertEquals("one of the queries is sent again", 3, dnsServer.udpQueries.get());
+    }
+
+    @Test
+    public void dnsServerError() throws Exception {
+        startDNS(Collections.emptyList());
+        dnsServer.add("err.vproxy.test", "10.0.3.2", 60);
+        DNSServer failing = new DNSServer(20054);
+        try {
+            failing.rcode = 2; // SERVFAIL
+            Resolver r = new Resolver("TestResolverDNSErr" + ((int) (Math.random() * 10000)),
+                new ResolvConf(Arrays.asList(
+                    new InetSocketAddress("127.0.0.1", 20054),
+                    new InetSocketAddress("127.0.0.1", 20053)),
+                    Collections.emptyList(), 1, 500, 2));
+            r.start();
+            try {
+                long start = System.currentTimeMillis();
+                for (int i = 0; i < 5; ++i) {
+                    r.clearCache();
+                    BlockCallback<InetAddress, UnknownHostException> cb = new BlockCallback<>();
+                    r.resolve("err.vproxy.test", cb);
+                    assertEquals("10.0.3.2", Utils.ipStr(cb.block().getAddress()));
+                }
+                // the query timeout is 500ms
+                assertTrue("the next server is tried without timing out", System.currentTimeMillis() - start < 400);
+
+                // all servers respond with errors
+                dnsServer.rcode = 5; // REFUSED
+                r.clearCache();
+                start = System.currentTimeMillis();
+                BlockCallback<InetAddress, UnknownHostException> cb = new BlockCallback<>();
+                r.resolve("err.vproxy.test", cb);
+                try {
+                    cb.block();
+                    fail();
+                } catch (UnknownHostException ignore) {
+                }
+                assertTrue("fails after all servers respond", System.currentTimeMillis() - start < 400);
+            } finally {
+                r.stop();
+            }
+        } finally {
+            failing.close();
+        }
+    }
+
+    @Test
+    public void dnsPrefetch() throws Exception {
+        startDNS(Collections.emptyList());
+        dnsServer.add("hot.vproxy.test", "10.0.4.1", 2);
+        dnsServer.add("cold.vproxy.test", "10.0.4.2", 2);
+
+        assertEquals("10.0.4.1", Utils.ipStr(dnsResolve("hot.vproxy.test").getAddress()));
+        assertEquals("10.0.4.1", Utils.ipStr(dnsResolve("hot.vproxy.test").getAddress()));
+        assertEquals("10.0.4.2", Utils.ipStr(dnsResolve("cold.vproxy.test").getAddress()));
+        dnsServer.remove("hot.vproxy.test");
+        dnsServer.add("hot.vproxy.test", "10.0.4.3", 2);
+
+        // the used record is refreshed before expiry, the other one is removed
+        Thread.sleep(2300);
+        List<Resolver.Cache> caches = new ArrayList<>();
+        dnsResolver.copyCache(caches);
+        assertEquals(1, caches.size());
+        Resolver.Cache cache = caches.get(0);
+        assertEquals("hot.vproxy.test", cache.host);
+        assertEquals("10.0.4.3", Utils.ipStr(cache.ipv4.get(0).getAddress()));
+        assertFalse(cache.isStale());
+        assertEquals(1, cache.stats.hits.get());
+        assertEquals(1, cache.stats.misses.get());
+        assertEquals(1, cache.stats.refreshes.get());
+        assertEquals(0, cache.stats.refreshFailures.get());
+    }
+
+    @Test
+    public void dnsServeStale() throws Exception {
+        startDNS(Collections.emptyList());
+        dnsResolver.staleTimeout = 1500;
+        dnsServer.add("stale.vproxy.test", "10.0.5.1", 1);
+
+        assertEquals("10.0.5.1", Utils.ipStr(dnsResolve("stale.vproxy.test").getAddress()));
+        assertEquals("10.0.5.1", Utils.ipStr(dnsResolve("stale.vproxy.test").getAddress()));
+        // the server stops responding
+        dnsServer.dropFirst.set(Integer.MAX_VALUE);
+
+        Thread.sleep(1300);
+        List<Resolver.Cache> caches = new ArrayList<>();
+        dnsResolver.copyCache(caches);
+        assertEquals(1, caches.size());
+        assertTrue("expired but still served", caches.get(0).isStale());
+        assertEquals("10.0.5.1", Utils.ipStr(dnsResolve("stale.vproxy.test").getAddress()));
+        assertEquals(1, caches.get(0).stats.staleHits.get());
+
+        // removed when the stale timeout passed
+        Thread.sleep(1500);
+        assertEquals(0, dnsResolver.cacheCount());
+        assertTrue(caches.get(0).stats.refreshFailures.get() >= 1);
+    }
+
+    @Test
+    public void dnsStaleRefreshRetried() throws Exception {
+        startDNS(Collections.emptyList());
+        dnsResolver.staleTimeout = 5000;
+        dnsServer.add("retry.vproxy.test", "10.0.6.1", 1);
+
+        assertEquals("10.0.6.1", Utils.ipStr(dnsResolve("retry.vproxy.test").getAddress()));
+        assertEquals("10.0.6.1", Utils.ipStr(dnsResolve("retry.vproxy.test").getAddress()));
+        dnsServer.remove("retry.vproxy.test");
+        dnsServer.add("retry.vproxy.test", "10.0.6.2", 60);
+        // the first refresh times out: A and AAAA, 2 attempts each
+        dnsServer.dropFirst.set(4);
+
+        Thread.sleep(1500);
+        List<Resolver.Cache> caches = new ArrayList<>();
+        dnsResolver.copyCache(caches);
+        assertEquals(1, caches.size());
+        assertTrue(caches.get(0).isStale());
+        assertEquals("10.0.6.1", Utils.ipStr(caches.get(0).ipv4.get(0).getAddress()));
+
+        // the refresh is tried again and succeeds before the stale timeout
+        Resolver.Cache cache = null;
+        for (int i = 0; i < 40; ++i) {
+            Thread.sleep(100);
+            caches.clear();
+            dnsResolver.copyCache(caches);
+            assertEquals(1, caches.size());
+            if (!caches.get(0).isStale()) {
+                cache = caches.get(0);
+                break;
+            }
+        }
+        assertNotNull("should be refreshed", cache);
+        assertEquals("10.0.6.2", Utils.ipStr(cache.ipv4.get(0).getAddress()));
+        assertTrue(cache.stats.refreshFailures.get() >= 1);
+        assertTrue(cache.stats.refreshes.get() >= 2);
+    }
 }
@@ -0,0 +1,124 @@
+package net.cassite.vproxy.test.cases;
+
+import net.cassite.vproxy.component.secure.SecurityGroup;
+import net.cassite.vproxy.component.secure.SecurityGroupRule;
+import net.cassite.vproxy.connection.Protocol;
+import net.cassite.vproxy.util.Utils;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestSecurityGroup {
+    // the same as the old implementation
+    private static boolean linearAllow(SecurityGroup secg, Protocol protocol, InetAddress address, int port) {
+        for (SecurityGroupRule r : secg.getRules()) {
+            if (r.protocol == protocol && r.match(address, port))
+                return r.allow;
+        }
+        return secg.defaultAllow;
+    }
+
+    private static byte[] randomAddress(Random rand, int len) {
+        byte[] b = new byte[len];
+        // use a small range of values to make more matches
+        for (int i = 0; i < len; ++i) {
+            b[i] = (byte) (rand.nextInt(4) == 0 ? rand.nextInt(256) : rand.nextInt(2));
+        }
+        return b;
+    }
+
+    private static byte[] masked(byte[] ip, byte[] mask) {
+        byte[] ret = new byte[ip.length];
+        for (int i = 0; i < ip.length; ++i) {
+            // the mask might be shorter than the ip
+            ret[i] = (byte) (i < mask.length ? ip[i] & mask[i] : 0);
+        }
+        return ret;
+    }
+
+    @Test
+    public void firstMatch() throws Exception {
+        SecurityGroup secg = new SecurityGroup("secg0", true);
+        secg.addRule(new SecurityGroupRule("a", Utils.blockParseAddress("10.0.0.0"), Utils.parseMask(8),
+            Protocol.TCP, 80, 80, false));
+        secg.addRule(new SecurityGroupRule("b", Utils.blockParseAddress("10.1.0.0"), Utils.parseMask(16),
+            Protocol.TCP, 1, 65535, true));
+        secg.addRule(new SecurityGroupRule("c", Utils.blockParseAddress("0.0.0.0"), Utils.parseMask(0),
+            Protocol.TCP, 22, 22, false));
+
+        InetAddress a = InetAddress.getByName("10.1.2.3");
+        assertEquals("first rule wins although it's shorter", false, secg.allow(Protocol.TCP, a, 80));
+        assertEquals(true, secg.allow(Protocol.TCP, a, 81));
+        assertEquals(true, secg.allow(Protocol.TCP, a, 22));
+        assertEquals(false, secg.allow(Protocol.TCP, InetAddress.getByName("192.168.1.1"), 22));
+        assertEquals("default", true, secg.allow(Protocol.TCP, InetAddress.getByName("192.168.1.1"), 23));
+        assertEquals("no udp rules", true, secg.allow(Protocol.UDP, a, 80));
+        assertEquals("v4 rule for v4-mapped v6 address", false,
+            secg.allow(Protocol.TCP, InetAddress.getByName("::ffff:10.1.2.3"), 80));
+
+        secg.removeRule("a");
+        assertEquals(true, secg.allow(Protocol.TCP, a, 80));
+    }
+
+    @Test
+    public void sameAsLinearMatching() throws Exception {
+        Random rand = new Random(1234);
+        for (int round = 0; round < 20; ++round) {
+            SecurityGroup secg = new SecurityGroup("secg0", rand.nextBoolean());
+            for (int i = 0; i < 200; ++i) {
+                boolean v6 = rand.nextBoolean();
+                byte[] mask = Utils.parseMask(v6 ? rand.nextInt(129) : rand.nextInt(33));
+                byte[] ip = masked(randomAddress(rand, v6 ? 16 : 4), mask);
+                if (v6 && rand.nextInt(4) == 0) {
+                    // v4-mapped rule
+                    ip[10] = (byte) 0xff;
+                    ip[11] = (byte) 0xff;
+                    for (int j = 0; j < 10; ++j) ip[j] = 0;
+                    ip = masked(ip, mask);
+                }
+                int minPort = rand.nextInt(10);
+                int maxPort = minPort + rand.nextInt(10);
+                try {
+                    secg.addRule(new SecurityGroupRule("r" + i, ip, mask,
+                        rand.nextBoolean() ? Protocol.TCP : Protocol.UDP,
+                        minPort, maxPort, rand.nextBoolean()));
+                } catch (Exception ignore) {
+                    // same ip/mask exists
+                }
+            }
+            List<SecurityGroupRule> rules = secg.getRules();
+            for (int i = 0; i < 2000; ++i) {
+                byte[] addr;
+                if (rand.nextInt(3) == 0 && !rules.isEmpty()) {
+                    // derive from a rule
+                    SecurityGroupRule r = rules.get(rand.nextInt(rules.size()));
+                    addr = r.ip.clone();
+                    if (addr.length == 16 && rand.nextBoolean()) {
+                        byte[] v4 = new byte[4];
+                        System.arraycopy(addr, 12, v4, 0, 4);
+                        addr = v4;
+                    } else if (addr.length == 4 && rand.nextBoolean()) {
+                        byte[] v6 = new byte[16];
+                        v6[10] = (byte) 0xff;
+                        v6[11] = (byte) 0xff;
+                        System.arraycopy(addr, 0, v6, 12, 4);
+                        addr = v6;
+                    }
+                } else {
+                    addr = randomAddress(rand, rand.nextBoolean() ? 16 : 4);
+                }
+                InetAddress address = InetAddress.getByAddress(addr);
+                int port = rand.nextInt(20);
+                for (Protocol p : new Protocol[]{Protocol.TCP, Protocol.UDP}) {
+                    boolean expected = linearAllow(secg, p, address, port);
+                    assertEquals("round " + round + " " + address + ":" + port + " " + p,
+                        expected, secg.allow(p, address, port));
+                }
+            }
+        }
+    }
+}
@@ -4,26 +4,35 @@ import net.cassite.vproxy.component.app.TcpLB;
 import net.cassite.vproxy.component.check.HealthCheckConfig;
 import net.cassite.vproxy.component.elgroup.EventLoopGroup;
 import net.cassite.vproxy.component.proxy.Session;
+import net.cassite.vproxy.component.secure.ConnectionLimitConfig;
 import net.cassite.vproxy.component.secure.SecurityGroup;
 import net.cassite.vproxy.component.secure.SecurityGroupRule;
 import net.cassite.vproxy.component.svrgroup.Method;
+import net.cassite.vproxy.component.svrgroup.OutlierDetectionConfig;
 import net.cassite.vproxy.component.svrgroup.ServerGroup;
 import net.cassite.vproxy.component.svrgroup.ServerGroups;
+import net.cassite.vproxy.component.svrgroup.SvrHandleConnector;
 import net.cassite.vproxy.connection.BindServer;
 import net.cassite.vproxy.connection.Connection;
+import net.cassite.vproxy.connection.Connector;
 import net.cassite.vproxy.connection.NetEventLoop;
 import net.cassite.vproxy.connection.Protocol;
 import net.cassite.vproxy.selector.SelectorEventLoop;
 import net.cassite.vproxy.test.tool.CaseUtils;
 import net.cassite.vproxy.test.tool.Client;
+import net.cassite.vproxy.test.tool.DirectCloseServer;
 import net.cassite.vproxy.test.tool.EchoServer;
 import net.cassite.vproxy.test.tool.IdServer;
+import net.cassite.vproxy.test.tool.ResetServer;
 import net.cassite.vproxy.util.Utils;
 import org.junit.*;
 
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -51,6 +60,8 @@ public class TestTcpLB {
         if (addressOtherThan127 == null)
             throw new Exception("this machine do not have a non 127.0.0.1 address");
         new IdServer("3", serverNetLoop, 19082, addressOtherThan127);
+        new DirectCloseServer(serverNetLoop, 19084);
+        new ResetServer(serverNetLoop, 19087);
     }
 
     @AfterClass
@@ -90,18 +101,22 @@ public class TestTcpLB {
         sg0.add("svr1", new InetSocketAddress("127.0.0.1", 19081), InetAddress.getByName("127.0.0.1"), 10);
         // manually set to healthy
         for (ServerGroup.ServerHandle h : sg0.getServerHandles()) {
-            h.healthy = true;
+            h.setHealthy(true);
         }
 
         sg1 = new ServerGroup("sg1", elg0, new HealthCheckConfig(400, /* disable health check */24 * 60 * 60 * 1000, 2, 3), Method.wrr);
         sg1.add("svr2", new InetSocketAddress("127.0.0.1", 19082), InetAddress.getByName("0.0.0.0") /*here we bind all, see test: replaceIp()*/, 10);
         // manually set to healthy
         for (ServerGroup.ServerHandle h : sg1.getServerHandles()) {
-            h.healthy = true;
+            h.setHealthy(true);
         }
 
         sgEcho = new ServerGroup("sgEcho", elg0, new HealthCheckConfig(400, 1000, 1, 3), Method.wrr);
         sgEcho.add("echo", new InetSocketAddress("127.0.0.1", 20080), InetAddress.getByName("127.0.0.1"), 10);
+        // manually set to healthy, the first health check is made at a random point of the period
+        for (ServerGroup.ServerHandle h : sgEcho.getServerHandles()) {
+            h.setHealthy(true);
+        }
 
         loop = SelectorEventLoop.open();
 
@@ -205,7 +220,7 @@ public class TestTcpLB {
         }
 
         sg0.add("svr1", new InetSocketAddress("127.0.0.1", 19081), InetAddress.getByName("127.0.0.1"), 5);
-        sg0.getServerHandles().stream().filter(s -> s.alias.equals("svr1")).findFirst().get().healthy = true;
+        sg0.getServerHandles().stream().filter(s -> s.alias.equals("svr1")).findFirst().get().setHealthy(true);
 
         int zero = 0;
         int one = 0;
@@ -225,6 +240,40 @@ public class TestTcpLB {
             2, ((double) zero) / one, 0.1);
     }
 
+    @Test
+    public void batchUpdateBackendOnRunning() throws Exception {
+        sgs0.apply(new ServerGroups.Batch().add(sg0, 10).add(sg1, 10).remove(sg1));
+        assertEquals("only sg0 should be attached", 1, sgs0.getServerGroups().size());
+
+        // remove svr1 and add it back with a different weight
+        // then add a new server which is removed in the same batch
+        sg0.apply(new ServerGroup.Batch()
+            .remove("svr1")
+            .add("svr1", new InetSocketAddress("127.0.0.1", 19081), InetAddress.getByName("127.0.0.1"), 10)
+            .setWeight("svr1", 5)
+            .add("svr2", new InetSocketAddress("127.0.0.1", 19082), InetAddress.getByName("127.0.0.1"), 10)
+            .remove("svr2"));
+        assertEquals("should have 2 servers", 2, sg0.getServerHandles().size());
+        sg0.getServerHandles().stream().filter(s -> s.alias.equals("svr1")).findFirst().get().setHealthy(true);
+
+        int zero = 0;
+        int one = 0;
+        for (int i = 0; i < 100; ++i) {
+            Client client = new Client(lbPort);
+            client.connect();
+            String recv = client.sendAndRecv("anything", 1);
+            assertTrue("response should be 0 or 1", recv.equals("0") || recv.equals("1"));
+            if (recv.equals("0")) {
+                ++zero;
+            } else {
+                ++one;
+            }
+            client.close();
+        }
+        assertEquals("weight 2/1, so zero-count / one-count should be 2/1",
+            2, ((double) zero) / one, 0.1);
+    }
+
     @Test
     public void attachAndRemoveBackendGroupOnRunning() throws Exception {
         // add sg0 and sg1 to sgs0
@@ -303,12 +352,72 @@ public class TestTcpLB {
         }
     }
 
+    @Test
+    public void zonePreference() throws Exception {
+        sgs0.setLocalZone("z0");
+        sgs0.add(sg0, 10);
+        sgs0.add(sg1, 10);
+        for (ServerGroups.ServerGroupHandle h : sgs0.getServerGroups()) {
+            h.setZone(h.group == sg0 ? "z0" : "z1");
+        }
+
+        for (int i = 0; i < 20; ++i) {
+            Client client = new Client(lbPort);
+            client.connect();
+            String recv = client.sendAndRecv("anything", 1);
+            assertTrue("should only use the local zone", recv.equals("0") || recv.equals("1"));
+            client.close();
+        }
+
+        // the local group loses all capacity
+        for (ServerGroup.ServerHandle h : sg0.getServerHandles()) {
+            h.setWeight(0);
+        }
+        for (int i = 0; i < 20; ++i) {
+            Client client = new Client(lbPort);
+            client.connect();
+            String recv = client.sendAndRecv("anything", 1);
+            assertEquals("should spill over to the other zone", "2", recv);
+            client.close();
+        }
+
+        // recover
+        for (ServerGroup.ServerHandle h : sg0.getServerHandles()) {
+            h.setWeight(10);
+        }
+        for (int i = 0; i < 20; ++i) {
+            Client client = new Client(lbPort);
+            client.connect();
+            String recv = client.sendAndRecv("anything", 1);
+            assertTrue("should use the local zone again", recv.equals("0") || recv.equals("1"));
+            client.close();
+        }
+
+        // the local servers are DOWN, the view is rebuilt by the health events
+        for (ServerGroup.ServerHandle h : sg0.getServerHandles()) {
+            h.setHealthy(false);
+        }
+        for (int i = 0; i < 20; ++i) {
+            Client client = new Client(lbPort);
+            client.connect();
+            String recv = client.sendAndRecv("anything", 1);
+            assertEquals("should spill over to the other zone", "2", recv);
+            client.close();
+        }
+
+        // all servers are DOWN
+        for (ServerGroup.ServerHandle h : sg1.getServerHandles()) {
+            h.setHealthy(false);
+        }
+        assertNull("no group can provide a server", sgs0.next());
+    }
+
     @Test
     public void backendDead() throws Exception {
         // add sg0 to sgs0
         // and we make svr0 dead
         sgs0.add(sg0, 10);
-        sg0.getServerHandles().stream().filter(s -> s.alias.equals("svr0")).findFirst().get().healthy = false;
+        sg0.getServerHandles().stream().filter(s -> s.alias.equals("svr0")).findFirst().get().setHealthy(false);
 
         for (int i = 0; i < 100; ++i) {
             Client client = new Client(lbPort);
@@ -331,7 +440,7 @@ public class TestTcpLB {
         sg0.setMethod(Method.wlc);
         ServerGroup.ServerHandle h = sg0.getServerHandles().stream().filter(s -> s.alias.equals("svr0")).findFirst().get();
         h.setWeight(5);
-        h.healthy = false;
+        h.setHealthy(false);
 
         // make connections
         for (int i = 0; i < 10; ++i) {
@@ -344,7 +453,7 @@ public class TestTcpLB {
         }
 
         // then set it the svr0 to healthy
-        h.healthy = true;
+        h.setHealthy(true);
         // and make 5 connections
         for (int i = 0; i < 5; ++i) {
             Client client = new Client(lbPort);
@@ -378,6 +487,242 @@ public class TestTcpLB {
         }
     }
 
+    @Test
+    public void maxConnAndWaitQueue() throws Exception {
+        sgs0.add(sg0, 10);
+        for (ServerGroup.ServerHandle h : sg0.getServerHandles()) {
+            h.setMaxConn(1);
+        }
+        lb0.setWaitQueueSize(1);
+        lb0.setWaitTimeout(1000);
+
+        // occupy the two servers
+        Client client0 = new Client(lbPort);
+        client0.connect();
+        clients.add(client0);
+        String recv0 = client0.sendAndRecv("anything", 1);
+        Client client1 = new Client(lbPort);
+        client1.connect();
+        clients.add(client1);
+        String recv1 = client1.sendAndRecv("anything", 1);
+        assertNotEquals("should be connected to different servers", recv0, recv1);
+
+        // this connection should wait in queue
+        Client waiting = new Client(lbPort);
+        waiting.connect();
+        clients.add(waiting);
+        waiting.socket.getOutputStream().write("anything".getBytes());
+        Thread.sleep(100);
+        assertEquals("should have one connection waiting", 1, lb0.waitingCount());
+
+        // the queue is full, this connection should be closed
+        Client rejected = new Client(lbPort);
+        rejected.connect();
+        clients.add(rejected);
+        try {
+            rejected.sendAndRecv("anything", 1);
+            fail("should be closed because the wait queue is full");
+        } catch (IOException ignore) {
+        }
+        assertEquals(1, lb0.waitRejectedCount());
+
+        // release one server
+        client0.close();
+        String recv = waiting.sendAndRecv("", 1);
+        assertEquals("should be connected to the released server", recv0, recv);
+        assertEquals("no connection waiting now", 0, lb0.waitingCount());
+
+        // wait until timeout
+        Client timeout = new Client(lbPort);
+        timeout.connect();
+        clients.add(timeout);
+        Thread.sleep(1200);
+        try {
+            timeout.sendAndRecv("anything", 1);
+            fail("should be closed because waited too long");
+        } catch (IOException ignore) {
+        }
+        assertEquals(1, lb0.waitTimeoutCount());
+    }
+
+    @Test
+    public void waitingClientClosed() throws Exception {
+        sgs0.add(sg0, 10);
+        for (ServerGroup.ServerHandle h : sg0.getServerHandles()) {
+            h.setMaxConn(1);
+        }
+        lb0.setWaitQueueSize(1);
+        lb0.setWaitTimeout(5000);
+
+        // occupy the two servers
+        Client client0 = new Client(lbPort);
+        client0.connect();
+        clients.add(client0);
+        String recv0 = client0.sendAndRecv("anything", 1);
+        Client client1 = new Client(lbPort);
+        client1.connect();
+        clients.add(client1);
+        client1.sendAndRecv("anything", 1);
+
+        // the client goes away while waiting
+        Client gone = new Client(lbPort);
+        gone.connect();
+        clients.add(gone);
+        Thread.sleep(100);
+        assertEquals("should have one connection waiting", 1, lb0.waitingCount());
+        gone.close();
+        Thread.sleep(100);
+        assertEquals("the closed connection should leave the queue", 0, lb0.waitingCount());
+
+        // the queue has room for another connection
+        Client waiting = new Client(lbPort);
+        waiting.connect();
+        clients.add(waiting);
+        waiting.socket.getOutputStream().write("anything".getBytes());
+        Thread.sleep(100);
+        assertEquals("should have one connection waiting", 1, lb0.waitingCount());
+        assertEquals(0, lb0.waitRejectedCount());
+
+        client0.close();
+        String recv = waiting.sendAndRecv("", 1);
+        assertEquals("should be connected to the released server", recv0, recv);
+        assertEquals(0, lb0.waitTimeoutCount());
+    }
+
+    @Test
+    public void maxConnConcurrentPick() throws Exception {
+        List<ServerGroup.ServerHandle> handles = sg0.getServerHandles();
+        for (ServerGroup.ServerHandle h : handles) {
+            h.setMaxConn(5);
+        }
+        // pick on several threads at the same time
+        List<Connector> picked = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; ++t) {
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < 100; ++i) {
+                    Connector c = sg0.next();
+                    if (c != null) {
+                        synchronized (picked) {
+                            picked.add(c);
+                        }
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals("max-conn should not be exceeded", 5 * handles.size(), picked.size());
+        for (ServerGroup.ServerHandle h : handles) {
+            assertEquals(5, h.connectionCount());
+        }
+        for (Connector c : picked) {
+            ((SvrHandleConnector) c).cancel();
+        }
+        for (ServerGroup.ServerHandle h : handles) {
+            assertEquals("slots released", 0, h.connectionCount());
+        }
+    }
+
+    @Test
+    public void connectRetryAndEjection() throws Exception {
+        sgs0.add(sg0, 10);
+        // nothing is listening on this port
+        ServerGroup.ServerHandle dead = sg0.add("svrDead", new InetSocketAddress("127.0.0.1", 19083), InetAddress.getByName("127.0.0.1"), 10);
+        dead.setHealthy(true);
+        sg0.setOutlierDetectionConfig(new OutlierDetectionConfig(2, 60000, 50));
+        lb0.setConnectRetry(2);
+        lb0.setConnectRetryTimeout(3000);
+
+        for (int i = 0; i < 30; ++i) {
+            Client client = new Client(lbPort);
+            client.connect();
+            String recv = client.sendAndRecv("anything", 1);
+            assertTrue("should retry on svr0 or svr1", recv.equals("0") || recv.equals("1"));
+            client.close();
+        }
+        assertTrue("should have retried", lb0.connectRetryCount() > 0);
+        assertTrue("svrDead should be ejected", dead.isEjected());
+        assertEquals("svrDead should be ejected only once", 1, dead.getEjectedTimes());
+    }
+
+    @Test
+    public void outlierDetection() throws Exception {
+        sgs0.add(sg0, 10);
+        // nothing is listening on this port
+        ServerGroup.ServerHandle dead = sg0.add("svrDead", new InetSocketAddress("127.0.0.1", 19083), InetAddress.getByName("127.0.0.1"), 10);
+        dead.setHealthy(true);
+        // accepts and resets the connection directly
+        ServerGroup.ServerHandle reset = sg0.add("svrReset", new InetSocketAddress("127.0.0.1", 19087), InetAddress.getByName("127.0.0.1"), 10);
+        reset.setHealthy(true);
+        // 4 servers, only one can be ejected
+        sg0.setOutlierDetectionConfig(new OutlierDetectionConfig(2, 60000, 25));
+
+        int failed = 0;
+        for (int i = 0; i < 40; ++i) {
+            Client client = new Client(lbPort);
+            client.connect();
+            try {
+                String recv = client.sendAndRecv("anything", 1);
+                assertTrue("should be svr0 or svr1", recv.equals("0") || recv.equals("1"));
+            } catch (IOException e) {
+                ++failed;
+            }
+            client.close();
+        }
+        assertTrue("some connections should fail", failed > 0);
+        assertTrue("should have connect failures", dead.getConnectFailures() > 0);
+        assertTrue("should have early resets", reset.getEarlyResets() > 0);
+        assertTrue("only one of them can be ejected", dead.isEjected() ^ reset.isEjected());
+        assertFalse(sg0.getServerHandles().stream().filter(h -> h.alias.equals("svr0")).findFirst().get().isEjected());
+
+        // allow ejecting all bad servers
+        sg0.setOutlierDetectionConfig(new OutlierDetectionConfig(2, 60000, 50));
+        for (int i = 0; i < 40; ++i) {
+            Client client = new Client(lbPort);
+            client.connect();
+            try {
+                client.sendAndRecv("anything", 1);
+            } catch (IOException ignore) {
+            }
+            client.close();
+        }
+        assertTrue(dead.isEjected());
+        assertTrue(reset.isEjected());
+        // now all connections should succeed
+        for (int i = 0; i < 20; ++i) {
+            Client client = new Client(lbPort);
+            client.connect();
+            String recv = client.sendAndRecv("anything", 1);
+            assertTrue("should be svr0 or svr1", recv.equals("0") || recv.equals("1"));
+            client.close();
+        }
+    }
+
+    @Test
+    public void cleanCloseNotEarlyReset() throws Exception {
+        ServerGroup sgClose = new ServerGroup("sgClose", elg0, new HealthCheckConfig(400, /* disable health check */24 * 60 * 60 * 1000, 2, 3), Method.wrr);
+        // accepts and closes the connection directly without sending anything
+        ServerGroup.ServerHandle close = sgClose.add("svrClose", new InetSocketAddress("127.0.0.1", 19084), InetAddress.getByName("127.0.0.1"), 10);
+        close.setHealthy(true);
+        sgClose.setOutlierDetectionConfig(new OutlierDetectionConfig(2, 60000, 100));
+        sgs0.add(sgClose, 10);
+
+        for (int i = 0; i < 30; ++i) {
+            Client client = new Client(lbPort);
+            client.connect();
+            clients.add(client);
+            // do not send anything, the backend closes the connection with nothing responded
+            assertEquals("should be closed", -1, client.socket.getInputStream().read());
+            client.close();
+        }
+        assertEquals("a clean close is not an early reset", 0, close.getEarlyResets());
+        assertFalse("svrClose should not be ejected", close.isEjected());
+    }
+
     @Test
     public void proxyPersist() throws Exception {
         sgs0.add(sg0, 10);
@@ -390,7 +735,7 @@ public class TestTcpLB {
         // but if it's persisted, it will only request the persisted server
         ServerGroup.ServerHandle h = sg0.getServerHandles().stream().filter(s -> s.alias.equals("svr1")).findFirst().get();
         // let's first set the server to DOWN to prevent being connected
-        h.healthy = false;
+        h.setHealthy(false);
 
         Client client = new Client(lbPort);
         client.connect();
@@ -399,10 +744,10 @@ public class TestTcpLB {
         assertEquals("it's 0 because svr1 is DOWN", "0", recv);
 
         // the persist record should exist
-        assertEquals("should be one persist record", 1, lb0.persistMap.size());
+        assertEquals("should be one persist record", 1, lb0.persistCount());
 
         // then set svr1 to UP
-        h.healthy = true;
+        h.setHealthy(true);
 
         for (int i = 0; i < 9/*total 10 connections*/; ++i) {
             client = new Client(lbPort);
@@ -413,13 +758,13 @@ public class TestTcpLB {
         }
 
         // the persist record should not changed
-        assertEquals("should be one persist record", 1, lb0.persistMap.size());
-        InetAddress addr = lb0.persistMap.keySet().stream().findFirst().get();
-        assertEquals("the persisted key should be requester's ip", "127.0.0.1", Utils.ipStr(addr.getAddress()));
+        assertEquals("should be one persist record", 1, lb0.persistCount());
+        TcpLB.Persist persist = lb0.persistList().get(0);
+        assertEquals("the persisted key should be requester's ip", "127.0.0.1", Utils.ipStr(persist.clientAddress.getAddress()));
 
         // let's remove the persist record
-        lb0.persistMap.get(addr).remove();
-        assertEquals("there should be no persist record now", 0, lb0.persistMap.size());
+        persist.remove();
+        assertEquals("there should be no persist record now", 0, lb0.persistCount());
 
         // and connect again
         client = new Client(lbPort);
@@ -436,7 +781,7 @@ public class TestTcpLB {
             assertEquals("it's 1 because it's persisted", "1", recv);
         }
         // this time, persist record should be pointed to svr1
-        assertEquals("should be one persist record", 1, lb0.persistMap.size());
+        assertEquals("should be one persist record", 1, lb0.persistCount());
         // we do not check this time
         // we are sure it's ok since it does exactly the same thing but change the target to svr1
 
@@ -444,7 +789,7 @@ public class TestTcpLB {
         lb0.persistTimeout = 0;
         Thread.sleep(2500); // the timeout is 2000, so we sleep for 2500 to make sure it's definitely timed-out
         // timed-out
-        assertEquals("there should be no persist record now", 0, lb0.persistMap.size());
+        assertEquals("there should be no persist record now", 0, lb0.persistCount());
 
         // the connections should spread on each server
         int zero = 0;
@@ -469,7 +814,7 @@ public class TestTcpLB {
     @Test
     public void changeHealthCheckOnRunning() throws Exception {
         ServerGroup.ServerHandle h = sg0.getServerHandles().stream().findFirst().get();
-        h.healthy = false;
+        h.setHealthy(false);
         // because the health check period is set to 24 hours
         // so there's no chance that this field will be set back to true
         // and we update the health check config
@@ -697,6 +1042,142 @@ public class TestTcpLB {
         // this show work properly
     }
 
+    @Test
+    public void connectionLimit() throws Exception {
+        sgs0.add(sg0, 10);
+        lb0.connectionLimiter.setConfig(new ConnectionLimitConfig(0, 2, 0, 0, 24, 64));
+
+        Client client0 = new Client(lbPort);
+        client0.connect();
+        clients.add(client0);
+        client0.sendAndRecv("anything", 1);
+        Client client1 = new Client(lbPort);
+        client1.connect();
+        clients.add(client1);
+        client1.sendAndRecv("anything", 1);
+
+        // the client ip already has 2 connections
+        Client rejected = new Client(lbPort);
+        rejected.connect();
+        clients.add(rejected);
+        try {
+            rejected.sendAndRecv("anything", 1);
+            fail("should be closed because of the connection limit");
+        } catch (IOException ignore) {
+        }
+        assertEquals(1, lb0.connectionLimiter.connRejectedCount());
+
+        // release one connection
+        client0.close();
+        Thread.sleep(100);
+        Client client2 = new Client(lbPort);
+        client2.connect();
+        clients.add(client2);
+        client2.sendAndRecv("anything", 1);
+
+        // disable the limit
+        lb0.connectionLimiter.setConfig(new ConnectionLimitConfig());
+        Client client3 = new Client(lbPort);
+        client3.connect();
+        clients.add(client3);
+        client3.sendAndRecv("anything", 1);
+        assertEquals(0, lb0.connectionLimiter.ipEntryCount());
+    }
+
+    // send and receive `len` bytes via the echo server, return the time cost
+    private long echoThroughLB(int len) throws Exception {
+        Client client = new Client(lbPort);
+        client.connect();
+        clients.add(client);
+        long start = System.currentTimeMillis();
+        Thread writer = new Thread(() -> {
+            try {
+                client.socket.getOutputStream().write(new byte[len]);
+            } catch (IOException ignore) {
+            }
+        });
+        writer.start();
+        byte[] buf = new byte[len];
+        int total = 0;
+        while (total < len) {
+            int n = client.socket.getInputStream().read(buf, total, len - total);
+            if (n < 0)
+                throw new IOException("closed after receiving " + total + " bytes");
+            total += n;
+        }
+        writer.join();
+        long cost = System.currentTimeMillis() - start;
+        client.close();
+        return cost;
+    }
+
+    @Test
+    public void bandwidth() throws Exception {
+        // the EchoServer uses a very small buffer, which is too slow for this case
+        ServerSocket echo = new ServerSocket(19086, 50, InetAddress.getByName("127.0.0.1"));
+        Thread echoThread = new Thread(() -> {
+            while (true) {
+                Socket sock;
+                try {
+                    sock = echo.accept();
+                } catch (IOException e) {
+                    return; // closed
+                }
+                new Thread(() -> {
+                    byte[] buf = new byte[16384];
+                    try {
+                        int n;
+                        while ((n = sock.getInputStream().read(buf)) >= 0) {
+                            sock.getOutputStream().write(buf, 0, n);
+                        }
+                        sock.close();
+                    } catch (IOException ignore) {
+                    }
+                }).start();
+            }
+        });
+        echoThread.start();
+        try {
+            bandwidth(echo);
+        } finally {
+            echo.close();
+            echoThread.join();
+        }
+    }
+
+    private void bandwidth(ServerSocket echo) throws Exception {
+        ServerGroup sgFastEcho = new ServerGroup("sgFastEcho", elg0, new HealthCheckConfig(400, /* disable health check */24 * 60 * 60 * 1000, 2, 3), Method.wrr);
+        sgFastEcho.add("fastEcho", new InetSocketAddress("127.0.0.1", echo.getLocalPort()), InetAddress.getByName("127.0.0.1"), 10);
+        for (ServerGroup.ServerHandle h : sgFastEcho.getServerHandles()) {
+            h.setHealthy(true);
+        }
+        sgs0.add(sgFastEcho, 10);
+
+        long cost = echoThroughLB(100_000);
+        assertTrue("not limited, cost " + cost, cost < 500);
+
+        // both directions are counted, so 200k bytes are read
+        // the bucket holds 100k bytes at most, so it takes about 1 second
+        lb0.setBandwidth(100_000);
+        cost = echoThroughLB(100_000);
+        assertTrue("limited by the lb, cost " + cost, cost > 700 && cost < 3000);
+
+        lb0.setBandwidth(0);
+        Thread.sleep(1000); // let the buckets refill
+        lb0.setIpBandwidth(100_000);
+        cost = echoThroughLB(100_000);
+        assertTrue("limited by the client ip, cost " + cost, cost > 700 && cost < 3000);
+
+        lb0.setIpBandwidth(0);
+        sgFastEcho.setBandwidth(100_000);
+        cost = echoThroughLB(100_000);
+        assertTrue("limited by the server group, cost " + cost, cost > 700 && cost < 3000);
+
+        sgFastEcho.setBandwidth(0);
+        cost = echoThroughLB(100_000);
+        assertTrue("not limited, cost " + cost, cost < 500);
+    }
+
     @Test
     public void forbidOnRunning() throws Exception {
         sgs0.add(sg0, 10);
@@ -0,0 +1,40 @@
+package net.cassite.vproxy.test.cases;
+
+import net.cassite.vproxy.connection.TokenBucket;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TestTokenBucket {
+    @Test
+    public void tokenBucket() {
+        TokenBucket bucket = new TokenBucket(1000);
+        assertEquals(0, bucket.consume(1000, 1000));
+        assertEquals("1 byte in debt", 1, bucket.consume(1, 1000));
+        assertEquals(0, bucket.waitTime(1001));
+        assertEquals("debt of 10 seconds", 10000, bucket.consume(10000, 1001));
+        assertEquals("the debt is paid over time", 5000, bucket.waitTime(6001));
+        assertEquals(0, bucket.waitTime(11001));
+        assertEquals("the bucket holds tokens of one second", 1, bucket.consume(1001, 20000));
+
+        bucket.setRate(0);
+        assertEquals("not limited", 0, bucket.consume(100000, 20000));
+        bucket.setRate(100);
+        assertEquals(0, bucket.waitTime(21000));
+        assertEquals(20, bucket.consume(101, 21000));
+    }
+
+    @Test
+    public void refill() {
+        // 1000 bytes per second, the bucket is full at 1000_000
+        assertEquals(500_000, TokenBucket.refill(0, 500, 1000));
+        assertEquals("capped at full", 1000_000, TokenBucket.refill(0, 5000, 1000));
+        assertEquals("no overflow", 1000_000, TokenBucket.refill(-1000, Long.MAX_VALUE / 2, 1000));
+        assertEquals("time not elapsed", -5000, TokenBucket.refill(-5000, 0, 1000));
+        assertEquals(-3000, TokenBucket.refill(-5000, 2, 1000));
+
+        assertEquals(0, TokenBucket.debtTime(0, 1000));
+        assertEquals(1, TokenBucket.debtTime(-1, 1000));
+        assertEquals(3, TokenBucket.debtTime(-3000, 1000));
+    }
+}
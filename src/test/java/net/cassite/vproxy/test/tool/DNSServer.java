@@ -0,0 +1,170 @@
+package net.cassite.vproxy.test.tool;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// a simple authoritative dns server for tests
+// only supports A and AAAA records
+public class DNSServer {
+    public final AtomicInteger udpQueries = new AtomicInteger();
+    public final AtomicInteger tcpQueries = new AtomicInteger();
+    // udp responses with more answers than this are truncated
+    public volatile int truncateOver = Integer.MAX_VALUE;
+    // drop the first n udp queries
+    public final AtomicInteger dropFirst = new AtomicInteger();
+    // hold the udp queries until the count is reached, then respond in reverse order
+    public volatile int holdCount = 0;
+    // respond all queries with this rcode if set, e.g. 2 for SERVFAIL
+    public volatile int rcode = -1;
+
+    private final Map<String, List<byte[]>> records = new ConcurrentHashMap<>(); // name/type => [rr]
+    private final List<DatagramPacket> held = new ArrayList<>();
+    private final DatagramSocket udp;
+    private final ServerSocket tcp;
+
+    public DNSServer(int port) throws IOException {
+        udp = new DatagramSocket(new InetSocketAddress("127.0.0.1", port));
+        tcp = new ServerSocket();
+        tcp.bind(new InetSocketAddress("127.0.0.1", port));
+        new Thread(this::udpLoop, "DNSServer-udp").start();
+        new Thread(this::tcpLoop, "DNSServer-tcp").start();
+    }
+
+    public void add(String name, String ip, int ttl) throws UnknownHostException {
+        byte[] addr = InetAddress.getByName(ip).getAddress();
+        int type = addr.length == 4 ? 1 : 28;
+        ByteArrayOutputStream rr = new ByteArrayOutputStream();
+        writeU16(rr, 0xc00c); // pointer to the question name
+        writeU16(rr, type);
+        writeU16(rr, 1); // IN
+        writeU16(rr, ttl >>> 16);
+        writeU16(rr, ttl & 0xffff);
+        writeU16(rr, addr.length);
+        rr.write(addr, 0, addr.length);
+        records.computeIfAbsent(name + "/" + type, k -> new CopyOnWriteArrayList<>()).add(rr.toByteArray());
+    }
+
+    public void remove(String name) {
+        records.remove(name + "/1");
+        records.remove(name + "/28");
+    }
+
+    private static void writeU16(ByteArrayOutputStream out, int n) {
+        out.write((n >> 8) & 0xff);
+        out.write(n & 0xff);
+    }
+
+    private boolean nameExists(String name) {
+        return records.containsKey(name + "/1") || records.containsKey(name + "/28");
+    }
+
+    // return null if the query cannot be parsed
+    private byte[] respond(byte[] query, int len, boolean viaUdp) {
+        if (len < 12)
+            return null;
+        StringBuilder sb = new StringBuilder();
+        int p = 12;
+        while (p < len && query[p] != 0) {
+            int l = query[p] & 0xff;
+            if (sb.length() != 0) {
+                sb.append('.');
+            }
+            sb.append(new String(query, p + 1, l));
+            p += l + 1;
+        }
+        if (p + 5 > len)
+            return null;
+        int qEnd = p + 5;
+        String name = sb.toString().toLowerCase();
+        int type = ((query[p + 1] & 0xff) << 8) | (query[p + 2] & 0xff);
+        List<byte[]> answers = records.getOrDefault(name + "/" + type, Collections.emptyList());
+        boolean truncated = viaUdp && answers.size() > truncateOver;
+        if (truncated) {
+            answers = Collections.emptyList();
+        }
+        int rcode = this.rcode != -1 ? this.rcode : nameExists(name) ? 0 : 3;
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(query, 0, 2); // id
+        writeU16(out, 0x8580 | (truncated ? 0x0200 : 0) | rcode); // QR AA RD RA
+        writeU16(out, 1);
+        writeU16(out, answers.size());
+        writeU16(out, 0);
+        writeU16(out, 0);
+        out.write(query, 12, qEnd - 12);
+        for (byte[] rr : answers) {
+            out.write(rr, 0, rr.length);
+        }
+        return out.toByteArray();
+    }
+
+    private void udpLoop() {
+        while (!udp.isClosed()) {
+            byte[] buf = new byte[512];
+            DatagramPacket pkt = new DatagramPacket(buf, buf.length);
+            try {
+                udp.receive(pkt);
+            } catch (IOException e) {
+                continue;
+            }
+            udpQueries.incrementAndGet();
+            if (dropFirst.getAndUpdate(n -> n > 0 ? n - 1 : 0) > 0)
+                continue;
+            List<DatagramPacket> toHandle = new ArrayList<>();
+            if (holdCount > 0) {
+                held.add(pkt);
+                if (held.size() < holdCount)
+                    continue;
+                toHandle.addAll(held);
+                Collections.reverse(toHandle);
+                held.clear();
+            } else {
+                toHandle.add(pkt);
+            }
+            for (DatagramPacket q : toHandle) {
+                byte[] resp = respond(q.getData(), q.getLength(), true);
+                if (resp == null)
+                    continue;
+                try {
+                    udp.send(new DatagramPacket(resp, resp.length, q.getSocketAddress()));
+                } catch (IOException ignore) {
+                }
+            }
+        }
+    }
+
+    private void tcpLoop() {
+        while (!tcp.isClosed()) {
+            try (Socket sock = tcp.accept()) {
+                DataInputStream in = new DataInputStream(sock.getInputStream());
+                int len = in.readUnsignedShort();
+                byte[] query = new byte[len];
+                in.readFully(query);
+                tcpQueries.incrementAndGet();
+                byte[] resp = respond(query, len, false);
+                if (resp == null)
+                    continue;
+                OutputStream out = sock.getOutputStream();
+                out.write(new byte[]{(byte) (resp.length >> 8), (byte) resp.length});
+                out.write(resp);
+                out.flush();
+            } catch (IOException ignore) {
+            }
+        }
+    }
+
+    public void close() throws IOException {
+        udp.close();
+        tcp.close();
+    }
+}
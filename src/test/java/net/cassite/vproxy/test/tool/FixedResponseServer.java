@@ -0,0 +1,54 @@
+package net.cassite.vproxy.test.tool;
+
+import net.cassite.vproxy.connection.BindServer;
+import net.cassite.vproxy.connection.NetEventLoop;
+import net.cassite.vproxy.protocol.ProtocolHandler;
+import net.cassite.vproxy.protocol.ProtocolHandlerContext;
+import net.cassite.vproxy.protocol.ProtocolServerConfig;
+import net.cassite.vproxy.protocol.ProtocolServerHandler;
+import net.cassite.vproxy.util.ByteArrayChannel;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+
+// respond the same data whenever receives data
+public class FixedResponseServer {
+    public final AtomicLong accepted = new AtomicLong();
+    public final AtomicLong requests = new AtomicLong();
+
+    private final byte[] response;
+
+    public FixedResponseServer(String response, NetEventLoop loop, int port) throws IOException {
+        this.response = response.getBytes(StandardCharsets.UTF_8);
+        BindServer bindServer = BindServer.create(new InetSocketAddress("127.0.0.1", port));
+        ProtocolServerHandler.apply(loop, bindServer,
+            new ProtocolServerConfig(), new FixedResponseProtocolHandler());
+    }
+
+    class FixedResponseProtocolHandler implements ProtocolHandler<Object> {
+        @Override
+        public void init(ProtocolHandlerContext<Object> ctx) {
+            accepted.incrementAndGet();
+        }
+
+        @Override
+        public void readable(ProtocolHandlerContext<Object> ctx) {
+            int size = ctx.inBuffer.used();
+            ctx.inBuffer.writeTo(ByteArrayChannel.fromEmpty(new byte[size]));
+            requests.incrementAndGet();
+            ctx.write(response);
+        }
+
+        @Override
+        public void exception(ProtocolHandlerContext<Object> ctx, Throwable err) {
+            // ignore exceptions
+        }
+
+        @Override
+        public void end(ProtocolHandlerContext<Object> ctx) {
+            // do nothing
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package net.cassite.vproxy.test.tool;
+
+import net.cassite.vproxy.connection.*;
+import net.cassite.vproxy.util.RingBuffer;
+import net.cassite.vproxy.util.Tuple;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.NetworkChannel;
+
+public class ResetServer {
+    public ResetServer(NetEventLoop loop, int port) throws IOException {
+        BindServer bindServer = BindServer.create(new InetSocketAddress("127.0.0.1", port));
+        loop.addServer(bindServer, null, new ResetHandler());
+    }
+
+    class ResetHandler implements ServerHandler {
+        @Override
+        public void acceptFail(ServerHandlerContext ctx, IOException err) {
+            // ignore
+        }
+
+        @Override
+        public void connection(ServerHandlerContext ctx, Connection connection) {
+            // ignore
+        }
+
+        @Override
+        public Tuple<RingBuffer, RingBuffer> getIOBuffers(NetworkChannel channel) {
+            // linger 0 makes the close send RST
+            try {
+                channel.setOption(StandardSocketOptions.SO_LINGER, 0);
+            } catch (IOException ignore) {
+            }
+            // return null, then the lib will close the connection
+            return null;
+        }
+
+        @Override
+        public void removed(ServerHandlerContext ctx) {
+            ctx.server.close();
+        }
+    }
+}